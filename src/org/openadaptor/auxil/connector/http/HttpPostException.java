@@ -0,0 +1,55 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.connector.http;
+
+import org.openadaptor.core.IComponent;
+import org.openadaptor.core.exception.ConnectionException;
+
+/**
+ * Thrown by {@link HttpWriteConnector} in pooled mode when some of the requests for
+ * a delivery fail. The records of the requests that succeeded have been posted, 
+ * only those returned by {@link #getFailedRecords()} have not.
+ */
+public class HttpPostException extends ConnectionException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Object[] failedRecords;
+
+  public HttpPostException(String msg, Throwable cause, Object[] failedRecords, IComponent c) {
+    super(msg, cause, c);
+    this.failedRecords = failedRecords;
+  }
+
+  /**
+   * @return the records of the failed requests, in the order they were delivered.
+   */
+  public Object[] getFailedRecords() {
+    return failedRecords;
+  }
+}
@@ -28,14 +28,28 @@
 package org.openadaptor.auxil.connector.http;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.openadaptor.auxil.metrics.LatencyHistogram;
+import org.openadaptor.auxil.metrics.StripedCounter;
 import org.openadaptor.core.IWriteConnector;
+import org.openadaptor.core.exception.ConnectionException;
 
 /**
  * Makes a HTTP POST call to the specified URL.
@@ -47,6 +61,18 @@ import org.openadaptor.core.IWriteConnector;
  * to a database.
  * 
  * The writer allows for optional setting of an HTTP proxy.
+ * <br/>
+ * By default records are posted one at a time over a single connection. Setting
+ * <code>maxInFlightRequests</code> to more than zero switches to a pooled mode where
+ * up to that many requests are in flight at once, each on its own keep-alive connection
+ * taken from a pool. In this mode deliver throws a {@link HttpPostException} if any
+ * request fails, once all of them have completed. It holds the records of the failed
+ * requests, the rest have been posted. A {@link org.openadaptor.core.node.WriteNode}
+ * that redelivers a failed batch in halves posts those records again, so delivery is
+ * at least once; set <code>unbatch</code> on the node if the endpoint can't take duplicates.
+ * <br/>
+ * If the endpoint accepts it, <code>recordsPerRequest</code> posts several records in
+ * one request, as repeated values of the <code>data</code> parameter.
  * 
  * @author Kris Lachor
  */
@@ -55,6 +81,25 @@ public class HttpWriteConnector extends AbstractHttpConnector implements IWriteC
   private static final Log log = LogFactory.getLog(HttpWriteConnector.class);
   
   protected static final String RESPONSE_KEY = "data";
+
+  private int maxInFlightRequests = 0;
+
+  private int recordsPerRequest = 1;
+
+  private int requestTimeoutMs = 0;
+
+  private MultiThreadedHttpConnectionManager connectionManager;
+
+  /** the client's connection manager before connect, restored on disconnect */
+  private HttpConnectionManager defaultConnectionManager;
+
+  private ExecutorService executor;
+
+  private final StripedCounter requestCount = new StripedCounter();
+
+  private final StripedCounter failedRequestCount = new StripedCounter();
+
+  private final LatencyHistogram requestLatencies = new LatencyHistogram();
   
   /**
    * Default constructor.
@@ -74,21 +119,57 @@ public class HttpWriteConnector extends AbstractHttpConnector implements IWriteC
   }
 
   /**
-   * HTTP does not require a permanent connection.
+   * HTTP does not require a permanent connection. In pooled mode this creates
+   * the connection pool and the threads which execute requests.
    * 
    * @see IWriteConnector#connect()
    */
   public void connect(){
     setHostConfiguration();
+    if (maxInFlightRequests > 0 && executor == null) {
+      connectionManager = new MultiThreadedHttpConnectionManager();
+      HttpConnectionManagerParams params = connectionManager.getParams();
+      params.setDefaultMaxConnectionsPerHost(maxInFlightRequests);
+      params.setMaxTotalConnections(maxInFlightRequests);
+      if (requestTimeoutMs > 0) {
+        params.setConnectionTimeout(requestTimeoutMs);
+      }
+      defaultConnectionManager = client.getHttpConnectionManager();
+      client.setHttpConnectionManager(connectionManager);
+      client.getParams().setConnectionManagerTimeout(requestTimeoutMs);
+      executor = Executors.newFixedThreadPool(maxInFlightRequests, new ThreadFactory() {
+        private int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, getId() + "-http-" + (++count));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      log.info("Posting to " + url + " with up to " + maxInFlightRequests + " requests in flight");
+    }
+    else if (executor == null && requestTimeoutMs > 0) {
+      client.getHttpConnectionManager().getParams().setConnectionTimeout(requestTimeoutMs);
+    }
   }
 
   /**
-   * HTTP does not require a permanent connection.
+   * HTTP does not require a permanent connection. In pooled mode this closes 
+   * the pooled connections.
    * 
    * @see IWriteConnector#disconnect()
    */
   public void disconnect(){
-    log.info("HttpWriteConnector#disconnect - no action");
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+      client.setHttpConnectionManager(defaultConnectionManager);
+      connectionManager.shutdown();
+      connectionManager = null;
+      log.info("HttpWriteConnector#disconnect - connection pool closed");
+    }
+    else {
+      log.info("HttpWriteConnector#disconnect - no action");
+    }
   }
 
   /**
@@ -98,16 +179,16 @@ public class HttpWriteConnector extends AbstractHttpConnector implements IWriteC
    */
   public Object deliver(Object[] data) {
     log.info("HTTP write connector, delivering data..");
+    if (executor != null) {
+      return deliverConcurrently(data);
+    }
     Object result = new Object[data.length];
-    PostMethod postMethod = null;
-    for(int i=0; i<data.length; i++){
-      NameValuePair [] nameValuePairs = { new NameValuePair(RESPONSE_KEY, data[i].toString())};
-      postMethod = new PostMethod(url);
-      postMethod.setRequestBody(nameValuePairs);   
+    for(int i=0; i<data.length; i+=recordsPerRequest){
+      PostMethod postMethod = newPostMethod(data, i);
       try {
         
         /* Execute the method and check the status */ 
-        int statusCode = client.executeMethod(postMethod);
+        int statusCode = execute(postMethod);
         if (statusCode != HttpStatus.SC_OK) {
           log.error("Method failed: " + postMethod.getStatusLine());
           return result;
@@ -125,5 +206,166 @@ public class HttpWriteConnector extends AbstractHttpConnector implements IWriteC
     }
     return result;
   }
+
+  /**
+   * Submits all the requests for the records to the pool and waits for them to complete.
+   */
+  private Object deliverConcurrently(Object[] data) {
+    List futures = new ArrayList();
+    for (int i = 0; i < data.length; i += recordsPerRequest) {
+      final PostMethod postMethod = newPostMethod(data, i);
+      futures.add(executor.submit(new Callable() {
+        public Object call() throws IOException {
+          try {
+            int statusCode = execute(postMethod);
+            if (statusCode != HttpStatus.SC_OK) {
+              log.error("Method failed: " + postMethod.getStatusLine());
+            }
+            return new Integer(statusCode);
+          } finally {
+            postMethod.releaseConnection();
+          }
+        }
+      }));
+    }
+
+    int failures = 0;
+    List failedRecords = new ArrayList();
+    Throwable cause = null;
+    for (int i = 0; i < futures.size(); i++) {
+      boolean failed = false;
+      try {
+        Integer statusCode = (Integer) ((Future) futures.get(i)).get();
+        failed = statusCode.intValue() != HttpStatus.SC_OK;
+      } catch (ExecutionException e) {
+        log.error("Error while reading response from HTTP POST", e.getCause());
+        failed = true;
+        cause = e.getCause();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ConnectionException("Interrupted waiting for HTTP POST to " + url, e, this);
+      }
+      if (failed) {
+        failures++;
+        int from = i * recordsPerRequest;
+        int to = Math.min(data.length, from + recordsPerRequest);
+        for (int j = from; j < to; j++) {
+          failedRecords.add(data[j]);
+        }
+      }
+    }
+    if (failures > 0) {
+      throw new HttpPostException(failures + " of " + futures.size() + " HTTP POST requests to " 
+          + url + " failed, " + failedRecords.size() + " of " + data.length + " records not posted", 
+          cause, failedRecords.toArray(), this);
+    }
+    return new Object[data.length];
+  }
+
+  /**
+   * Creates a POST carrying up to recordsPerRequest records, starting at the given one.
+   */
+  private PostMethod newPostMethod(Object[] data, int from) {
+    int to = Math.min(data.length, from + recordsPerRequest);
+    NameValuePair[] nameValuePairs = new NameValuePair[to - from];
+    for (int i = from; i < to; i++) {
+      nameValuePairs[i - from] = new NameValuePair(RESPONSE_KEY, data[i].toString());
+    }
+    PostMethod postMethod = new PostMethod(url);
+    postMethod.setRequestBody(nameValuePairs);
+    if (requestTimeoutMs > 0) {
+      postMethod.getParams().setSoTimeout(requestTimeoutMs);
+    }
+    return postMethod;
+  }
+
+  /**
+   * Executes the method, recording the request count and latency.
+   */
+  private int execute(PostMethod postMethod) throws IOException {
+    long start = System.nanoTime();
+    boolean ok = false;
+    try {
+      int statusCode = client.executeMethod(postMethod);
+      ok = statusCode == HttpStatus.SC_OK;
+      return statusCode;
+    } finally {
+      requestCount.increment();
+      if (!ok) {
+        failedRequestCount.increment();
+      }
+      requestLatencies.record((System.nanoTime() - start) / 1000);
+    }
+  }
+
+  /**
+   * Sets the maximum number of requests in flight at once. If greater than zero
+   * requests are executed concurrently over a pool of keep-alive connections of
+   * the same size. Defaults to 0, which posts one request at a time.
+   * 
+   * @param maxInFlightRequests
+   */
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    this.maxInFlightRequests = maxInFlightRequests;
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  /**
+   * Sets the number of records sent in each request, as repeated values of the 
+   * <code>data</code> parameter. Only use this if the endpoint reads every value.
+   * Defaults to 1.
+   * 
+   * @param recordsPerRequest
+   */
+  public void setRecordsPerRequest(int recordsPerRequest) {
+    if (recordsPerRequest < 1) {
+      throw new IllegalArgumentException("recordsPerRequest must be at least 1");
+    }
+    this.recordsPerRequest = recordsPerRequest;
+  }
+
+  public int getRecordsPerRequest() {
+    return recordsPerRequest;
+  }
+
+  /**
+   * Sets the timeout in milliseconds for connecting and for waiting for a response
+   * to each request. Defaults to 0, no timeout.
+   * 
+   * @param requestTimeoutMs
+   */
+  public void setRequestTimeoutMs(int requestTimeoutMs) {
+    this.requestTimeoutMs = requestTimeoutMs;
+  }
+
+  public int getRequestTimeoutMs() {
+    return requestTimeoutMs;
+  }
+
+  /**
+   * @return number of requests executed.
+   */
+  public long getRequestCount() {
+    return requestCount.sum();
+  }
+
+  /**
+   * @return number of requests which failed or did not return 200.
+   */
+  public long getFailedRequestCount() {
+    return failedRequestCount.sum();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return request latency in microseconds at the given percentile, or -1 if no
+   * requests have been made.
+   */
+  public long getRequestLatencyMicros(double percentile) {
+    return requestLatencies.getPercentile(percentile);
+  }
   
 }
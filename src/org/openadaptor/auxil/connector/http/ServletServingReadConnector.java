@@ -64,6 +64,7 @@ public abstract class ServletServingReadConnector extends QueuingReadConnector {
   public void disconnect() {
     log.info("Stopping servlet container.");
     servletContainer.stop();
+    super.disconnect();
   }
   
   public void addServlet(Servlet servlet, String path) {
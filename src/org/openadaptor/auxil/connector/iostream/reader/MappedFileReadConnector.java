@@ -0,0 +1,676 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.connector.iostream.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openadaptor.core.IReadConnector;
+import org.openadaptor.core.exception.ConnectionException;
+import org.openadaptor.core.exception.ValidationException;
+import org.openadaptor.core.lifecycle.LifecycleComponent;
+import org.openadaptor.core.transaction.ITransactional;
+import org.openadaptor.core.transaction.ITransactionalResource;
+
+/**
+ * Read Connector that reads lines from a (typically very large) file using
+ * memory mapped NIO, decoding and filtering the file in parallel.
+ * <br>
+ * The file is split into chunks of roughly <code>chunkSize</code> bytes,
+ * each extended to the end of a line. Chunks are decoded and filtered by a
+ * pool of <code>threadCount</code> threads, a bounded number of chunks
+ * ahead of the consumer. Each call to {@link #next(long)} returns up to
+ * <code>batchSize</code> lines from a single chunk. By default chunks are
+ * returned in file order; if <code>ordered</code> is false they are
+ * returned as soon as they are ready.
+ * <br>
+ * Lines may be filtered with include and exclude regular expressions, as for
+ * {@link org.openadaptor.auxil.connector.iostream.reader.string.LineReader}.
+ * Block-of-records delimiters are not supported, as they need the file to be
+ * read sequentially. Lines end with \n or \r\n, and the encoding must
+ * represent these as single bytes (e.g. US-ASCII, ISO-8859-1 or UTF-8).
+ * <br>
+ * If <code>checkpointFilename</code> is set, the byte offset up to which all
+ * lines have been processed is saved to that file as each batch is
+ * committed. If a transaction manager is in use, this happens when the
+ * transaction commits; otherwise when the next batch is requested. A
+ * restarted adaptor then resumes from that offset, provided the file has
+ * the same length and modification time. The checkpoint is deleted once the
+ * whole file has been read. After a rollback the checkpoint is no longer
+ * advanced, so a restart may re-read some batches, but will not skip any.
+ */
+public class MappedFileReadConnector extends LifecycleComponent implements IReadConnector, ITransactional {
+
+  private static final Log log = LogFactory.getLog(MappedFileReadConnector.class);
+
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  //Checkpoint property names
+  private static final String CP_FILENAME = "filename";
+  private static final String CP_LENGTH = "length";
+  private static final String CP_LAST_MODIFIED = "lastModified";
+  private static final String CP_OFFSET = "offset";
+
+  //Bytes read at a time when looking for the end of a chunk.
+  private static final int SCAN_SIZE = 8192;
+
+  // Properties:
+  private String filename;
+  private String encoding;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private boolean ordered = true;
+  private Pattern[] includePatterns = new Pattern[0];
+  private Pattern[] excludePatterns = new Pattern[0];
+  private String checkpointFilename;
+
+  // State:
+  private Charset charset;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long fileLength;
+  private long lastModified;
+  private long nextChunkStart;
+  private ExecutorService executor;
+  private CompletionService completionService;
+  private LinkedList inFlight = new LinkedList(); //Futures, in file order
+  private int inFlightCount;
+  private Chunk current;
+  private int currentIndex;
+  //Offset before which every chunk has been completely returned.
+  private long watermark;
+  //Chunks (start -> end) completely returned, but beyond the watermark.
+  private TreeMap completedChunks = new TreeMap();
+  //Offset reached by the last batch returned, but not yet committed.
+  private long uncommittedOffset = -1;
+  private long committedOffset;
+  private boolean transactional = false;
+  //Set once a batch has been rolled back; later batches are not checkpointed.
+  private boolean checkpointFrozen = false;
+  private boolean isDry = false;
+  private ITransactionalResource txnResource;
+
+  public MappedFileReadConnector() {
+    super();
+  }
+
+  public MappedFileReadConnector(String id) {
+    super(id);
+  }
+
+  public void setFilename(String filename) {
+    this.filename = filename;
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  /**
+   * Character encoding of the file. Defaults to the platform encoding.
+   */
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * Approximate size, in bytes, of the chunks the file is split into.
+   * Defaults to {@link #DEFAULT_CHUNK_SIZE}.
+   */
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Number of threads used to decode and filter chunks.
+   * Defaults to the number of available processors.
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Maximum number of lines returned by each call to next().
+   * Defaults to {@link #DEFAULT_BATCH_SIZE}.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * If false, chunks are returned as soon as they have been decoded,
+   * rather than in file order. Defaults to true.
+   */
+  public void setOrdered(boolean ordered) {
+    this.ordered = ordered;
+  }
+
+  public void setIncludeRegex(String regex) {
+    setIncludeRegexs(new String[] { regex });
+  }
+
+  public void setExcludeRegex(String regex) {
+    setExcludeRegexs(new String[] { regex });
+  }
+
+  public void setIncludeRegexs(String[] regexs) {
+    includePatterns = compile(regexs);
+  }
+
+  public void setExcludeRegexs(String[] regexs) {
+    excludePatterns = compile(regexs);
+  }
+
+  /**
+   * Name of a file in which to record how far the file has been
+   * processed. If not set, no checkpoints are kept.
+   */
+  public void setCheckpointFilename(String checkpointFilename) {
+    this.checkpointFilename = checkpointFilename;
+  }
+
+  /**
+   * @return the byte offset up to which lines have been committed.
+   */
+  public long getCommittedOffset() {
+    return committedOffset;
+  }
+
+  private static Pattern[] compile(String[] regexs) {
+    Pattern[] patterns = new Pattern[regexs.length];
+    for (int i = 0; i < regexs.length; i++) {
+      patterns[i] = Pattern.compile(regexs[i]);
+    }
+    return patterns;
+  }
+
+  public void validate(List exceptions) {
+    if (filename == null) {
+      exceptions.add(new ValidationException("filename property must be set", this));
+    }
+    if (chunkSize <= 0) {
+      exceptions.add(new ValidationException("chunkSize must be greater than zero", this));
+    }
+    if (threadCount <= 0) {
+      exceptions.add(new ValidationException("threadCount must be greater than zero", this));
+    }
+    if (batchSize <= 0) {
+      exceptions.add(new ValidationException("batchSize must be greater than zero", this));
+    }
+    try {
+      Charset cs = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+      if (!Arrays.equals(new byte[] { '\r', '\n' }, "\r\n".getBytes(cs.name()))) {
+        exceptions.add(new ValidationException("Encoding " + cs.name() + " does not use single byte line separators", this));
+      }
+    } catch (Exception e) {
+      exceptions.add(new ValidationException("Unsupported encoding " + encoding, e, this));
+    }
+  }
+
+  public void connect() {
+    charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+    File f = new File(filename);
+    try {
+      file = new RandomAccessFile(f, "r");
+    } catch (IOException e) {
+      throw new ConnectionException("Failed to open " + filename + ", " + e.getMessage(), e, this);
+    }
+    channel = file.getChannel();
+    fileLength = f.length();
+    lastModified = f.lastModified();
+    long start = readCheckpoint();
+    if (start > 0) {
+      log.info(getId() + " resuming " + filename + " from offset " + start);
+    }
+    nextChunkStart = start;
+    watermark = start;
+    committedOffset = start;
+    uncommittedOffset = -1;
+    checkpointFrozen = false;
+    completedChunks.clear();
+    inFlight.clear();
+    inFlightCount = 0;
+    current = null;
+    isDry = false;
+    executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, getId() + "-chunk");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    completionService = new ExecutorCompletionService(executor);
+  }
+
+  public void disconnect() {
+    if (!transactional) {
+      commitOffset();
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    inFlight.clear();
+    inFlightCount = 0;
+    current = null;
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        log.warn(getId() + " failed to close " + filename + ", " + e.getMessage());
+      }
+      file = null;
+      channel = null;
+    }
+  }
+
+  public boolean isDry() {
+    return isDry;
+  }
+
+  public Object getReaderContext() {
+    return filename;
+  }
+
+  public void setReaderContext(Object context) {
+  }
+
+  public Object[] next(long timeoutMs) {
+    if (!transactional) { //Previous batch has been processed by now.
+      commitOffset();
+    }
+    while (current == null || currentIndex >= current.lines.length) {
+      if (current != null) { //Every line was filtered out
+        chunkReturned(current);
+        uncommittedOffset = watermark;
+        current = null;
+      }
+      submitChunks();
+      if (inFlightCount == 0) {
+        isDry = true;
+        return null;
+      }
+      Chunk chunk = ordered ? nextInOrder(timeoutMs) : nextCompleted(timeoutMs);
+      if (chunk == null) { //Timed out
+        return null;
+      }
+      inFlightCount--;
+      current = chunk;
+      currentIndex = 0;
+    }
+    int count = Math.min(batchSize, current.lines.length - currentIndex);
+    Object[] batch = new Object[count];
+    System.arraycopy(current.lines, currentIndex, batch, 0, count);
+    currentIndex += count;
+    if (currentIndex >= current.lines.length) {
+      chunkReturned(current);
+      uncommittedOffset = watermark;
+      current = null;
+    } else if (current.start == watermark) {
+      uncommittedOffset = current.lineEnds[currentIndex - 1];
+    }
+    return batch;
+  }
+
+  /**
+   * Record that every line of a chunk has been returned, and move the
+   * watermark past any contiguous run of returned chunks.
+   */
+  private void chunkReturned(Chunk chunk) {
+    completedChunks.put(new Long(chunk.start), new Long(chunk.end));
+    Long end;
+    while ((end = (Long) completedChunks.remove(new Long(watermark))) != null) {
+      watermark = end.longValue();
+    }
+  }
+
+  private Chunk nextInOrder(long timeoutMs) {
+    Future future = (Future) inFlight.getFirst();
+    try {
+      Chunk chunk = (Chunk) future.get(timeoutMs, TimeUnit.MILLISECONDS);
+      inFlight.removeFirst();
+      return chunk;
+    } catch (TimeoutException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      throw chunkFailure(e);
+    }
+  }
+
+  private Chunk nextCompleted(long timeoutMs) {
+    try {
+      Future future = completionService.poll(timeoutMs, TimeUnit.MILLISECONDS);
+      if (future == null) {
+        return null;
+      }
+      inFlight.remove(future);
+      return (Chunk) future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      throw chunkFailure(e);
+    }
+  }
+
+  private ConnectionException chunkFailure(ExecutionException e) {
+    Throwable cause = e.getCause() != null ? e.getCause() : e;
+    return new ConnectionException("Failed to read " + filename + ", " + cause.getMessage(), cause, this);
+  }
+
+  /**
+   * Keep up to two chunks per thread decoding ahead of the consumer.
+   */
+  private void submitChunks() {
+    while (inFlightCount < threadCount * 2 && nextChunkStart < fileLength) {
+      long start = nextChunkStart;
+      long end = findChunkEnd(start);
+      Future future = completionService.submit(new ChunkTask(start, end));
+      inFlight.addLast(future);
+      inFlightCount++;
+      nextChunkStart = end;
+    }
+  }
+
+  /**
+   * @return offset just after the first line end at or beyond start+chunkSize,
+   * or the file length.
+   */
+  private long findChunkEnd(long start) {
+    long position = start + chunkSize;
+    if (position >= fileLength) {
+      return fileLength;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+    try {
+      position--;
+      while (position < fileLength) {
+        buffer.clear();
+        int read = channel.read(buffer, position);
+        if (read <= 0) {
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          if (buffer.get(i) == '\n') {
+            return position + i + 1;
+          }
+        }
+        position += read;
+      }
+    } catch (IOException e) {
+      throw new ConnectionException("Failed to read " + filename + ", " + e.getMessage(), e, this);
+    }
+    return fileLength;
+  }
+
+  public Object getResource() {
+    transactional = true;
+    if (txnResource == null) {
+      txnResource = new CheckpointTransactionResource();
+    }
+    return txnResource;
+  }
+
+  /**
+   * Saves the offset reached by the last batch returned, if any.
+   */
+  private void commitOffset() {
+    if (uncommittedOffset >= 0 && !checkpointFrozen) {
+      committedOffset = uncommittedOffset;
+      uncommittedOffset = -1;
+      writeCheckpoint(committedOffset);
+    }
+  }
+
+  private long readCheckpoint() {
+    if (checkpointFilename == null) {
+      return 0;
+    }
+    File checkpoint = new File(checkpointFilename);
+    if (!checkpoint.exists()) {
+      return 0;
+    }
+    Properties props = new Properties();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(checkpoint);
+      props.load(in);
+      if (filename.equals(props.getProperty(CP_FILENAME))
+          && Long.parseLong(props.getProperty(CP_LENGTH)) == fileLength
+          && Long.parseLong(props.getProperty(CP_LAST_MODIFIED)) == lastModified) {
+        long offset = Long.parseLong(props.getProperty(CP_OFFSET));
+        if (offset >= 0 && offset <= fileLength) {
+          return offset;
+        }
+      }
+      log.info(getId() + " ignoring checkpoint " + checkpointFilename + " which does not match " + filename);
+    } catch (Exception e) {
+      log.warn(getId() + " ignoring unreadable checkpoint " + checkpointFilename + ", " + e);
+    } finally {
+      close(in);
+    }
+    return 0;
+  }
+
+  private void writeCheckpoint(long offset) {
+    if (checkpointFilename == null) {
+      return;
+    }
+    File checkpoint = new File(checkpointFilename);
+    if (offset >= fileLength) { //Finished with this file.
+      if (checkpoint.exists() && !checkpoint.delete()) {
+        log.warn(getId() + " failed to delete checkpoint " + checkpointFilename);
+      }
+      return;
+    }
+    Properties props = new Properties();
+    props.setProperty(CP_FILENAME, filename);
+    props.setProperty(CP_LENGTH, String.valueOf(fileLength));
+    props.setProperty(CP_LAST_MODIFIED, String.valueOf(lastModified));
+    props.setProperty(CP_OFFSET, String.valueOf(offset));
+    File temp = new File(checkpointFilename + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(temp);
+      props.store(out, "Checkpoint for " + getId());
+      out.close();
+      out = null;
+      if (!temp.renameTo(checkpoint)) { //Not atomic on all platforms
+        checkpoint.delete();
+        if (!temp.renameTo(checkpoint)) {
+          throw new IOException("failed to rename " + temp);
+        }
+      }
+    } catch (IOException e) {
+      throw new ConnectionException("Failed to write checkpoint " + checkpointFilename + ", " + e.getMessage(), e, this);
+    } finally {
+      close(out);
+    }
+  }
+
+  private static void close(InputStream in) {
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private static void close(OutputStream out) {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Decoded and filtered lines of one chunk of the file.
+   */
+  private static final class Chunk {
+    final long start;
+    final long end;
+    final Object[] lines;
+    final long[] lineEnds; //File offset just after each line
+
+    Chunk(long start, long end, Object[] lines, long[] lineEnds) {
+      this.start = start;
+      this.end = end;
+      this.lines = lines;
+      this.lineEnds = lineEnds;
+    }
+  }
+
+  /**
+   * Maps a chunk of the file, then splits it into lines and filters them.
+   */
+  private final class ChunkTask implements Callable {
+    private final long start;
+    private final long end;
+
+    ChunkTask(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    public Object call() throws IOException {
+      long length = end - start;
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("line at offset " + start + " is too long");
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      byte[] bytes = new byte[(int) length];
+      mapped.get(bytes);
+      Matcher[] includes = matchers(includePatterns);
+      Matcher[] excludes = matchers(excludePatterns);
+      List lines = new ArrayList();
+      List ends = new ArrayList();
+      int lineStart = 0;
+      for (int i = 0; i <= bytes.length; i++) {
+        if (i == bytes.length ? i > lineStart : bytes[i] == '\n') {
+          int lineEnd = i;
+          if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+            lineEnd--;
+          }
+          String line = new String(bytes, lineStart, lineEnd - lineStart, charset);
+          if (match(line, includes, excludes)) {
+            lines.add(line);
+            ends.add(new Long(start + Math.min(i + 1, bytes.length)));
+          } else if (log.isDebugEnabled()) {
+            log.debug("discarding line " + line);
+          }
+          lineStart = i + 1;
+        }
+      }
+      long[] lineEnds = new long[ends.size()];
+      for (int i = 0; i < lineEnds.length; i++) {
+        lineEnds[i] = ((Long) ends.get(i)).longValue();
+      }
+      return new Chunk(start, end, lines.toArray(), lineEnds);
+    }
+  }
+
+  private static Matcher[] matchers(Pattern[] patterns) {
+    Matcher[] matchers = new Matcher[patterns.length];
+    for (int i = 0; i < patterns.length; i++) {
+      matchers[i] = patterns[i].matcher("");
+    }
+    return matchers;
+  }
+
+  private static boolean match(String line, Matcher[] includes, Matcher[] excludes) {
+    boolean match = includes.length == 0;
+    for (int i = 0; !match && i < includes.length; i++) {
+      match = includes[i].reset(line).matches();
+    }
+    for (int i = 0; match && i < excludes.length; i++) {
+      match = !excludes[i].reset(line).matches();
+    }
+    return match;
+  }
+
+  /**
+   * Saves the checkpoint when the transaction carrying the last batch
+   * commits. On rollback the checkpoint is left where it was for the rest
+   * of the run, so the failed batch (and any after it) will be re-read if
+   * the adaptor is restarted.
+   */
+  protected class CheckpointTransactionResource implements ITransactionalResource {
+    public void begin() {
+    }
+
+    public void commit() {
+      commitOffset();
+    }
+
+    public void rollback(Throwable e) {
+      if (!checkpointFrozen && checkpointFilename != null) {
+        log.warn(getId() + " batch rolled back, checkpoint will remain at offset " + committedOffset);
+      }
+      uncommittedOffset = -1;
+      checkpointFrozen = true;
+    }
+  }
+}
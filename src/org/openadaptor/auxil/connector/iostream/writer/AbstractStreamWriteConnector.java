@@ -80,16 +80,30 @@ public abstract class AbstractStreamWriteConnector extends AbstractWriteConnecto
 
   public Object deliver(Object[] data) {
     try {
-      for (int i = 0; i < data.length; i++) {
-        dataWriter.write(data[i]);
-      }
-      dataWriter.flush();
+      writeData(data);
+      flushData();
       return null;
     } catch (IOException e) {
       throw new ConnectionException("IOException, " + e.getMessage(), e, this);
     }
   }
 
+  /**
+   * Writes each record using the dataWriter, without flushing it.
+   */
+  protected void writeData(Object[] data) throws IOException {
+    for (int i = 0; i < data.length; i++) {
+      dataWriter.write(data[i]);
+    }
+  }
+
+  /**
+   * Flushes all data written so far through the dataWriter.
+   */
+  protected void flushData() throws IOException {
+    dataWriter.flush();
+  }
+
   public void disconnect() {
     if (outputStream != null && outputStream != System.out) {
       try {
@@ -28,10 +28,17 @@
 package org.openadaptor.auxil.connector.iostream.writer;
 
 import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,6 +72,12 @@ import org.openadaptor.core.transaction.ITransactional;
  * <br>5)	The directory size check does not include the contents of sub directories
  * <br>6)	The 'delete' will not try to delete directories contained in the checked directory nor will it try to delete files that are not writable.
  * <br>7)	The 'delete' will not try to delete the file being written to. If it is the only file writable file in the directory the directory may exceed the specified size limit.
+ * <br>8)	The sizes and ages of the files in the directory are indexed in memory when first needed (normally at connection). Subsequent checks
+ * <br>		only look at the file being written to, unless the directory's modification time shows that files have been added, renamed or
+ * <br>		removed, in which case the directory is indexed again. Files are then deleted, oldest first, in a single pass.
+ * <br>		The connector's own deletes, and the rollovers of a FileWriteConnector delegate, are applied to the index directly
+ * <br>		rather than making it index the directory again; a change made by anything else between a check and one of these
+ * <br>		is only seen once the directory is indexed again.
  * <br>
  * </td>
  * </tr> 
@@ -86,6 +99,10 @@ import org.openadaptor.core.transaction.ITransactional;
  * <td valign="top">maxDirSize</td> <td>[0] Size (Mb) at which an attempt will be made to delete the oldest file in the directory:
  * <br> 1  =  1*1024*1024 bytes</td>
  * </tr>
+ * <tr>
+ * <td valign="top">backgroundEviction</td > <td>[false] When set to true the checks made after delivery are run on a background thread, so that
+ * <br>deleting files does not hold up the delivery. Checks at connection and disconnection are always made immediately.</td> 
+ * </tr>
  * <tr><td>&nbsp;</td></tr>
  * </table>
  * 
@@ -106,9 +123,13 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 	private int numDeliveriesBetweenChecks = 0;
 	private int maxDirSize = 0;
 
-	private boolean failedDelete = false;
+	private boolean backgroundEviction = false;
+
 	private int numDeliveriesCount = 0;
 	private Directory dir;
+	private ExecutorService evictionExecutor;
+	//Guarded by this; true while a background check is queued or running
+	private boolean evictionPending = false;
 	//private String directoryPath = "";
 
 	/**
@@ -198,7 +219,19 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 	 */
 	public void connect() {
 		this.delegate.connect();
-		//createSortedFilesMap(dirFile);
+		// Build the index now, rather than on the first check
+		synchronized (this) {
+			getDirectory(this.delegate.getFilename());
+		}
+		if (isBackgroundEviction() && evictionExecutor == null) {
+			evictionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, getId() + "-eviction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 
 		// Do check at connection?
 		if (isCheckAtConnection()) {
@@ -214,6 +247,10 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 		if (isCheckAtDisconnection()) {
 			tryToShrinkArchive(this.delegate.getFilename());
 		}
+		if (evictionExecutor != null) {
+			evictionExecutor.shutdown();
+			evictionExecutor = null;
+		}
 		
 		this.delegate.disconnect();
 	}
@@ -222,7 +259,16 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 	 * @see org.openadaptor.core.IFileWriteConnector#deliver(java.lang.Object[])
 	 */
 	public Object deliver(Object[] data) {
+		String movedBefore = getLastFileMovedTo();
 		Object anObject = this.delegate.deliver(data);
+		String movedAfter = getLastFileMovedTo();
+		if (movedAfter != null && !movedAfter.equals(movedBefore)) {
+			synchronized (this) {
+				if (dir != null && dir.dirPath.equals(getDirectoryPath(this.delegate.getFilename()))) {
+					dir.rolledOver(new File(movedAfter));
+				}
+			}
+		}
 		
 		// Do check after delivery?	
 		if (isCheckAfterDelivery()){
@@ -231,7 +277,12 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 			}
 			//Test if check should occur every delivery or every n deliveries?
 			if (numDeliveriesBetweenChecks == 0 || (numDeliveriesCount >= numDeliveriesBetweenChecks)) { 
-				tryToShrinkArchive(this.delegate.getFilename());
+				if (evictionExecutor != null) {
+					scheduleShrinkArchive(this.delegate.getFilename());
+				}
+				else {
+					tryToShrinkArchive(this.delegate.getFilename());
+				}
 				numDeliveriesCount = 0;
 			}
 		}
@@ -239,83 +290,104 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 	}
 	
 	/**
-	 * Calls method to shrink the archive if the directory size exceeds the set maxDirSize.<br>
-	 * Use this signature when we may have a new filename
+	 * @return where the delegate last moved the file it writes to when rolling 
+	 * it over, if it is a FileWriteConnector
 	 */
-	public void tryToShrinkArchive(String fileName) {
-		//Get directory path every time as the dynamic file writer may change the path while the adaptor is running
-		dir = new Directory(fileName);
-		long dirSize = dir.size;
-		log.debug(this.getId() + " Directory/Max size: " + String.valueOf(dirSize) + "/" + getMaxDirSize());
-		
-		// shrink archive if required
-		if (dirSize > getMaxDirSize()) { //Is the directory bigger than wanted?
-			dir.createSortedFilesMap(dir.dirFile); //Build file map first time round
-			shrinkArchive(dir);
+	private String getLastFileMovedTo() {
+		if (this.delegate instanceof FileWriteConnector) {
+			return ((FileWriteConnector) this.delegate).getLastFileMovedTo();
 		}
+		return null;
 	}
+
 	/**
-	 * Calls method to shrink the archive if the directory size exceeds the set maxDirSize.
-	 * Use this signature when we are sure the filename has not changed since we built the Directory class 'instance' dir 
-	 */	
-	private void tryToShrinkArchive(Directory dir) {
-		long dirSize = dir.getDirSize(dir.dirFile);
+	 * Queues a check on the background thread, unless one is already queued.
+	 */
+	private void scheduleShrinkArchive(final String fileName) {
+		synchronized (this) {
+			if (evictionPending) {
+				return;
+			}
+			evictionPending = true;
+		}
+		evictionExecutor.execute(new Runnable() {
+			public void run() {
+				synchronized (ArchivingFileWriterConnector.this) {
+					evictionPending = false;
+				}
+				try {
+					tryToShrinkArchive(fileName);
+				}
+				catch (RuntimeException e) {
+					log.error(getId() + " background archive check failed", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calls method to shrink the archive if the directory size exceeds the set maxDirSize.<br>
+	 * The file name may change between calls, e.g. if the delegate is a dynamic file writer.
+	 */
+	public synchronized void tryToShrinkArchive(String fileName) {
+		Directory directory = getDirectory(fileName);
+		long dirSize = directory.size;
 		log.debug(this.getId() + " Directory/Max size: " + String.valueOf(dirSize) + "/" + getMaxDirSize());
 		
 		// shrink archive if required
-		if (dirSize > getMaxDirSize()) { //Is the directory still bigger than wanted?
-			shrinkArchive(dir);
+		if (dirSize > getMaxDirSize()) { //Is the directory bigger than wanted?
+			shrinkArchive(directory);
 		}
 	}
 
 	/**
-	 * This method shrink the archive based on the given configuration.
-	 * It will check to ensure that you do not delete the file currently being written to
+	 * Returns an up to date index for the directory containing fileName,
+	 * (re)building it only if the directory has changed.
 	 */
-	protected void shrinkArchive(Directory dir) {
-		// Reset this in case of failure last time
-		failedDelete = false;
-		log.debug(this.getId() + " We will attempt to delete something from " + dir.dirPath);
-		
-		// Only go in here if there is more than one file in the directory.
-		// Otherwise it is probably the one that we are writing to!
-		if (dir.sortedFiles.size() > 0) { 
-			// The files are sorted in age older and the oldest is deleted as long as it is not the one being written to
-			shrinkSortedfiles(dir);
-		} else {
-			log.info(this.getId() + " Failed to delete as there is nothing that can be deleted in the directory "); //Is this true? What about test on connect?
-			failedDelete = true;
+	private Directory getDirectory(String fileName) {
+		if (dir == null || !dir.dirPath.equals(getDirectoryPath(fileName))) {
+			dir = new Directory(fileName);
 		}
-
-		// Keep on repeating delete until we have shrunk the archive enough,
-		// but not if we have failed to delete anything last time!
-		if (!failedDelete) {
-			tryToShrinkArchive(dir);
+		else {
+			dir.refresh(fileName);
 		}
+		return dir;
 	}
 
 	/**
-	 * Using the map of sorted files get the oldest file that is not the same file as the file being written to, and delete it.
+	 * This method shrinks the archive based on the given configuration.
+	 * Deletable files are deleted oldest first, until the directory is small
+	 * enough, or a delete fails. 
+	 * The file currently being written to is never deleted.
 	 */
-	protected void shrinkSortedfiles(Directory dir) {
-		log.debug(this.getId() + " First file modified timestamp: " + dir.sortedFiles.firstKey());
-		File oldestFile = (File) dir.sortedFiles.get(dir.sortedFiles.firstKey());
-		log.debug(this.getId() + " First file: " + oldestFile);
-		
-		if (oldestFile.exists()) { //Is the file still in the directory?
-			if (oldestFile.delete()) { //We deleted OK
-				log.info(this.getId() + " Deleted: " + oldestFile);
-				dir.sortedFiles.remove(dir.sortedFiles.firstKey());
+	protected void shrinkArchive(Directory dir) {
+		log.debug(this.getId() + " We will attempt to delete something from " + dir.dirPath);
+		int deleted = 0;
+		Iterator it = dir.deletable.iterator();
+		if (!it.hasNext()) {
+			log.info(this.getId() + " Failed to delete as there is nothing that can be deleted in the directory ");
+		}
+		while (dir.size > getMaxDirSize() && it.hasNext()) {
+			Entry oldest = (Entry) it.next();
+			log.debug(this.getId() + " Oldest file: " + oldest.file + " modified " + oldest.lastModified);
+			it.remove();
+			dir.entries.remove(oldest.file.getPath());
+			dir.size -= oldest.length;
+			if (oldest.file.delete()) { //We deleted OK
+				log.info(this.getId() + " Deleted: " + oldest.file);
+				deleted++;
 			}
-			else { //We failed to delete
-				log.error(this.getId() + " Failed to delete: " + oldestFile);
-				dir.sortedFiles.remove(dir.sortedFiles.firstKey());
-				failedDelete = true;
+			else if (oldest.file.exists()) { //We failed to delete, and give up for now
+				log.error(this.getId() + " Failed to delete: " + oldest.file);
+				dir.size += oldest.length; //Still there, and still counted
+				break;
 			}
+			//Otherwise the file had already gone, so just forget it
 		}
-		else { //The file is no longer in the directory, so remove it from our list
-			dir.sortedFiles.remove(dir.sortedFiles.firstKey());
+		if (deleted > 0) {
+			dir.synced();
 		}
+		log.debug(this.getId() + " Deleted " + deleted + " files; directory size now " + dir.size);
 	}
 	
 	public boolean isCheckAtConnection() {
@@ -350,6 +422,14 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 		this.numDeliveriesBetweenChecks = numDeliveriesBetweenChecks;
 	}
 
+	public boolean isBackgroundEviction() {
+		return backgroundEviction;
+	}
+
+	public void setBackgroundEviction(boolean backgroundEviction) {
+		this.backgroundEviction = backgroundEviction;
+	}
+
 	public int getMaxDirSize() {
 		return maxDirSize;
 	}
@@ -363,21 +443,97 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 		this.maxDirSize = maxDirSize*1024*1024;
 	}
 	
-	public long getDirSize() {
+	public synchronized long getDirSize() {
 		return dir.size;
 	}
-	
-	public SortedMap getSortedFilesMap(){
-		return dir.sortedFiles;
+
+	/**
+	 * @return number of times the directory has been scanned since connecting.
+	 */
+	public synchronized int getIndexCount() {
+		return dir != null ? dir.indexCount : 0;
 	}
 	
+	/**
+	 * @return map of lastModified (as a String) to File, for the files which may be deleted.
+	 * Files with the same lastModified time are not all included.
+	 */
+	public synchronized SortedMap getSortedFilesMap(){
+		SortedMap sortedFiles = new TreeMap();
+		Iterator it = dir.deletable.iterator();
+		while (it.hasNext()) {
+			Entry entry = (Entry) it.next();
+			sortedFiles.put(String.valueOf(entry.lastModified), entry.file);
+		}
+		return sortedFiles;
+	}
 
+	/**
+	 * Extracts the directory path from filename.
+	 * User must be careful to correctly specify the filename as otherwise there is a danger that the wrong directory will be reduced in size!!!
+	 * @param filename
+	 * @return
+	 */
+	private static String getDirectoryPath (String fileName) {
+		File file = new File(fileName);
+		//Might we end up going back 1 directory when we shouldn't?
+		if (!file.isDirectory()) {
+			return file.getParent();
+		}
+		return fileName; //In this situation fileName is already the directory path
+	}
+
+	/**
+	 * Size and age of a file in the directory.
+	 */
+	private static final class Entry {
+		final File file;
+		long length;
+		final long lastModified;
+
+		Entry(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+
+	/**
+	 * Orders entries oldest first, then by path.
+	 */
+	private static final Comparator AGE_ORDER = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			Entry e1 = (Entry) o1;
+			Entry e2 = (Entry) o2;
+			if (e1.lastModified != e2.lastModified) {
+				return e1.lastModified < e2.lastModified ? -1 : 1;
+			}
+			return e1.file.getPath().compareTo(e2.file.getPath());
+		}
+	};
+
+	/**
+	 * In-memory index of the files in a directory.
+	 */
 	private class Directory {
+		//Directory timestamps may have a granularity of up to 2 seconds (e.g. FAT)
+		private static final long TIMESTAMP_GRANULARITY = 2000;
+
 		public String fileName;
 		public String dirPath;
 		public File dirFile;
 		public long size;
-		public SortedMap sortedFiles;
+		//path -> Entry, for every file (not sub directory) in the directory
+		private Map entries = new HashMap();
+		//Entries which may be deleted, oldest first
+		private TreeSet deletable = new TreeSet(AGE_ORDER);
+		//Entry for the file being written to, if it exists
+		private Entry current;
+		private long indexedDirModified;
+		private long indexedAt;
+		//True if the directory was last changed by this connector, so the index is known to be current
+		private boolean ownChange;
+		private int indexCount;
 		
 		public Directory (String fileName) {
 			this.fileName = fileName;
@@ -386,73 +542,121 @@ public class ArchivingFileWriterConnector extends Component implements IWriteCon
 			if (!this.dirFile.isDirectory()) {
 				log.error(getId() + " " + this.dirFile.getPath() + " is not a directory");
 			}
-			this.size = getDirSize(this.dirFile);
-			this.sortedFiles = createSortedFilesMap(this.dirFile);
+			index();
 		}
+
 		/**
-		 * Extracts the directory path from filename.
-		 * User must be careful to correctly specify the filename as otherwise there is a danger that the wrong directory will be reduced in size!!!
-		 * @param filename
-		 * @return
+		 * Scans the directory once, recording the size of every file, and which
+		 * writable files may be deleted.<br>
+		 * The size does not include sub-directories but does include non-writable files.
 		 */
-		
-		private String getDirectoryPath (String fileName) {
-			File file = new File(fileName);
-			//Might we end up going back 1 directory when we shouldn't?
-			if (!file.isDirectory()) {
-				return file.getParent();
+		private void index() {
+			indexCount++;
+			indexedAt = System.currentTimeMillis();
+			indexedDirModified = dirFile.lastModified();
+			ownChange = false;
+			entries.clear();
+			deletable.clear();
+			current = null;
+			size = 0;
+			File[] files = dirFile.listFiles();
+			if (files == null) {
+				return;
+			}
+			String currentPath = normalise(this.fileName);
+			for (int i = 0; i < files.length; i++) {
+				File file = files[i];
+				if (file.isDirectory()) {
+					continue;
+				}
+				Entry entry = new Entry(file);
+				log.debug(getId() + " Directory content: " + file + " " + entry.lastModified);
+				entries.put(file.getPath(), entry);
+				size += entry.length;
+				if (currentPath.equals(normalise(file.getPath()))) { //Don't add the one being written to into the list
+					current = entry;
+				}
+				else if (file.canWrite() && !file.isHidden()) { //Must be a file that is writable but not hidden
+					deletable.add(entry);
+				}
+				else {
+					log.info(getId() + " Did not add " + file.getName() + " to deletable list as it is not writeable or it is hidden");
+				}
 			}
-			return fileName; //In this situation fileName is already the directory path
 		}
-		
+
 		/**
-		 * Gets the directory size of the directory path dirFile.<br>
-		 * Note that this does not include the size of any sub-directories but does include the size of non-writable files in directory dirFile.
-		 * @return
+		 * Brings the index up to date. If the directory has been modified since it
+		 * was indexed or last changed by this connector (or too recently before it
+		 * was indexed to tell) it is indexed again; otherwise just the size of the 
+		 * file being written to is updated.
 		 */
-		private long getDirSize(File dirFile) {
-			//return FileUtils.sizeOfDirectory(dirFile);
-			 long dirsize = 0;
-			 File[] currentFolder = dirFile.listFiles();
-
-			 for (int q = 0; q < currentFolder.length; q++) {
-				 if (!currentFolder[q].isDirectory()) {
-					 dirsize += currentFolder[q].length();
-				 }
-			 }
-			 return dirsize;
+		void refresh(String fileName) {
+			long dirModified = dirFile.lastModified();
+			if (!fileName.equals(this.fileName) || dirModified != indexedDirModified 
+					|| (!ownChange && dirModified >= indexedAt - TIMESTAMP_GRANULARITY)) {
+				this.fileName = fileName;
+				index();
+			}
+			else if (current != null) {
+				long length = current.file.length();
+				size += length - current.length;
+				current.length = length;
+			}
 		}
-		
+
 		/**
-		 * This method will look in the supplied directory and create a sorted map of the writable 
-		 * files in that directory.<br>
-		 * It will not include any non-writable files on sub directories within the supplied directory.<br>
-		 * The entries are sorted on the key, which is the lastModified date/time for the writable files.
-		 * @param dir
+		 * Records that the index reflects a change this connector has just made
+		 * to the directory, so that it isn't taken for someone else's.
 		 */
-		private SortedMap createSortedFilesMap(File dirFile) {
-			SortedMap sf = new TreeMap();
-			File[] files = dirFile.listFiles();
-			int i = 0;
-			while (i<files.length) {
-				File file = files[i];
-				log.debug(getId() + " Directory content: " + file + " " + file.lastModified());
-				//Make sure that both use the "/" file separator (just for the purposes of the .equals test
-				String rep1 = this.fileName.replaceAll("\\\\", "/");
-				String rep2 = file.getPath().replaceAll("\\\\", "/");
-				
-				if (!rep1.equals(rep2) ) { //Don't add the one being written to into the list
-					if (file.isFile() && file.canWrite() && !file.isHidden()) { //Must be a file that is writable but not hidden
-						sf.put(String.valueOf(file.lastModified()), file);
-					}
-					else {
-						log.info(getId() + " Did not add " + file.getName() + " to deletable list as it is a dir or is not writeable or it is hidden");
-					}
-				}
-				i++;
+		void synced() {
+			indexedDirModified = dirFile.lastModified();
+			ownChange = true;
+		}
+
+		/**
+		 * Applies a rollover of the file being written to, which has been moved to
+		 * <code>moved</code> and started again, without scanning the directory.
+		 */
+		void rolledOver(File moved) {
+			if (moved.getAbsoluteFile().getParentFile().equals(dirFile.getAbsoluteFile())) {
+				update(new File(dirFile, moved.getName()), false);
 			}
-				
-			return sf;
+			update(new File(dirFile, new File(this.fileName).getName()), true);
+			synced();
+		}
+
+		/**
+		 * Replaces whatever the index holds for file with its current size and age.
+		 */
+		private void update(File file, boolean isCurrent) {
+			Entry old = (Entry) entries.remove(file.getPath());
+			if (old != null) {
+				size -= old.length;
+				deletable.remove(old);
+			}
+			if (isCurrent) {
+				current = null;
+			}
+			if (!file.isFile()) {
+				return;
+			}
+			Entry entry = new Entry(file);
+			entries.put(file.getPath(), entry);
+			size += entry.length;
+			if (isCurrent) {
+				current = entry;
+			}
+			else if (file.canWrite() && !file.isHidden()) {
+				deletable.add(entry);
+			}
+		}
+
+		/**
+		 * Make sure that both use the "/" file separator (just for the purposes of the .equals test)
+		 */
+		private String normalise(String path) {
+			return path.replaceAll("\\\\", "/");
 		}
 	}
 }
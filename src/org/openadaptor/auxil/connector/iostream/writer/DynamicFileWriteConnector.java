@@ -96,8 +96,7 @@ public class DynamicFileWriteConnector extends FileWriteConnector implements IMe
 	String filename=getFilename();
 	if(data!=null) {
       // Pass in any supplied metadata. This may need to be more sophisticated. 
-      scriptProcessor.setMetadata(metadata);
-      Object[] scriptResult=scriptProcessor.process(data);
+      Object[] scriptResult=scriptProcessor.process(data, metadata);
       if ((scriptResult!=null) && (scriptResult.length>0)) {
     	log.debug("Size of objects = " + scriptResult.length); 
     	Object dynamicFilename=scriptResult[0];
@@ -33,17 +33,26 @@ import org.openadaptor.auxil.connector.iostream.writer.string.LineWriter;
 import org.openadaptor.core.IFileWriteConnector;
 import org.openadaptor.core.exception.ComponentException;
 import org.openadaptor.core.exception.ConnectionException;
+import org.openadaptor.core.exception.ValidationException;
 import org.openadaptor.util.FileUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * A Write Connector that write data to a file (or stdout if the filename property
@@ -80,6 +89,20 @@ import java.util.Date;
  * <br> xS  - x seconds</td>
  * </tr>
  * </table>
+ * <p>
+ * By default every delivery is flushed to the file, and the rollover checks
+ * examine the file itself. If <code>bufferSize</code> is set (and a filename
+ * is configured) then output is buffered instead, and the size and age used
+ * for rollover are tracked in memory. The buffer is flushed when it is full,
+ * when <code>flushIntervalMs</code> has elapsed, on {@link #flush()} and on 
+ * disconnect. If <code>useFileChannel</code> is set, a direct buffer is written
+ * to the file's channel, and if <code>syncOnFlush</code> is set each flush is 
+ * followed by an fsync, so that one sync covers every record written since the 
+ * last flush. Data in the buffer is lost if the process dies before it is 
+ * flushed. A timed flush that fails is reported by the next delivery.
+ * <br>
+ * The connector does not take part in transactions: what has been written to
+ * the file can't be rolled back.
  * 
  * @author OA3 Core Team
  */
@@ -112,6 +135,28 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
    * (00:00:00 GMT, January 1, 1970). -1 indicates that there is no rollover
    */
   private long rolloverPeriod = -1;
+
+  /**
+   * Size of the output buffer in bytes. Zero (the default) flushes
+   * every delivery.
+   */
+  private int bufferSize = 0;
+
+  private long flushIntervalMs = 1000;
+
+  private boolean useFileChannel = false;
+
+  private boolean syncOnFlush = false;
+
+  // Buffered mode state, guarded by bufferLock:
+  private final Object bufferLock = new Object();
+  private CountingOutputStream countingStream;
+  private FileChannel fileChannel;
+  private long openedAt;
+  private long lastFlush;
+  private boolean dirty;
+  private Timer flushTimer;
+  private IOException timedFlushFailure;
   
   /**
    * Constructor
@@ -165,7 +210,8 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
         moveOutputFile();
       }
       try {
-        return new FileOutputStream(filename, append);
+        FileOutputStream fileStream = new FileOutputStream(filename, append);
+        return isBuffered() ? createBufferedStream(fileStream) : fileStream;
       } catch (FileNotFoundException e) {
         throw new RuntimeException("FileNotFoundException, "
                 + e.getMessage(), e);
@@ -180,6 +226,9 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
    * either because of being too large or too old.
    */
   public Object deliver(Object[] data) {
+    if (isBuffered()) {
+      return deliverBuffered(data);
+    }
     
     /*  check to see if there are any file size rollover options set */
     if (rolloverSize > -1) {
@@ -209,6 +258,151 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
     return super.deliver(data);
   }
 
+  /**
+   * Buffered delivery: rollover is decided from the bytes written and the
+   * time the file was opened, both tracked in memory, and the data is
+   * only flushed if the flush interval has passed.
+   */
+  private Object deliverBuffered(Object[] data) {
+    synchronized (bufferLock) {
+      throwTimedFlushFailure();
+      long now = System.currentTimeMillis();
+      if ((rolloverSize > -1 && countingStream.getCount() > rolloverSize)
+          || (rolloverPeriod > -1 && (now - openedAt) > rolloverPeriod)) {
+        rolloverFile();
+      }
+      try {
+        writeData(data);
+        dirty = true;
+        if (flushIntervalMs > 0 && (now - lastFlush) >= flushIntervalMs) {
+          flushBuffer();
+        }
+      } catch (IOException e) {
+        throw new ConnectionException("IOException, " + e.getMessage(), e, this);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Flushes (and optionally syncs) any buffered output.
+   * Does nothing if nothing has been written since the last flush.
+   */
+  public void flush() {
+    synchronized (bufferLock) {
+      throwTimedFlushFailure();
+      try {
+        flushBuffer();
+      } catch (IOException e) {
+        throw new ConnectionException("IOException, " + e.getMessage(), e, this);
+      }
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    lastFlush = System.currentTimeMillis();
+    if (dirty && countingStream != null) {
+      flushData();
+      if (syncOnFlush) {
+        fileChannel.force(false);
+      }
+      dirty = false;
+    }
+  }
+
+  private OutputStream createBufferedStream(FileOutputStream fileStream) {
+    fileChannel = fileStream.getChannel();
+    long existing;
+    try {
+      existing = fileChannel.size();
+    } catch (IOException e) {
+      throw new RuntimeException("IOException, " + e.getMessage(), e);
+    }
+    long now = System.currentTimeMillis();
+    //As in unbuffered mode, an appended file's age is taken from its timestamp.
+    openedAt = existing > 0 ? new File(filename).lastModified() : now;
+    lastFlush = now;
+    dirty = false;
+    OutputStream buffered = useFileChannel ? (OutputStream) new ChannelOutputStream(fileChannel, bufferSize)
+        : new BufferedOutputStream(fileStream, bufferSize);
+    countingStream = new CountingOutputStream(buffered, existing);
+    return countingStream;
+  }
+
+  private boolean isBuffered() {
+    return bufferSize > 0 && filename != null;
+  }
+
+  public void connect() {
+    synchronized (bufferLock) {
+      super.connect();
+      if (isBuffered() && flushIntervalMs > 0 && flushTimer == null) {
+        flushTimer = new Timer(getId() + "-flush", true);
+        flushTimer.schedule(new TimerTask() {
+          public void run() {
+            flushIfDue();
+          }
+        }, flushIntervalMs, flushIntervalMs);
+      }
+    }
+  }
+
+  public void disconnect() {
+    synchronized (bufferLock) {
+      if (countingStream != null) {
+        try {
+          flushBuffer();
+        } catch (IOException e) {
+          log.error(getId() + " failed to flush " + filename + " on disconnect", e);
+        }
+        countingStream = null;
+        timedFlushFailure = null;
+        fileChannel = null;
+      }
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+      super.disconnect();
+    }
+  }
+
+  private void flushIfDue() {
+    synchronized (bufferLock) {
+      if (countingStream != null && (System.currentTimeMillis() - lastFlush) >= flushIntervalMs) {
+        try {
+          flushBuffer();
+        } catch (IOException e) {
+          log.error(getId() + " timed flush of " + filename + " failed", e);
+          timedFlushFailure = e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reports a failure of the flush timer to the caller, caller must hold 
+   * bufferLock.
+   */
+  private void throwTimedFlushFailure() {
+    if (timedFlushFailure != null) {
+      IOException e = timedFlushFailure;
+      timedFlushFailure = null;
+      throw new ConnectionException("Timed flush of " + filename + " failed, data delivered before it may be lost, IOException, " 
+          + e.getMessage(), e, this);
+    }
+  }
+
+  public void validate(List exceptions) {
+    super.validate(exceptions);
+    if (bufferSize < 0) {
+      exceptions.add(new ValidationException("bufferSize may not be negative", this));
+    }
+    if (useFileChannel && bufferSize == 0) {
+      exceptions.add(new ValidationException("useFileChannel requires a bufferSize", this));
+    }
+  }
+
   /**
    * Sets file name.
    * @param path
@@ -218,6 +412,41 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
     this.filename = path;
   }
 
+  /**
+   * Sets the size in bytes of the output buffer. If greater than zero,
+   * deliveries are no longer flushed individually.
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Sets the maximum time that buffered data may wait before being
+   * flushed. Zero disables timed flushes. Defaults to 1000.
+   */
+  public void setFlushIntervalMs(long flushIntervalMs) {
+    this.flushIntervalMs = flushIntervalMs;
+  }
+
+  /**
+   * If true, buffered output is written through the file's channel using a
+   * direct buffer, rather than a BufferedOutputStream.
+   */
+  public void setUseFileChannel(boolean useFileChannel) {
+    this.useFileChannel = useFileChannel;
+  }
+
+  /**
+   * If true, each flush of buffered output is followed by an fsync.
+   */
+  public void setSyncOnFlush(boolean syncOnFlush) {
+    this.syncOnFlush = syncOnFlush;
+  }
+
   /**
    * Sets value of append flag.
    */
@@ -517,4 +746,83 @@ public class FileWriteConnector extends AbstractStreamWriteConnector implements
     return lastFileMovedTo;
   }
 
+  /**
+   * Counts the bytes passed to the underlying stream.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out, long initialCount) {
+      super(out);
+      this.count = initialCount;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Buffers output in a direct ByteBuffer, writing it to a FileChannel
+   * when full or flushed.
+   */
+  private static final class ChannelOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    ChannelOutputStream(FileChannel channel, int bufferSize) {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void write(int b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    public void flush() throws IOException {
+      drain();
+    }
+
+    public void close() throws IOException {
+      try {
+        drain();
+      } finally {
+        channel.close();
+      }
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
 }
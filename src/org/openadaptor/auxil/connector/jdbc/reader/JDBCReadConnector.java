@@ -32,16 +32,28 @@ import org.apache.commons.logging.LogFactory;
 import org.openadaptor.auxil.connector.jdbc.AbstractJDBCConnector;
 import org.openadaptor.auxil.connector.jdbc.reader.orderedmap.ResultSetToOrderedMapConverter;
 import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.core.IBatchEnrichmentReadConnector;
 import org.openadaptor.core.IEnrichmentProcessor;
 import org.openadaptor.core.IEnrichmentReadConnector;
 import org.openadaptor.core.IReadConnector;
 import org.openadaptor.core.connector.DBEventDrivenPollingReadConnector;
 import org.openadaptor.core.exception.ConnectionException;
 import org.openadaptor.core.exception.OAException;
+import org.openadaptor.core.exception.ProcessingException;
+import org.openadaptor.core.exception.ValidationException;
 import org.openadaptor.core.transaction.ITransactional;
 import org.openadaptor.util.JDBCUtil;
+import org.openadaptor.util.LRUCache;
 
+import java.math.BigDecimal;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Generic JDBC polling read connector that replaced several pre 3.3 JDBC read connectors:
@@ -57,6 +69,11 @@ import java.sql.*;
  * The (pre 3.3) JDBCEventReadConnector is equivalent to this connector with the 
  * DBEventDrivenPollingReadConnector. 
  * 
+ * When embedded in an enrichment processor the connector can bind the input parameters to
+ * a reusable PreparedStatement (see {@link #setUsePreparedStatement(boolean)}), cache lookup 
+ * results (see {@link #setCacheSize(int)}) and resolve the parameters of several records
+ * with one IN (...) query (see {@link #setBatchKeyColumn(String)}).
+ * 
  * @see org.openadaptor.core.connector.LoopingPollingReadConnector
  * @see DBEventDrivenPollingReadConnector
  * @see org.openadaptor.core.connector.ThrottlingReadConnector
@@ -64,7 +81,7 @@ import java.sql.*;
  * @see org.openadaptor.auxil.connector.jdbc.reader.xml.ResultSetToXMLConverter
  * @author Eddy Higgins, Kris Lachor
  */
-public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichmentReadConnector, ITransactional{
+public class JDBCReadConnector extends AbstractJDBCConnector implements IBatchEnrichmentReadConnector, ITransactional{
 
   private static final int EVENT_RS_STORED_PROC = 3;
   private static final int EVENT_RS_PARAM1 = 5;
@@ -107,6 +124,21 @@ public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichm
    */
   protected int batchSize = IResultSetConverter.CONVERT_ONE;
 
+  /* Enrichment lookup settings, see the corresponding setters */
+  private boolean usePreparedStatement = false;
+  private int cacheSize = 0;
+  private long cacheTimeToLiveMs = 0;
+  private String batchKeyColumn = null;
+
+  /* Internal state. Statement prepared from <code>sql</code> for enrichment lookups */
+  protected PreparedStatement preparedStatement = null;
+
+  /* Internal state. Number of parameter placeholders in <code>sql</code> */
+  private int placeholderCount = -1;
+
+  /* Internal state. Cached enrichment lookup results keyed on lists of parameter values */
+  private LRUCache lookupCache = null;
+
   /**
    * Default constructor.
    */
@@ -167,6 +199,7 @@ public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichm
     }  
 
     JDBCUtil.closeNoThrow(statement);
+    JDBCUtil.closeNoThrow(preparedStatement);
  
     /* Execute before disconnect sql if it exists... */
     if (beforeDisconnectSql!=null) {
@@ -261,24 +294,283 @@ public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichm
    * mode, i.e. when the this read connector is not embedded in an enrichment processor,
    * the {{@link #next(long)} method is used directly.
    * 
-   * First replaces parameter placeholders on the SQL query with concrete values.
-   * Then calls #next(long). Also sets the internal flag for <code>enrichmentMode</code>
-   * to true.
+   * Returns the cached result for the same parameter values if caching is enabled.
+   * Otherwise, if <code>usePreparedStatement</code> is set, binds the parameters
+   * to the prepared statement and executes it. Otherwise first replaces parameter 
+   * placeholders on the SQL query with concrete values then calls #next(long). 
+   * Also sets the internal flag for <code>enrichmentMode</code> to true.
    * 
    * @see #next(long)
    * @see #setParametersForQuery(IOrderedMap)
+   * @see #setUsePreparedStatement(boolean)
+   * @see #setCacheSize(int)
    * @see IEnrichmentProcessor
    * @return Object[] array of objects from resultset
    */  
   public Object[] next(IOrderedMap inputParameters, long timeout) {    
     enrichmentMode = true;
-    if(inputParameters != null){
-      setParametersForQuery(inputParameters);
+    List cacheKey = null;
+    if(cacheSize > 0){
+      cacheKey = getCacheKey(inputParameters);
+      Object [] cached = (Object[]) getLookupCache().get(cacheKey);
+      if(cached != null){
+        return copyOf(cached);
+      }
+    }
+    Object [] data;
+    if(usePreparedStatement){
+      data = executePreparedLookup(inputParameters);
+    }
+    else{
+      if(inputParameters != null){
+        setParametersForQuery(inputParameters);
+      }
+      else{     
+        log.info("No input parameters for enrichment call");
+      }
+      data = next(timeout);
+    }
+    if(cacheKey != null){
+      getLookupCache().put(cacheKey, copyOf(data));
+    }
+    return data;
+  }
+
+  /**
+   * Looks up enrichment data for several records. If <code>batchKeyColumn</code> is set,
+   * records with exactly one parameter that are not cached are resolved with a single query, 
+   * in which the only parameter placeholder of <code>sql</code> is expanded to one 
+   * placeholder per distinct parameter value (e.g. <code>WHERE ID IN (?)</code> becomes
+   * <code>WHERE ID IN (?,?,?)</code>). Result rows are matched to records by comparing 
+   * the normalised value of their <code>batchKeyColumn</code> with the parameter value:
+   * numbers are compared by numeric value (ignoring scale) and strings ignoring trailing
+   * spaces (CHAR padding). <code>preReadSql</code> and <code>postReadSql</code> are 
+   * executed around the batch query. Other records, including those whose parameter is
+   * null, are looked up one by one with {@link #next(IOrderedMap, long)}.
+   * 
+   * @see IBatchEnrichmentReadConnector#next(IOrderedMap[], long)
+   * @see #setBatchKeyColumn(String)
+   */
+  public Object[][] next(IOrderedMap[] inputParameters, long timeout) {
+    Object [][] results = new Object[inputParameters.length][];
+    if(batchKeyColumn == null){
+      for(int i=0; i<inputParameters.length; i++){
+        results[i] = next(inputParameters[i], timeout);
+      }
+      return results;
+    }
+    enrichmentMode = true;
+    
+    /* collect distinct key values that are not cached */
+    Map pendingKeys = new LinkedHashMap();
+    for(int i=0; i<inputParameters.length; i++){
+      IOrderedMap parameters = inputParameters[i];
+      if(parameters == null || parameters.size() != 1 || parameters.get(0) == null){
+        Object [] data = next(parameters, timeout);
+        results[i] = data == null ? new Object[0] : data;
+        continue;
+      }
+      Object value = parameters.get(0);
+      if(cacheSize > 0){
+        Object [] cached = (Object[]) getLookupCache().get(getCacheKey(parameters));
+        if(cached != null){
+          results[i] = copyOf(cached);
+          continue;
+        }
+      }
+      pendingKeys.put(batchKey(value), value);
+    }
+    if(pendingKeys.isEmpty()){
+      return results;
+    }
+    
+    Map rowsByKey = executeBatchLookup(pendingKeys);
+    if(cacheSize > 0){
+      for(Iterator it=pendingKeys.values().iterator(); it.hasNext();){
+        Object value = it.next();
+        List rows = (List) rowsByKey.get(batchKey(value));
+        Object [] data = rows == null ? new Object[0] : rows.toArray();
+        getLookupCache().put(Arrays.asList(new Object[]{value}), data);
+      }
+    }
+    for(int i=0; i<inputParameters.length; i++){
+      if(results[i] == null){
+        List rows = (List) rowsByKey.get(batchKey(inputParameters[i].get(0)));
+        results[i] = rows == null ? new Object[0] : copyOf(rows.toArray());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Binds <code>inputParameters</code> to the prepared statement, executes it and 
+   * converts the result set.
+   */
+  private Object[] executePreparedLookup(IOrderedMap inputParameters) {
+    try {
+      if (preReadSql!=null) {
+        log.info("Executing pre read SQL: "+preReadSql);
+        executePrePostambleSQL(preReadSql, jdbcConnection.getConnection());
+      }    
+      PreparedStatement ps = getPreparedStatement();
+      ps.clearParameters();
+      int parameterCount = inputParameters==null ? 0 : inputParameters.size();
+      if(parameterCount != placeholderCount){
+        log.warn("Query has " + placeholderCount + " parameter placeholders, but " + parameterCount + " input parameters were supplied.");
+      }
+      for(int i=0; i<parameterCount && i<placeholderCount; i++){
+        ps.setObject(i+1, inputParameters.get(i));
+      }
+      ResultSet resultSet = ps.executeQuery();
+      Object [] data;
+      try {
+        data = resultSetConverter.convert(resultSet, batchSize);
+      } finally {
+        JDBCUtil.closeNoThrow(resultSet);
+      }
+      dry = true;
+      if (postReadSql!=null) {
+        log.info("Executing post read SQL: " + postReadSql);
+        executePrePostambleSQL(postReadSql, jdbcConnection.getConnection());
+      }    
+      return data;
+    } catch (SQLException e) {
+      handleException(e);
+    }
+    return new Object[0];
+  }
+
+  /**
+   * Executes <code>sql</code> with its parameter placeholder expanded to one placeholder
+   * per key value, and groups the result rows by the normalised value of <code>batchKeyColumn</code>.
+   * Executes <code>preReadSql</code> before and <code>postReadSql</code> after the query.
+   * 
+   * @param keys maps normalised keys to the keys 
+   * @return map of normalised keys to lists of rows
+   */
+  private Map executeBatchLookup(Map keys) {
+    Map rowsByKey = new HashMap();
+    StringBuffer placeholders = new StringBuffer();
+    for(int i=0; i<keys.size(); i++){
+      placeholders.append(i==0 ? DEFAULT_PARAMETER_PLACEHOLDER : "," + DEFAULT_PARAMETER_PLACEHOLDER);
+    }
+    int index = sql.indexOf(DEFAULT_PARAMETER_PLACEHOLDER);
+    String batchSql = sql.substring(0, index) + placeholders + sql.substring(index + 1);
+    if (log.isDebugEnabled()) {
+      log.debug("Batch lookup SQL: " + batchSql);
+    }
+    PreparedStatement ps = null;
+    ResultSet resultSet = null;
+    try {
+      if (preReadSql!=null) {
+        log.info("Executing pre read SQL: "+preReadSql);
+        executePrePostambleSQL(preReadSql, jdbcConnection.getConnection());
+      }    
+      ps = jdbcConnection.getConnection().prepareStatement(batchSql);
+      int i=1;
+      for(Iterator it=keys.values().iterator(); it.hasNext();){
+        ps.setObject(i++, it.next());
+      }
+      resultSet = ps.executeQuery();
+      Object [] rows = resultSetConverter.convert(resultSet, IResultSetConverter.CONVERT_ALL);
+      for(int j=0; j<rows.length; j++){
+        if(!(rows[j] instanceof Map)){
+          throw new ProcessingException("batchKeyColumn can only be used with a result set converter that produces Maps", this);
+        }
+        String key = batchKey(((Map) rows[j]).get(batchKeyColumn));
+        List keyRows = (List) rowsByKey.get(key);
+        if(keyRows == null){
+          keyRows = new ArrayList();
+          rowsByKey.put(key, keyRows);
+        }
+        keyRows.add(rows[j]);
+      }
+      JDBCUtil.closeNoThrow(resultSet);
+      resultSet = null;
+      if (postReadSql!=null) {
+        log.info("Executing post read SQL: " + postReadSql);
+        executePrePostambleSQL(postReadSql, jdbcConnection.getConnection());
+      }    
+    } catch (SQLException e) {
+      handleException(e);
+    } finally {
+      JDBCUtil.closeNoThrow(resultSet);
+      JDBCUtil.closeNoThrow(ps);
+    }
+    return rowsByKey;
+  }
+
+  /**
+   * Normalises a key value so that a parameter matches the value the database returns
+   * for it, as text: numbers are written without trailing zeros (so 1, 1.0 and 1.00 match)
+   * and strings lose trailing spaces (CHAR columns are padded).
+   */
+  static String batchKey(Object value) {
+    if(value instanceof Number){
+      try {
+        BigDecimal number = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+        return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+      } catch (NumberFormatException e) {
+        // NaN or infinite
+        return value.toString();
+      }
+    }
+    if(value instanceof String){
+      String s = (String) value;
+      int end = s.length();
+      while(end > 0 && s.charAt(end - 1) == ' '){
+        end--;
+      }
+      return s.substring(0, end);
+    }
+    return String.valueOf(value);
+  }
+
+  /**
+   * Lazily prepares <code>sql</code> on the current connection.
+   */
+  private PreparedStatement getPreparedStatement() throws SQLException {
+    if(preparedStatement == null){
+      preparedStatement = jdbcConnection.getConnection().prepareStatement(sql);
+      placeholderCount = countPlaceholders(sql);
+    }
+    return preparedStatement;
+  }
+
+  private LRUCache getLookupCache() {
+    if(lookupCache == null){
+      lookupCache = new LRUCache(cacheSize, cacheTimeToLiveMs);
+    }
+    return lookupCache;
+  }
+
+  private static List getCacheKey(IOrderedMap inputParameters) {
+    int size = inputParameters==null ? 0 : inputParameters.size();
+    Object [] values = new Object[size];
+    for(int i=0; i<size; i++){
+      values[i] = inputParameters.get(i);
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * Copies an array of results so that callers cannot modify cached results. 
+   * Ordered maps are cloned, keys and values are shared.
+   */
+  private static Object[] copyOf(Object[] data) {
+    Object [] copy = new Object[data.length];
+    for(int i=0; i<data.length; i++){
+      copy[i] = data[i] instanceof IOrderedMap ? ((IOrderedMap) data[i]).clone() : data[i];
     }
-    else{     
-      log.info("No input parameters for enrichment call");
+    return copy;
+  }
+
+  private static int countPlaceholders(String sql) {
+    int count = 0;
+    for(int index=sql.indexOf(DEFAULT_PARAMETER_PLACEHOLDER); index!=-1; index=sql.indexOf(DEFAULT_PARAMETER_PLACEHOLDER, index+1)){
+      count++;
     }
-    return next(timeout);
+    return count;
   }
   
   /**
@@ -290,8 +582,12 @@ public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichm
   protected void clearInternalState() {
   	log.debug("Clearing internal state for connector");
   	statement=null;
+  	preparedStatement=null;
   	rs=null;
   	rsmd=null;
+  	if (lookupCache!=null) {
+  	  lookupCache.clear();
+  	}
   }
 
   /**
@@ -471,5 +767,68 @@ public class JDBCReadConnector extends AbstractJDBCConnector implements IEnrichm
   public void setPostReadSql(String sql) {
     this.postReadSql=sql;
   }
-  
+
+  /**
+   * Optional, defaults to false.
+   * If set to true, enrichment lookups bind the input parameters to a PreparedStatement 
+   * prepared once from <code>sql</code>, rather than substituting their values into the 
+   * SQL text and executing a new statement for every record.
+   * 
+   * @param usePreparedStatement
+   * @see #next(IOrderedMap, long)
+   */
+  public void setUsePreparedStatement(boolean usePreparedStatement) {
+    this.usePreparedStatement = usePreparedStatement;
+  }
+
+  /**
+   * Optional, defaults to 0 (no caching).
+   * Sets the maximum number of enrichment lookup results that will be cached, keyed on 
+   * the values of the input parameters. When the cache is full the least recently used 
+   * result is evicted. The cache is cleared when the connector disconnects.
+   * 
+   * @param cacheSize maximum number of cached results
+   * @see #setCacheTimeToLiveMs(long)
+   */
+  public void setCacheSize(int cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * Optional, defaults to 0 (cached results do not expire).
+   * Sets the time after which a cached enrichment lookup result expires.
+   * 
+   * @param cacheTimeToLiveMs time in milliseconds
+   * @see #setCacheSize(int)
+   */
+  public void setCacheTimeToLiveMs(long cacheTimeToLiveMs) {
+    this.cacheTimeToLiveMs = cacheTimeToLiveMs;
+  }
+
+  /**
+   * Optional.
+   * Enables batch enrichment lookups. Requires <code>sql</code> with exactly one parameter
+   * placeholder within an IN clause, e.g. <code>SELECT ID, NAME FROM REF WHERE ID IN (?)</code>,
+   * and a result set converter that produces Maps. The column holds the key that result 
+   * rows are matched to records by; its name must be as it appears in the converted rows.
+   * 
+   * @param batchKeyColumn name of the key column
+   * @see #next(IOrderedMap[], long)
+   */
+  public void setBatchKeyColumn(String batchKeyColumn) {
+    this.batchKeyColumn = batchKeyColumn;
+  }
+
+  /**
+   * Additionally checks that <code>sql</code> has exactly one parameter placeholder
+   * if <code>batchKeyColumn</code> is set.
+   * 
+   * @see AbstractJDBCConnector#validate(List)
+   */
+  public void validate(List exceptions) {
+    super.validate(exceptions);
+    if (batchKeyColumn != null && (sql == null || countPlaceholders(sql) != 1)) {
+      exceptions.add(new ValidationException("[sql] must have exactly one parameter placeholder when [batchKeyColumn] is set", this));
+    }
+  }
 }
@@ -56,7 +56,7 @@ import org.openadaptor.core.exception.ConnectionException;
  * 
  * @author higginse
  */
-public abstract class AbstractSQLWriter implements ISQLWriter{
+public abstract class AbstractSQLWriter implements IWriteBehindSQLWriter {
   private static final Log log = LogFactory.getLog(AbstractSQLWriter.class);
   //Mask to indicate that a db column type is an input (or inout) to stored proc.
   protected static final int SP_IN_ARG_TYPE_MASK= DatabaseMetaData.procedureColumnIn | DatabaseMetaData.procedureColumnInOut;
@@ -72,6 +72,9 @@ public abstract class AbstractSQLWriter implements ISQLWriter{
   protected String[] excludeColumns;
   private boolean usedBatch = false;
 
+  //Records accumulated by addToBatch(), awaiting flushBatch().
+  private final List pendingRecords = new ArrayList();
+
   private boolean batchSupport;
 
   //Potentially log database version info, but only once
@@ -277,14 +280,64 @@ public abstract class AbstractSQLWriter implements ISQLWriter{
    * @throws SQLException if the batch cannot be written.
    */
   public void writeBatch(Object[] data) throws SQLException {
+    write(data);
+  }
+
+  /**
+   * Adds records to the pending batch. They are not written until
+   * flushBatch() is called.
+   */
+  public void addToBatch(Object[] data) {
+    pendingRecords.addAll(Arrays.asList(data));
+  }
+
+  public int getPendingCount() {
+    return pendingRecords.size();
+  }
+
+  /**
+   * Writes all records accumulated by addToBatch() in the same way as 
+   * writeBatch() would if they had arrived together. They stay pending if
+   * that fails.
+   * @return int[] of update counts, one per record.
+   * @throws SQLException if the batch cannot be written.
+   */
+  public int[] flushBatch() throws SQLException {
+    if (pendingRecords.isEmpty()) {
+      return new int[0];
+    }
+    int[] updateCounts = write(pendingRecords.toArray());
+    pendingRecords.clear();
+    return updateCounts;
+  }
+
+  public Object[] discardBatch() {
+    Object[] discarded = pendingRecords.toArray();
+    pendingRecords.clear();
+    return discarded;
+  }
+
+  /**
+   * Executes a batch PreparedStatement if the incoming batch has multiple
+   * records and the connection has batch support, or a statement per record
+   * otherwise.
+   * @return int[] of update counts, one per record.
+   */
+  private int[] write(Object[] data) throws SQLException {
     try {
       int len=data.length;
+      int[] updateCounts;
       if (((len>1 || this.usedBatch) && (batchSupport))) {
     	this.usedBatch = true;
         log.debug("Constructing a batch, size="+len);
         PreparedStatement ps=createBatchStatement(data);
         log.debug("Writing batch");
-        int[] updateCounts=ps.executeBatch();
+        try {
+          updateCounts=ps.executeBatch();
+        } catch (SQLException e) { //Don't leave failed rows queued on a reusable statement
+          ps.clearBatch();
+          throw e;
+        }
         if (log.isDebugEnabled()) {
           int updates=0;
           for (int i=0;i<updateCounts.length;i++) {
@@ -304,16 +357,18 @@ public abstract class AbstractSQLWriter implements ISQLWriter{
             log.debug("Executing statement for single record");
           }
         }
+        updateCounts=new int[len];
         for (int i = 0; i < len; i++) {
           Object datum=data[i];
           if (datum==null) {
             throw new SQLException("Cannot create Statement from null data");
           }
           PreparedStatement ps=createStatement(data[i]);
-          ps.executeUpdate();
+          updateCounts[i]=ps.executeUpdate();
           releaseStatement(ps);
         }
       }
+      return updateCounts;
     }
     catch (SQLException sqle) { //Just log to debug and rethrow
       log.debug("Exception in writeBatch(): "+sqle.getMessage());
@@ -0,0 +1,66 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.connector.jdbc.writer;
+
+import java.sql.SQLException;
+
+/**
+ * Extension of {@link ISQLWriter} for writers which can accumulate records
+ * across several deliveries and write them to the database later as a 
+ * single JDBC batch.
+ * 
+ * @see JDBCWriteConnector#setWriteBehindBatchSize(int)
+ */
+public interface IWriteBehindSQLWriter extends ISQLWriter {
+
+  /**
+   * Adds records to the pending batch without writing them.
+   * @param data Object[] containing records to be written later.
+   */
+  public void addToBatch(Object[] data);
+
+  /**
+   * @return the number of records added but not yet written.
+   */
+  public int getPendingCount();
+
+  /**
+   * Writes all pending records. The pending batch is only emptied if the write
+   * succeeds; if it fails the records stay pending, to be retried or taken with
+   * {@link #discardBatch()}.
+   * @return the update count for each record, in the order the records were added.
+   * @throws SQLException if the batch cannot be written.
+   */
+  public int[] flushBatch() throws SQLException;
+
+  /**
+   * Drops all pending records without writing them.
+   * @return the records dropped, in the order they were added.
+   */
+  public Object[] discardBatch();
+}
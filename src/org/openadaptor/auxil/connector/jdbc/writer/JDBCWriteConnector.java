@@ -31,19 +31,43 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openadaptor.auxil.connector.jdbc.AbstractJDBCConnector;
 import org.openadaptor.auxil.connector.jdbc.JDBCConnection;
+import org.openadaptor.auxil.metrics.LatencyHistogram;
+import org.openadaptor.auxil.metrics.StripedCounter;
 import org.openadaptor.core.IWriteConnector;
 import org.openadaptor.core.exception.ConnectionException;
 import org.openadaptor.core.exception.OAException;
 import org.openadaptor.core.exception.ValidationException;
 import org.openadaptor.core.transaction.ITransactional;
+import org.openadaptor.core.transaction.ITransactionalResource;
 
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.List;
 
 /**
  * This connector writes output records to JDBC databases.
  * <br>
  * It delegates the actual writing to ISQLWriter instances.
+ * <br>
+ * If <code>writeBehindBatchSize</code> is set, records are accumulated by the
+ * writer across deliveries and written as a single JDBC batch once that many
+ * are pending, when a delivery finds the oldest has waited longer than
+ * <code>writeBehindFlushIntervalMs</code>, when the enclosing transaction commits,
+ * or on disconnect. Flushes always run on the delivering (or committing) thread,
+ * never in the background. The writer must implement {@link IWriteBehindSQLWriter}.
+ * <br>
+ * When the connection is not transacted, each delivery is acknowledged upstream
+ * before its rows are written. If a flush then fails, the delivery, commit or
+ * disconnect that triggered it throws a {@link WriteBehindFlushException} holding
+ * every row that was pending, including those of earlier deliveries, and the 
+ * rows are dropped from the batch.
+ * <br>
+ * When the connection is transacted every commit flushes and a failure rolls the
+ * transaction back, so rows only accumulate within one transaction (e.g. the
+ * records of a message delivered one at a time by a WriteNode with 
+ * <code>unbatch</code> set). One message per transaction, as with a ReadNode 
+ * batch size of 1, gains nothing; use a larger read batch size instead.
  *
  *
  * @author higginse
@@ -59,6 +83,21 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
 
   private boolean connected;
 
+  private int writeBehindBatchSize = 0;
+
+  private long writeBehindFlushIntervalMs = 0;
+
+  private long oldestPendingTime;
+
+  private ITransactionalResource flushingResource;
+
+  private final StripedCounter flushCount = new StripedCounter();
+
+  private final StripedCounter flushedRowCount = new StripedCounter();
+
+  /** Flush latencies in microseconds. */
+  private final LatencyHistogram flushLatencies = new LatencyHistogram();
+
   public JDBCWriteConnector() {
     super();
   }
@@ -81,6 +120,24 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
     this.sqlWriter = sqlWriter;
   }
 
+  /**
+   * Number of records to accumulate across deliveries before writing them
+   * in a single JDBC batch. Values less than two (the default) disable
+   * write-behind, so that each delivery is written immediately.
+   */
+  public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+    this.writeBehindBatchSize = writeBehindBatchSize;
+  }
+
+  /**
+   * Age in milliseconds after which the next delivery writes the write-behind
+   * batch even if it is not full. Zero (the default) means partial batches are
+   * only written on commit or disconnect.
+   */
+  public void setWriteBehindFlushIntervalMs(long writeBehindFlushIntervalMs) {
+    this.writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+  }
+
   /**
    * Checks that all mandatory properties have been set. Calls validate() on the statement
    * converter to ensure that it's properties are correctly set as well. 
@@ -99,6 +156,13 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
       log.info("sqlWriter not configured (defaulting to "+sqlWriter.getClass().getName()+")");
     }
     sqlWriter.validate(exceptions, this);
+    if (writeBehindBatchSize > 1 && !(sqlWriter instanceof IWriteBehindSQLWriter)) {
+      exceptions.add(new ValidationException("writeBehindBatchSize requires an sqlWriter implementing " 
+          + IWriteBehindSQLWriter.class.getName(), this));
+    }
+    if (writeBehindFlushIntervalMs < 0) {
+      exceptions.add(new ValidationException("writeBehindFlushIntervalMs may not be negative", this));
+    }
   }
 
   /**
@@ -120,13 +184,127 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
    */
   public synchronized Object deliver(Object[] data) throws OAException {
     try {   
-      sqlWriter.writeBatch(data);
+      if (isWriteBehind()) {
+        IWriteBehindSQLWriter writer = (IWriteBehindSQLWriter) sqlWriter;
+        if (writer.getPendingCount() == 0) {
+          oldestPendingTime = System.currentTimeMillis();
+        }
+        writer.addToBatch(data);
+        if (writer.getPendingCount() >= writeBehindBatchSize || isFlushIntervalExpired()) {
+          flushWriteBehind();
+        }
+      } else {
+        sqlWriter.writeBatch(data);
+      }
     } catch (SQLException e) {
       jdbcConnection.handleException(e, null);
     }
     return null;
   }
 
+  private boolean isWriteBehind() {
+    return writeBehindBatchSize > 1 && sqlWriter instanceof IWriteBehindSQLWriter;
+  }
+
+  private boolean isFlushIntervalExpired() {
+    return writeBehindFlushIntervalMs > 0 
+      && System.currentTimeMillis() - oldestPendingTime >= writeBehindFlushIntervalMs;
+  }
+
+  /**
+   * Writes any rows pending in the write-behind batch, recording the 
+   * batch fill ratio and flush latency, and logging per-row update counts.
+   * 
+   * @throws WriteBehindFlushException if the rows can't be written, they are 
+   * dropped from the batch and carried by the exception.
+   */
+  protected synchronized void flushWriteBehind() {
+    if (!isWriteBehind()) {
+      return;
+    }
+    IWriteBehindSQLWriter writer = (IWriteBehindSQLWriter) sqlWriter;
+    int pending = writer.getPendingCount();
+    if (pending == 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    int[] updateCounts;
+    try {
+      updateCounts = writer.flushBatch();
+    } catch (SQLException e) {
+      if (e instanceof BatchUpdateException) {
+        logUpdateCounts(((BatchUpdateException) e).getUpdateCounts(), pending);
+      }
+      Object[] rows = writer.discardBatch();
+      log.error(getId() + " failed to write " + rows.length + " write-behind row(s), " + e.getMessage());
+      throw new WriteBehindFlushException("Failed to write " + rows.length + " write-behind row(s), SQLException, " 
+          + e.getMessage() + ", Error Code = " + e.getErrorCode() + ", State = " + e.getSQLState(), e, rows, this);
+    }
+    flushLatencies.record((System.nanoTime() - start) / 1000);
+    flushCount.increment();
+    flushedRowCount.add(pending);
+    logUpdateCounts(updateCounts, pending);
+  }
+
+  private void logUpdateCounts(int[] updateCounts, int rows) {
+    if (updateCounts == null) {
+      return;
+    }
+    int failed = 0;
+    int unchanged = 0;
+    for (int i = 0; i < updateCounts.length; i++) {
+      if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+        failed++;
+        log.warn(getId() + " write-behind row " + i + " of " + rows + " failed");
+      } else if (updateCounts[i] == 0) {
+        unchanged++;
+      }
+      if (log.isDebugEnabled()) {
+        log.debug(getId() + " write-behind row " + i + " update count: " + updateCounts[i]);
+      }
+    }
+    if (unchanged > 0) {
+      log.warn(getId() + " " + unchanged + " of " + rows + " write-behind rows updated nothing");
+    }
+    log.debug(getId() + " flushed " + updateCounts.length + " of " + rows + " rows, " + failed + " failed");
+  }
+
+  /**
+   * @return number of write-behind batches written so far.
+   */
+  public long getWriteBehindFlushCount() {
+    return flushCount.sum();
+  }
+
+  /**
+   * @return number of rows written by write-behind flushes so far.
+   */
+  public long getWriteBehindRowCount() {
+    return flushedRowCount.sum();
+  }
+
+  /**
+   * @return average number of rows per flush as a fraction of writeBehindBatchSize,
+   * or -1 if nothing has been flushed yet. Values well below 1 mean most 
+   * batches are flushed by the timer or by commits rather than by filling up.
+   */
+  public double getWriteBehindFillRatio() {
+    long flushes = flushCount.sum();
+    if (flushes == 0 || writeBehindBatchSize < 1) {
+      return -1;
+    }
+    return (double) flushedRowCount.sum() / ((double) flushes * writeBehindBatchSize);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return flush latency in microseconds at the given percentile, or -1 if nothing
+   * has been flushed yet.
+   */
+  public long getWriteBehindFlushLatencyMicros(double percentile) {
+    return flushLatencies.getPercentile(percentile);
+  }
+
 
   /**
    * Creates a connection to the database. 
@@ -180,6 +358,18 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
       return;
     }
 
+    WriteBehindFlushException flushFailure = null;
+    if (isWriteBehind()) {
+      try {
+        flushWriteBehind();
+      } catch (WriteBehindFlushException e) {
+        flushFailure = e;
+      }
+      log.info("Connector: [" + getId() + "] write-behind flushes: " + getWriteBehindFlushCount() 
+          + ", rows: " + getWriteBehindRowCount() + ", fill ratio: " + getWriteBehindFillRatio()
+          + ", p99 flush latency: " + getWriteBehindFlushLatencyMicros(99) + "us");
+    }
+
     //Execute postamble sql if it exists...
     if (beforeDisconnectSql!=null) {
       log.info("Executing postamble SQL: "+beforeDisconnectSql);
@@ -194,19 +384,69 @@ public class JDBCWriteConnector extends AbstractJDBCConnector implements IWriteC
     clearInternalState();
     connected = false;
     log.info("Connector: [" + getId() + "] disconnected");
+    if (flushFailure != null) {
+      throw flushFailure;
+    }
   }
 
 
   /**
-   * @return the transaction resource if the connection is transacted or null otherwise
+   * @return the transaction resource if the connection is transacted or null otherwise.
+   * In write-behind mode a local transaction resource is wrapped so that pending
+   * rows are written before commit and dropped on rollback.
    */
   public Object getResource() {
     if ( jdbcConnection != null && jdbcConnection.isTransacted()) {
-      return jdbcConnection.getTransactionalResource();
+      Object resource = jdbcConnection.getTransactionalResource();
+      if (isWriteBehind() && resource instanceof ITransactionalResource) {
+        if (flushingResource == null || ((FlushingTransactionalResource) flushingResource).delegate != resource) {
+          flushingResource = new FlushingTransactionalResource((ITransactionalResource) resource);
+        }
+        return flushingResource;
+      }
+      return resource;
     }
 
     return null;
   }
+
+  /**
+   * Makes the write-behind batch part of a local JDBC transaction.
+   */
+  private class FlushingTransactionalResource implements ITransactionalResource {
+
+    private final ITransactionalResource delegate;
+
+    FlushingTransactionalResource(ITransactionalResource delegate) {
+      this.delegate = delegate;
+    }
+
+    public void begin() {
+      delegate.begin();
+    }
+
+    public void commit() {
+      try {
+        flushWriteBehind();
+      } catch (WriteBehindFlushException e) {
+        delegate.rollback(e);
+        throw e;
+      }
+      delegate.commit();
+    }
+
+    public void rollback(Throwable t) {
+      synchronized (JDBCWriteConnector.this) {
+        if (isWriteBehind()) {
+          int dropped = ((IWriteBehindSQLWriter) sqlWriter).discardBatch().length;
+          if (dropped > 0) {
+            log.debug(getId() + " dropped " + dropped + " pending write-behind rows on rollback");
+          }
+        }
+      }
+      delegate.rollback(t);
+    }
+  }
   
   public boolean isConnected() {
     return connected;
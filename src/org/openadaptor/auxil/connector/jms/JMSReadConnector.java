@@ -40,15 +40,18 @@ import org.openadaptor.core.transaction.ITransactional;
 
 import javax.jms.*;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Read Connector class that implements listening to JMS.
  * <p>
- * Manages a single JMS Session and MessageConsumer.
+ * Manages a single JMS Session and MessageConsumer, unless <code>consumers</code> is greater
+ * than one in which case each thread reading from the connector gets its own.
  * <p>
  * Delegates to <code>JMSConnector</code> to get the actual Connection with JMS.
  * <p/>
@@ -64,7 +67,9 @@ import java.util.Map;
  * <li><b>noLocal</b>                   Default is <i>false</i>
  * <li><b>messageConvertor</b>          The IMessageConvertor instance used to extracts the message data from JMSMessage instances. Defaults to an instance of <code>DefaultMessageConvertor</code>.
  * <li><b>populateMetadataFromProperties</b>    Default <i>false</i>. If true then copy any populated JMS Message Properties into the message metadata.
-
+ * <li><b>batchSize</b>                 Default 1. The maximum number of messages returned by each call to next().
+ * <li><b>batchTimeoutMs</b>            Default 0. How long to wait for further messages to fill a batch once the first has arrived.
+ * <li><b>consumers</b>                 Default 1. The maximum number of threads (and so JMS Sessions) that may read from this connector in parallel.
  * </ul>
  * <p/>
  * @see JMSConnection
@@ -128,7 +133,41 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
    */
   private boolean populateMetadataFromProperties = false;
 
-  private Map metadata;
+  private ThreadLocal metadata = new ThreadLocal();
+
+  /**
+   * Maximum number of messages returned by a call to next().
+   */
+  private int batchSize = 1;
+
+  /**
+   * Time to wait for further messages once the first message of a batch has been received.
+   */
+  private long batchTimeoutMs = 0;
+
+  /**
+   * Maximum number of threads, each with their own JMS Session, that may read in parallel.
+   */
+  private int consumers = 1;
+
+  /**
+   * The session, consumer and resource created by connect(), used by the first reading thread.
+   */
+  private ConsumerSession primary;
+
+  /**
+   * All open consumer sessions, including the primary one.
+   */
+  private List consumerSessions = new ArrayList();
+
+  private boolean primaryClaimed = false;
+
+  private ThreadLocal threadSession = new ThreadLocal();
+
+  /**
+   * Number of outstanding calls to connect() when shared by several reading threads.
+   */
+  private int connectCount = 0;
 
   // Constructors
 
@@ -140,24 +179,44 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
 
   // IReadConnector implementation
 
-  public void connect() {
+  /**
+   * Connects, creating the JMS Session used by the first reading thread. When
+   * <code>consumers</code> is greater than one, the connector may be shared by several
+   * ReadNodes: calls are counted and only the last matching disconnect() closes the sessions.
+   */
+  public synchronized void connect() {
     if (!isConnected()) {
       session = jmsConnection.createSessionFor(this);
       messageConsumer = createMessageConsumerFor(session);
       transactionalResource = createTransactionalResource(session);
       jmsConnection.installAsExceptionListener(this);
+      primary = new ConsumerSession(session, messageConsumer, transactionalResource);
+      consumerSessions.add(primary);
+      primaryClaimed = false;
     }
+    connectCount++; //only counted once connected, so a failed connect needs no disconnect
   }
 
-  public void disconnect() {
+  public synchronized void disconnect() {
+    if (consumers > 1 && --connectCount > 0) {
+      log.debug(getId() + " still in use by " + connectCount + " readers, not disconnecting");
+      return;
+    }
+    connectCount = 0;
     if (isConnected()) {
       try {
-        messageConsumer.close();
-        session.close();
+        for (Iterator it = consumerSessions.iterator(); it.hasNext();) {
+          ConsumerSession consumerSession = (ConsumerSession) it.next();
+          consumerSession.closed = true;
+          consumerSession.consumer.close();
+          consumerSession.session.close();
+        }
       } catch (JMSException e) {
         throw new ConnectionException("Exception closing JMSReadConnector.", e, this);
       }
       finally{
+        consumerSessions.clear();
+        primary = null;
         messageConsumer = null;
         session = null;
         jmsConnection.disconnectFor(this);
@@ -178,14 +237,32 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
         exceptions.add(new ConnectionException("If destinationName is set then jmsConnection must have jndiConnection set.", this));  
       }
     }
+    if (batchSize < 1) {
+      exceptions.add(new ConnectionException("batchSize must be at least 1.", this));
+    }
+    if (consumers < 1) {
+      exceptions.add(new ConnectionException("consumers must be at least 1.", this));
+    }
+    if (consumers > 1 && durable) {
+      exceptions.add(new ConnectionException("A durable subscription cannot be shared by more than one consumer.", this));
+    }
   }
 
   public boolean isConnected() {
     return (session != null);
   }
 
+  /**
+   * Returns the next message, or when <code>batchSize</code> is greater than one, waits up to
+   * timeoutMs for a first message and then up to <code>batchTimeoutMs</code> more for the
+   * rest of the batch. All the messages of a batch are received in the same JMS Session, so
+   * for a transacted connector they are committed or rolled back together.
+   */
   public Object[] next(long timeoutMs) throws OAException {
     if (!isConnected()) throw new ConnectionException("Attempt to read from disconnected JMSReadConnector", this);
+    if (batchSize > 1) {
+      return nextBatch(timeoutMs);
+    }
     Object data = receive(timeoutMs);
     if (data != null) {
       log.debug(getId() + " got jms message");
@@ -193,11 +270,41 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
     return data != null ? new Object[] {data} : null;
   }
 
+  private Object[] nextBatch(long timeoutMs) {
+    MessageConsumer consumer = currentSession().consumer;
+    Message msg = receiveMessage(consumer, timeoutMs, false);
+    if (msg == null) {
+      return null;
+    }
+    List batch = new ArrayList(batchSize);
+    long deadline = System.currentTimeMillis() + batchTimeoutMs;
+    int received = 0;
+    while (msg != null) {
+      received++;
+      Object data = unpackJMSMessage(msg);
+      if (data != null) {
+        batch.add(data);
+      }
+      if (received >= batchSize) {
+        break;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      msg = remaining > 0 ? receiveMessage(consumer, remaining, false) : receiveMessage(consumer, 0, true);
+    }
+    if (log.isDebugEnabled()) {
+      log.debug(getId() + " got batch of " + received + " jms messages");
+    }
+    return batch.isEmpty() ? null : batch.toArray();
+  }
+
   public boolean isDry() {
     return false;
   }
 
   public Object getResource() {
+    if (consumers > 1 && isConnected()) {
+      return currentSession().resource;
+    }
     return transactionalResource;
   }
 
@@ -224,12 +331,26 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
    * @return Object  The contents of the received message.
    */
   protected Object receive(long timeoutMs) {
+    // Unpack the message contents
+    return unpackJMSMessage(receiveMessage(currentSession().consumer, timeoutMs, false));
+  }
+
+  /**
+   * Receive a message from the given consumer, waiting up to timeoutMs (indefinitely if negative)
+   * or, if noWait is true, only returning a message that is already available.
+   */
+  private Message receiveMessage(MessageConsumer consumer, long timeoutMs, boolean noWait) {
     Message msg;
     try {
-      if (timeoutMs < 0) {
-        msg = messageConsumer.receive();
+      if (noWait) {
+        msg = consumer.receiveNoWait();
+        if (msg != null && isPopulateMetadataFromProperties()){
+          readMetadataFromMessageProperties(msg);
+        }
+      } else if (timeoutMs < 0) {
+        msg = consumer.receive();
       } else {
-        msg = messageConsumer.receive(timeoutMs);
+        msg = consumer.receive(timeoutMs);
         //Populate Metadata if this is configured
         if (msg != null && isPopulateMetadataFromProperties()){
           readMetadataFromMessageProperties(msg);
@@ -249,8 +370,42 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
       log.error("Exception during receive message [JMSException: " + jmse + "]");
       throw new ConnectionException("Exception during receive message.", jmse, this);
     }
-    // Unpack the message contents
-    return unpackJMSMessage(msg);
+    return msg;
+  }
+
+  /**
+   * Returns the consumer session for the calling thread. With a single consumer this is always
+   * the one created by connect(); otherwise each new thread claims the primary session if it is
+   * free or else opens another one, up to the configured number of consumers.
+   */
+  private ConsumerSession currentSession() {
+    if (consumers <= 1) {
+      return primary;
+    }
+    ConsumerSession consumerSession = (ConsumerSession) threadSession.get();
+    if (consumerSession == null || consumerSession.closed) {
+      consumerSession = claimSession();
+      threadSession.set(consumerSession);
+    }
+    return consumerSession;
+  }
+
+  private synchronized ConsumerSession claimSession() {
+    if (!isConnected()) {
+      throw new ConnectionException("Attempt to read from disconnected JMSReadConnector", this);
+    }
+    if (!primaryClaimed) {
+      primaryClaimed = true;
+      return primary;
+    }
+    if (consumerSessions.size() >= consumers) {
+      throw new ConnectionException("All " + consumers + " consumer sessions are in use, more threads are reading than consumers configured", this);
+    }
+    Session newSession = jmsConnection.createSessionFor(this);
+    ConsumerSession consumerSession = new ConsumerSession(newSession, newMessageConsumerFor(newSession), createTransactionalResource(newSession));
+    consumerSessions.add(consumerSession);
+    log.info(getId() + " opened consumer session " + consumerSessions.size() + " of " + consumers + " for " + Thread.currentThread().getName());
+    return consumerSession;
   }
 
   /** Unpack the message contents */
@@ -276,6 +431,11 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
    * @throws JMSException
    */
   protected void readMetadataFromMessageProperties(Message msg) throws JMSException {
+    Map current = (Map) metadata.get();
+    if (current == null) {
+      log.debug(getId() + " no metadata set for this thread, JMS properties not copied");
+      return;
+    }
     Map addToMetadata = new HashMap();
     
     Enumeration names = msg.getPropertyNames();
@@ -283,31 +443,35 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
       String nextName = (String)names.nextElement();
       addToMetadata.put(nextName, msg.getObjectProperty(nextName));
     }
-    metadata.putAll(addToMetadata);
+    current.putAll(addToMetadata);
   }
 
   protected MessageConsumer createMessageConsumerFor(Session connectorSession) {
     if (messageConsumer == null) {
-      MessageConsumer newConsumer;
-      if (destination == null) {
-        destination = jmsConnection.lookupDestination(getDestinationName());
-      }
-      try {
-        if (durable) {
-          newConsumer = connectorSession.createDurableSubscriber((Topic) destination, getDurableSubscriptionName(), getMessageSelector(), isNoLocal());
+      messageConsumer = newMessageConsumerFor(connectorSession);
+    }
+    return messageConsumer;
+  }
+
+  private MessageConsumer newMessageConsumerFor(Session connectorSession) {
+    MessageConsumer newConsumer;
+    if (destination == null) {
+      destination = jmsConnection.lookupDestination(getDestinationName());
+    }
+    try {
+      if (durable) {
+        newConsumer = connectorSession.createDurableSubscriber((Topic) destination, getDurableSubscriptionName(), getMessageSelector(), isNoLocal());
+      } else {
+        if (isNoLocal()) {  // The value of noLocal only seems to matter if it's true.
+          newConsumer = connectorSession.createConsumer(destination, getMessageSelector(), isNoLocal());
         } else {
-          if (isNoLocal()) {  // The value of noLocal only seems to matter if it's true.
-            newConsumer = connectorSession.createConsumer(destination, getMessageSelector(), isNoLocal());
-          } else {
-            newConsumer = connectorSession.createConsumer(destination, getMessageSelector());
-          }
+          newConsumer = connectorSession.createConsumer(destination, getMessageSelector());
         }
-      } catch (JMSException e) {
-        throw new ConnectionException("Unable to subscribe to Destination: [" + getDestinationName() + "]", e, this);
       }
-      messageConsumer = newConsumer;
+    } catch (JMSException e) {
+      throw new ConnectionException("Unable to subscribe to Destination: [" + getDestinationName() + "]", e, this);
     }
-    return messageConsumer;
+    return newConsumer;
   }
 
   /**
@@ -471,12 +635,69 @@ public class JMSReadConnector extends Component implements ExceptionListener, IR
   }
 
   public void setMetadata(Map metadata) {
-    this.metadata = metadata;
-    
+    this.metadata.set(metadata);
+  }
+
+  /**
+   * The maximum number of messages returned by each call to next(). Defaults to 1.
+   * When populateMetadataFromProperties is set the properties of every message in a
+   * batch are copied into the one metadata map, later messages overwriting earlier ones.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * How long, once the first message of a batch has been received, to wait for further
+   * messages to fill it. Defaults to 0, which means only messages that are already
+   * available are added.
+   */
+  public void setBatchTimeoutMs(long batchTimeoutMs) {
+    this.batchTimeoutMs = batchTimeoutMs;
+  }
+
+  public long getBatchTimeoutMs() {
+    return batchTimeoutMs;
+  }
+
+  /**
+   * The maximum number of threads that may read from this connector in parallel. Each
+   * thread is given its own JMS Session, MessageConsumer and transactional resource, so
+   * several ReadNodes (each run on its own thread by the Adaptor) can share the connector
+   * and consume from the same queue concurrently. Sessions beyond the first are opened when
+   * a thread first reads. Defaults to 1. Not allowed with durable subscriptions; on a
+   * non-durable topic each consumer receives its own copy of every message.
+   */
+  public void setConsumers(int consumers) {
+    this.consumers = consumers;
+  }
+
+  public int getConsumers() {
+    return consumers;
   }
 
   // End Bean implementation
 
+  /**
+   * The JMS Session, MessageConsumer and transactional resource used by one reading thread.
+   */
+  private static class ConsumerSession {
+    private Session session;
+    private MessageConsumer consumer;
+    private Object resource;
+    private boolean closed = false;
+
+    ConsumerSession(Session session, MessageConsumer consumer, Object resource) {
+      this.session = session;
+      this.consumer = consumer;
+      this.resource = resource;
+    }
+  }
+
 }
 
 
@@ -34,9 +34,11 @@ import org.openadaptor.core.IMetadataAware;
 import org.openadaptor.core.IWriteConnector;
 import org.openadaptor.core.exception.*;
 import org.openadaptor.core.transaction.ITransactional;
+import org.openadaptor.util.LRUCache;
 
 import javax.jms.*;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -62,6 +64,8 @@ import java.util.Map;
  * <li><b>propagateMetadata</b>         If true then the JMS Message Properties will be populated from the message metadata. Any invalid values will trigger an error.
  * <li><b>overrideDestinationName</b>   If a value is set then the entry at this key in the metadata will be used as the JMS Destination Name. Overrides any settings for 
  *                                      <code>destination</code> or <code>destinationName</code>.
+ * <li><b>producerCacheSize</b>         If greater than zero, and destinationFromMetadata is set, then up to this many MessageProducers
+ *                                      (and so their looked up Destinations) are kept open, keyed by destination name. Defaults to 0.
  * </ul>
  * <p/>
  * @author OA3 Core Team
@@ -132,6 +136,16 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
    */
   private String destinationFromMetadata;
 
+  /**
+   * Maximum number of metadata defined destinations to keep a MessageProducer open for.
+   */
+  private int producerCacheSize = 0;
+
+  /**
+   * MessageProducers for metadata defined destinations, keyed by destination name.
+   */
+  private LRUCache producerCache;
+
   // Constructors
 
   public JMSWriteConnector() {}
@@ -184,6 +198,14 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
     	  messageProducer = createMessageProducer();
       if (messageProducer == null) log.info("MessageProducer not defined at connection. Definition deferred to delivery.");
       transactionalResource = createTransactionalResource(session);
+      if (isDestinationOverride() && producerCacheSize > 0) {
+        producerCache = new LRUCache(producerCacheSize) {
+          protected void onEviction(Object key, Object value) {
+            log.debug(getId() + " closing least recently used producer for " + key);
+            closeProducer((MessageProducer) value);
+          }
+        };
+      }
     }
   }
 
@@ -195,12 +217,18 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
       try {
         if(messageProducer!=null)
         	messageProducer.close();
+        if (producerCache != null) {
+          for (Iterator it = producerCache.values().iterator(); it.hasNext();) {
+            closeProducer((MessageProducer) it.next());
+          }
+        }
         session.close();
       } catch (JMSException e) {
         throw new ConnectionException("Exception closing JMSReadConnector.", e, this);
       }
       finally {
         messageProducer = null;
+        producerCache = null;
         session = null;
         jmsConnection.disconnectFor(this);
       }
@@ -314,6 +342,45 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
     return destinationName;
   } 
 
+  /**
+   * Returns the cached MessageProducer for the metadata defined destination, creating
+   * (and caching) one if there is none.
+   */
+  private MessageProducer getCachedProducer(String destinationName) {
+    MessageProducer producer = (MessageProducer) producerCache.get(destinationName);
+    if (producer == null) {
+      try {
+        producer = session.createProducer(lookupDestination(destinationName));
+      } catch (JMSException e) {
+        throw new ConnectionException("Exception creating JMS Producer ", e, this);
+      }
+      log.info(" Producer initialised and cached for JMS Destination=" + destinationName);
+      producerCache.put(destinationName, producer);
+    }
+    return producer;
+  }
+
+  /**
+   * Drops and closes the cached producer for a destination, so that a failed
+   * producer is not reused.
+   */
+  private void discardCachedProducer(String destinationName) {
+    if (producerCache != null && destinationName != null) {
+      MessageProducer producer = (MessageProducer) producerCache.remove(destinationName);
+      if (producer != null) {
+        closeProducer(producer);
+      }
+    }
+  }
+
+  private void closeProducer(MessageProducer producer) {
+    try {
+      producer.close();
+    } catch (JMSException e) {
+      log.warn(getId() + " failed to close MessageProducer, " + e.getMessage());
+    }
+  }
+
   private Destination lookupDestination(String destinationName) {
     return (Destination)jmsConnection.lookupDestination(destinationName);
   }
@@ -352,6 +419,7 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
    */
   protected String deliverRecord(Object message) {
     String msgId;
+    String cachedDestinationName = null;
     if ((messageGenerator instanceof IMetadataAware) && (getPropagateMetadata()))  {
       ((IMetadataAware) messageGenerator).setMetadata(metadata);
     }
@@ -369,18 +437,29 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
         log.debug("JmsPublisher sending [" + message + "]");
       
       
-      // If the override is set then we need to close any existing producer
-      if (isDestinationOverride() && (messageProducer != null)) {
+      MessageProducer producer;
+      if (producerCache != null) {
+        // Reuse the producer for the metadata defined destination if there is one
+        cachedDestinationName = getMetaDefinedDestinationName();
+        if (cachedDestinationName == null) {
+          throw new ProcessingException("Unable to publish to JMS as no Destination defined in Message Metadata.", this);
+        }
+        producer = getCachedProducer(cachedDestinationName);
+      } else {
+        // If the override is set then we need to close any existing producer
+        if (isDestinationOverride() && (messageProducer != null)) {
           messageProducer.close();
           messageProducer = null; // Force getting a new producer
         }
-        
-      // Go get a new producer. 
-      if(messageProducer==null) {
-    	  messageProducer = createMessageProducer();
-      } 
+
+        // Go get a new producer.
+        if(messageProducer==null) {
+          messageProducer = createMessageProducer();
+        }
+        producer = messageProducer;
+      }
       
-      messageProducer.send(msg, deliveryMode, priority, timeToLive);
+      producer.send(msg, deliveryMode, priority, timeToLive);
       msgId = msg.getJMSMessageID();
       if (logMessageId) { // Optionally log the message id of the published message.
         log.info( "[" + getId() + "=" + getActualDestinationName() + "] sent message [ JMSMessageID=" + msgId + "] to data connection/service" );
@@ -388,8 +467,10 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
     } catch (RecordFormatException e) {
       throw new ProcessingException("RecordFormatException during publish.", e, this);
     } catch (InvalidDestinationException e) {
+      discardCachedProducer(cachedDestinationName);
       throw new ConnectionException("InvalidDestinationException during publish.", e, this);
     } catch (JMSException jmse) {
+      discardCachedProducer(cachedDestinationName);
       throw new ConnectionException("JMSException during publish.", jmse, this);
     }
     return msgId;
@@ -571,6 +652,45 @@ public class JMSWriteConnector extends Component implements IWriteConnector, ITr
     this.destinationFromMetadata = destinationFromMetadata;
   }
 
+  /**
+   * If greater than zero, and destinationFromMetadata is set, then rather than closing and
+   * recreating the MessageProducer (and looking up the Destination) for every record, up to
+   * this many producers are kept open keyed by destination name. The least recently used
+   * producer is closed when the limit is reached. Defaults to 0, which disables caching.
+   */
+  public void setProducerCacheSize(int producerCacheSize) {
+    this.producerCacheSize = producerCacheSize;
+  }
+
+  public int getProducerCacheSize() {
+    return producerCacheSize;
+  }
+
+  /**
+   * @return number of deliveries that reused a cached producer since connecting.
+   */
+  public long getProducerCacheHitCount() {
+    LRUCache cache = producerCache;
+    return cache != null ? cache.getHitCount() : 0;
+  }
+
+  /**
+   * @return number of deliveries that had to create a producer since connecting.
+   */
+  public long getProducerCacheMissCount() {
+    LRUCache cache = producerCache;
+    return cache != null ? cache.getMissCount() : 0;
+  }
+
+  /**
+   * @return fraction of deliveries that reused a cached producer, 0 if there have been none.
+   */
+  public double getProducerCacheHitRate() {
+    long hits = getProducerCacheHitCount();
+    long total = hits + getProducerCacheMissCount();
+    return total > 0 ? (double) hits / total : 0;
+  }
+
   /**
    * Flag that is used to decide whether or not to propagate the Metadata to any referenced components.
    * In order to maintain backwards compatibility this defaults to false.
@@ -130,6 +130,7 @@ public class RMIReadConnector extends QueuingReadConnector implements IReadConne
       throw new ConnectionException("failed to unbind", e, this);
     } finally {
       rmiServer = null;
+      super.disconnect();
     }
   }
 
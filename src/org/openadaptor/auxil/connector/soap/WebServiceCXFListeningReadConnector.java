@@ -132,6 +132,7 @@ public class WebServiceCXFListeningReadConnector extends QueuingReadConnector im
 	if (null != server) {
 	  server.stop();
 	}
+	super.disconnect();
   }
   
   /**
@@ -147,13 +147,8 @@ public class SimpleSocketHandshake
 		if ("Y".equals(handshakeProgress)) {
 			String theySaid = socket_reader.readLine();
 			log.debug("SimpleSocketHandshake.acceptHandshake() they said " + theySaid);
-			if ("Y".equals(handshakeGreetCheck)) {
-				if ( theySaid == null || !theySaid.equals(handshakeGreet) ) {
-					throw new RuntimeException("Invalid greeting, expected " + handshakeGreet + " got, " + theySaid);
-				}
-			}
 			//If we got what we expected then we will reply
-			String  reply = handshakeReply + Constants.NEW_LINE;
+			String  reply = replyTo(theySaid) + Constants.NEW_LINE;
 	        for (int i = 0; i < reply.length(); i++) {
 	        	socket_writer.write(reply.charAt(i));
 	        }
@@ -161,6 +156,30 @@ public class SimpleSocketHandshake
 	        log.debug("SimpleSocketHandshake.acceptHandshake() we replied " + handshakeReply);
 	    }
 	}
+
+	/**
+	*** Returns true if a greet/reply exchange is expected once a connection is accepted
+	**/
+
+	public boolean isHandshakeExpected() {
+		return "Y".equals(handshakeProgress);
+	}
+
+	/**
+	*** Checks the greeting read from a client and returns the reply to send back (without
+	*** a line terminator). This lets callers that cannot block on a reader, such as the
+	*** multiplexed SocketReadConnector, run the same exchange as acceptHandshake.
+	**/
+
+	public String replyTo(String theySaid)
+		throws RuntimeException {
+		if ("Y".equals(handshakeGreetCheck)) {
+			if ( theySaid == null || !theySaid.equals(handshakeGreet) ) {
+				throw new RuntimeException("Invalid greeting, expected " + handshakeGreet + " got, " + theySaid);
+			}
+		}
+		return handshakeReply;
+	}
 	
 	/**
 	*** Writes a final line to the socket before closing 
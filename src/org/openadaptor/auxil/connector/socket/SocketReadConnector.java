@@ -33,12 +33,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openadaptor.auxil.connector.iostream.EncodingAwareObject;
 import org.openadaptor.auxil.connector.iostream.reader.AbstractStreamReadConnector;
 import org.openadaptor.auxil.connector.iostream.reader.IDataReader;
 import org.openadaptor.auxil.connector.iostream.reader.string.LineReader;
@@ -82,6 +105,14 @@ import org.openadaptor.core.transaction.ITransactionalResource;
  * <li><b>PseudoTransactionTimeoutMs</b> 
  * 								The amount of time that the writer will wait for a psedoTransaction response from the socket before an exception is thrown
  * 								Default 0 means unlimited  
+ * 
+ * <li><b>Multiplexed</b>		If true (and RemoteHostname is not set) then the server accepts
+ * 								any number of concurrent client connections and services them
+ * 								from a single selector thread, see {@link #setMultiplexed(boolean)}
+ * <li><b>WorkerThreads</b>		Number of threads that hand records read by the multiplexed
+ * 								server to the queue, defaults to 4
+ * <li><b>MaxConnections</b>	Maximum number of concurrent connections in multiplexed mode,
+ * 								further clients wait in the accept backlog. Defaults to 0 (no limit)
  * </ul>        
  * </p>            
  * <b>Not yet implemented</b>
@@ -130,9 +161,23 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
 
   
   private SocketStreamReadConnector streamReadConnector;
-  private boolean connected;
+  private volatile boolean connected;
   
   private ISocketHandshake socketHandshake = null;
+
+  /** if true the server services many connections from a selector thread */
+  private boolean multiplexed = false;
+
+  /** number of threads that enqueue records read by the multiplexed server */
+  private int workerThreads = 4;
+
+  /** maximum number of concurrent connections in multiplexed mode, 0 means no limit */
+  private int maxConnections = 0;
+
+  /** size of the buffer each read from a multiplexed connection is framed from */
+  private int readBufferSize = 8192;
+
+  private SelectorServerThread selectorServer = null;
   
   public SocketReadConnector() {
     streamReadConnector = new SocketStreamReadConnector();
@@ -208,6 +253,61 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
      streamReadConnector.setDataReader(dataReader);
   }
 
+  /**
+   * If true, and no remote hostname is set, then rather than accepting and reading one
+   * connection at a time this connector registers every accepted connection with a
+   * {@link Selector} and reads them all from a single thread. Records are framed into
+   * lines directly from the socket buffers (so the data reader must be a {@link LineReader}
+   * whose encoding is ASCII compatible) and handed to the queue by a small pool of worker
+   * threads. A connection is not read from again until its previous records have been
+   * queued, so a slow pipeline pushes back on each client through TCP flow control rather
+   * than blocking the acceptor, and at most one buffer (see {@link #setReadBufferSize(int)})
+   * is read from a connection each time the selector wakes, so a fast client can't starve
+   * the others. A {@link SimpleSocketHandshake} is carried out on the selector thread; any
+   * other handshake needs a handshakeTimeoutMs and runs on a thread of its own before the
+   * connection is
+   * registered. Pseudo transactions are not supported in this mode as there is no single
+   * socket to reply on. Defaults to false.
+   */
+  public void setMultiplexed(boolean multiplexed) {
+    this.multiplexed = multiplexed;
+  }
+
+  public boolean isMultiplexed() {
+    return multiplexed;
+  }
+
+  /**
+   * Number of threads used to queue the records read from multiplexed connections, this
+   * bounds how many connections can be delivering records at once. Defaults to 4.
+   */
+  public void setWorkerThreads(int workerThreads) {
+    this.workerThreads = workerThreads;
+  }
+
+  /**
+   * Maximum number of concurrent connections in multiplexed mode. Once reached no more
+   * connections are accepted until one closes. Defaults to 0, which means no limit.
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Size in bytes of the buffer that multiplexed connections are read into, defaults to 8192.
+   */
+  public void setReadBufferSize(int readBufferSize) {
+    this.readBufferSize = readBufferSize;
+  }
+
+  /**
+   * @return the number of currently open connections in multiplexed mode
+   */
+  public int getConnectionCount() {
+    SelectorServerThread server = selectorServer;
+    return server != null ? server.getConnectionCount() : 0;
+  }
+
   public void validate(List exceptions) {
     if (port == 0) {
       exceptions.add(new ValidationException("port property not set", this));
@@ -217,6 +317,24 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
     	socketHandshake = new SimpleSocketHandshake();
     }
     socketHandshake.validate();
+
+    if (multiplexed && remoteHostname == null) {
+      if (!(streamReadConnector.getDataReader() instanceof LineReader)) {
+        exceptions.add(new ValidationException("multiplexed mode only supports a LineReader data reader", this));
+      }
+      if (isPseudoTransaction()) {
+        exceptions.add(new ValidationException("pseudoTransaction is not supported in multiplexed mode", this));
+      }
+      if (workerThreads < 1) {
+        exceptions.add(new ValidationException("workerThreads must be at least 1", this));
+      }
+      if (readBufferSize < 1) {
+        exceptions.add(new ValidationException("readBufferSize must be at least 1", this));
+      }
+      if (!(socketHandshake instanceof SimpleSocketHandshake) && handshakeTimeoutMs == 0) {
+        exceptions.add(new ValidationException("a custom socketHandshake needs a handshakeTimeoutMs in multiplexed mode", this));
+      }
+    }
   }
 
   public void connect() {
@@ -242,6 +360,19 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
       }
     } 
     
+    // otherwise, in multiplexed mode, serve all connections from a selector thread
+
+    else if (multiplexed) {
+      setInitiatedConnection(false);
+      try {
+        selectorServer = new SelectorServerThread(port);
+      } catch (IOException e) {
+        throw new ConnectionException("failed to connect, " + e.getMessage(), e, this);
+      }
+      log.info(getId() + " bound to " + port + " (multiplexed)");
+      selectorServer.start();
+    }
+
     // otherwise create a new socket server thread and start it
     
     else {
@@ -325,7 +456,15 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
 
   public void disconnect() {
     connected = false;
-    streamReadConnector.disconnect();
+    try {
+      if (selectorServer != null) {
+        selectorServer.shutdown();
+        selectorServer = null;
+      }
+      streamReadConnector.disconnect();
+    } finally {
+      super.disconnect();
+    }
   }
   
   private static String getConnectionName(Socket s) {
@@ -372,6 +511,10 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
     protected InputStream getInputStream() throws IOException {
       return socket.getInputStream();
     }
+
+    IDataReader getDataReader() {
+      return dataReader;
+    }
   }
   
   class SocketServerThread extends Thread {
@@ -432,6 +575,544 @@ public class SocketReadConnector extends SocketQueuingReadConnector implements I
     }
   }
  
+  private Charset getCharset() {
+    IDataReader reader = streamReadConnector.getDataReader();
+    if (reader instanceof EncodingAwareObject && ((EncodingAwareObject) reader).isEncodingSet()) {
+      return Charset.forName(((EncodingAwareObject) reader).getEncoding());
+    }
+    return Charset.defaultCharset();
+  }
+
+  private boolean isRestricted(InetAddress address) {
+    if (restrictedHost == null) {
+      return false;
+    }
+    return !restrictedHost.equals(address.getHostAddress()) && !restrictedHost.equals(address.getHostName());
+  }
+
+  /**
+   * Accepts connections and reads from all of them on one thread using a {@link Selector}.
+   * Bytes are framed into lines as they are read; complete lines from a connection are
+   * handed to the worker pool to be enqueued, and the connection is not read from again
+   * until they have been. Work that must run on the selector thread (such as resuming
+   * reads) is passed to it with {@link #invokeLater(Runnable)}.
+   */
+  class SelectorServerThread implements Runnable {
+
+    private Thread thread;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private ExecutorService workers;
+    /** runs blocking handshakes, so that clients slow to handshake don't hold up the workers */
+    private ExecutorService handshakers;
+    private Charset charset;
+    private LineReader lineReader;
+    private SimpleSocketHandshake simpleHandshake;
+    private ByteBuffer readBuffer;
+
+    /** open connections, only changed by the selector thread */
+    private Set connections = Collections.synchronizedSet(new HashSet());
+    private volatile int connectionCount = 0;
+    private List tasks = new LinkedList();
+
+    SelectorServerThread(int port) throws IOException {
+      charset = getCharset();
+      lineReader = (LineReader) streamReadConnector.getDataReader();
+      if (getSocketHandshake() instanceof SimpleSocketHandshake) {
+        simpleHandshake = (SimpleSocketHandshake) getSocketHandshake();
+      }
+      readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+      selector = Selector.open();
+      try {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      } catch (IOException e) {
+        close(serverChannel);
+        selector.close();
+        throw e;
+      }
+      workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+        private int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, getId() + ".worker-" + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      handshakers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, getId() + ".handshake-" + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    void start() {
+      thread = new Thread(this, getId() + ".selector");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getConnectionCount() {
+      return connectionCount;
+    }
+
+    void invokeLater(Runnable task) {
+      synchronized (tasks) {
+        tasks.add(task);
+      }
+      selector.wakeup();
+    }
+
+    /**
+     * stops the selector thread, if it has not exited within five seconds the selector 
+     * and all channels are closed from here, which also makes a stuck select() return
+     */
+    void shutdown() {
+      connected = false;
+      selector.wakeup();
+      workers.shutdownNow();
+      handshakers.shutdownNow();
+      try {
+        thread.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isAlive()) {
+        log.warn(getId() + " selector thread did not stop, closing its channels");
+      }
+      close(serverChannel);
+      Object[] open = connections.toArray();
+      for (int i = 0; i < open.length; i++) {
+        close(((ChannelConnection) open[i]).channel);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        log.warn(getId() + " failed to close selector, " + e.getMessage());
+      }
+    }
+
+    public void run() {
+      try {
+        while (connected) {
+          selector.select(handshakeTimeoutMs > 0 ? handshakeTimeoutMs : 0);
+          runTasks();
+          for (Iterator iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+            SelectionKey key = (SelectionKey) iter.next();
+            iter.remove();
+            if (key == acceptKey) {
+              try {
+                accept();
+              } catch (IOException e) {
+                log.error(getId() + " failed to accept connection, " + e.getMessage());
+              }
+            } else {
+              ((ChannelConnection) key.attachment()).service(key);
+            }
+          }
+          if (handshakeTimeoutMs > 0) {
+            expireHandshakes();
+          }
+        }
+      } catch (Throwable t) {
+        log.error(getId() + " selector failed, " + t.getMessage(), t);
+      } finally {
+        for (Iterator iter = new ArrayList(connections).iterator(); iter.hasNext();) {
+          ((ChannelConnection) iter.next()).close();
+        }
+        close(serverChannel);
+        try {
+          selector.close();
+        } catch (IOException e) {
+          log.warn(getId() + " failed to close selector, " + e.getMessage());
+        }
+        workers.shutdownNow();
+        handshakers.shutdownNow();
+        log.info("SelectorServerThread exiting");
+      }
+    }
+
+    private void runTasks() {
+      List pending;
+      synchronized (tasks) {
+        if (tasks.isEmpty()) {
+          return;
+        }
+        pending = new ArrayList(tasks);
+        tasks.clear();
+      }
+      for (Iterator iter = pending.iterator(); iter.hasNext();) {
+        ((Runnable) iter.next()).run();
+      }
+    }
+
+    private void accept() throws IOException {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        Socket s = channel.socket();
+        if (isRestricted(s.getInetAddress())) {
+          log.warn(getId() + " rejected connection from " + getConnectionName(s) + ", only " + restrictedHost + " may connect");
+          close(channel);
+          continue;
+        }
+        log.info(getId() + " accepted connection from " + getConnectionName(s));
+        final ChannelConnection connection = new ChannelConnection(channel);
+        connections.add(connection);
+        connectionCount = connections.size();
+        if (simpleHandshake != null || getSocketHandshake() == null) {
+          connection.register();
+        } else {
+          handshakers.execute(new Runnable() {
+            public void run() {
+              connection.blockingHandshake();
+            }
+          });
+        }
+        if (maxConnections > 0 && connections.size() >= maxConnections) {
+          log.info(getId() + " has reached maxConnections (" + maxConnections + "), accepting paused");
+          acceptKey.interestOps(0);
+          return;
+        }
+      }
+    }
+
+    private void expireHandshakes() {
+      long now = System.currentTimeMillis();
+      for (Iterator iter = new ArrayList(connections).iterator(); iter.hasNext();) {
+        ChannelConnection connection = (ChannelConnection) iter.next();
+        if (connection.handshaking && connection.handshakeDeadline < now) {
+          log.warn(getId() + " handshake with " + connection.name + " timed out");
+          connection.close();
+        }
+      }
+    }
+
+    private void close(java.nio.channels.Channel channel) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          log.warn(getId() + " failed to close channel, " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * State of one multiplexed connection. All fields are only touched by the selector
+     * thread, except for the batch of records being delivered by a worker.
+     */
+    class ChannelConnection {
+
+      private SocketChannel channel;
+      private SelectionKey key;
+      private String name;
+      private boolean handshaking;
+      private long handshakeDeadline;
+      private byte[] partial = new byte[256];
+      private int partialLength = 0;
+      private List records = new ArrayList();
+      private boolean delivering = false;
+      private boolean endOfStream = false;
+      private boolean closed = false;
+      private ByteBuffer pendingWrite = null;
+
+      ChannelConnection(SocketChannel channel) {
+        this.channel = channel;
+        this.name = getConnectionName(channel.socket());
+        this.handshaking = simpleHandshake != null && simpleHandshake.isHandshakeExpected();
+        this.handshakeDeadline = System.currentTimeMillis() + handshakeTimeoutMs;
+      }
+
+      void register() {
+        try {
+          channel.configureBlocking(false);
+          key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+          log.error(getId() + " failed to register " + name + ", " + e.getMessage());
+          close();
+        }
+      }
+
+      /**
+       * runs a handshake that needs blocking streams on a thread of its own and then passes
+       * the connection back to the selector thread. The handshake reads the socket one
+       * byte at a time, so no record data following it is consumed.
+       */
+      void blockingHandshake() {
+        Socket s = channel.socket();
+        try {
+          if (handshakeTimeoutMs > 0) {
+            s.setSoTimeout(handshakeTimeoutMs);
+          }
+          getSocketHandshake().acceptHandshake(s.getOutputStream(),
+              new BufferedReader(new UnbufferedStreamReader(s.getInputStream(), charset)));
+          invokeLater(new Runnable() {
+            public void run() {
+              if (!closed) {
+                register();
+              }
+            }
+          });
+        } catch (Exception e) {
+          log.error(getId() + " handshake with " + name + " failed, " + e.getMessage());
+          invokeLater(new Runnable() {
+            public void run() {
+              close();
+            }
+          });
+        }
+      }
+
+      void service(SelectionKey key) {
+        try {
+          if (key.isWritable()) {
+            write();
+          }
+          if (key.isReadable()) {
+            read();
+          }
+        } catch (CancelledKeyException e) {
+          close();
+        } catch (IOException e) {
+          log.warn(getId() + " connection " + name + " failed, " + e.getMessage());
+          close();
+        } catch (RuntimeException e) {
+          log.error(getId() + " closing connection " + name + ", " + e.getMessage());
+          close();
+        }
+      }
+
+      /**
+       * reads at most one buffer, anything more is read the next time the selector wakes
+       * so that other connections get their turn
+       */
+      private void read() throws IOException {
+        int count = channel.read(readBuffer);
+        if (count > 0) {
+          readBuffer.flip();
+          frame(readBuffer);
+          readBuffer.clear();
+        }
+        if (count < 0) {
+          endOfStream = true;
+          if (partialLength > 0) {
+            line(decode(partial, partialLength));
+            partialLength = 0;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        if (!records.isEmpty()) {
+          deliver();
+        } else if (endOfStream) {
+          close();
+        }
+      }
+
+      /**
+       * splits the buffer on line feeds, decoding complete lines straight from the buffer
+       * and only copying bytes when a line spans more than one read
+       */
+      private void frame(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+          int start = buffer.position();
+          int end = start;
+          int limit = buffer.limit();
+          while (end < limit && buffer.get(end) != '\n') {
+            end++;
+          }
+          if (end == limit) {
+            append(buffer, start, limit);
+            buffer.position(limit);
+          } else if (partialLength == 0) {
+            int lineEnd = end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(lineEnd);
+            slice.position(start);
+            line(charset.decode(slice).toString());
+            buffer.position(end + 1);
+          } else {
+            append(buffer, start, end);
+            line(decode(partial, partialLength));
+            partialLength = 0;
+            buffer.position(end + 1);
+          }
+        }
+      }
+
+      private void append(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (partialLength + length > partial.length) {
+          byte[] grown = new byte[Math.max(partial.length * 2, partialLength + length)];
+          System.arraycopy(partial, 0, grown, 0, partialLength);
+          partial = grown;
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(end);
+        source.position(start);
+        source.get(partial, partialLength, length);
+        partialLength += length;
+      }
+
+      private String decode(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\r') {
+          length--;
+        }
+        return charset.decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+      }
+
+      private void line(String line) {
+        if (handshaking) {
+          log.debug(getId() + " " + name + " said " + line);
+          String reply = simpleHandshake.replyTo(line) + Constants.NEW_LINE;
+          handshaking = false;
+          pendingWrite = charset.encode(reply);
+          try {
+            write();
+          } catch (IOException e) {
+            throw new RuntimeException("failed to reply to handshake, " + e.getMessage(), e);
+          }
+        } else if (lineReader.match(line)) {
+          records.add(line);
+        }
+      }
+
+      private void write() throws IOException {
+        if (pendingWrite != null) {
+          channel.write(pendingWrite);
+          if (pendingWrite.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+          }
+          pendingWrite = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+
+      /**
+       * stops reading and hands the records read so far to a worker, reading resumes
+       * once they have all been enqueued
+       */
+      private void deliver() {
+        final List batch = records;
+        records = new ArrayList();
+        delivering = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        workers.execute(new Runnable() {
+          public void run() {
+            boolean failed = false;
+            try {
+              for (Iterator iter = batch.iterator(); iter.hasNext();) {
+                enqueue(iter.next());
+              }
+            } catch (RuntimeException e) {
+              log.error(getId() + " failed to queue data from " + name + ", " + e.getMessage());
+              failed = true;
+            }
+            final boolean closeConnection = failed;
+            invokeLater(new Runnable() {
+              public void run() {
+                resume(closeConnection);
+              }
+            });
+          }
+        });
+      }
+
+      private void resume(boolean closeConnection) {
+        delivering = false;
+        if (closed) {
+          return;
+        }
+        if (closeConnection || endOfStream) {
+          close();
+          return;
+        }
+        try {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+          close();
+        }
+      }
+
+      void close() {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (key != null) {
+          key.cancel();
+        }
+        SelectorServerThread.this.close(channel);
+        connections.remove(this);
+        connectionCount = connections.size();
+        log.info(getId() + " closed connection from " + name);
+        if (maxConnections > 0 && connected && acceptKey.isValid()
+            && acceptKey.interestOps() == 0 && connections.size() < maxConnections) {
+          log.info(getId() + " is below maxConnections, accepting resumed");
+          acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+      }
+    }
+  }
+ 
+  /**
+   * Decodes a stream one byte at a time, so that a {@link BufferedReader} over it
+   * never reads beyond the characters it returns. Used for handshakes on channels
+   * which are then handed to the selector.
+   */
+  static class UnbufferedStreamReader extends Reader {
+
+    private InputStream in;
+    private CharsetDecoder decoder;
+    private ByteBuffer bytes = ByteBuffer.allocate(16);
+    private CharBuffer chars = CharBuffer.allocate(2);
+
+    UnbufferedStreamReader(InputStream in, Charset charset) {
+      this.in = in;
+      this.decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      chars.flip();
+    }
+
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (!chars.hasRemaining()) {
+        int b = in.read();
+        if (b < 0) {
+          return -1;
+        }
+        bytes.put((byte) b);
+        bytes.flip();
+        chars.clear();
+        decoder.decode(bytes, chars, false);
+        chars.flip();
+        bytes.compact();
+        if (!bytes.hasRemaining()) { //not a character in any charset, drop it
+          bytes.clear();
+        }
+      }
+      int count = Math.min(length, chars.remaining());
+      chars.get(buffer, offset, count);
+      return count;
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
   /**
    * This Inner Class implements the transactional resource for this connector as used by
    * Openadaptor's default Transaction Manager. The idea is that we use the default transaction
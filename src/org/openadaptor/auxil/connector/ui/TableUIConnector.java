@@ -210,6 +210,7 @@ public class TableUIConnector extends QueuingReadConnector implements ActionList
   public void disconnect() {
     log.debug("Disconnecting");
     frame.dispose();
+    super.disconnect();
     log.warn("Disconnected");
   }
 
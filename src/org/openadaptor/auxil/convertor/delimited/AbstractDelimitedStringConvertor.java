@@ -36,8 +36,10 @@ import java.util.regex.PatternSyntaxException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openadaptor.auxil.convertor.AbstractConvertor;
+import org.openadaptor.auxil.orderedmap.ArrayOrderedMap;
 import org.openadaptor.auxil.orderedmap.IOrderedMap;
 import org.openadaptor.auxil.orderedmap.OrderedHashMap;
+import org.openadaptor.auxil.orderedmap.OrderedMapSchema;
 import org.openadaptor.core.exception.NullRecordException;
 import org.openadaptor.core.exception.RecordException;
 import org.openadaptor.core.exception.RecordFormatException;
@@ -86,6 +88,18 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
   private boolean escapeQuoteCharacters = false;
   
   private boolean smartEscapeQuoteCharacters = false;
+  
+  private boolean unescapeDoubledQuoteCharacters = false;
+  
+  /** Last compiled regular expression delimiter */
+  private volatile Pattern delimiterPattern;
+
+  private boolean useSharedSchema = false;
+
+  // Schema built from fieldNames, shared by all the maps it produces. Reset whenever fieldNames is assigned.
+  private volatile OrderedMapSchema fieldNameSchema;
+
+  private volatile boolean fieldNameSchemaUnusable = false;
 
   /**
    * Default constructor.
@@ -118,6 +132,25 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
    */
   public void setFieldNames(String[] fieldNames) {
     this.fieldNames = fieldNames;
+    this.fieldNameSchema = null;
+    this.fieldNameSchemaUnusable = false;
+  }
+
+  /**
+   * If true, and <code>fieldNames</code> are set, records with exactly one value per field name are produced as
+   * {@link ArrayOrderedMap} instances sharing a single {@link OrderedMapSchema}, which makes each record a single
+   * array of values. Other records, and all records when false (the default), are produced as
+   * <code>OrderedHashMap</code> instances.
+   * 
+   * @param useSharedSchema
+   *          true to share one key layout among all records with the configured field names.
+   */
+  public void setUseSharedSchema(boolean useSharedSchema) {
+    this.useSharedSchema = useSharedSchema;
+  }
+
+  public boolean isUseSharedSchema() {
+    return useSharedSchema;
   }
 
   /**
@@ -283,6 +316,22 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
     this.smartEscapeQuoteCharacters = smartEscapeQuoteCharacters;
   }
   
+  /**
+   * If set to true, two consecutive quote characters inside a quoted block are read
+   * as one literal quote character, as described in RFC 4180. For example (, -the delimiter
+   * " -the quote):
+   * "abc","de""f","ghj"
+   * 
+   * gives de"f as the second value once enclosing quotes are stripped. 
+   * This setting will only take effect if the protectQuotedFields flag is set to true, 
+   * and only when the delimiter is a literal string.
+   * 
+   * @see #setProtectQuotedFields(boolean)
+   */
+  public void setUnescapeDoubledQuoteCharacters(boolean unescapeDoubledQuoteCharacters) {
+    this.unescapeDoubledQuoteCharacters = unescapeDoubledQuoteCharacters;
+  }
+  
   // END Bean getters/setters
 
   // BEGIN implementation IRecordProcessor interface
@@ -340,6 +389,9 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
       if (this.smartEscapeQuoteCharacters && !this.protectQuotedFields) {
         exceptions.add(new ValidationException("Cannot set smartEscapeQuoteCharacters to true when protectQuotedFields is set to false", this));
       }
+      if (this.unescapeDoubledQuoteCharacters && !this.protectQuotedFields) {
+        exceptions.add(new ValidationException("Cannot set unescapeDoubledQuoteCharacters to true when protectQuotedFields is set to false", this));
+      }
   }
   
   /**
@@ -371,6 +423,12 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
     if (fieldNames != null) {
       int count = fieldNames.length;
       AbstractDelimitedStringConvertor.validateStructure(count, received);
+      if (useSharedSchema && count == received) {
+        OrderedMapSchema schema = getFieldNameSchema();
+        if (schema != null) {
+          return schema.newMap(values);
+        }
+      }
       map = new OrderedHashMap();
       for (int i = 0; i < count; i++) {// Add the named ones
         map.put(fieldNames[i], values[i]);
@@ -384,6 +442,23 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
     return map;
   }
 
+  /**
+   * @return schema for the current fieldNames, or null if they can't form one (e.g. they contain duplicates).
+   */
+  private OrderedMapSchema getFieldNameSchema() {
+    OrderedMapSchema schema = fieldNameSchema;
+    if (schema == null && !fieldNameSchemaUnusable) {
+      try {
+        schema = new OrderedMapSchema(fieldNames);
+        fieldNameSchema = schema;
+      } catch (IllegalArgumentException e) {
+        log.warn("Field names cannot be used as a shared schema (" + e.getMessage() + "), so it will not be used");
+        fieldNameSchemaUnusable = true;
+      }
+    }
+    return schema;
+  }
+
   /**
    * Takes the supplied delimited string and chops it via the <code>delimiter</code> character. Will strip quotes if
    * the <code>stripEnclosingQuotes</code> flag is set.
@@ -448,7 +523,20 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
    * @return Array of Strings resulting from the regular explession split operation
    */
   protected String[] extractValuesRegExp(String delimitedString, String regexp) {
-    return delimitedString.split(regexp, -1);
+    return getDelimiterPattern(regexp).split(delimitedString, -1);
+  }
+  
+  /**
+   * @return the compiled regular expression, reused for as long as the delimiter 
+   * does not change.
+   */
+  private Pattern getDelimiterPattern(String regexp) {
+    Pattern pattern = delimiterPattern;
+    if (pattern == null || !pattern.pattern().equals(regexp)) {
+      pattern = Pattern.compile(regexp);
+      delimiterPattern = pattern;
+    }
+    return pattern;
   }
   
   /**
@@ -494,7 +582,7 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
     }
   
     /* split the delimitedString and put back the quoted blocks */
-    String [] result = buffer.toString().split(regexp, -1);
+    String [] result = getDelimiterPattern(regexp).split(buffer.toString(), -1);
     java.util.Iterator it = quotes.iterator();
     for(int i=0; i<result.length; i++){
       if(result[i].indexOf(escapeSeq) != -1){
@@ -526,20 +614,10 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
    * @param delimitedString
    * @param delimiter
    * @return extracted tokens resulting from split operation.
+   * @see DelimitedStringParser#split(String, String)
    */
   protected String[] extractValuesLiteralString(String delimitedString, String delimiter) {
-    char[] chars = delimitedString.toCharArray();
-    List strings = new ArrayList();
-    StringBuffer buffer = new StringBuffer();
-    for (int i = 0; i < chars.length; i++) {
-      buffer.append(chars[i]);
-      if (buffer.toString().endsWith(delimiter)) {
-        strings.add(buffer.substring(0, buffer.length() - delimiter.length()));
-        buffer.setLength(0);
-      }
-    }
-    strings.add(buffer.toString());
-    return (String[]) strings.toArray(new String[strings.size()]);
+    return DelimitedStringParser.split(delimitedString, delimiter);
   }
   
   /**
@@ -595,78 +673,19 @@ public abstract class AbstractDelimitedStringConvertor extends AbstractConvertor
    * 	</ul>
    * </li>
    * </ul> 
-   * Note there is currently no means of escaping quote characters.
+   * Quote characters can be escaped with <code>escapeQuoteCharacters</code>, 
+   * <code>smartEscapeQuoteCharacters</code> or <code>unescapeDoubledQuoteCharacters</code>.
    * @param str the string to split
    * @return a string array containing the (optionally) quoted values delimited by the
    * given delimiter string.
    * @see #setEscapeQuoteCharacters(boolean)
    * @see #setSmartEscapeQuoteCharacters(boolean)
+   * @see #setUnescapeDoubledQuoteCharacters(boolean)
+   * @see DelimitedStringParser
    */
   protected String[] extractQuotedValuesLiteralString(String str, String delimiter, char quoteChar) {
-    char[] chars = str.toCharArray();
-    List strings = new ArrayList();
-    
-    /* Tracks whether the currently parsed string is inside a quote */
-    boolean inQuotes = false;
-    
-    String parsed = "";
-    for (int i = 0; i < chars.length; i++) {
-      if(!escapeQuoteCharacters || chars[i]!= quoteEscapeChar){
-        parsed += chars[i];
-      }
-      if (inQuotes) {
-        
-    	  /* 
-           * deal with quote escaping if necessary.
-           * we are (still) in quotes unless the current character is the quote character, 
-           * and not an escaped quote character at that
-           */
-          if(escapeQuoteCharacters && (chars[i-1] == quoteEscapeChar)){
-            continue;
-          }
-    	  inQuotes = chars[i] != quoteChar;
-          
-          /* deal with smart quote escaping if necessary */
-          if(smartEscapeQuoteCharacters && chars[i]==quoteChar){
-            String remainder = "";
-            for(int j=i+1; j<chars.length; j++){
-              remainder += chars[j];
-              if(chars[j]==quoteChar && remainder.indexOf(delimiter)==-1){
-                
-                /* 
-                 * We're dealing with a quote char that is in between two other quote chars
-                 * but the succeeding quote char occurs *before* the delimiter.. we're remaining
-                 * inQuotes, basically treating the quote in question as a normal character.
-                 */ 
-                inQuotes = true;
-                break;
-              }
-            }
-          }
-      } else if (chars[i] == quoteChar) {
-    	
-          /*
-    	   * we are entering a quoted block there are more quote characters to parse, 
-           * and if this quote character is not escaped
-           */
-    	  inQuotes = str.indexOf(quoteChar, i+1) != -1;
-          if(i !=0 && escapeQuoteCharacters){
-            inQuotes = inQuotes && !(chars[i-1] == quoteEscapeChar);
-          }       
-      } else if (parsed.endsWith(delimiter)) {
-    	 
-          /*
-           * we are not in quotes and we've parsed a delimiter
-           * so add the parsed string
-    	   */
-          strings.add(parsed.substring(0, parsed.length() - delimiter.length()));
-          parsed = "";
-      }
-    }
-    
-    /* add whatever's left at the end */
-    strings.add(parsed);
-    return (String[]) strings.toArray(new String[strings.size()]);
+    return DelimitedStringParser.splitQuoted(str, delimiter, quoteChar, escapeQuoteCharacters, quoteEscapeChar,
+        smartEscapeQuoteCharacters, unescapeDoubledQuoteCharacters);
   }
 
   
@@ -0,0 +1,233 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.convertor.delimited;
+
+/**
+ * Single pass splitter for strings delimited by a literal (possibly multi-character)
+ * delimiter, with optional protection of quoted blocks. Used by 
+ * {@link AbstractDelimitedStringConvertor} when the delimiter is not a regular expression.
+ * <p>
+ * Quoted blocks follow the same forgiving rules as 
+ * {@link AbstractDelimitedStringConvertor#extractQuotedValuesLiteralString(String, String, char)}:
+ * a quote character opens a block only if another quote character follows it, and
+ * quote characters are kept in the extracted values.
+ * <p>
+ * The input is copied into a per-thread character buffer and scanned once; apart from 
+ * the returned array and its values nothing is allocated per call. Safe to use from 
+ * multiple threads.
+ */
+public final class DelimitedStringParser {
+
+  private static final ThreadLocal buffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new Buffers();
+    }
+  };
+
+  private DelimitedStringParser() {
+  }
+
+  /**
+   * Splits a string on every occurrence of a literal delimiter. Empty values,
+   * including trailing ones, are kept.
+   * 
+   * @param str the delimited string
+   * @param delimiter literal delimiter
+   * @return extracted values
+   */
+  public static String[] split(String str, String delimiter) {
+    Buffers b = (Buffers) buffers.get();
+    b.fieldCount = 0;
+    int delimiterLength = delimiter.length();
+    int start = 0;
+    int index;
+    while ((index = str.indexOf(delimiter, start)) != -1) {
+      b.add(str.substring(start, index));
+      start = index + delimiterLength;
+    }
+    b.add(str.substring(start));
+    return b.toArray();
+  }
+
+  /**
+   * Splits a string on a literal delimiter, not splitting inside quoted blocks.
+   * 
+   * @param str the delimited string
+   * @param delimiter literal delimiter
+   * @param quoteChar quote character
+   * @param escapeQuotes if true, quote characters preceded by <code>escapeChar</code> do not 
+   *        open or close a quoted block, and escape characters are removed from the values
+   * @param escapeChar quote escape character
+   * @param smartEscapeQuotes if true, a quote character inside a quoted block is treated as a 
+   *        normal character when another quote character follows it before any delimiter
+   * @param doubledQuotes if true, two consecutive quote characters inside a quoted block are
+   *        read as one literal quote character (as in RFC 4180)
+   * @return extracted values
+   */
+  public static String[] splitQuoted(String str, String delimiter, char quoteChar, boolean escapeQuotes, 
+      char escapeChar, boolean smartEscapeQuotes, boolean doubledQuotes) {
+    Buffers b = (Buffers) buffers.get();
+    b.fieldCount = 0;
+    int length = str.length();
+    char[] chars = b.chars(length);
+    str.getChars(0, length, chars, 0);
+    char[] field = b.field(length);
+    char[] delim = b.delimiter(delimiter);
+    int lastQuote = str.lastIndexOf(quoteChar);
+
+    /* Tracks whether the currently parsed string is inside a quote */
+    boolean inQuotes = false;
+    int fieldLength = 0;
+    for (int i = 0; i < length; i++) {
+      char c = chars[i];
+      if (!escapeQuotes || c != escapeChar) {
+        field[fieldLength++] = c;
+      }
+      if (inQuotes) {
+        if (escapeQuotes && chars[i - 1] == escapeChar) {
+          continue;
+        }
+        if (c == quoteChar) {
+          if (doubledQuotes && i + 1 < length && chars[i + 1] == quoteChar) {
+            /* keep one of the two quotes, stay in quotes */
+            i++;
+            continue;
+          }
+          inQuotes = smartEscapeQuotes && isEmbeddedQuote(chars, length, i, quoteChar, delim);
+        }
+      } else if (c == quoteChar) {
+        /* entering a quoted block if there is a closing quote and this one is not escaped */
+        inQuotes = i < lastQuote;
+        if (i != 0 && escapeQuotes) {
+          inQuotes = inQuotes && chars[i - 1] != escapeChar;
+        }
+      } else if (endsWith(field, fieldLength, delim)) {
+        b.add(new String(field, 0, fieldLength - delim.length));
+        fieldLength = 0;
+      }
+    }
+
+    /* add whatever's left at the end */
+    b.add(new String(field, 0, fieldLength));
+    return b.toArray();
+  }
+
+  /**
+   * Checks if the quote at <code>index</code> is followed by another quote with no delimiter 
+   * in between, in which case it is a normal character rather than the end of a quoted block.
+   */
+  private static boolean isEmbeddedQuote(char[] chars, int length, int index, char quoteChar, char[] delim) {
+    for (int j = index + 1; j < length; j++) {
+      if (chars[j] == quoteChar) {
+        return indexOf(chars, index + 1, j + 1, delim) == -1;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOf(char[] chars, int from, int to, char[] delim) {
+    for (int i = from; i <= to - delim.length; i++) {
+      if (regionMatches(chars, i, delim)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean endsWith(char[] chars, int length, char[] delim) {
+    return length >= delim.length && regionMatches(chars, length - delim.length, delim);
+  }
+
+  private static boolean regionMatches(char[] chars, int offset, char[] delim) {
+    for (int k = 0; k < delim.length; k++) {
+      if (chars[offset + k] != delim[k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Buffers reused by every call on the same thread.
+   */
+  private static final class Buffers {
+
+    private char[] chars = new char[256];
+
+    private char[] field = new char[256];
+
+    private String delimiter;
+
+    private char[] delimiterChars;
+
+    private String[] fields = new String[16];
+
+    private int fieldCount;
+
+    char[] chars(int length) {
+      if (chars.length < length) {
+        chars = new char[Math.max(length, chars.length * 2)];
+      }
+      return chars;
+    }
+
+    char[] field(int length) {
+      if (field.length < length) {
+        field = new char[Math.max(length, field.length * 2)];
+      }
+      return field;
+    }
+
+    char[] delimiter(String delimiter) {
+      if (!delimiter.equals(this.delimiter)) {
+        this.delimiter = delimiter;
+        delimiterChars = delimiter.toCharArray();
+      }
+      return delimiterChars;
+    }
+
+    void add(String value) {
+      if (fieldCount == fields.length) {
+        String[] grown = new String[fieldCount * 2];
+        System.arraycopy(fields, 0, grown, 0, fieldCount);
+        fields = grown;
+      }
+      fields[fieldCount++] = value;
+    }
+
+    String[] toArray() {
+      String[] result = new String[fieldCount];
+      System.arraycopy(fields, 0, result, 0, fieldCount);
+      /* don't hold on to the values */
+      for (int i = 0; i < fieldCount; i++) {
+        fields[i] = null;
+      }
+      return result;
+    }
+  }
+}
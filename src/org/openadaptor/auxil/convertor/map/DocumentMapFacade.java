@@ -39,13 +39,12 @@ import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.Node;
-import org.dom4j.XPath;
 import org.openadaptor.core.exception.RecordException;
 import org.openadaptor.thirdparty.dom4j.Dom4jUtils;
+import org.openadaptor.thirdparty.dom4j.XPathCache;
 
 /**
  * Utility class to represent Dom4j <code>Document</code> instances as <code>Map</code> instances.
@@ -172,7 +171,7 @@ public class DocumentMapFacade implements MapFacade {
   public Object oldGet(Object key) throws RecordException {
     Object value = null;
     if (document != null) {
-      Node node = document.selectSingleNode(key.toString());
+      Node node = XPathCache.selectSingleNode(document, key.toString());
       if (node instanceof Element) {
         Element element = (Element) node;
         //If the element is a leaf, use element.getText(), otherwise use element.getName()
@@ -258,14 +257,7 @@ public class DocumentMapFacade implements MapFacade {
    * @return List Nodes referenced by this path
    */
   protected List getNodes(String path) {
-    if (nsMap == null) {
-      return document.selectNodes(path);
-    } else  {
-      // TODO Must be a way of setting the namespace once for the document.
-      XPath xpath = DocumentHelper.createXPath(path);
-      xpath.setNamespaceURIs(nsMap);
-      return xpath.selectNodes(document);
-     }
+    return XPathCache.selectNodes(document, path, nsMap);
   } 
 
   private boolean isLeaf(Element element) {
@@ -406,7 +398,7 @@ public class DocumentMapFacade implements MapFacade {
       throw new IllegalArgumentException("null is not a legal argument for remove()");
     }
     Object value = get(key); //Retrieve it all.
-    List nodeList=document.selectNodes(key.toString());
+    List nodeList=XPathCache.selectNodes(document, key.toString());
     Iterator it=nodeList.iterator();
     while (it.hasNext()) {
       Node node=(Node)it.next();
@@ -457,7 +449,7 @@ public class DocumentMapFacade implements MapFacade {
    * @return <tt>true</tt> if the <code>Document</code> contains the named element.
    */
   public boolean containsKey(Object key) {
-    Node node = document.selectSingleNode(key.toString());
+    Node node = XPathCache.selectSingleNode(document, key.toString());
     return (node != null);
   }
 
@@ -498,7 +490,7 @@ public class DocumentMapFacade implements MapFacade {
     if (document == null)
       throw new RecordException("Null document passed. Cannot find node");
 
-    Node node = document.selectSingleNode(xPath);
+    Node node = XPathCache.selectSingleNode(document, xPath);
 
     if (node == null) { //It doesn't exist. Have to walk down from root.
 
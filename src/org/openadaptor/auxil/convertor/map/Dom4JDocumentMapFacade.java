@@ -44,6 +44,7 @@ import org.dom4j.Element;
 import org.dom4j.Node;
 import org.dom4j.Text;
 import org.openadaptor.core.exception.RecordException;
+import org.openadaptor.thirdparty.dom4j.XPathCache;
 import org.openadaptor.util.XmlUtils;
 
 /**
@@ -111,7 +112,7 @@ public class Dom4JDocumentMapFacade implements MapFacade {
     Object result=null;
     if (document!=null) {
       //Note that this may throw a NPE, which is consistent with Map.get(null)
-      List nodes=document.selectNodes(key.toString()); 
+      List nodes=XPathCache.selectNodes(document, key.toString()); 
       if (log.isDebugEnabled()) {
         log.debug(nodes.size()+" Nodes were selected for key: "+key);
       }
@@ -174,7 +175,7 @@ public class Dom4JDocumentMapFacade implements MapFacade {
       throw new RecordException("<null> key value is not permitted");
     }
     String path = key.toString().trim();
-    List matches=document.selectNodes(path);
+    List matches=XPathCache.selectNodes(document, path);
     if (matches.isEmpty()) {//See if we can create it!
       log.debug("key "+key+" does not match any existing Node. Attempting to create path to it.");
       Node node=XmlUtils.create(path,document);   
@@ -291,7 +292,7 @@ public class Dom4JDocumentMapFacade implements MapFacade {
       throw new IllegalArgumentException("null is not a legal argument for remove()");
     }
     Object value = get(key); //Retrieve it all.
-    List nodeList=document.selectNodes(key.toString());
+    List nodeList=XPathCache.selectNodes(document, key.toString());
     Iterator it=nodeList.iterator();
     while (it.hasNext()) {
       Node node=(Node)it.next();
@@ -308,7 +309,7 @@ public class Dom4JDocumentMapFacade implements MapFacade {
    * @return <tt>true</tt> if the <code>Document</code> contains the named element.
    */
   public boolean containsKey(Object key) {
-    Node node = document.selectSingleNode(key.toString());
+    Node node = XPathCache.selectSingleNode(document, key.toString());
     return (node != null);
   }
 
@@ -42,6 +42,7 @@ import org.openadaptor.auxil.orderedmap.OrderedHashMap;
 import org.openadaptor.core.exception.RecordException;
 import org.openadaptor.core.exception.RecordFormatException;
 import org.openadaptor.thirdparty.dom4j.Dom4jUtils;
+import org.openadaptor.thirdparty.dom4j.XPathCache;
 
 /**
  * This class may be used to convert XML Documents (dom4j/XML Strings) into OrderedMaps. <p/>
@@ -223,7 +224,7 @@ public class XmlToOrderedMapConvertor extends AbstractConvertor {
    * @throws RecordException if there was an XPath error
    */
   private Element[] selectElements(Node node, String xpathExpression) throws RecordException {
-    List selectedNodes = node.selectNodes(xpathExpression);
+    List selectedNodes = XPathCache.selectNodes(node, xpathExpression);
     List selectedElements = new ArrayList();
 
     Iterator it = selectedNodes.iterator();
@@ -63,10 +63,6 @@ public class Expression implements IExpression {
 
   private static Log log = LogFactory.getLog(Expression.class);
 
-  private Stack postfixStack;
-
-  private Stack operatorStack;
-
   private String expression;
 
   private Map typeConversionMap;
@@ -85,6 +81,12 @@ public class Expression implements IExpression {
 
   private ExpressionToken[] compiledExpression;
 
+  /**
+   * Evaluation tree built from compiledExpression. It is immutable, so evaluate() may be called concurrently; it is
+   * rebuilt lazily whenever a setting it depends on changes.
+   */
+  private volatile ExpressionNode evaluationTree;
+
   // BEGIN Implementation of IExpression
 
   // Temporary flag to allow/prevent functions.
@@ -99,14 +101,7 @@ public class Expression implements IExpression {
     this.expression = expression;
     // compile the expression if it isn't null.
     compiledExpression = expression == null ? null : compile();
-    /**
-     * Process the compiled expression for possible short-circuiting of boolean (AND/OR) ops.
-     */
-    if (shortCircuitEvaluation && (compiledExpression != null)) {
-      log.debug("Investigating evaluation short circuit possiblities.");
-      applyShortCircuitEvaluation(compiledExpression);
-    }
-
+    evaluationTree = null;
   }
 
   public String getExpression() {
@@ -144,6 +139,7 @@ public class Expression implements IExpression {
    */
   public void setShortCircuitEvaluation(boolean enabled) {
     this.shortCircuitEvaluation = enabled;
+    evaluationTree = null;
   }
 
   /**
@@ -168,8 +164,10 @@ public class Expression implements IExpression {
   // END Bean Accessors
 
   /**
-   * Evaluate the expression. This takes each token in turn and processes it against the postfix & operator stacks. When
-   * all tokens are processed, the postfix stack should contain a single value which is the result of the expression.
+   * Evaluate the expression against the supplied record.
+   * <p>
+   * The compiled expression is evaluated as a tree rather than against an operand stack, so this method is thread
+   * safe; one Expression may be shared by concurrent processors.
    * 
    * @return Object containing the result of the expression.
    */
@@ -177,83 +175,17 @@ public class Expression implements IExpression {
     if (compiledExpression == null) {
       return null;
     }
-    postfixStack.clear();
-    for (int i = 0; i < compiledExpression.length; i++) {
-      ExpressionToken token = compiledExpression[i];
-      // Check for short circuit evaluation of boolean ops.
-      if (token.shortCircuitNextIndex > 0) {
-        Object stackVal = postfixStack.peek(); // Top of stack must contain a boolean
-        if (stackVal instanceof Boolean) {
-          if (token.shortCircuitExpectedStackValue == ((Boolean) stackVal).booleanValue()) { // Result is already
-                                                                                              // known.
-            log.debug("Shortcircuiting expression from step " + i + "to step " + token.shortCircuitNextIndex);
-            i = token.shortCircuitNextIndex;
-            token = compiledExpression[i];
-
-            // For now we just push another of the same value so the boolean op will return the same. Ugh!
-            // ToDo: Fix this - there's actually no need to execute the boolean op any more.
-            postfixStack.push(new Boolean(token.shortCircuitExpectedStackValue)); // Push another of the same.
-          }
-        } else {
-          log.warn("Short circuit evaluation expected a boolean on stack, but found " + stackVal);
-        }
-      }
-
-      if (token.type == ExpressionToken.TYPE_VALUE) {
-        Object value = token.resolved ? token.value : getValue(record, token.value);
-        log.debug(token.value + " resolves to " + value);
-        postfixStack.push(value);
-      } else {
-        token.function.execute(postfixStack);
-        log.debug("Executing " + token.toString() + " yields " + postfixStack.peek());
-      }
-    }
-    if (postfixStack.size() != 1) {
-      throw new ExpressionException("Stack should have exactly one element, the result");
+    ExpressionNode tree = evaluationTree;
+    if (tree == null) {
+      tree = ExpressionNode.build(compiledExpression, this, shortCircuitEvaluation);
+      evaluationTree = tree;
     }
-    return postfixStack.pop();
+    return tree.evaluate(record);
   }
 
   // END Implementation of IExpression
 
   public Expression() {
-    postfixStack = new Stack();
-    operatorStack = new Stack();
-  }
-
-  // ToDo: Could optimise - put actual expected boolean into shortcircuitop (faster evaluate)
-
-  /**
-   * Add short circuit indicators for boolean operators AND and OR.
-   * <p>
-   * Basically it works out where the second operand of an operation begins, and adds a skip step which is followed if
-   * the top of stack contains the appropriate value after evaluating the first operand.
-   * <p>
-   * 
-   * @param compiledExpression
-   *          The expression to be evaluated (fully until now)
-   */
-  private void applyShortCircuitEvaluation(ExpressionToken[] compiledExpression) {
-    for (int i = 0; i < compiledExpression.length; i++) {
-      ExpressionToken token = compiledExpression[i];
-      if ((ExpressionToken.AND == token) || (ExpressionToken.OR == token)) {
-        log.debug("Found " + token + " at index " + i);
-        int steps = 1;
-        int argIndex = i;
-        while (steps > 0) {
-          argIndex--;
-          steps--;
-          IPostfixFunction fn = compiledExpression[argIndex].function;
-          if (fn != null) {
-            steps += fn.getArgCount();
-          }
-        }
-        ExpressionToken scToken = compiledExpression[argIndex];
-        scToken.shortCircuitExpectedStackValue = (ExpressionToken.AND != token);
-        scToken.shortCircuitNextIndex = i;
-        log.debug("Second arg starts at: " + argIndex);
-      }
-    }
   }
 
   /**
@@ -263,8 +195,7 @@ public class Expression implements IExpression {
    * @throws ExpressionException
    */
   private ExpressionToken[] compile() throws ExpressionException {
-    postfixStack.clear(); // Not strictly necessary
-    operatorStack.clear();
+    Stack operatorStack = new Stack();
     operatorStack.push(ExpressionToken.EOF);
     List steps = new ArrayList();
     Expression.log.debug("Compiling expression (function support=" + tmpFunctionSupport + ")");
@@ -272,9 +203,9 @@ public class Expression implements IExpression {
     Iterator it = tokenList.iterator();
     while (it.hasNext()) {
       ExpressionToken current = (ExpressionToken) it.next();
-      processToken(steps, current);
+      processToken(steps, operatorStack, current);
     }
-    processToken(steps, ExpressionToken.EOF);
+    processToken(steps, operatorStack, ExpressionToken.EOF);
 
     StringBuffer sb = new StringBuffer();
     for (int i = 0; i < steps.size(); i++) {
@@ -286,7 +217,7 @@ public class Expression implements IExpression {
     return (ExpressionToken[]) steps.toArray(new ExpressionToken[steps.size()]);
   }
 
-  private void processToken(List steps, ExpressionToken token) throws ExpressionException {
+  private void processToken(List steps, Stack operatorStack, ExpressionToken token) throws ExpressionException {
     Expression.log.debug("Processing token " + token);
     ExpressionToken stackOp = (ExpressionToken) operatorStack.peek();
     // Check flag to see if functionSupport is enabled.
@@ -356,27 +287,6 @@ public class Expression implements IExpression {
     }
   }
 
-  /**
-   * get the value of this token. If the value is a String and is surrounded by '{' '}' then it is an attribute
-   * reference that needs further resolution, handled by getValue(String attributeReference)
-   * 
-   * @param tokenValue
-   * @return the value of this variable.
-   */
-  private Object getValue(ISimpleRecord record, Object tokenValue) throws RecordException {
-    Object result = tokenValue;
-    if (tokenValue instanceof String) {
-      String stringVal = (String) tokenValue;
-      int len = stringVal.length();
-      if ((len > 2) && (ExpressionToken.OP_L_BRACE == stringVal.charAt(0))
-          && (ExpressionToken.OP_R_BRACE == stringVal.charAt(len - 1))) {
-        result = getValue(record, stringVal.substring(1, len - 1));
-      }
-
-    }
-    return result;
-  }
-
   /**
    * Resolve the value of an attributeReference While there are embedded {} in the reference, then recursively resolve
    * them until the value has been retrieved. //ToDo: Improve javadoc here...
@@ -385,7 +295,7 @@ public class Expression implements IExpression {
    * @return the value of the attribute that is referred to
    * @throws org.openadaptor.core.processor.RecordException
    */
-  private Object getValue(ISimpleRecord record, String attributeReference) throws RecordException {
+  Object resolveReference(ISimpleRecord record, String attributeReference) throws RecordException {
     // Expression.log.debug("Resolving attributeReference:"+attributeReference);
     if (record == null) {
       throw new ExpressionException("Cannot reference an attribute in a <null> record");
@@ -415,8 +325,8 @@ public class Expression implements IExpression {
       String ref = attributeReference.substring(open + 1, close);
       String end = attributeReference.substring(close + 1);
       Expression.log.debug("|" + start + "|" + ref + "|" + end);
-      return getValue(record, attributeReference.substring(0, open)
-          + getValue(record, attributeReference.substring(open + 1, close)) + attributeReference.substring(close + 1));
+      return resolveReference(record, attributeReference.substring(0, open)
+          + resolveReference(record, attributeReference.substring(open + 1, close)) + attributeReference.substring(close + 1));
     }
     return result;
   }
@@ -0,0 +1,367 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.expression;
+
+import java.util.Stack;
+
+import org.openadaptor.auxil.expression.function.AbstractFunction;
+import org.openadaptor.auxil.simplerecord.ISimpleRecord;
+import org.openadaptor.core.exception.RecordException;
+
+/**
+ * Node of the evaluation tree that an {@link Expression} is compiled into.
+ * <p>
+ * Nodes are immutable, and evaluate their children directly rather than through an operand stack, so a tree may be
+ * evaluated by any number of threads at once. Operators whose operands are all constant are folded into constants
+ * when the tree is built.
+ * 
+ * @deprecated ScriptProcessor or ScriptFilterProcessor may be used in place of Expressions
+ */
+abstract class ExpressionNode {
+
+  abstract Object evaluate(ISimpleRecord record) throws RecordException;
+
+  boolean isConstant() {
+    return false;
+  }
+
+  /**
+   * Build an evaluation tree from compiled postfix steps.
+   * <p>
+   * Malformed step sequences don't fail here; they yield a node which throws the appropriate ExpressionException when
+   * evaluated, which is when the stack based evaluation used to fail.
+   * 
+   * @param steps
+   *          the compiled expression
+   * @param owner
+   *          Expression used to resolve attribute references
+   * @param shortCircuit
+   *          if true, the second operand of AND and OR is only evaluated when needed
+   */
+  static ExpressionNode build(ExpressionToken[] steps, Expression owner, boolean shortCircuit) {
+    Stack operands = new Stack();
+    for (int i = 0; i < steps.length; i++) {
+      ExpressionToken token = steps[i];
+      if (token.type == ExpressionToken.TYPE_VALUE) {
+        operands.push(valueNode(token, owner));
+        continue;
+      }
+      IPostfixFunction fn = token.function;
+      int argCount = fn.getArgCount();
+      if (operands.size() < argCount) {
+        return new Fail(fn.getName() + " requires " + argCount + " operands but only " + operands.size()
+            + " available");
+      }
+      ExpressionNode[] args = new ExpressionNode[argCount];
+      for (int a = argCount - 1; a >= 0; a--) {
+        args[a] = (ExpressionNode) operands.pop();
+      }
+      operands.push(fold(operatorNode(fn, args, shortCircuit)));
+    }
+    if (operands.size() != 1) {
+      return new Fail("Stack should have exactly one element, the result");
+    }
+    return (ExpressionNode) operands.pop();
+  }
+
+  private static ExpressionNode valueNode(ExpressionToken token, Expression owner) {
+    if (!token.resolved && token.value instanceof String) {
+      String value = (String) token.value;
+      int len = value.length();
+      if ((len > 2) && (ExpressionToken.OP_L_BRACE == value.charAt(0))
+          && (ExpressionToken.OP_R_BRACE == value.charAt(len - 1))) {
+        return new Attribute(owner, value.substring(1, len - 1));
+      }
+    }
+    return new Constant(token.value);
+  }
+
+  private static ExpressionNode operatorNode(IPostfixFunction fn, ExpressionNode[] args, boolean shortCircuit) {
+    if (fn.getClass() == BinaryOp.class) {
+      BinaryOp op = (BinaryOp) fn;
+      if (op.getOp() == ExpressionToken.OP_AND || op.getOp() == ExpressionToken.OP_OR) {
+        return shortCircuit ? new ShortCircuit(op, args[0], args[1]) : (ExpressionNode) new Binary(op, args[0], args[1]);
+      }
+      return isComparison(op.getOp()) ? new Comparison(op, args[0], args[1]) : new Binary(op, args[0], args[1]);
+    }
+    if (fn.getClass() == UnaryOperation.class) {
+      return new Unary((UnaryOperation) fn, args[0]);
+    }
+    return new Function(fn, args);
+  }
+
+  private static boolean isComparison(char op) {
+    switch (op) {
+    case ExpressionToken.OP_EQ:
+    case ExpressionToken.OP_NE:
+    case ExpressionToken.OP_GT:
+    case ExpressionToken.OP_LT:
+    case ExpressionToken.OP_LE:
+    case ExpressionToken.OP_GE:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Replace an operator node by its value if it doesn't depend on the record. Functions are never folded, as some
+   * (e.g. now()) aren't constant. Nodes which fail are left for evaluation time, where they will fail again.
+   */
+  private static ExpressionNode fold(ExpressionNode node) {
+    if (node instanceof Function || !node.isFoldable()) {
+      return node;
+    }
+    try {
+      return new Constant(node.evaluate(null));
+    } catch (RecordException e) {
+      return node;
+    } catch (RuntimeException e) {
+      return node;
+    }
+  }
+
+  boolean isFoldable() {
+    return false;
+  }
+
+  private static Boolean toBoolean(boolean b) {
+    return b ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+  /**
+   * A literal value.
+   */
+  static final class Constant extends ExpressionNode {
+    private final Object value;
+
+    Constant(Object value) {
+      this.value = value;
+    }
+
+    Object evaluate(ISimpleRecord record) {
+      return value;
+    }
+
+    boolean isConstant() {
+      return true;
+    }
+  }
+
+  /**
+   * A reference to a record attribute, which may itself contain nested references.
+   */
+  static final class Attribute extends ExpressionNode {
+    private final Expression owner;
+
+    private final String reference;
+
+    Attribute(Expression owner, String reference) {
+      this.owner = owner;
+      this.reference = reference;
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      return owner.resolveReference(record, reference);
+    }
+  }
+
+  /**
+   * Arithmetic (and any other non boolean, non comparison) binary operation.
+   */
+  static class Binary extends ExpressionNode {
+    protected final BinaryOp op;
+
+    protected final ExpressionNode left;
+
+    protected final ExpressionNode right;
+
+    Binary(BinaryOp op, ExpressionNode left, ExpressionNode right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      return op.operate(left.evaluate(record), right.evaluate(record));
+    }
+
+    boolean isFoldable() {
+      return left.isConstant() && right.isConstant();
+    }
+  }
+
+  /**
+   * Comparison, with primitive fast paths for numeric operands which avoid allocating a result.
+   */
+  static final class Comparison extends Binary {
+    Comparison(BinaryOp op, ExpressionNode left, ExpressionNode right) {
+      super(op, left, right);
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      Object a = left.evaluate(record);
+      Object b = right.evaluate(record);
+      if ((a instanceof Number) && (b instanceof Number)) {
+        if (isFloatingPoint(a) || isFloatingPoint(b)) {
+          double d1 = ((Number) a).doubleValue();
+          double d2 = ((Number) b).doubleValue();
+          return toBoolean(compare(d1 < d2, d1 == d2, d1 > d2));
+        }
+        long l1 = ((Number) a).longValue();
+        long l2 = ((Number) b).longValue();
+        return toBoolean(compare(l1 < l2, l1 == l2, l1 > l2));
+      }
+      return op.operate(a, b);
+    }
+
+    private static boolean isFloatingPoint(Object o) {
+      return (o instanceof Double) || (o instanceof Float);
+    }
+
+    private boolean compare(boolean lt, boolean eq, boolean gt) throws ExpressionException {
+      switch (op.getOp()) {
+      case ExpressionToken.OP_EQ:
+        return eq;
+      case ExpressionToken.OP_NE:
+        return !eq;
+      case ExpressionToken.OP_GT:
+        return gt;
+      case ExpressionToken.OP_LT:
+        return lt;
+      case ExpressionToken.OP_LE:
+        return lt || eq;
+      case ExpressionToken.OP_GE:
+        return gt || eq;
+      default:
+        throw new ExpressionException("Attempted unrecognised expression operation: " + op.getOp());
+      }
+    }
+  }
+
+  /**
+   * AND or OR, which only evaluates its second operand if the first doesn't decide the result.
+   */
+  static final class ShortCircuit extends Binary {
+    private final boolean decidingValue;
+
+    ShortCircuit(BinaryOp op, ExpressionNode left, ExpressionNode right) {
+      super(op, left, right);
+      this.decidingValue = (op.getOp() == ExpressionToken.OP_OR);
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      Object a = left.evaluate(record);
+      if ((a instanceof Boolean) && (((Boolean) a).booleanValue() == decidingValue)) {
+        return toBoolean(decidingValue);
+      }
+      Object b = right.evaluate(record);
+      if ((a instanceof Boolean) && (b instanceof Boolean)) { // First operand didn't decide, so second one does
+        return b;
+      }
+      return op.operate(a, b);
+    }
+
+    boolean isFoldable() {
+      return super.isFoldable()
+          || ((left instanceof Constant) && Boolean.valueOf(decidingValue).equals(((Constant) left).value));
+    }
+  }
+
+  /**
+   * Unary operation (not, unary minus, unary plus).
+   */
+  static final class Unary extends ExpressionNode {
+    private final UnaryOperation op;
+
+    private final ExpressionNode arg;
+
+    Unary(UnaryOperation op, ExpressionNode arg) {
+      this.op = op;
+      this.arg = arg;
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      Object value = arg.evaluate(record);
+      if ((op.getOp() == ExpressionToken.OP_NOT) && (value instanceof Boolean)) {
+        return toBoolean(!((Boolean) value).booleanValue());
+      }
+      return op.operate(value);
+    }
+
+    boolean isFoldable() {
+      return arg.isConstant();
+    }
+  }
+
+  /**
+   * Any other function. Functions derived from AbstractFunction are applied directly, others through a private
+   * operand stack.
+   */
+  static final class Function extends ExpressionNode {
+    private final IPostfixFunction fn;
+
+    private final ExpressionNode[] args;
+
+    Function(IPostfixFunction fn, ExpressionNode[] args) {
+      this.fn = fn;
+      this.args = args;
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      Object[] values = new Object[args.length];
+      for (int i = 0; i < args.length; i++) {
+        values[i] = args[i].evaluate(record);
+      }
+      if (fn instanceof AbstractFunction) {
+        return ((AbstractFunction) fn).apply(values);
+      }
+      Stack stack = new Stack();
+      for (int i = 0; i < values.length; i++) {
+        stack.push(values[i]);
+      }
+      fn.execute(stack);
+      return stack.pop();
+    }
+  }
+
+  /**
+   * Malformed expression, which fails whenever it is evaluated.
+   */
+  static final class Fail extends ExpressionNode {
+    private final String message;
+
+    Fail(String message) {
+      this.message = message;
+    }
+
+    Object evaluate(ISimpleRecord record) throws RecordException {
+      throw new ExpressionException(message);
+    }
+  }
+}
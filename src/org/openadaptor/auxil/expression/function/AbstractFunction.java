@@ -105,6 +105,22 @@ public abstract class AbstractFunction implements IPostfixFunction {
    */
   protected abstract Object operate(Object[] args) throws ExpressionException;
 
+  /**
+   * Apply this function to arguments which have already been evaluated, without going through a stack.
+   * 
+   * @param args
+   *          Object[] containing one element per argument, in order
+   * @return Object containing the result of the function
+   * @throws ExpressionException
+   *           if the wrong number of arguments is supplied, or if the function fails
+   */
+  public Object apply(Object[] args) throws ExpressionException {
+    if (args.length != argCount) {
+      throw new ExpressionException(argCount + " operands required but " + args.length + " supplied");
+    }
+    return operate(args);
+  }
+
   /**
    * Extract a <code>String</code> value from an <code>Object</code>.
    * <p>
@@ -91,8 +91,9 @@ public class DateParseFn extends AbstractFunction {
    * @param format
    *          <code>String</code> containing format to be applied. Ignored if empty or <tt>null</tt>.
    * @return Object containing a <code>Date</code> representation of the supplied Date string.
+   *         Synchronized as the formatter and its current pattern are shared by every expression using this function.
    */
-  protected Object parse(String dateString, String format) throws ExpressionException {
+  protected synchronized Object parse(String dateString, String format) throws ExpressionException {
     try {
       Date result;
       if (sdf == null) {
@@ -99,8 +99,9 @@ public class FormatFn extends AbstractFunction {
    * @param format
    *          <code>String</code> containing format to be applied. Ignored if empty. Must not be <tt>null</tt>.
    * @return Object containing a String representation of the supplied Date, according to the supplied format.
+   *         Synchronized as the formatter and its current pattern are shared by every expression using this function.
    */
-  protected Object format(Date date, String format) {
+  protected synchronized Object format(Date date, String format) {
     String result;
     if (sdf == null) {
       if (format != null) {
@@ -28,9 +28,11 @@
 package org.openadaptor.auxil.metrics;
 
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,7 +52,11 @@ import org.openadaptor.core.recordable.ISimpleComponentMetrics;
  * Class that records and computes message metrics for a single 
  * {@link IRecordableComponent}.
  * 
- * Not thread-safe. 
+ * Thread-safe. Recording a message does not take locks and, once the
+ * payload types seen by the component have been cached, does not allocate:
+ * timings use <code>System.nanoTime()</code>, counters are 
+ * {@link StripedCounter}s and process times are also recorded in a
+ * {@link LatencyHistogram} so that percentiles can be reported. 
  * 
  * @see IComponentMetrics
  * @see IRecordableComponent
@@ -63,6 +69,7 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
   public    static final String ARRAY_OF ="array_of_";
   public    static final String HETEROGENEOUS_TYPES = "heterogeneous_types";
   private   static final String MILLISECONDS = "ms";
+  private   static final String MICROSECONDS = "us";
   protected static final String UNKNOWN = "Unknown";
   protected static final long   UNKNOWN_LONG = -1;
   protected static final String NONE = "None";
@@ -72,48 +79,72 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
   private   static final String LESS_THAN_ONE =  "less than 1";
   protected static final String METRICS_DISABLED = "Metrics recording DISABLED";
   private   static final String SEPARATOR = ", ";
+  private   static final String ARRAY_OF_HETEROGENEOUS_TYPES = ARRAY_OF + HETEROGENEOUS_TYPES;
+  private   static final String NULL_TYPE = "null";
+  private   static final long   NANOS_PER_MILLI = 1000000;
+  private   static final long   NANOS_PER_MICRO = 1000;
+  private   static final double [] PERCENTILES = new double[]{50, 99, 99.9};
+  private   static final String [] PERCENTILE_NAMES = new String[]{"p50", "p99", "p999"};
+
+  /** Type keys of single payload elements, by element class. */
+  private static final ConcurrentMap singleTypeKeys = new ConcurrentHashMap();
+
+  /** Type keys of homogeneous payload arrays, by element class. */
+  private static final ConcurrentMap arrayTypeKeys = new ConcurrentHashMap();
 
   private IRecordableComponent monitoredComponent;
   
-  protected Map inputMsgCounter = new HashMap();
+  /** Maps input message types to {@link StripedCounter}s. */
+  protected Map inputMsgCounter = new ConcurrentHashMap();
+  
+  /** Maps output message types to {@link StripedCounter}s. */
+  protected Map outputMsgCounter = new ConcurrentHashMap();
   
-  protected Map outputMsgCounter = new HashMap();
+  /* Times below are in nanoseconds */
+  final AtomicLong minProcessTime = new AtomicLong(UNKNOWN_LONG);
   
-  long minProcessTime = UNKNOWN_LONG;
+  final AtomicLong maxProcessTime = new AtomicLong(UNKNOWN_LONG);
   
-  long maxProcessTime = UNKNOWN_LONG;
+  final AtomicLong lastProcessTime = new AtomicLong(UNKNOWN_LONG);
   
-  long lastProcessTime = UNKNOWN_LONG;
+  final StripedCounter totalProcessTime = new StripedCounter();
   
-  long totalProcessTime = NONE_LONG;
+  final StripedCounter processedMsgs = new StripedCounter();
   
-  long outputMsgs = NONE_LONG;
+  final LatencyHistogram processTimes = new LatencyHistogram();
   
-  long discardedMsgs = NONE_LONG;
+  final StripedCounter outputMsgs = new StripedCounter();
   
-  long exceptionMsgs = NONE_LONG;
+  final StripedCounter discardedMsgs = new StripedCounter();
+  
+  final StripedCounter exceptionMsgs = new StripedCounter();
+  
+  /** Start of the message currently processed by each thread, UNKNOWN_LONG if none */
+  private final ThreadLocal processStartTime = new ThreadLocal() {
+    protected Object initialValue() {
+      return new long[]{UNKNOWN_LONG};
+    }
+  };
   
-  protected Date processStartTime;
+  /** When the processing of the last message ended, UNKNOWN_LONG if not yet */
+  private final AtomicLong processEndTime = new AtomicLong(UNKNOWN_LONG);
   
-  protected Date processEndTime;
+  final AtomicLong minIntervalTime = new AtomicLong(UNKNOWN_LONG);
   
-  long minIntervalTime = UNKNOWN_LONG;
+  final AtomicLong maxIntervalTime = new AtomicLong(UNKNOWN_LONG);
   
-  long maxIntervalTime = UNKNOWN_LONG;
+  final StripedCounter totalIntervalTime = new StripedCounter();
   
-  long totalIntervalTime = NONE_LONG;
+  final StripedCounter intervals = new StripedCounter();
   
   /** When the component last chagned state to STARTED */
-  Date lastStarted = null;
+  volatile Date lastStarted = null;
 
   /** When the component last chagned state to STOPPED */
-  Date lastStopped = null;
+  volatile Date lastStopped = null;
   
   /** Are metrics enabled */
-  boolean enabled = false;
-  
-  /** Flag that indicates if the component is currently processing a message. */
-  boolean currentlyProcessing = false;
+  volatile boolean enabled = false;
 
   private PeriodFormatter periodFormatter = new PeriodFormatterBuilder()
               .printZeroRarelyLast()
@@ -184,63 +215,24 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled || msg==null){
       return;
     }
-    processStartTime = new Date();
-    currentlyProcessing = true;
+    long now = System.nanoTime();
+    ((long[]) processStartTime.get())[0] = now;
     
     /* calculate intervals */
-    if(! (processEndTime==null)){
-      long intervalTime = processStartTime.getTime() - processEndTime.getTime();
-      totalIntervalTime+=intervalTime;
-      if(maxIntervalTime<intervalTime){
-        maxIntervalTime=intervalTime;
-      }
-      if(minIntervalTime>intervalTime || minIntervalTime==UNKNOWN_LONG){
-        minIntervalTime=intervalTime;
-      }
+    long lastEnd = processEndTime.get();
+    if(lastEnd!=UNKNOWN_LONG){
+      long intervalTime = Math.max(0, now - lastEnd);
+      totalIntervalTime.add(intervalTime);
+      intervals.increment();
+      updateMax(maxIntervalTime, intervalTime);
+      updateMin(minIntervalTime, intervalTime);
     }
     
     Object [] data = msg.getData();
     if(data.length==0){
       return;
     }
-    StringBuffer msgPayloadType = new StringBuffer();
-    
-    /* If data made up of more than one element it'll be described as an array */
-    if(data.length>1){
-      msgPayloadType.append(ARRAY_OF);
-      
-      /* Check if array holds homogeneous or heterogeneous types */
-      String firstClass = data[0].getClass().getName();
-      boolean sameTypes = true;
-      for(int i=1; i<data.length; i++){
-        if(! data[i].getClass().getName().equals(firstClass)){
-          sameTypes = false;
-          break;
-        }
-      }
-      if(sameTypes){
-        msgPayloadType.append(data[0].getClass().getName());
-      }
-      else{
-        msgPayloadType.append(HETEROGENEOUS_TYPES);
-      }
-    }
-    
-    /* Data holds one element*/
-    else{
-      msgPayloadType.append(data[0].getClass().getName());
-    }
-    String msgPayloadTypeStr = msgPayloadType.toString();
-  
-    /* Increase the counter */
-    Object count = inputMsgCounter.get(msgPayloadTypeStr);
-    if(count==null){
-      inputMsgCounter.put(msgPayloadTypeStr, new Long(1));
-    }
-    else{
-      Long countLong = (Long) count;
-      inputMsgCounter.put(msgPayloadTypeStr, new Long(countLong.longValue()+1));
-    }
+    increment(inputMsgCounter, typeKey(data));
   }
   
   /**
@@ -253,82 +245,44 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled || msg==null || response==null){
       return;
     }
-    if(processStartTime!=null){
-      processEndTime = new Date();
-      long processTime = processEndTime.getTime() - processStartTime.getTime();
-      totalProcessTime+=processTime;
-      lastProcessTime=processTime;
-      if(maxProcessTime<processTime){
-        maxProcessTime=processTime;
-      }
-      if(minProcessTime>processTime || minProcessTime==UNKNOWN_LONG){
-        minProcessTime=processTime;
-      }
+    long [] start = (long[]) processStartTime.get();
+    if(start[0]!=UNKNOWN_LONG){
+      long now = System.nanoTime();
+      processEndTime.set(now);
+      long processTime = Math.max(0, now - start[0]);
+      totalProcessTime.add(processTime);
+      processedMsgs.increment();
+      processTimes.record(processTime);
+      lastProcessTime.set(processTime);
+      updateMax(maxProcessTime, processTime);
+      updateMin(minProcessTime, processTime);
     }
     else{
       log.warn("Could not match input and output messages.");
     }
      
-    outputMsgs++;
+    outputMsgs.increment();
     
     Object [] collatedOutput = response.getCollatedOutput();
     if(collatedOutput.length==0){
-      currentlyProcessing=false;
       return;
     }
     
-    StringBuffer msgPayloadType = new StringBuffer();
+    String msgPayloadType = "";
     
     /* If the node did not split the message into multiple messages */
     if(collatedOutput.length==1){
 
       /* Dealing with a batch */
-      if(collatedOutput[0].getClass().isArray()){
-      
-        Object [] output = (Object[]) collatedOutput[0]; 
-        if(output.length>1){
-          msgPayloadType.append(ARRAY_OF);
-          
-          /* Check if array holds homogeneous or heterogeneous types */
-          String firstClass = output[0].getClass().getName();
-          boolean sameTypes = true;
-          for(int i=1; i<output.length; i++){
-            if(! output[i].getClass().getName().equals(firstClass)){
-              sameTypes = false;
-              break;
-            }
-          }
-          if(sameTypes){
-            msgPayloadType.append(output[0].getClass().getName());
-          }
-          else{
-            msgPayloadType.append(HETEROGENEOUS_TYPES);
-          }
-        }
-        /* batch holds one element */
-        else{
-          msgPayloadType.append(output[0].getClass().getName());
-        }
-        
+      if(collatedOutput[0] instanceof Object[]){
+        msgPayloadType = typeKey((Object[]) collatedOutput[0]);
       }
       /* Dealing with a single element */
       else{
-        msgPayloadType.append(collatedOutput[0].getClass().getName()); 
+        msgPayloadType = singleTypeKey(collatedOutput[0]); 
       }
     }
-   
-    String msgPayloadTypeStr = msgPayloadType.toString();
-  
-    /* Increase the counter */
-    Object count = outputMsgCounter.get(msgPayloadTypeStr);
-    if(count==null){
-      outputMsgCounter.put(msgPayloadTypeStr, new Long(1));
-    }
-    else{
-      Long countLong = (Long) count;
-      outputMsgCounter.put(msgPayloadTypeStr, new Long(countLong.longValue()+1));
-    }
-    currentlyProcessing = false;
+    increment(outputMsgCounter, msgPayloadType);
   }
 
   /**
@@ -338,8 +292,7 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled || msg==null){
       return;
     }
-    discardedMsgs++;
-    currentlyProcessing = false;
+    discardedMsgs.increment();
   }
   
   /**
@@ -349,8 +302,85 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled || msg==null){
       return;
     }
-    exceptionMsgs++;
-    currentlyProcessing = false;
+    exceptionMsgs.increment();
+  }
+  
+  /**
+   * Returns the type key of a message payload, i.e. the class name of a 
+   * single element, or the class name prefixed with {@link #ARRAY_OF} for 
+   * an array of elements of the same class.
+   */
+  private static String typeKey(Object [] data){
+    if(data.length==0){
+      return "";
+    }
+    if(data.length==1){
+      return singleTypeKey(data[0]);
+    }
+    
+    /* Check if array holds homogeneous or heterogeneous types */
+    Class firstClass = classOf(data[0]);
+    for(int i=1; i<data.length; i++){
+      if(classOf(data[i])!=firstClass){
+        return ARRAY_OF_HETEROGENEOUS_TYPES;
+      }
+    }
+    if(firstClass==null){
+      return ARRAY_OF + NULL_TYPE;
+    }
+    String key = (String) arrayTypeKeys.get(firstClass);
+    if(key==null){
+      key = ARRAY_OF + firstClass.getName();
+      arrayTypeKeys.putIfAbsent(firstClass, key);
+    }
+    return key;
+  }
+  
+  private static String singleTypeKey(Object element){
+    if(element==null){
+      return NULL_TYPE;
+    }
+    Class elementClass = element.getClass();
+    String key = (String) singleTypeKeys.get(elementClass);
+    if(key==null){
+      key = elementClass.getName();
+      singleTypeKeys.putIfAbsent(elementClass, key);
+    }
+    return key;
+  }
+  
+  private static Class classOf(Object element){
+    return element==null ? null : element.getClass();
+  }
+  
+  private static void increment(Map msgCounter, String msgPayloadType){
+    StripedCounter counter = (StripedCounter) msgCounter.get(msgPayloadType);
+    if(counter==null){
+      counter = new StripedCounter();
+      StripedCounter existing = (StripedCounter) ((ConcurrentMap) msgCounter).putIfAbsent(msgPayloadType, counter);
+      if(existing!=null){
+        counter = existing;
+      }
+    }
+    counter.increment();
+  }
+  
+  private static void updateMax(AtomicLong max, long value){
+    long current = max.get();
+    while(current<value && !max.compareAndSet(current, value)){
+      current = max.get();
+    }
+  }
+  
+  private static void updateMin(AtomicLong min, long value){
+    long current = min.get();
+    while((current>value || current==UNKNOWN_LONG) && !min.compareAndSet(current, value)){
+      current = min.get();
+    }
+  }
+  
+  private static long toMillis(long nanos){
+    return nanos==UNKNOWN_LONG ? UNKNOWN_LONG : nanos / NANOS_PER_MILLI;
   }
   
   /**
@@ -374,11 +404,11 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
   }
   
   private long [] getMsgCounts(Map msgCounter){
-    long [] result = new long[msgCounter.keySet().size()];
-    int i=0;
-    for(Iterator it=msgCounter.keySet().iterator(); it.hasNext();){     
-      Long countLong = (Long) msgCounter.get(it.next());
-      result[i++] = countLong.longValue();
+    Object [] msgTypes = msgCounter.keySet().toArray();
+    long [] result = new long[msgTypes.length];
+    for(int i=0; i<msgTypes.length; i++){     
+      StripedCounter counter = (StripedCounter) msgCounter.get(msgTypes[i]);
+      result[i] = counter.sum();
     }
     return result;
   }
@@ -418,8 +448,8 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
         inputMsgs.append("/n");
       }
       Object dataType = it.next();
-      Long countLong = (Long) inputMsgCounter.get(dataType);
-      inputMsgs.append(countLong);
+      StripedCounter counter = (StripedCounter) inputMsgCounter.get(dataType);
+      inputMsgs.append(counter.sum());
       inputMsgs.append(MESSAGES_OF_TYPE);
       inputMsgs.append(dataType);
     }
@@ -516,71 +546,83 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
    * @see IComponentMetrics#getProcessTimeMin()
    */
   public long getProcessTimeMin() {
-    return minProcessTime;
+    return toMillis(minProcessTime.get());
   }
   
   /**
    * @see IComponentMetrics#getProcessTimeMax()
    */
   public long getProcessTimeMax() {
-    return maxProcessTime;
+    return toMillis(maxProcessTime.get());
   }
   
   /**
    * @see IComponentMetrics#getProcessTimeLast()
    */
   public long getProcessTimeLast() {
-    return lastProcessTime;
+    return toMillis(lastProcessTime.get());
   }
 
   /**
-   * Gets total of input messages (irrespective of message types).
+   * @see IComponentMetrics#getProcessTimeAvg()
    */
-  private long getInputMsgsCount(){
-    long [] intpuMsgCounts = getInputMsgCounts();
-    long msgCount = 0;
-    for(int i=0; i<intpuMsgCounts.length; i++){
-      msgCount+=intpuMsgCounts[i];
+  public long getProcessTimeAvg(){
+    long msgCount = processedMsgs.sum();
+    if(msgCount==0){
+      /* Hasn't processed anything yet */
+      return UNKNOWN_LONG;
     }
-    return msgCount;
+    return toMillis(totalProcessTime.sum()/msgCount);
   }
   
   /**
-   * @see IComponentMetrics#getProcessTimeAvg()
+   * @see IComponentMetrics#getProcessTimePercentileMicros(double)
    */
-  public long getProcessTimeAvg(){
-    if(maxProcessTime==UNKNOWN_LONG){
+  public long getProcessTimePercentileMicros(double percentile){
+    long nanos = processTimes.getPercentile(percentile);
+    return nanos==UNKNOWN_LONG ? UNKNOWN_LONG : nanos / NANOS_PER_MICRO;
+  }
+  
+  /**
+   * @see IComponentMetrics#getProcessTimePercentiles()
+   */
+  public String getProcessTimePercentiles(){
+    if(!enabled){
+      return METRICS_DISABLED;
+    }
+    if(processedMsgs.sum()==0){
       /* Hasn't processed anything yet */
-      return UNKNOWN_LONG;
+      return UNKNOWN;
     }
-    long msgCount = getInputMsgsCount();
-    if(currentlyProcessing){
-      msgCount--;
+    StringBuffer sb = new StringBuffer();
+    for(int i=0; i<PERCENTILES.length; i++){
+      if(i>0){
+        sb.append(SEPARATOR);
+      }
+      sb.append(PERCENTILE_NAMES[i]);
+      sb.append(": ");
+      long micros = getProcessTimePercentileMicros(PERCENTILES[i]);
+      if(micros<1000){
+        sb.append(micros);
+        sb.append(MICROSECONDS);
+      }
+      else{
+        sb.append(formatDuration(micros/1000));
+      }
     }
-    long timeAvgMs = UNKNOWN_LONG;
-    if(msgCount!=0){
-      timeAvgMs = (long) (totalProcessTime/msgCount);
-    }  
-    return timeAvgMs;
+    return sb.toString();
   }
   
   /**
    * @see IComponentMetrics#getIntervalTimeAvg()
    */
   public long getIntervalTimeAvg(){
-    if(maxIntervalTime==UNKNOWN_LONG){
+    long intervalsCount = intervals.sum();
+    if(intervalsCount==0){
       /* Hasn't processed at least 2 messages yet */
       return UNKNOWN_LONG;
     }
-    long intervalsCount = getInputMsgsCount() - 1;
-    if(currentlyProcessing){
-      intervalsCount--;
-    }
-    long timeAvgMs = UNKNOWN_LONG;
-    if(intervalsCount!=0){
-      timeAvgMs = (long) (totalIntervalTime/intervalsCount);
-    }  
-    return timeAvgMs;
+    return toMillis(totalIntervalTime.sum()/intervalsCount);
   }
   
   /**
@@ -590,12 +632,12 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled){
       return METRICS_DISABLED;
     }
-    if(maxProcessTime==UNKNOWN_LONG){
+    if(processedMsgs.sum()==0){
       /* Hasn't processed anything yet */
       return UNKNOWN;
     }
     long timeAvgMs = getProcessTimeAvg();
-    return formatDuration(timeAvgMs, minProcessTime, maxProcessTime, lastProcessTime);
+    return formatDuration(timeAvgMs, getProcessTimeMin(), getProcessTimeMax(), getProcessTimeLast());
   }
   
   /**
@@ -605,39 +647,39 @@ public class ComponentMetrics implements IComponentMetrics, ILifecycleListener{
     if(!enabled){
       return METRICS_DISABLED;
     }
-    if(maxIntervalTime==UNKNOWN_LONG){
+    if(intervals.sum()==0){
       return UNKNOWN;
     }
     long timeAvgMs = getIntervalTimeAvg();
-    return formatDuration(timeAvgMs, minIntervalTime, maxIntervalTime, UNKNOWN_LONG);
+    return formatDuration(timeAvgMs, getIntervalTimeMin(), getIntervalTimeMax(), UNKNOWN_LONG);
   }
 
   /**
    * @see IComponentMetrics#getIntervalTimeMin()
    */
   public long getIntervalTimeMin() {
-    return minIntervalTime;
+    return toMillis(minIntervalTime.get());
   }
   
   /**
    * @see IComponentMetrics#getIntervalTimeMax()
    */
   public long getIntervalTimeMax() {
-    return maxIntervalTime;
+    return toMillis(maxIntervalTime.get());
   }
 
   /**
    * @see IComponentMetrics#getDiscardedMsgCount()
    */
   public long getDiscardedMsgCount() {
-    return discardedMsgs;
+    return discardedMsgs.sum();
   }
 
   /**
    * @see IComponentMetrics#getExceptionMsgCount()
    */
   public long getExceptionMsgCount() {
-    return exceptionMsgs;
+    return exceptionMsgs.sum();
   }
 
   /**
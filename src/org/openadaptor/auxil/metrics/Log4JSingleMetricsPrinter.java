@@ -54,6 +54,7 @@ public class Log4JSingleMetricsPrinter implements IMetricsPrinter {
     sb.append("Output messages:            " + metrics.getOutputMsgs() + "\n");
     sb.append("Discards and exceptions:    " + metrics.getDiscardsAndExceptions() + "\n");
     sb.append("Avg msg processing time:    " + metrics.getProcessTime() + "\n");
+    sb.append("Msg processing percentiles: " + metrics.getProcessTimePercentiles() + "\n");
     sb.append("Avg between msgs idle time: " + metrics.getIntervalTime() + "\n");
     sb.append("Component uptime:           " + metrics.getUptime());
     log.info(sb.toString());  
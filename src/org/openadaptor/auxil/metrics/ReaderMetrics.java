@@ -124,4 +124,18 @@ public class ReaderMetrics extends ComponentMetrics{
   public long getProcessTimeMin() {
     return UNKNOWN_LONG;
   }
+
+  /**
+   * @return message that this method is not applicable to ReadConnectors
+   */
+  public String getProcessTimePercentiles() {
+    return NOT_APPLICABLE_FOR_READERS;
+  }
+
+  /**
+   * @return message that this method is not applicable to ReadConnectors
+   */
+  public long getProcessTimePercentileMicros(double percentile) {
+    return UNKNOWN_LONG;
+  }
 }
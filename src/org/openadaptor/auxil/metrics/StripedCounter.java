@@ -0,0 +1,104 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be updated by many threads with little contention. 
+ * Updates are spread across a number of cells (picked by the updating 
+ * thread's id) that are padded apart so that they do not share a cache 
+ * line. Reads sum all the cells and are therefore comparatively expensive,
+ * which suits metrics that are updated for every message and read rarely.
+ * 
+ * Values read while updates are in progress are not an atomic snapshot.
+ */
+public final class StripedCounter {
+
+  /** Number of longs between two cells, 64 bytes apart. */
+  private static final int PADDING = 8;
+
+  private static final int CELLS = cellCount();
+
+  private static final int MASK = CELLS - 1;
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+  /**
+   * Adds the given value to the counter.
+   */
+  public void add(long value) {
+    cells.getAndAdd(cellIndex(), value);
+  }
+
+  /**
+   * Increments the counter by one.
+   */
+  public void increment() {
+    cells.getAndIncrement(cellIndex());
+  }
+
+  /**
+   * @return the current value of the counter.
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * Resets the counter to zero.
+   */
+  public void reset() {
+    for (int i = 0; i < CELLS; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  public String toString() {
+    return String.valueOf(sum());
+  }
+
+  private static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & MASK) * PADDING;
+  }
+
+  private static int cellCount() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int count = 1;
+    while (count < processors * 2 && count < 64) {
+      count <<= 1;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,762 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.orderedmap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.openadaptor.core.exception.ProcessingException;
+
+/**
+ * Array based implementation of <code>IOrderedMap</code>.
+ * <p>
+ * Keys and values are held in parallel arrays in their assigned order, with a hash index from key to array slot.
+ * Lookup, <code>put</code> and <code>remove</code> by key are O(1): removing a key only empties its slot, and the
+ * arrays are compacted the next time positional access (<code>get(int)</code>, <code>keys()</code> etc.) needs them to
+ * be dense.
+ * <p>
+ * Maps obtained from an {@link OrderedMapSchema} share the schema's keys and index, so that each such record costs a
+ * single value array. Such a map takes a private copy of its keys the first time its layout diverges from the schema,
+ * i.e. when a key is added that the schema doesn't have, a removed key is put back, or an entry is inserted at a
+ * position.
+ * <p>
+ * Unlike <code>OrderedHashMap</code>, <code>keys()</code> is a read-only view, and <code>add(int, key, value)</code>
+ * with an existing key moves that key rather than duplicating it.
+ * 
+ * @see OrderedMapSchema
+ */
+public class ArrayOrderedMap extends AbstractMap implements IOrderedMap, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Marks an empty slot. */
+  private static final Object ABSENT = new Object();
+
+  private static final String AUTO_KEY_PREFIX = "_auto_";
+
+  private static final int DEFAULT_CAPACITY = 8;
+
+  /** Key in each slot. May belong to a schema, in which case it is never modified. */
+  private transient Object[] keys;
+
+  /** Key to Integer slot. May belong to a schema, in which case it is never modified. */
+  private transient Map index;
+
+  private transient boolean shared;
+
+  /** Value in each slot, or ABSENT. */
+  private transient Object[] values;
+
+  /** Number of slots in use, including empty ones. */
+  private transient int slots;
+
+  private transient int size;
+
+  /** No slot above this one holds a value. */
+  private transient int lastLive = -1;
+
+  private transient int nextKey = 1;
+
+  private transient Set entrySetView;
+
+  private transient Set keySetView;
+
+  private transient Collection valuesView;
+
+  private transient List keysView;
+
+  // Constructors
+
+  /**
+   * Constructs an empty <code>ArrayOrderedMap</code>.
+   */
+  public ArrayOrderedMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructs an empty <code>ArrayOrderedMap</code> with room for the specified number of entries.
+   * 
+   * @param initialCapacity
+   *          initialCapacity
+   */
+  public ArrayOrderedMap(int initialCapacity) {
+    initPrivate(Math.max(initialCapacity, 1));
+  }
+
+  /**
+   * Constructs a new <code>ArrayOrderedMap</code> with the same mappings as the supplied Map. If it is an
+   * <code>IOrderedMap</code> its ordering is preserved, otherwise the ordering is that of its entrySet().
+   * 
+   * @param map
+   *          any <code>Map</code> instance.
+   */
+  public ArrayOrderedMap(Map map) {
+    this(map.size());
+    if (map instanceof IOrderedMap) {
+      List mapKeys = ((IOrderedMap) map).keys();
+      for (int i = 0; i < mapKeys.size(); i++) {
+        Object key = mapKeys.get(i);
+        put(key, map.get(key));
+      }
+    } else {
+      putAll(map);
+    }
+  }
+
+  /**
+   * Constructs a new <code>ArrayOrderedMap</code> with the values in the supplied collection, each with an
+   * auto-generated key.
+   * 
+   * @param collection
+   *          any <code>Collection</code> instance.
+   */
+  public ArrayOrderedMap(Collection collection) {
+    this(collection.size());
+    for (Iterator it = collection.iterator(); it.hasNext();) {
+      add(it.next());
+    }
+  }
+
+  /**
+   * Constructs a map sharing the keys of a schema. The values array is used as is and must have one element per
+   * schema key, ABSENT where there is no value.
+   */
+  ArrayOrderedMap(OrderedMapSchema schema, Object[] values, boolean full) {
+    this.keys = schema.getKeyArray();
+    this.index = schema.getIndex();
+    this.shared = true;
+    this.values = values;
+    this.slots = values.length;
+    if (full) {
+      this.size = values.length;
+      this.lastLive = values.length - 1;
+    } else {
+      Arrays.fill(values, ABSENT);
+    }
+  }
+
+  private void initPrivate(int capacity) {
+    keys = new Object[capacity];
+    values = new Object[capacity];
+    index = new HashMap(capacity * 4 / 3 + 1);
+    shared = false;
+    slots = 0;
+    size = 0;
+    lastLive = -1;
+  }
+
+  // BEGIN Map methods
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(Object key) {
+    int slot = slotOf(key);
+    return slot >= 0 && values[slot] != ABSENT;
+  }
+
+  public boolean containsValue(Object value) {
+    for (int slot = 0; slot <= lastLive; slot++) {
+      Object v = values[slot];
+      if (v != ABSENT && (value == null ? v == null : value.equals(v))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public Object get(Object key) {
+    int slot = slotOf(key);
+    if (slot < 0) {
+      return null;
+    }
+    Object value = values[slot];
+    return value == ABSENT ? null : value;
+  }
+
+  /**
+   * Associates the specified value with the specified key in this map.
+   * <p>
+   * A new key goes at the end of the existing entries; an existing key keeps its position.
+   * 
+   * @throws NullPointerException
+   *           if the supplied key is null
+   */
+  public Object put(Object key, Object value) {
+    if (key == null) {
+      throw new NullPointerException("<null> key value not permitted");
+    }
+    int slot = slotOf(key);
+    if (slot >= 0) {
+      Object old = values[slot];
+      if (old != ABSENT) {
+        values[slot] = value;
+        return old;
+      }
+      // Empty schema slot. Filling it in place is the same as appending if nothing follows it.
+      if (slot > lastLive) {
+        values[slot] = value;
+        size++;
+        lastLive = slot;
+        return null;
+      }
+    }
+    append(key, value);
+    return null;
+  }
+
+  /**
+   * Removes the mapping for this key, if present. This only empties the key's slot.
+   */
+  public Object remove(Object key) {
+    int slot = slotOf(key);
+    if (slot < 0 || values[slot] == ABSENT) {
+      return null;
+    }
+    Object old = values[slot];
+    values[slot] = ABSENT;
+    size--;
+    if (!shared) {
+      index.remove(key);
+      keys[slot] = null;
+      if (slot == slots - 1) {
+        slots--;
+      }
+    }
+    if (slot == lastLive) {
+      lastLive--;
+    }
+    return old;
+  }
+
+  public void clear() {
+    if (shared) {
+      Arrays.fill(values, ABSENT);
+    } else {
+      Arrays.fill(keys, 0, slots, null);
+      Arrays.fill(values, 0, slots, null);
+      index.clear();
+      slots = 0;
+    }
+    size = 0;
+    lastLive = -1;
+  }
+
+  public Set entrySet() {
+    if (entrySetView == null) {
+      entrySetView = new EntrySet();
+    }
+    return entrySetView;
+  }
+
+  public Set keySet() {
+    if (keySetView == null) {
+      keySetView = new KeySet();
+    }
+    return keySetView;
+  }
+
+  /**
+   * Returns a collection view of the values contained in this map, in order.
+   */
+  public Collection values() {
+    if (valuesView == null) {
+      valuesView = new Values();
+    }
+    return valuesView;
+  }
+
+  // END Map methods
+
+  // BEGIN List only methods
+
+  /**
+   * Add the specified element after the last existing element, with an auto-generated key.
+   * 
+   * @return true as per the general contract of <code>Collection</code>.add
+   */
+  public boolean add(Object object) {
+    put(nextAutoKey(), object);
+    return true;
+  }
+
+  /**
+   * Returns the element at the specified position.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if index out of range (index < 0 || index >= size()).
+   */
+  public Object get(int i) {
+    checkIndex(i, size - 1);
+    ensureDense();
+    return values[i];
+  }
+
+  /**
+   * Replaces the element at the specified position, returning the element previously there.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if index out of range (index < 0 || index >= size()).
+   */
+  public Object set(int i, Object object) {
+    checkIndex(i, size - 1);
+    ensureDense();
+    Object old = values[i];
+    values[i] = object;
+    return old;
+  }
+
+  /**
+   * Inserts the specified mapping at the specified position, shifting subsequent elements to the right. If the key
+   * is already present its existing mapping is removed first.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if index out of range (index < 0 || index > size()).
+   */
+  public void add(int i, Object key, Object value) {
+    if (key == null) {
+      throw new NullPointerException("<null> key value not permitted");
+    }
+    checkIndex(i, containsKey(key) ? size - 1 : size);
+    remove(key);
+    if (i == size) {
+      put(key, value);
+      return;
+    }
+    compact(size + 1);
+    System.arraycopy(keys, i, keys, i + 1, slots - i);
+    System.arraycopy(values, i, values, i + 1, slots - i);
+    keys[i] = key;
+    values[i] = value;
+    slots++;
+    size++;
+    lastLive = slots - 1;
+    for (int slot = i; slot < slots; slot++) {
+      index.put(keys[slot], Integer.valueOf(slot));
+    }
+  }
+
+  /**
+   * Inserts the specified element at the specified position with an auto-generated key.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if index out of range (index < 0 || index > size()).
+   */
+  public void add(int i, Object value) {
+    add(i, nextAutoKey(), value);
+  }
+
+  /**
+   * Removes the element at the specified position, returning it.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if index out of range (index < 0 || index >= size()).
+   */
+  public Object remove(int i) {
+    checkIndex(i, size - 1);
+    ensureDense();
+    return remove(keys[i]);
+  }
+
+  /**
+   * Returns the position of the first occurrence of the specified element, or -1.
+   */
+  public int indexOf(Object object) {
+    ensureDense();
+    for (int i = 0; i < size; i++) {
+      if (object == null ? values[i] == null : object.equals(values[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a read-only <code>List</code> view of the keys, in their assigned order.
+   */
+  public List keys() {
+    if (keysView == null) {
+      keysView = new KeyList();
+    }
+    return keysView;
+  }
+
+  // END List only methods
+
+  /**
+   * Return a shallow copy of this map. A copy of a schema backed map shares the schema too.
+   */
+  public Object clone() {
+    ArrayOrderedMap clone;
+    try {
+      clone = (ArrayOrderedMap) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new ProcessingException("Failed to clone ArrayOrderedMap.", e, null);
+    }
+    clone.values = (Object[]) values.clone();
+    if (!shared) {
+      clone.keys = (Object[]) keys.clone();
+      clone.index = new HashMap(index);
+    }
+    clone.entrySetView = null;
+    clone.keySetView = null;
+    clone.valuesView = null;
+    clone.keysView = null;
+    return clone;
+  }
+
+  /**
+   * @return this map itself.
+   */
+  public Object getRecord() {
+    return this;
+  }
+
+  /**
+   * Same format as <code>OrderedHashMap</code>.
+   */
+  public String toString() {
+    StringBuffer sb = new StringBuffer("OM[");
+    for (int slot = 0; slot <= lastLive; slot++) {
+      Object value = values[slot];
+      if (value == ABSENT) {
+        continue;
+      }
+      if (value instanceof Object[]) {// Be nice - expand it
+        StringBuffer sb2 = new StringBuffer();
+        Object[] vals = (Object[]) value;
+        for (int j = 0; j < vals.length; j++) {
+          sb2.append((vals[j] == null) ? "<null>" : vals[j]);
+          if (j < vals.length - 1) {
+            sb2.append(",");
+          }
+        }
+        value = sb2.toString();
+      }
+      sb.append(keys[slot]).append("->").append(value).append(',');
+    }
+    if (size > 0) {
+      sb.setLength(sb.length() - 1);
+    }
+    return sb.append(']').toString();
+  }
+
+  // Internals
+
+  private int slotOf(Object key) {
+    Integer slot = (Integer) index.get(key);
+    return slot == null ? -1 : slot.intValue();
+  }
+
+  private String nextAutoKey() {
+    return AUTO_KEY_PREFIX + nextKey++;
+  }
+
+  private static void checkIndex(int i, int max) {
+    if (i < 0 || i > max) {
+      throw new IndexOutOfBoundsException("Index: " + i);
+    }
+  }
+
+  private void append(Object key, Object value) {
+    if (shared || slots == keys.length) {
+      compact(size + 1);
+    }
+    keys[slots] = key;
+    values[slots] = value;
+    index.put(key, Integer.valueOf(slots));
+    lastLive = slots;
+    slots++;
+    size++;
+  }
+
+  /**
+   * Compacts if entries are not in slots 0..size-1, so that slot number equals position.
+   */
+  private void ensureDense() {
+    if (lastLive != size - 1) {
+      compact(size);
+    }
+  }
+
+  /**
+   * Moves all entries into private arrays with room for at least <code>capacity</code> entries, without gaps, and
+   * rebuilds the index if slots moved.
+   */
+  private void compact(int capacity) {
+    if (!shared && lastLive == size - 1 && slots == size && capacity <= keys.length) {
+      return;
+    }
+    int length = keys.length;
+    if (shared || capacity > length) {
+      length = Math.max(capacity, slots);
+      if (capacity > size) { // Growing, so leave some headroom
+        length += (length >> 1) + 1;
+      }
+    }
+    Object[] newKeys = new Object[length];
+    Object[] newValues = new Object[length];
+    Map newIndex = (shared || slots != size) ? new HashMap(length * 4 / 3 + 1) : index;
+    int n = 0;
+    for (int slot = 0; slot < slots; slot++) {
+      if (values[slot] != ABSENT) {
+        newKeys[n] = keys[slot];
+        newValues[n] = values[slot];
+        if (newIndex != index) {
+          newIndex.put(keys[slot], Integer.valueOf(n));
+        }
+        n++;
+      }
+    }
+    keys = newKeys;
+    values = newValues;
+    index = newIndex;
+    shared = false;
+    slots = n;
+    lastLive = n - 1;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    out.writeInt(nextKey);
+    for (int slot = 0; slot <= lastLive; slot++) {
+      if (values[slot] != ABSENT) {
+        out.writeObject(keys[slot]);
+        out.writeObject(values[slot]);
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int count = in.readInt();
+    initPrivate(Math.max(count, 1));
+    nextKey = in.readInt();
+    for (int i = 0; i < count; i++) {
+      Object key = in.readObject();
+      put(key, in.readObject());
+    }
+  }
+
+  // Views
+
+  /**
+   * Iterates over the occupied slots. Removal through the iterator only empties a slot, so it doesn't disturb
+   * iteration.
+   */
+  private abstract class SlotIterator implements Iterator {
+    private int next = -1;
+    private int current = -1;
+
+    SlotIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        next++;
+      } while (next <= lastLive && values[next] == ABSENT);
+    }
+
+    public boolean hasNext() {
+      return next <= lastLive;
+    }
+
+    protected int nextSlot() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      current = next;
+      advance();
+      return current;
+    }
+
+    public void remove() {
+      if (current < 0 || values[current] == ABSENT) {
+        throw new IllegalStateException();
+      }
+      ArrayOrderedMap.this.remove(keys[current]);
+    }
+  }
+
+  private final class Entry implements Map.Entry {
+    private final int slot;
+
+    Entry(int slot) {
+      this.slot = slot;
+    }
+
+    public Object getKey() {
+      return keys[slot];
+    }
+
+    public Object getValue() {
+      Object value = values[slot];
+      return value == ABSENT ? null : value;
+    }
+
+    public Object setValue(Object value) {
+      Object old = values[slot];
+      values[slot] = value;
+      return old;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry e = (Map.Entry) o;
+      Object value = getValue();
+      return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    public int hashCode() {
+      Object value = getValue();
+      return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+
+  private final class EntrySet extends AbstractSet {
+    public int size() {
+      return size;
+    }
+
+    public Iterator iterator() {
+      return new SlotIterator() {
+        public Object next() {
+          return new Entry(nextSlot());
+        }
+      };
+    }
+
+    public void clear() {
+      ArrayOrderedMap.this.clear();
+    }
+  }
+
+  private final class KeySet extends AbstractSet {
+    public int size() {
+      return size;
+    }
+
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+
+    public boolean remove(Object o) {
+      if (!containsKey(o)) {
+        return false;
+      }
+      ArrayOrderedMap.this.remove(o);
+      return true;
+    }
+
+    public Iterator iterator() {
+      return new SlotIterator() {
+        public Object next() {
+          return keys[nextSlot()];
+        }
+      };
+    }
+
+    public void clear() {
+      ArrayOrderedMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection {
+    public int size() {
+      return size;
+    }
+
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    public Iterator iterator() {
+      return new SlotIterator() {
+        public Object next() {
+          return values[nextSlot()];
+        }
+      };
+    }
+
+    public void clear() {
+      ArrayOrderedMap.this.clear();
+    }
+  }
+
+  private final class KeyList extends AbstractList {
+    public int size() {
+      return size;
+    }
+
+    public Object get(int i) {
+      checkIndex(i, size - 1);
+      ensureDense();
+      return keys[i];
+    }
+
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+
+    public int indexOf(Object o) {
+      if (!containsKey(o)) {
+        return -1;
+      }
+      ensureDense();
+      return slotOf(o);
+    }
+  }
+}
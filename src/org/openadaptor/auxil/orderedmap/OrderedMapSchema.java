@@ -0,0 +1,138 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.orderedmap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, ordered set of keys shared by {@link ArrayOrderedMap} instances with the same layout.
+ * <p>
+ * Convertors which produce many records with the same field names (e.g. the rows of a delimited file) can create one
+ * schema and use it for every record, so that each record costs a single value array rather than a hash table and
+ * key list of its own. Instances are thread safe.
+ */
+public final class OrderedMapSchema {
+
+  private final Object[] keys;
+
+  /** Key to Integer slot. Never modified after construction. */
+  private final Map index;
+
+  /**
+   * Creates a schema with the given keys, in order.
+   * 
+   * @param keys
+   *          non-null, distinct keys
+   * @throws IllegalArgumentException
+   *           if a key is null or appears more than once
+   */
+  public OrderedMapSchema(Object[] keys) {
+    this.keys = (Object[]) keys.clone();
+    this.index = new HashMap(keys.length * 4 / 3 + 1);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == null) {
+        throw new IllegalArgumentException("<null> key value not permitted");
+      }
+      if (index.put(keys[i], Integer.valueOf(i)) != null) {
+        throw new IllegalArgumentException("Duplicate key " + keys[i]);
+      }
+    }
+  }
+
+  /**
+   * Creates a schema with the given keys, in order.
+   * 
+   * @see #OrderedMapSchema(Object[])
+   */
+  public OrderedMapSchema(List keys) {
+    this(keys.toArray());
+  }
+
+  /**
+   * @return number of keys in this schema.
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * @return read-only list of the keys in this schema, in order.
+   */
+  public List keys() {
+    return Collections.unmodifiableList(Arrays.asList(keys));
+  }
+
+  /**
+   * @return position of the key in this schema, or -1 if it isn't one of its keys.
+   */
+  public int indexOf(Object key) {
+    Integer slot = (Integer) index.get(key);
+    return slot == null ? -1 : slot.intValue();
+  }
+
+  /**
+   * Creates an empty map with this schema. Putting the schema's keys in schema order (not necessarily all of them)
+   * doesn't allocate anything further.
+   */
+  public ArrayOrderedMap newMap() {
+    return new ArrayOrderedMap(this, new Object[keys.length], false);
+  }
+
+  /**
+   * Creates a map with this schema, holding the given values for the schema's keys.
+   * 
+   * @param values
+   *          one value per key, in schema order. The array is copied.
+   * @throws IllegalArgumentException
+   *           if the number of values differs from the number of keys.
+   */
+  public ArrayOrderedMap newMap(Object[] values) {
+    if (values.length != keys.length) {
+      throw new IllegalArgumentException("Expected " + keys.length + " values, got " + values.length);
+    }
+    Object[] copy = new Object[values.length]; // Not clone(), which would keep a narrower array type
+    System.arraycopy(values, 0, copy, 0, values.length);
+    return new ArrayOrderedMap(this, copy, true);
+  }
+
+  Object[] getKeyArray() {
+    return keys;
+  }
+
+  Map getIndex() {
+    return index;
+  }
+
+  public String toString() {
+    return "OrderedMapSchema" + Arrays.asList(keys);
+  }
+}
@@ -51,6 +51,9 @@ public abstract class AbstractEnrichmentProcessor extends Component implements I
   
   private String commaSeparatedFieldNames;
   
+  /* commaSeparatedFieldNames broken into an array, computed once */
+  private String [] paramsFieldNames;
+  
   /**
    * @see org.openadaptor.core.IEnrichmentProcessor#getReadConnector()
    */
@@ -80,6 +83,7 @@ public abstract class AbstractEnrichmentProcessor extends Component implements I
    */
   public void setParameterNames(String commaSeparatedFieldNames){
     this.commaSeparatedFieldNames = commaSeparatedFieldNames;
+    this.paramsFieldNames = null;
   }
 
   /**
@@ -91,7 +95,8 @@ public abstract class AbstractEnrichmentProcessor extends Component implements I
   }
   
   /**
-   * Breaks commaSeparatedFieldNames (if set) to String array.
+   * Breaks commaSeparatedFieldNames (if set) to String array. The array is computed
+   * once and shared between calls, it must not be modified.
    * 
    * @return parameter field names as String array
    */
@@ -99,6 +104,9 @@ public abstract class AbstractEnrichmentProcessor extends Component implements I
     if(null == commaSeparatedFieldNames){
       return null;
     }
+    if(paramsFieldNames != null){
+      return paramsFieldNames;
+    }
     String [] result = commaSeparatedFieldNames.split(FIELD_SEPARATOR);
     /* remove while spaces */
     if(result != null){
@@ -108,6 +116,7 @@ public abstract class AbstractEnrichmentProcessor extends Component implements I
         }
       }
     }
+    paramsFieldNames = result;
     return result;
   }
 
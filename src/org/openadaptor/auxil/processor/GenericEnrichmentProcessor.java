@@ -134,7 +134,7 @@ public class GenericEnrichmentProcessor extends AbstractEnrichmentProcessor {
        /* GenericEnrichmentProcessorTestCase#testEnrich_testEnrich1() */
        result = new Object[]{input};
     }
-    else if(input instanceof OrderedHashMap){
+    else if(input instanceof IOrderedMap){
       if(enrichmentElementName==null){
        /* 
         * or add enrichment data as next element(s) to input if the input is an IOrderedMap. 
@@ -143,13 +143,13 @@ public class GenericEnrichmentProcessor extends AbstractEnrichmentProcessor {
         /* GenericEnrichmentProcessorTestCase#testEnrich_testEnrich4() */
         result = new Object[enrichmentData.length];
         for(int i=0; i<enrichmentData.length; i++){
-          result[i]=((OrderedHashMap)input).clone();   
+          result[i]=((IOrderedMap)input).clone();   
           ((Map)result[i]).putAll((Map)enrichmentData[i]);
         }
       }
       else{
-        result = new Object[]{((OrderedHashMap)input).clone()};   
-        ((OrderedHashMap)result[0]).put(enrichmentElementName, enrichmentData);
+        result = new Object[]{((IOrderedMap)input).clone()};   
+        ((IOrderedMap)result[0]).put(enrichmentElementName, enrichmentData);
       }
     }
     else{
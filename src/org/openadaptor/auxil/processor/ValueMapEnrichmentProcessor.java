@@ -33,7 +33,7 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.openadaptor.auxil.orderedmap.OrderedHashMap;
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
 import org.openadaptor.auxil.processor.GenericEnrichmentProcessor;
 import org.openadaptor.core.exception.ValidationException;
 
@@ -165,8 +165,8 @@ public class ValueMapEnrichmentProcessor extends GenericEnrichmentProcessor
     }
     /* or add enrichment data as next element to input */
     else{    
-      if(input instanceof OrderedHashMap){
-        result = new Object[] { ((OrderedHashMap)input).clone() };
+      if(input instanceof IOrderedMap){
+        result = new Object[] { ((IOrderedMap)input).clone() };
         for(int i=0; i<enrichmentData.length; i++){
           Object key   = ((Map)enrichmentData[i]).get(getKeyName());
           Object value = ((Map)enrichmentData[i]).get(getValueName());
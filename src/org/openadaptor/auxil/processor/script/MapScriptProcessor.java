@@ -30,6 +30,8 @@ package org.openadaptor.auxil.processor.script;
 import java.util.Map;
 import java.util.Set;
 
+import javax.script.Bindings;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openadaptor.core.exception.NullRecordException;
@@ -58,18 +60,25 @@ public class MapScriptProcessor extends ScriptProcessor {
 
   /**
    * Process a Map data item.
-   * It bind each key->value pair in the supplied map into
-   * the scriptEngine.
-   * Actual processing is delegated to the superclass.
+   * Actual processing is delegated to the superclass, which will call
+   * back to bind each key->value pair in the supplied map.
    *
    */
   protected  Object[] doProcess(Object data) {
     if (data==null) {
       throwNullRecordException();
     }
-    if (!(data instanceof Map)) {
-      throwRecordFormatException(getClass().getName()+" expects Map data, but got "+data.getClass().getName());
-    }
+    checkIsMap(data);
+    return super.doProcess(data);
+  }
+
+  /**
+   * Binds each key->value pair in the supplied map into
+   * the script bindings.
+   * @return the keys which were bound
+   */
+  protected Object bindRecord(Bindings bindings, Object data) {
+    checkIsMap(data);
     Map map=(Map)data;
 
     Set keySet=map.keySet();
@@ -85,7 +94,7 @@ public class MapScriptProcessor extends ScriptProcessor {
           throw new RecordException(msg);
         }
         Object value=map.get(key);
-        scriptEngine.put(boundName,value);
+        bindings.put(boundName,value);
         if (log.isDebugEnabled()) {
           log.debug("binding "+boundName+" -> "+value);
         }
@@ -94,27 +103,21 @@ public class MapScriptProcessor extends ScriptProcessor {
         log.warn("ScriptEngine cannot bind null Map key");
       }
     }
-
-    Object[] result=super.doProcess(data);
-    if (result.length>0) {
-      updateValues((Map)scriptEngine.get(dataBinding),keys);
-    }
-    return result;
+    return keys;
   }
 
   /**
-   * update the named keys from the engine binding
-   * @param outputMap
-   * @param keys
+   * update the originally bound keys from the script bindings
    */
-  private void updateValues(Map outputMap,Object[] keys) { 
+  protected void updateRecord(Bindings bindings, Object context) {
+    Map outputMap=(Map)bindings.get(dataBinding);
+    Object[] keys=(Object[])context;
     for (int i=0;i<keys.length;i++) {
       Object key=keys[i];
       if (key!=null) { //Check if we need to extract an updated value.
         if (outputMap.containsKey(key)) { //Only update keys that still exist!
           String boundName=key.toString();
-          Object value=scriptEngine.get(boundName);
-          scriptEngine.put(boundName,value);
+          Object value=bindings.get(boundName);
           outputMap.put(key,value);
           if (log.isDebugEnabled()) {
             log.debug("updated "+boundName+" -> "+value);
@@ -127,6 +130,12 @@ public class MapScriptProcessor extends ScriptProcessor {
     }
   }
 
+  private void checkIsMap(Object data) {
+    if (!(data instanceof Map)) {
+      throwRecordFormatException(getClass().getName()+" expects Map data, but got "+data.getClass().getName());
+    }
+  }
+
   private void throwRecordFormatException(String msg) {
     log.warn(msg);
     throw new RecordFormatException(msg);
@@ -51,7 +51,8 @@ public class ScriptFilterProcessor extends Component implements IDataProcessor,
 
   private boolean filterOnMatch = true;
   private ScriptProcessor scriptProcessor; //Delegate ScriptProcessor
-  private Map metadata;
+  //Metadata for the calling thread, as given to setMetadata().
+  private final ThreadLocal metadata = new ThreadLocal();
 
   public ScriptFilterProcessor() {
     super();
@@ -81,10 +82,13 @@ public class ScriptFilterProcessor extends Component implements IDataProcessor,
   /**
    * get scriptProcessor to process data, and filter based on
    * result.
+   * <br>
+   * No locking is done here; metadata is held per thread and passed
+   * to the delegate with each call, and the delegate is responsible for
+   * its own thread safety (it is synchronised unless pooled, by default).
    */
-  public synchronized Object[] process(Object data) {
-    scriptProcessor.setMetadata(metadata);
-    Object[] output = scriptProcessor.process(data);
+  public Object[] process(Object data) {
+    Object[] output = scriptProcessor.process(data, (Map)metadata.get());
     Object result=scriptProcessor.getLastResult();
     if (result instanceof Boolean) { 
       if (((Boolean)result).booleanValue() == filterOnMatch) {
@@ -120,6 +124,6 @@ public class ScriptFilterProcessor extends Component implements IDataProcessor,
    *        to components down the adaptor pipeline.
    */
   public void setMetadata(Map metadata) {
-    this.metadata = metadata;    
+    this.metadata.set(metadata);
   }
 }
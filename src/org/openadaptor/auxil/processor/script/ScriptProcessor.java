@@ -29,14 +29,19 @@ package org.openadaptor.auxil.processor.script;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
@@ -44,6 +49,8 @@ import javax.script.ScriptException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openadaptor.auxil.metrics.LatencyHistogram;
+import org.openadaptor.auxil.metrics.StripedCounter;
 import org.openadaptor.core.Component;
 import org.openadaptor.core.IDataProcessor;
 import org.openadaptor.core.IMetadataAware;
@@ -61,6 +68,15 @@ import org.openadaptor.util.ObjectCloner;
  * file whose name is supplied. 
  * The script  be executed in the context of supplied records.
  * <br>
+ * By default a single ScriptEngine is used, and calls are synchronised
+ * (see {@link #setSynchronised(boolean)}). If <code>poolSize</code> is
+ * greater than one, a bounded pool of engines (each with its own compiled
+ * script) is created when the processor is validated, and each call
+ * borrows an engine and evaluates the script against fresh
+ * per-invocation Bindings. Scripts then run concurrently, but
+ * script-level global variables no longer survive from one record to
+ * the next; use {@link #setAdditionalBindings(Map)} to share state.
+ * <br>
  * 
  * @author higginse
  * 
@@ -78,14 +94,20 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
   protected String scriptFilename;
   protected CompiledScript compiledScript;
   protected boolean compile = true;
-  protected Object lastResult = null;
+  //Last result from any thread; prefer getLastResult().
+  protected volatile Object lastResult = null;
+  //Last result seen by the calling thread, for use by wrapping processors.
+  private final ThreadLocal threadLastResult = new ThreadLocal();
   protected String dataBinding = DEFAULT_DATA_BINDING;
   protected String metadataBinding = DEFAULT_METADATA_BINDING;
   protected String logBinding= DEFAULT_LOG_BINDING;
   //This allows additional bindings
   protected Map additionalBindings=null;
   
+  //Last metadata set by any thread; scripts are bound with the calling thread's metadata.
   protected Map metadata = null;
+  //Metadata for the calling thread, as given to setMetadata() or process(Object, Map).
+  private final ThreadLocal threadMetadata = new ThreadLocal();
 
   //Mechanism by which Objects are cloned.
   //This is due to change when a more general-purpose 
@@ -99,6 +121,20 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
    */
   private boolean synchronised=true;
 
+  /**
+   * Number of pooled script engines. One means a single shared engine
+   * (the historical behaviour).
+   */
+  private int poolSize=1;
+
+  //Pool of engines, only used if poolSize > 1. Rebuilt on each validate().
+  private BlockingQueue enginePool;
+
+  //Script execution metrics.
+  private final LatencyHistogram executionLatencies=new LatencyHistogram();
+  private final StripedCounter executionCount=new StripedCounter();
+  private final StripedCounter executionFailureCount=new StripedCounter();
+
   /**
    * If true, then converted values will always be wrapped
    * in an enclosing Object[], even if the result is already
@@ -180,13 +216,14 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
 
 
   /**
-   * This holds the last result from script execution.
+   * This holds the last result from script execution by the calling
+   * thread.
    * 
    * @return Object containing the result from last execution of the script,
    *         or <code>null</code> if script has not yet executed.
    */
   protected Object getLastResult() {
-    return lastResult;
+    return threadLastResult.get();
   }
 
   /**
@@ -253,17 +290,90 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
    * @return true if calls will be syncronised, false otherwise
    */
   public boolean getSynchronised() {return synchronised;}
+
+  /**
+   * Sets the number of script engines to create.
+   * <br>
+   * If greater than one, calls borrow an engine from a bounded pool
+   * and are not synchronised, regardless of the synchronised flag.
+   * Defaults to 1.
+   * @param poolSize number of engines to pool
+   */
+  public void setPoolSize(int poolSize) {
+    this.poolSize=poolSize;
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * @return number of script executions since validation.
+   */
+  public long getExecutionCount() {
+    return executionCount.sum();
+  }
+
+  /**
+   * @return number of script executions which failed since validation.
+   */
+  public long getExecutionFailureCount() {
+    return executionFailureCount.sum();
+  }
+
+  /**
+   * Returns an approximate script execution time percentile.
+   * @param percentile between 0 and 100
+   * @return execution time in microseconds
+   */
+  public long getExecutionTimePercentileMicros(double percentile) {
+    return executionLatencies.getPercentile(percentile);
+  }
   
+  /**
+   * Process a data item, binding the metadata last given to 
+   * {@link #setMetadata(Map)} by the calling thread.
+   */
   public Object[] process(Object data) {
-  	if (synchronised) {
-  		synchronized(this) {//Synchronisation required
-  			return doProcess(data); 		
-  		}
-  	}
-  	else { //Nike - just do it ;-)
-  		return doProcess(data);
-  	}
+    return process(data, (Map)threadMetadata.get());
+  }
+
+  /**
+   * Process a data item using the supplied metadata, rather than
+   * that last given to {@link #setMetadata(Map)}.
+   * <br>
+   * This is intended for wrapping components which must not share
+   * metadata state with other threads.
+   * @param data record to process
+   * @param metadata metadata to bind for this call
+   * @return Object[] of results, as for {@link #process(Object)}
+   */
+  public Object[] process(Object data, Map metadata) {
+    if (synchronised && (enginePool==null)) {
+      synchronized(this) {//Synchronisation required
+        return doProcess(data, metadata);
+      }
+    }
+    else { //Nike - just do it ;-)
+      return doProcess(data, metadata);
+    }
   }
+
+  /**
+   * Makes metadata current for the calling thread while {@link #doProcess(Object)}
+   * runs, so that subclasses overriding it see the metadata for this call.
+   */
+  private Object[] doProcess(Object data, Map metadata) {
+    Object previous=threadMetadata.get();
+    threadMetadata.set(metadata);
+    try {
+      return doProcess(data);
+    }
+    finally {
+      threadMetadata.set(previous);
+    }
+  }
+
   /**
    * Process a data item.
    * It will bind the data using the configured databinding, to
@@ -276,36 +386,65 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
    * should be avoided for obvious reasons :-)
    */
   protected Object[] doProcess(Object data) {
+    return execute(data, (Map)threadMetadata.get());
+  }
+
+  /**
+   * Executes the script for a single record, using either the shared
+   * engine or one borrowed from the pool.
+   */
+  private Object[] execute(Object data, Map metadata) {
     if (data==null) { //conform to IDataProcessor contract.
       throw new NullRecordException("Null record not permitted");
     }
     //Clone it if possible.
     //data=ReflectionUtils.clone(data);
     data=cloner.clone(data);
+    BlockingQueue pool=enginePool;
+    PooledEngine pooled=null;
+    long start=System.nanoTime();
+    boolean failed=true;
     try {
-      scriptEngine.put(metadataBinding, metadata);
-      scriptEngine.put(dataBinding, data);
-      if (compiledScript != null) {
-        lastResult = compiledScript.eval();
-      } 
+      ScriptEngine engine;
+      CompiledScript compiled;
+      Bindings bindings;
+      if (pool!=null) {
+        pooled=borrow(pool);
+        engine=pooled.engine;
+        compiled=pooled.compiledScript;
+        bindings=engine.createBindings();
+        bindings.put(logBinding, log);
+        applyBindings(bindings, additionalBindings);
+      }
       else {
-        if (script != null) {
-          lastResult = scriptEngine.eval(script);
-        } 
-        else {
-          lastResult = scriptEngine.eval(new FileReader(scriptFilename));
-        }
+        engine=scriptEngine;
+        compiled=compiledScript;
+        bindings=engine.getBindings(ScriptContext.ENGINE_SCOPE);
       }
-      data = scriptEngine.get(dataBinding);
+      bindings.put(metadataBinding, metadata);
+      bindings.put(dataBinding, data);
+      Object context=bindRecord(bindings, data);
+      Object result=evaluate(engine, compiled, bindings, pool!=null);
+      lastResult=result;
+      threadLastResult.set(result);
+      data = bindings.get(dataBinding);
+      Object[] output;
       if (data==null) {
-        data=new Object[] {};
+        output=new Object[] {};
       }
       else {
         if (boxReturnedArrays || (!(data instanceof Object[]))){
-          data = new Object[] { data }; //Wrap it in an Object array.
+          output = new Object[] { data }; //Wrap it in an Object array.
+        }
+        else {
+          output=(Object[])data;
         }
       }
-      return (Object[])data;
+      if (output.length>0) {
+        updateRecord(bindings, context);
+      }
+      failed=false;
+      return output;
     } catch (ScriptException e) {
     	  log.debug("Script cause: "+e.getCause());
     
@@ -314,9 +453,74 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
     } catch (FileNotFoundException e) {
       throw new ConnectionException("failed to load script file, " + e.getMessage()
           + scriptFilename, e, this);
+    } finally {
+      if (pooled!=null) {
+        pool.offer(pooled);
+      }
+      executionCount.increment();
+      if (failed) {
+        executionFailureCount.increment();
+      }
+      executionLatencies.record((System.nanoTime()-start)/1000);
     }
   }
 
+  /**
+   * Evaluates the script. Pooled engines are given explicit Bindings,
+   * whereas the shared engine uses its own engine scope, as it always has.
+   */
+  private Object evaluate(ScriptEngine engine, CompiledScript compiled, Bindings bindings, boolean pooled) throws ScriptException, FileNotFoundException {
+    if (compiled != null) {
+      return pooled ? compiled.eval(bindings) : compiled.eval();
+    }
+    if (script != null) {
+      return pooled ? engine.eval(script, bindings) : engine.eval(script);
+    }
+    FileReader reader=new FileReader(scriptFilename);
+    try {
+      return pooled ? engine.eval(reader, bindings) : engine.eval(reader);
+    }
+    finally {
+      try {
+        reader.close();
+      }
+      catch (IOException ioe) {
+        log.debug("Failed to close script file "+scriptFilename+": "+ioe);
+      }
+    }
+  }
+
+  private PooledEngine borrow(BlockingQueue pool) {
+    try {
+      return (PooledEngine)pool.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessingException("Interrupted waiting for a script engine", e, this);
+    }
+  }
+
+  /**
+   * Hook allowing subclasses to bind record contents before the script
+   * is evaluated. The default implementation does nothing.
+   * @param bindings Bindings the script will be evaluated against
+   * @param data the (cloned) record, which is already bound
+   * @return any state which {@link #updateRecord(Bindings, Object)} will need
+   */
+  protected Object bindRecord(Bindings bindings, Object data) {
+    return null;
+  }
+
+  /**
+   * Hook allowing subclasses to copy script changes back into the
+   * output record. Only called if the script produced output.
+   * The default implementation does nothing.
+   * @param bindings Bindings the script was evaluated against
+   * @param context value returned by {@link #bindRecord(Bindings, Object)}
+   */
+  protected void updateRecord(Bindings bindings, Object context) {
+  }
+
   /**
    * Reset has no effect here unless overridden
    */
@@ -524,16 +728,46 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
   private void initialise() throws ValidationException {
     log.info("Initialising script engine for language: "+language);
     log.debug("Compile flag: "+compile);
-    scriptEngine = createScriptEngine();
-    if (compile && scriptEngine instanceof Compilable) {
-      Compilable compilableScriptEngine=(Compilable)scriptEngine;
+    enginePool=null;
+    executionLatencies.reset();
+    executionCount.reset();
+    executionFailureCount.reset();
+    PooledEngine first=createPooledEngine();
+    scriptEngine = first.engine;
+    compiledScript = first.compiledScript;
+    if (poolSize > 1) {
+      BlockingQueue pool=new ArrayBlockingQueue(poolSize);
+      pool.add(first);
+      for (int i=1;i<poolSize;i++) { //Warm up the remaining engines now, rather than on first use
+        pool.add(createPooledEngine());
+      }
+      log.info("Created pool of "+poolSize+" script engines");
+      enginePool=pool;
+    }
+    else {
+      //Apply binding to allow scripts to access logging
+      scriptEngine.put(logBinding, log);
+      //Apply extra bindings, if any.
+      applyBindings(scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE),additionalBindings);
+    }
+  }
+
+  /**
+   * Creates a script engine, and compiles the supplied script if
+   * compilation is possible, and enabled.
+   */
+  private PooledEngine createPooledEngine() throws ValidationException {
+    ScriptEngine engine = createScriptEngine();
+    CompiledScript compiled = null;
+    if (compile && engine instanceof Compilable) {
+      Compilable compilableScriptEngine=(Compilable)engine;
       try {
         if (script != null) {
           log.debug("Compiling script: "+script);
-          compiledScript = compilableScriptEngine.compile(script);
+          compiled = compilableScriptEngine.compile(script);
         } else {
           log.debug("Compiling script from file: "+scriptFilename);
-          compiledScript = compilableScriptEngine.compile(new FileReader(scriptFilename));
+          compiled = compilableScriptEngine.compile(new FileReader(scriptFilename));
         }
         log.info("Script compiled successfully");
       } catch (ScriptException e) {
@@ -546,10 +780,7 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
         throw new ValidationException(failMsg, e, this);
       }
     }
-    //Apply binding to allow scripts to access logging
-    scriptEngine.put(logBinding, log);
-    //Apply extra bindings, if any.
-    applyBindings(scriptEngine,additionalBindings);
+    return new PooledEngine(engine, compiled);
   }
 
   /**
@@ -558,17 +789,17 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
    * The key of each Map.Entry will be used as the bound name within
    * the engine.
    * The value object will be bound to that name withing the engine.
-   * @param engine ScriptEngine to apply bindings in.
+   * @param target Bindings to apply bindings in.
    * @param bindings Map of name to Object pairings
    */
-  private void applyBindings(ScriptEngine engine, Map bindings) {
+  private void applyBindings(Bindings target, Map bindings) {
     if (bindings!=null) {
-      log.info("Applying additionalBindings");
+      log.debug("Applying additionalBindings");
       Iterator it=bindings.keySet().iterator();
       while (it.hasNext()) { 
         Object key=it.next();
         Object value=bindings.get(key);
-        engine.put(key.toString(), value);
+        target.put(key.toString(), value);
         if (log.isDebugEnabled()) {
           log.debug("Binding "+key.toString()+" -> "+ value);
         }
@@ -607,6 +838,20 @@ public class ScriptProcessor extends Component implements IDataProcessor, IMetad
    */
   public void setMetadata(Map metadata) {
     this.metadata = metadata; 
+    threadMetadata.set(metadata);
   }
   
+  /**
+   * A script engine together with its compiled script (if any).
+   */
+  private static final class PooledEngine {
+    final ScriptEngine engine;
+    final CompiledScript compiledScript;
+
+    PooledEngine(ScriptEngine engine, CompiledScript compiledScript) {
+      this.engine=engine;
+      this.compiledScript=compiledScript;
+    }
+  }
+
 }
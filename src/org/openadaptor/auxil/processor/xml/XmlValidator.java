@@ -27,9 +27,20 @@
 
 package org.openadaptor.auxil.processor.xml;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
 
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.xerces.parsers.SAXParser;
@@ -45,8 +56,16 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 /**
- * Validates each record (assumed to be an XML document in string form) against
- * the schema defined in the configuration file.
+ * Validates each record (assumed to be an XML document in string or byte[] form)
+ * against the schema defined in the configuration file.
+ * <p />
+ *
+ * If precompiledSchema is set the schema is compiled once into a
+ * {@link javax.xml.validation.Schema}, which is shared by all validators using the
+ * same schema URL, and each thread validates with its own
+ * {@link javax.xml.validation.Validator}. Records are streamed into the validator,
+ * and a single instance may be used by concurrent pipelines. Otherwise a single
+ * Xerces parser is used, which is not thread safe.
  * <p />
  *
  * By default the schema URL is verified during the initialisation phase. For web
@@ -73,6 +92,12 @@ public class XmlValidator extends Component implements IDataProcessor {
 
   private InputSource in = new InputSource();
 
+  private boolean precompiledSchema = false;
+
+  private Schema schema;
+
+  private ThreadLocal validators = new ThreadLocal();
+
   /**
    * @return the URL for the validating schema
    */
@@ -106,7 +131,24 @@ public class XmlValidator extends Component implements IDataProcessor {
     this.forcingURLValidation = b;
   }
 
-  
+  /**
+   * @return true if validating against a precompiled schema with a validator per thread
+   */
+  public boolean isPrecompiledSchema() {
+    return precompiledSchema;
+  }
+
+  /**
+   * Set to true to compile the schema once, when the processor is validated,
+   * and validate each record with a per thread validator. This makes the 
+   * processor thread safe.
+   *
+   * @param precompiledSchema defaults to false
+   */
+  public void setPrecompiledSchema(boolean precompiledSchema) {
+    this.precompiledSchema = precompiledSchema;
+  }
+
   /**
    * Default value is false
    */
@@ -124,8 +166,8 @@ public class XmlValidator extends Component implements IDataProcessor {
 	this.enableXMLValidationException = enableXMLValidationException;
   }
 
-/**
-   * Take the record, ensure it's a string and validate it against the schema
+  /**
+   * Take the record, ensure it's a string or byte[] and validate it against the schema
    * defined in the config file.
    *
    * @param data the XML to be validated
@@ -133,7 +175,7 @@ public class XmlValidator extends Component implements IDataProcessor {
    * @return Object[] with zero or more records, resulting from the processing
    *         operation.
    *
-   * @throws RuntimeException if the record is not a string 
+   * @throws RuntimeException if the record is not a string or byte[]
    * 
    * @throws ProcessingException if the record does not contain
    * valid XML or if it fails to be validated against the schema and 
@@ -154,16 +196,28 @@ public class XmlValidator extends Component implements IDataProcessor {
    *  
    */
   public Object[] process(Object data) {
-    if (!(data instanceof String)) {
-   		throw new RuntimeException("data is not a string");
+    if (!(data instanceof String) && !(data instanceof byte[])) {
+   		throw new RuntimeException("data is not a string or byte[]");
     }
     
     try {
       if (log.isDebugEnabled()) {
         log.debug("Data to be validated: "+data);
       }
-      in.setCharacterStream(new StringReader((String)data));
-      parser.parse(in);
+      if (precompiledSchema) {
+        getValidator().validate(toSource(data));
+      }
+      else {
+        if (data instanceof String) {
+          in.setByteStream(null);
+          in.setCharacterStream(new StringReader((String)data));
+        }
+        else {
+          in.setCharacterStream(null);
+          in.setByteStream(new ByteArrayInputStream((byte[])data));
+        }
+        parser.parse(in);
+      }
     }
     catch (SAXException se) {
     	if (enableXMLValidationException()==true && se.getException()!=null && se.getException() instanceof SAXParseException) {
@@ -195,6 +249,16 @@ public class XmlValidator extends Component implements IDataProcessor {
       }
     }
 
+    if (precompiledSchema) {
+      try {
+        schema = getSchema(schemaURL);
+        validators = new ThreadLocal();
+      } catch (Exception e) {
+        exceptions.add(e);
+      }
+      return;
+    }
+
     // set up the parser to use validation and set the schema location
     try {
       parser.setFeature("http://xml.org/sax/features/validation", true);
@@ -212,6 +276,50 @@ public class XmlValidator extends Component implements IDataProcessor {
     log.debug("parser initialised");
   }
 
+  /**
+   * Returns the calling thread's validator, creating it from the compiled schema
+   * on first use.
+   */
+  private Validator getValidator() {
+    Validator validator = (Validator) validators.get();
+    if (validator == null) {
+      if (schema == null) {
+        throw new ProcessingException("schema has not been loaded", this);
+      }
+      validator = schema.newValidator();
+      validator.setErrorHandler(new OAXMLParserErrorHandler());
+      validators.set(validator);
+    }
+    return validator;
+  }
+
+  private static Source toSource(Object data) {
+    if (data instanceof String) {
+      return new StreamSource(new StringReader((String) data));
+    }
+    return new StreamSource(new ByteArrayInputStream((byte[]) data));
+  }
+
+  /**
+   * Compiles the schema at the url. Each validator compiles its own, so that a
+   * schema changed at the same url is picked up when the adaptor is restarted.
+   */
+  private static Schema getSchema(String url) throws SAXException, MalformedURLException {
+    if (url == null) {
+      throw new IllegalArgumentException("schemaURL not set");
+    }
+    URL u;
+    try {
+      u = new URL(url);
+    } catch (MalformedURLException e) {
+      u = new File(url).toURI().toURL();
+    }
+    SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    Schema schema = factory.newSchema(u);
+    log.info("compiled schema [" + url + "]");
+    return schema;
+  }
+
   /**
    * Hook to allow the processor to be reset. Does nothing.
    */
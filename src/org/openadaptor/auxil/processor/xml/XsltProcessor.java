@@ -27,39 +27,54 @@
 
 package org.openadaptor.auxil.processor.xml;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URL;
 import java.util.List;
 
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
 import org.dom4j.io.DocumentSource;
 import org.openadaptor.core.Component;
 import org.openadaptor.core.IDataProcessor;
 import org.openadaptor.core.exception.ProcessingException;
 import org.openadaptor.core.exception.ValidationException;
 import org.openadaptor.util.FileUtils;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * Applies the XSLT defined in the properties to the record and returns the result as an String.
  * <p />
  * 
- * Can support transforms on either XML String or dom4j document records.
+ * Can support transforms on XML String, byte[] or dom4j document records. String and byte[] records are streamed
+ * straight into the transformer without first being parsed into a dom4j document.
  * <p />
  * 
- * Uses the dom4j library to apply the transform
+ * The XSLT is compiled once into a {@link Templates} object and each thread uses its own {@link Transformer}, so a
+ * single instance may safely be shared by concurrent pipelines.
+ * <p />
+ * 
+ * If outputBytes is set the result is returned as a byte[] (encoded as specified by the stylesheet's xsl:output)
+ * rather than a String. The output buffer is reused between calls on the same thread.
  * 
  * @author Russ Fennell
  */
@@ -69,7 +84,25 @@ public class XsltProcessor extends Component implements IDataProcessor {
 
   private String xsltFile;
 
-  private Transformer transform;
+  private boolean outputBytes = false;
+
+  private Templates templates;
+
+  private ErrorListener errorListener;
+
+  private ThreadLocal transformers = new ThreadLocal();
+
+  private final ThreadLocal outputBuffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ByteArrayOutputStream(8192);
+    }
+  };
+
+  private final ThreadLocal parsers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ParseTracker();
+    }
+  };
 
   /**
    * Sets the location of the file containing the XSLT
@@ -81,6 +114,24 @@ public class XsltProcessor extends Component implements IDataProcessor {
     this.xsltFile = xsltFile;
   }
 
+  /**
+   * If true then transformed records are returned as byte[] rather than String. Defaults to false.
+   */
+  public void setOutputBytes(boolean outputBytes) {
+    this.outputBytes = outputBytes;
+  }
+
+  public boolean isOutputBytes() {
+    return outputBytes;
+  }
+
+  /**
+   * Returns the compiled XSLT, or null if it has not been loaded yet.
+   */
+  public Templates getTemplates() {
+    return templates;
+  }
+
   /**
    * Hook to perform any validation of the component properties required by the implementation. Defult behaviour should
    * be a no-op.
@@ -116,22 +167,23 @@ public class XsltProcessor extends Component implements IDataProcessor {
     // load the transform
     try {
       TransformerFactory factory = TransformerFactory.newInstance();
-      ErrorListener errorListener = new ErrorListener() {
-		
-		public void warning(TransformerException exception) throws TransformerException {
-			log.warn(exception.getMessage(), exception);
-		}
-		
-		public void fatalError(TransformerException exception) throws TransformerException {
-			throw exception;
-		}
-		
-		public void error(TransformerException exception) throws TransformerException {
-			throw exception;
-		}
-	};
-	factory.setErrorListener(errorListener);
-      transform = factory.newTransformer(new StreamSource(url.getPath()));
+      errorListener = new ErrorListener() {
+        public void warning(TransformerException exception) throws TransformerException {
+          log.warn(exception.getMessage(), exception);
+        }
+
+        public void fatalError(TransformerException exception) throws TransformerException {
+          throw exception;
+        }
+
+        public void error(TransformerException exception) throws TransformerException {
+          throw exception;
+        }
+      };
+      factory.setErrorListener(errorListener);
+      templates = factory.newTemplates(new StreamSource(url.getPath()));
+      // transformers compiled from any previous templates are discarded
+      transformers = new ThreadLocal();
 
       log.info("Loaded XSLT [" + xsltFile + "] successfully");
     } catch (TransformerConfigurationException e) {
@@ -140,12 +192,13 @@ public class XsltProcessor extends Component implements IDataProcessor {
   }
 
   /**
-   * Apply the transform to the record. The record can be either a XML string or a dom4j document object
+   * Apply the transform to the record. The record can be either a XML string, a byte[] containing XML or a dom4j
+   * document object
    * 
    * @param record
    *          the message record
    * 
-   * @return a String[] with one String resulting from the transform
+   * @return an array with the single String (or byte[] if outputBytes is set) resulting from the transform
    * 
    * @throws ProcessingException
    *           if the record type is not supported
@@ -155,43 +208,105 @@ public class XsltProcessor extends Component implements IDataProcessor {
       return null;
 
     if (record instanceof String)
-      return transform((String) record);
+      return transform(new InputSource(new StringReader((String) record)));
+
+    if (record instanceof byte[])
+      return transform(new InputSource(new ByteArrayInputStream((byte[]) record)));
 
     if (record instanceof Document)
-      return transform((Document) record);
+      return transform(new DocumentSource((Document) record), null);
 
     // if we get this far then we cannot process the record
     throw new ProcessingException("Invalid record (type: " + record.getClass().toString() + "). Cannot apply transform", this);
   }
 
   /**
-   * Applies the transform to the XML String
+   * Applies the transform to the source using this thread's transformer
    * 
-   * @param s
-   *          the XML text
+   * @param source
+   *          the XML to transform
    * 
-   * @return an array containing a single XML string representing the transformed XML string supplied
+   * @return an array containing a single String or byte[] representing the transformed XML
    */
-  private Object[] transform(String s) {
-    return transform(createDOMFromString(s));
+  private Object[] transform(InputSource input) {
+    ParseTracker parser = (ParseTracker) parsers.get();
+    parser.failure = null;
+    return transform(new SAXSource(parser, input), parser);
   }
 
   /**
-   * Applies the transform to the Dom4J document
+   * Applies the transform to the source using this thread's transformer
    * 
-   * @param d
-   *          the document to transform
+   * @param source
+   *          the XML to transform
+   * @param parser
+   *          the parser reading the source, if it is streamed, so that parse errors can be told apart from
+   *          transform errors
    * 
-   * @return an array containing a single XML string representing the transformed document
+   * @return an array containing a single String or byte[] representing the transformed XML
    */
-  private Object[] transform(Document d) {
+  private Object[] transform(Source source, ParseTracker parser) {
+    if (templates == null)
+      throw new ProcessingException("XSLT has not been loaded", this);
     try {
-      return new String[] { transform(transform, d) };
+      Transformer transformer = getTransformer();
+      if (outputBytes) {
+        ByteArrayOutputStream out = (ByteArrayOutputStream) outputBuffers.get();
+        out.reset();
+        transformer.transform(source, new StreamResult(out));
+        return new Object[] { out.toByteArray() };
+      }
+      StringWriter sw = new StringWriter();
+      transformer.transform(source, new StreamResult(sw));
+      return new String[] { sw.toString() };
     } catch (TransformerException e) {
+      if (parser != null && parser.failure != null)
+        throw new ProcessingException("Failed to parse XML: " + parser.failure.getMessage(), this);
       throw new ProcessingException("Transform failed: " + e.getMessage(), this);
     }
   }
 
+  /**
+   * Namespace aware SAX parser which remembers why parsing failed. Streamed records are parsed by the transformer,
+   * which only reports the failure as a TransformerException.
+   */
+  private static class ParseTracker extends XMLFilterImpl {
+
+    private SAXException failure;
+
+    ParseTracker() {
+      try {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        setParent(factory.newSAXParser().getXMLReader());
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to create XML parser: " + e.getMessage(), e);
+      }
+    }
+
+    public void parse(InputSource input) throws SAXException, IOException {
+      try {
+        super.parse(input);
+      } catch (SAXException e) {
+        failure = e;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Returns the transformer for the calling thread, creating it from the compiled templates on first use.
+   */
+  private Transformer getTransformer() throws TransformerConfigurationException {
+    Transformer transformer = (Transformer) transformers.get();
+    if (transformer == null) {
+      transformer = templates.newTransformer();
+      transformer.setErrorListener(errorListener);
+      transformers.set(transformer);
+    }
+    return transformer;
+  }
+
   public static String transform(Transformer transformer, Document d) throws TransformerException {
     DocumentSource source = new DocumentSource(d);
     StringWriter sw = new StringWriter();
@@ -199,23 +314,4 @@ public class XsltProcessor extends Component implements IDataProcessor {
     transformer.transform(source, result);
     return sw.toString();
   }
-  
-  /**
-   * Use the XML supplied to create a DOM document
-   * 
-   * @param xml
-   *          valid XML
-   * 
-   * @return dom4j document object
-   * 
-   * @throws ProcessingException
-   *           if the supplied XML cannot be parsed
-   */
-  private Document createDOMFromString(String xml) {
-    try {
-      return DocumentHelper.parseText(xml);
-    } catch (DocumentException e) {
-      throw new ProcessingException("Failed to parse XML: " + e.getMessage(), this);
-    }
-  }
 }
@@ -0,0 +1,177 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Message metadata which can be shared between several messages (typically the
+ * branches of a fan-out) without copying. Each view created by {@link #share(Map)}
+ * reads the same underlying map until it is modified, at which point that view
+ * takes a private shallow copy, leaving the other views unaffected.
+ * <p />
+ * keySet(), values() and entrySet() of a view which does not own its map are
+ * read-only.
+ *
+ * @see Message
+ */
+public class CopyOnWriteMetadata extends AbstractMap implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private Map map;
+
+  /** true if no other view can see map, so it may be modified in place */
+  private boolean owner;
+
+  /**
+   * Constructor for empty metadata.
+   */
+  public CopyOnWriteMetadata() {
+    this.map = new HashMap();
+    this.owner = true;
+  }
+
+  private CopyOnWriteMetadata(Map map) {
+    this.map = map;
+    this.owner = false;
+  }
+
+  /**
+   * Returns a view of the metadata which will not modify, or see modifications
+   * made to, the given map (or any other view of it).
+   *
+   * @param metadata the metadata to share, may be null
+   * @return a new view of metadata, or null if metadata is null
+   */
+  public static CopyOnWriteMetadata share(Map metadata) {
+    if (metadata == null) {
+      return null;
+    }
+    if (metadata instanceof CopyOnWriteMetadata) {
+      return ((CopyOnWriteMetadata) metadata).share();
+    }
+    return new CopyOnWriteMetadata(metadata);
+  }
+
+  /**
+   * Returns a new view of this metadata. Both views copy the underlying map on
+   * their next write.
+   */
+  public synchronized CopyOnWriteMetadata share() {
+    owner = false;
+    return new CopyOnWriteMetadata(map);
+  }
+
+  private void own() {
+    if (!owner) {
+      map = new HashMap(map);
+      owner = true;
+    }
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  public boolean containsValue(Object value) {
+    return map.containsValue(value);
+  }
+
+  public Object get(Object key) {
+    return map.get(key);
+  }
+
+  public synchronized Object put(Object key, Object value) {
+    own();
+    return map.put(key, value);
+  }
+
+  public synchronized Object remove(Object key) {
+    if (!map.containsKey(key)) {
+      return null;
+    }
+    own();
+    return map.remove(key);
+  }
+
+  public synchronized void putAll(Map m) {
+    own();
+    map.putAll(m);
+  }
+
+  public synchronized void clear() {
+    if (owner) {
+      map.clear();
+    } else {
+      map = new HashMap();
+      owner = true;
+    }
+  }
+
+  public synchronized Set keySet() {
+    return owner ? map.keySet() : Collections.unmodifiableSet(map.keySet());
+  }
+
+  public synchronized Collection values() {
+    return owner ? map.values() : Collections.unmodifiableCollection(map.values());
+  }
+
+  public synchronized Set entrySet() {
+    return owner ? map.entrySet() : Collections.unmodifiableMap(map).entrySet();
+  }
+
+  public boolean equals(Object o) {
+    if (o instanceof CopyOnWriteMetadata) {
+      o = ((CopyOnWriteMetadata) o).map;
+    }
+    return map.equals(o);
+  }
+
+  public int hashCode() {
+    return map.hashCode();
+  }
+
+  public String toString() {
+    return map.toString();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core;
+
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+
+/**
+ * An {@link IEnrichmentReadConnector} that can look up enrichment data for
+ * several records in one call to the underlying resource.
+ * 
+ * @see IEnrichmentReadConnector
+ * @see IEnrichmentProcessor
+ */
+public interface IBatchEnrichmentReadConnector extends IEnrichmentReadConnector {
+
+  /**
+   * Queries the underlying resource for several sets of parameters at once.
+   * 
+   * @param inputParameters parameters for each record being enriched, 
+   *        elements may be null
+   * @param timeout the maximum time in milli-seconds to wait for data is none is
+   *          available immediately
+   * @return enrichment data for each set of parameters, in the same order. An 
+   *         element is null or empty if nothing was found for the corresponding 
+   *         parameters.
+   * @see IEnrichmentReadConnector#next(IOrderedMap, long)
+   */
+  Object[][] next(IOrderedMap[] inputParameters, long timeout);
+
+}
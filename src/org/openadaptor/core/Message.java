@@ -27,7 +27,6 @@
 
 package org.openadaptor.core;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -36,7 +35,7 @@ import org.openadaptor.core.transaction.ITransaction;
 /**
  * Class that encapsulates the input data to be processed by an {@link IMessageProcessor}.
  * Also encapsulates the metadata related to the data. The metadata may optionally
- * store message history.
+ * store message history, as a {@link MessageHistory}.
  *
  * @see IMessageProcessor
  */
@@ -70,13 +69,14 @@ public class Message {
   private ITransaction transaction;
 	
   /**
-   * Constructor. 
+   * Constructor. If metadata is null the message is given empty 
+   * {@link CopyOnWriteMetadata}.
    */
   public Message(final Object[] data, final Object sender, final ITransaction transaction, final Map metadata) {
     this.data = data;
     this.sender = sender;
     this.transaction = transaction;
-    this.metadata = metadata!=null?metadata:new HashMap();
+    this.metadata = metadata!=null?metadata:new CopyOnWriteMetadata();
   }
 
   /**
@@ -0,0 +1,137 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of the ids of the message processors a message has passed
+ * through, stored in the metadata under {@link Message#MESSAGE_HISTORY_KEY}.
+ * <p />
+ * {@link #append(Object)} returns a new history rather than modifying this one.
+ * Histories created by appending share a single array for as long as each append
+ * is made to the latest history, so recording a hop normally costs one array
+ * store. Appending to an older history (e.g. the second branch of a fan-out)
+ * copies the entries it needs into a new array.
+ */
+public class MessageHistory extends AbstractList implements RandomAccess, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** entries shared by related histories, only the first size are part of this one */
+  private final Entries entries;
+
+  private final int size;
+
+  /**
+   * Constructor for empty history.
+   */
+  public MessageHistory() {
+    this(new Entries(new Object[INITIAL_CAPACITY], 0), 0);
+  }
+
+  private MessageHistory(Entries entries, int size) {
+    this.entries = entries;
+    this.size = size;
+  }
+
+  /**
+   * Returns the history held in the metadata as a MessageHistory. Any other
+   * List is copied.
+   *
+   * @param history the existing history, may be null
+   * @return the history, or an empty history if there was none
+   */
+  public static MessageHistory valueOf(Object history) {
+    if (history instanceof MessageHistory) {
+      return (MessageHistory) history;
+    }
+    if (history instanceof List) {
+      Object[] ids = ((List) history).toArray();
+      Object[] array = new Object[Math.max(INITIAL_CAPACITY, ids.length * 2)];
+      System.arraycopy(ids, 0, array, 0, ids.length);
+      return new MessageHistory(new Entries(array, ids.length), ids.length);
+    }
+    return new MessageHistory();
+  }
+
+  /**
+   * @param id id of the message processor
+   * @return a new history with id added at the end
+   */
+  public MessageHistory append(Object id) {
+    synchronized (entries) {
+      if (size == entries.used) {
+        if (size == entries.array.length) {
+          Object[] array = new Object[size * 2];
+          System.arraycopy(entries.array, 0, array, 0, size);
+          entries.array = array;
+        }
+        entries.array[size] = id;
+        entries.used++;
+        return new MessageHistory(entries, size + 1);
+      }
+      Object[] array = new Object[Math.max(INITIAL_CAPACITY, size * 2)];
+      System.arraycopy(entries.array, 0, array, 0, size);
+      array[size] = id;
+      return new MessageHistory(new Entries(array, size + 1), size + 1);
+    }
+  }
+
+  public Object get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    synchronized (entries) {
+      return entries.array[index];
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static final class Entries implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Object[] array;
+
+    /** number of slots in array which have been filled */
+    private int used;
+
+    private Entries(Object[] array, int used) {
+      this.array = array;
+      this.used = used;
+    }
+  }
+}
@@ -403,12 +403,12 @@ public class Adaptor extends Application implements IMessageProcessor, ILifecycl
     }
 
     for (Iterator iter = components.iterator(); iter.hasNext();) {
-      IMessageProcessor processor = (IMessageProcessor) iter.next();
-      if (processor instanceof ILifecycleComponent) {
+      Object component = iter.next();
+      if (component instanceof ILifecycleComponent) {
         try {
-          ((ILifecycleComponent) processor).validate(exceptions);
+          ((ILifecycleComponent) component).validate(exceptions);
         } catch (Exception e) {
-          log.error("validation exception for " + processor.toString() + " : ", e);
+          log.error("validation exception for " + component.toString() + " : ", e);
           exceptions.add(e);
         }
       }
@@ -27,19 +27,34 @@
 
 package org.openadaptor.core.connector;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openadaptor.auxil.metrics.LatencyHistogram;
+import org.openadaptor.auxil.metrics.StripedCounter;
 import org.openadaptor.core.Component;
 import org.openadaptor.core.IReadConnector;
 import org.openadaptor.core.transaction.ITransactional;
 import org.openadaptor.core.transaction.ITransactionalResource;
+import org.openadaptor.util.SegmentedJournal;
 
 /**
  * The abstraction of the queuing read connector class.
+ * <p>
+ * By default data is held in a synchronized list and each call to
+ * {@link #enqueue(Object)} blocks until the data has been processed. For higher
+ * throughput a bounded ring buffer can be used instead (see
+ * {@link #setRingBufferSize(int)}), and producers can be released as soon as their
+ * data is queued (see {@link #setAsyncAcknowledge(boolean)} and
+ * {@link #enqueue(Object, IQueueCompletionCallback)}). When the queue limit is
+ * reached, data can be spilled to disk rather than blocking or discarding it (see
+ * {@link #setSpillDirectory(String)}).
  * 
  * @author Dealbus Dev
  * 
@@ -65,9 +80,23 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 	protected boolean isTransacted = true;
 
 	/**
-	 * internal queue where the data is held
+	 * internal queue where the data is held, unless a ring buffer is used
 	 */
-	protected List queue = new ArrayList();
+	protected List queue = new LinkedList();
+
+	/**
+	 * optional lock-free queue used instead of {@link #queue}
+	 * 
+	 * @see #setRingBufferSize(int)
+	 */
+	private RingBufferQueue ringBuffer = null;
+
+	/**
+	 * controls whether calls to enqueue return as soon as the data is queued
+	 * 
+	 * @see #setAsyncAcknowledge(boolean)
+	 */
+	protected boolean asyncAcknowledge = false;
 
 	/**
 	 * maximum size of the queue
@@ -81,6 +110,36 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 	 */
 	protected boolean blockOnQueue = true;
 
+	/**
+	 * directory that data beyond the queue limit is spilled to, if set
+	 * 
+	 * @see #setSpillDirectory(String)
+	 */
+	protected String spillDirectory = null;
+
+	/**
+	 * size in bytes of each spill file
+	 */
+	protected int spillSegmentSize = 4 * 1024 * 1024;
+
+	/**
+	 * spilled data, opened when first needed
+	 */
+	private SegmentedJournal spill = null;
+
+	private final SpillCodec spillCodec = new SpillCodec();
+
+	/**
+	 * items whose data is in the spill, oldest first, guarded by {@link #queue}
+	 */
+	private final LinkedList spilledItems = new LinkedList();
+
+	private final StripedCounter spilledCount = new StripedCounter();
+
+	private final StripedCounter spilledBytes = new StripedCounter();
+
+	private final LatencyHistogram spillLatencies = new LatencyHistogram();
+
 	/**
 	 * implementation of {@link ITransactionalResource}, which if the component
 	 * is transacted will be returned when {@link #getResource()} is called
@@ -128,7 +187,85 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 		this.blockOnQueue = block;
 	}
 
+	/**
+	 * If set (and there is a queueLimit) then data that arrives when the queue is
+	 * full is appended to files in this directory instead of blocking or being
+	 * discarded, and is moved back into the queue, in order, as the queue drains.
+	 * Only the data is spilled; whoever enqueued it is still notified in the same
+	 * way. String, byte[] and IOrderedMap data (read back as OrderedHashMaps) have a
+	 * compact encoding, anything else must be Serializable. The files are only
+	 * for overflow, data left in them when the connector is next used is
+	 * discarded. Not used with a ring buffer. Defaults to null, no spilling.
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Size in bytes of each spill file, defaults to 4MB.
+	 */
+	public void setSpillSegmentSize(int spillSegmentSize) {
+		this.spillSegmentSize = spillSegmentSize;
+	}
+
+	/**
+	 * @return number of items spilled to disk
+	 */
+	public long getSpilledCount() {
+		return spilledCount.sum();
+	}
+
+	/**
+	 * @return number of encoded bytes spilled to disk
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes.sum();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return time to spill an item in microseconds at the given percentile, or -1
+	 * if nothing has been spilled.
+	 */
+	public long getSpillLatencyMicros(double percentile) {
+		return spillLatencies.getPercentile(percentile);
+	}
+
+	/**
+	 * @return number of items currently spilled to disk
+	 */
+	public int getSpilledQueueSize() {
+		synchronized (queue) {
+			return spilledItems.size();
+		}
+	}
+
+	/**
+	 * If greater than zero, data is queued in a bounded, lock-free ring buffer of (at
+	 * least) this size rather than in a synchronized list, and calls to next() drain up
+	 * to batchSize items at a time without locking. The ring buffer size replaces the
+	 * queueLimit; blockOnQueue still controls what happens when it is full. Defaults to
+	 * zero, which means the synchronized list is used.
+	 */
+	public void setRingBufferSize(int size) {
+		this.ringBuffer = size > 0 ? new RingBufferQueue(size) : null;
+	}
+
+	/**
+	 * If true then calls to {@link #enqueue(Object)} return as soon as the data is
+	 * queued, rather than blocking until it has been processed, so that producers can
+	 * have many records in flight. Failures are then only logged; producers that need
+	 * to know the outcome should use
+	 * {@link #enqueue(Object, IQueueCompletionCallback)}. Defaults to false.
+	 */
+	public void setAsyncAcknowledge(boolean asyncAcknowledge) {
+		this.asyncAcknowledge = asyncAcknowledge;
+	}
+
 	protected boolean queueIsEmpty() {
+		if (ringBuffer != null) {
+			return ringBuffer.isEmpty();
+		}
 		synchronized (queue) {
 			return queue.isEmpty();
 		}
@@ -150,17 +287,46 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 	}
 
 	protected int getQueueSize() {
+		if (ringBuffer != null) {
+			return ringBuffer.size();
+		}
 		return this.queue.size();
 	}
 
 	/**
-	 * adds some data to the queue, blocks until the data is dequeued
+	 * adds some data to the queue, blocks until the data is dequeued (and the
+	 * transaction it was dequeued in has completed) unless asyncAcknowledge is
+	 * set
 	 */
 	protected void enqueue(Object data) {
+		QueueItem item = new QueueItem(data, null);
+		add(item);
+		if (!asyncAcknowledge) {
+			item.waitForDequeueNotification();
+		}
+	}
+
+	/**
+	 * adds some data to the queue and returns without waiting for it to be
+	 * processed. The callback is notified once the transaction the data is
+	 * processed in commits or rolls back.
+	 */
+	protected void enqueue(Object data, IQueueCompletionCallback callback) {
+		add(new QueueItem(data, callback));
+	}
 
-		QueueItem item = new QueueItem(data);
+	private void add(QueueItem item) {
+		if (ringBuffer != null) {
+			addToRingBuffer(item);
+			return;
+		}
 
 		synchronized (queue) {
+			if (spillDirectory != null && queueLimit > 0
+					&& (queue.size() >= queueLimit || !spilledItems.isEmpty())) {
+				spill(item);
+				return;
+			}
 			while (queueLimit > 0 && queue.size() >= queueLimit) {
 				if (blockOnQueue) {
 					try {
@@ -181,8 +347,173 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 			}
 			queue.notify();
 		}
+	}
+
+	/**
+	 * appends the data of the item to the spill, caller must hold the lock on
+	 * {@link #queue}
+	 */
+	private void spill(QueueItem item) {
+		long start = System.nanoTime();
+		try {
+			byte[] bytes = spillCodec.encode(item.data);
+			openSpill().append(bytes);
+			spilledBytes.add(bytes.length);
+		} catch (IOException e) {
+			throw new RuntimeException("queue size has exceeded limit and data could not be spilled, "
+					+ e.getMessage(), e);
+		}
+		item.data = null;
+		spilledItems.add(item);
+		spilledCount.increment();
+		spillLatencies.record((System.nanoTime() - start) / 1000);
+		if (log.isDebugEnabled()) {
+			log.debug(getId() + " spilled data");
+		}
+	}
+
+	private SegmentedJournal openSpill() throws IOException {
+		if (spill == null) {
+			SegmentedJournal journal = new SegmentedJournal(new File(spillDirectory),
+					(getId() != null ? getId() : "queue") + "-spill", spillSegmentSize);
+			journal.open();
+			long stale = journal.getPendingCount();
+			if (stale > 0) {
+				log.warn(getId() + " discarding " + stale + " item(s) spilled by a previous run");
+				try {
+					for (SegmentedJournal.Entry entry = journal.next(0); entry != null; entry = journal.next(0)) {
+						journal.acknowledge(entry);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			spill = journal;
+		}
+		return spill;
+	}
+
+	/**
+	 * moves spilled items back into the queue while there is room, caller must
+	 * hold the lock on {@link #queue}
+	 */
+	private void unspill() {
+		while (!spilledItems.isEmpty() && queue.size() < queueLimit) {
+			QueueItem item = (QueueItem) spilledItems.removeFirst();
+			SegmentedJournal.Entry entry = null;
+			try {
+				entry = spill.next(0);
+				item.data = spillCodec.decode(entry.getData());
+				queue.add(item);
+			} catch (Exception e) {
+				log.error(getId() + " unable to read spilled data", e);
+				item.fail(e);
+			} finally {
+				// acknowledged even if it can't be decoded, so its spill file is deleted
+				if (entry != null) {
+					spill.acknowledge(entry);
+				}
+			}
+		}
+	}
 
-		item.waitForDequeueNotification();
+	/**
+	 * Closes the spill, failing any items that are still in it. Subclasses that
+	 * override this must call <code>super.disconnect()</code>.
+	 */
+	public void disconnect() {
+		closeSpill();
+	}
+
+	/**
+	 * closes the spill, failing any items that are still in it
+	 */
+	protected void closeSpill() {
+		List lost;
+		synchronized (queue) {
+			if (spill == null) {
+				return;
+			}
+			lost = new ArrayList(spilledItems);
+			spilledItems.clear();
+			spill.close();
+			spill = null;
+		}
+		if (!lost.isEmpty()) {
+			log.warn(getId() + " " + lost.size() + " spilled item(s) were not processed");
+			RuntimeException e = new RuntimeException("connector closed before spilled data was processed");
+			for (Iterator iter = lost.iterator(); iter.hasNext();) {
+				((QueueItem) iter.next()).fail(e);
+			}
+		}
+	}
+
+	private void addToRingBuffer(QueueItem item) {
+		if (blockOnQueue) {
+			try {
+				ringBuffer.put(item);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(
+						"thread interupted whilst waiting queue data");
+			}
+		} else if (!ringBuffer.offer(item)) {
+			throw new RuntimeException(
+					"queue size has exceeded limit, discarding data");
+		}
+		if (log.isDebugEnabled()) {
+			log.debug(getId() + " queued data");
+		}
+	}
+
+	/**
+	 * removes up to batchSize items from the queue, waiting up to timeoutMs
+	 * for data to arrive. The items are added to the transactional resource.
+	 * 
+	 * @return the dequeued data or null if there was none
+	 */
+	protected Object[] dequeue(long timeoutMs,
+			QueueTransactionalResource resource) {
+		if (ringBuffer != null) {
+			Object[] items = ringBuffer.drain(batchSize, timeoutMs);
+			if (items.length == 0) {
+				return null;
+			}
+			Object[] data = new Object[items.length];
+			for (int i = 0; i < items.length; i++) {
+				QueueItem item = (QueueItem) items[i];
+				resource.add(item);
+				data[i] = item.data;
+			}
+			return data;
+		}
+
+		synchronized (queue) {
+
+			if (queue.size() == 0) {
+				try {
+					queue.wait(timeoutMs);
+				} catch (InterruptedException e) {
+					log.error("Thread interruped", e);
+				}
+			}
+
+			Object[] data = new Object[Math.min(batchSize, queue.size())];
+			for (int i = 0; i < data.length; i++) {
+				QueueItem item = (QueueItem) queue.remove(0);
+				resource.add(item);
+				data[i] = item.data;
+			}
+			if (!spilledItems.isEmpty()) {
+				unspill();
+			}
+
+			if (data.length > 0) {
+				queue.notify();
+				return data;
+			} else {
+				return null;
+			}
+		}
 	}
 
 	/**
@@ -242,24 +573,38 @@ public abstract class AbstractQueuingReadConnector extends Component implements
 	class QueueItem {
 
 		Object data;
+		IQueueCompletionCallback callback;
 		boolean completed = false;
 		boolean failed = false;
 		Throwable throwable = null;
 
-		QueueItem(Object data) {
+		QueueItem(Object data, IQueueCompletionCallback callback) {
 			this.data = data;
+			this.callback = callback;
 		}
 
-		synchronized void complete() {
-			completed = true;
-			notifyAll();
+		void complete() {
+			synchronized (this) {
+				completed = true;
+				notifyAll();
+			}
+			if (callback != null) {
+				callback.completed(data);
+			}
 		}
 
-		synchronized void fail(Throwable t) {
-			throwable = t;
-			completed = true;
-			failed = true;
-			notifyAll();
+		void fail(Throwable t) {
+			synchronized (this) {
+				throwable = t;
+				completed = true;
+				failed = true;
+				notifyAll();
+			}
+			if (callback != null) {
+				callback.failed(data, t);
+			} else if (asyncAcknowledge) {
+				log.warn(getId() + " processing failed for asynchronously acknowledged data", t);
+			}
 		}
 
 		synchronized void waitForDequeueNotification() {
@@ -39,7 +39,9 @@ import org.openadaptor.core.transaction.ITransactionalResource;
  * Calls to {@link #enqueue} block until the data is dequeued. If data is
  * dequeued within a transaction (i.e. {@link ITransactionalResource#begin()}
  * has been called on this component's {@link ITransactionalResource}) then the
- * call to enqueue will block until the transaction completes.
+ * call to enqueue will block until the transaction completes. Producers can
+ * instead be released as soon as the data is queued, see
+ * {@link #setAsyncAcknowledge(boolean)}.
  * 
  * By default the queue size is unlimited, but a queue limit can be set, as can
  * the behaviour for if the queue size ever reaches that limit.
@@ -79,30 +81,7 @@ public abstract class QueuingReadConnector extends AbstractQueuingReadConnector
 	 * this dequeues the data
 	 */
 	public Object[] next(long timeoutMs) {
-		synchronized (queue) {
-
-			if (queue.size() == 0) {
-				try {
-					queue.wait(timeoutMs);
-				} catch (InterruptedException e) {
-					log.error("Thread interruped", e);
-				}
-			}
-
-			Object[] data = new Object[Math.min(batchSize, queue.size())];
-			for (int i = 0; i < data.length; i++) {
-				QueueItem item = (QueueItem) queue.remove(0);
-				resource.add(item);
-				data[i] = item.data;
-			}
-
-			if (data.length > 0) {
-				queue.notify();
-				return data;
-			} else {
-				return null;
-			}
-		}
+		return dequeue(timeoutMs, resource);
 	}
 
 	/*
@@ -0,0 +1,197 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.connector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, non-blocking queue backed by a ring buffer. Each slot carries a sequence
+ * number which producers and consumers claim with a compare-and-set, so neither
+ * side takes a lock. Capacity is rounded up to the next power of two.
+ * <br/>
+ * Consumers waiting for data park and are unparked by the next producer. Producers
+ * waiting for space back off with short parks.
+ * 
+ * @see AbstractQueuingReadConnector#setRingBufferSize(int)
+ */
+class RingBufferQueue {
+
+  private static final long PRODUCER_BACKOFF_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final Object[] items;
+
+  private final AtomicLongArray sequences;
+
+  private final int mask;
+
+  private final AtomicLong head = new AtomicLong();
+
+  private final AtomicLong tail = new AtomicLong();
+
+  private volatile Thread waitingConsumer;
+
+  RingBufferQueue(int requestedCapacity) {
+    if (requestedCapacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    int capacity = 1;
+    while (capacity < requestedCapacity) {
+      capacity <<= 1;
+    }
+    items = new Object[capacity];
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    mask = capacity - 1;
+  }
+
+  int capacity() {
+    return items.length;
+  }
+
+  /**
+   * @return true if the item was queued, false if the buffer is full.
+   */
+  boolean offer(Object item) {
+    long pos = tail.get();
+    while (true) {
+      int index = (int) (pos & mask);
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          items[index] = item;
+          sequences.set(index, pos + 1);
+          Thread consumer = waitingConsumer;
+          if (consumer != null) {
+            LockSupport.unpark(consumer);
+          }
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Queues an item, waiting for space if the buffer is full.
+   */
+  void put(Object item) throws InterruptedException {
+    while (!offer(item)) {
+      LockSupport.parkNanos(PRODUCER_BACKOFF_NS);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  /**
+   * @return the oldest item, or null if the buffer is empty.
+   */
+  Object poll() {
+    long pos = head.get();
+    while (true) {
+      int index = (int) (pos & mask);
+      long diff = sequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          Object item = items[index];
+          items[index] = null;
+          sequences.set(index, pos + mask + 1);
+          return item;
+        }
+        pos = head.get();
+      } else if (diff < 0) {
+        return null;
+      } else {
+        pos = head.get();
+      }
+    }
+  }
+
+  /**
+   * Removes up to <code>max</code> items in queue order, waiting up to
+   * <code>timeoutMs</code> for the first one.
+   * 
+   * @return the items removed, possibly an empty array.
+   */
+  Object[] drain(int max, long timeoutMs) {
+    awaitNotEmpty(timeoutMs);
+    int n = Math.min(max, size());
+    Object[] drained = new Object[n];
+    int count = 0;
+    while (count < n) {
+      Object item = poll();
+      if (item == null) {
+        break;
+      }
+      drained[count++] = item;
+    }
+    if (count < n) {
+      Object[] shorter = new Object[count];
+      System.arraycopy(drained, 0, shorter, 0, count);
+      drained = shorter;
+    }
+    return drained;
+  }
+
+  private void awaitNotEmpty(long timeoutMs) {
+    if (!isEmpty() || timeoutMs <= 0) {
+      return;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    waitingConsumer = Thread.currentThread();
+    try {
+      long remaining;
+      while (isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) {
+          break;
+        }
+      }
+    } finally {
+      waitingConsumer = null;
+    }
+  }
+
+  int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, items.length));
+  }
+
+  boolean isEmpty() {
+    return tail.get() == head.get();
+  }
+}
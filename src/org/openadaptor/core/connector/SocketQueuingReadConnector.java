@@ -134,38 +134,20 @@ public abstract class SocketQueuingReadConnector extends
 	 * this dequeues the data
 	 */
 	public Object[] next(long timeoutMs) {
-		synchronized (queue) {
-
-			if (queue.size() == 0) {
-				try {
-					queue.wait(timeoutMs);
-				} catch (InterruptedException e) {
-					log.error("Thread interruped", e);
-				}
-			}
-
-			Object[] data = new Object[Math.min(batchSize, queue.size())];
-			for (int i = 0; i < data.length; i++) {
-				QueueItem item = (QueueItem) queue.remove(0);
-				resource.add(item);
-				data[i] = item.data;
-			}
-
-			if (data.length > 0) {
-				payloadReceived = true;
-				queue.notify();
-				return data;
-			} else {
-				// Do NOT set isDry to true as the socket writer may still be
-				// writing to the socket being read, but is just a bit slow
-				// Setting isDry to true here may cause the socket reader to
-				// close too early
-				// Need to find a way/place to test if the socket that you are
-				// reading is still 'live'
-				// setIsDry(true);
-				payloadReceived = false;
-				return null;
-			}
+		Object[] data = dequeue(timeoutMs, resource);
+		if (data != null) {
+			payloadReceived = true;
+			return data;
+		} else {
+			// Do NOT set isDry to true as the socket writer may still be
+			// writing to the socket being read, but is just a bit slow
+			// Setting isDry to true here may cause the socket reader to
+			// close too early
+			// Need to find a way/place to test if the socket that you are
+			// reading is still 'live'
+			// setIsDry(true);
+			payloadReceived = false;
+			return null;
 		}
 	}
 
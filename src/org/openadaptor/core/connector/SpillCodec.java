@@ -0,0 +1,195 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.auxil.orderedmap.OrderedHashMap;
+
+/**
+ * Binary encoding of queued data spilled to disk. Strings, byte[], IOrderedMaps
+ * (read back as {@link OrderedHashMap}s) and Object[] are written as a type byte
+ * followed by variable length sizes and contents. Anything else must be
+ * {@link Serializable} and is written with Java serialization.
+ * <br/>
+ * Not thread safe, callers synchronize.
+ * 
+ * @see AbstractQueuingReadConnector#setSpillDirectory(String)
+ */
+class SpillCodec {
+
+  private static final int NULL = 0;
+
+  private static final int STRING = 1;
+
+  private static final int BYTES = 2;
+
+  private static final int ORDERED_MAP = 3;
+
+  private static final int ARRAY = 4;
+
+  private static final int SERIALIZED = 5;
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+  private final DataOutputStream out = new DataOutputStream(buffer);
+
+  byte[] encode(Object data) throws IOException {
+    buffer.reset();
+    write(data);
+    out.flush();
+    return buffer.toByteArray();
+  }
+
+  Object decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      return read(in);
+    } catch (ClassNotFoundException e) {
+      IOException ioe = new IOException("unable to read spilled data, " + e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  private void write(Object data) throws IOException {
+    if (data == null) {
+      out.write(NULL);
+    } else if (data instanceof String) {
+      out.write(STRING);
+      writeBytes(((String) data).getBytes("UTF-8"));
+    } else if (data instanceof byte[]) {
+      out.write(BYTES);
+      writeBytes((byte[]) data);
+    } else if (data instanceof IOrderedMap) {
+      IOrderedMap map = (IOrderedMap) data;
+      out.write(ORDERED_MAP);
+      writeSize(map.size());
+      for (Iterator iter = map.keys().iterator(); iter.hasNext();) {
+        Object key = iter.next();
+        write(key);
+        write(map.get(key));
+      }
+    } else if (data instanceof Object[]) {
+      Object[] array = (Object[]) data;
+      out.write(ARRAY);
+      writeSize(array.length);
+      for (int i = 0; i < array.length; i++) {
+        write(array[i]);
+      }
+    } else if (data instanceof Serializable) {
+      out.write(SERIALIZED);
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(serialized);
+      oos.writeObject(data);
+      oos.close();
+      writeBytes(serialized.toByteArray());
+    } else {
+      throw new NotSerializableException(data.getClass().getName());
+    }
+  }
+
+  private Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+    int type = in.read();
+    switch (type) {
+    case NULL:
+      return null;
+    case STRING:
+      return new String(readBytes(in), "UTF-8");
+    case BYTES:
+      return readBytes(in);
+    case ORDERED_MAP:
+      int entries = readSize(in);
+      IOrderedMap map = new OrderedHashMap(entries);
+      for (int i = 0; i < entries; i++) {
+        Object key = read(in);
+        map.put(key, read(in));
+      }
+      return map;
+    case ARRAY:
+      Object[] array = new Object[readSize(in)];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = read(in);
+      }
+      return array;
+    case SERIALIZED:
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+      try {
+        return ois.readObject();
+      } finally {
+        ois.close();
+      }
+    default:
+      throw new IOException("unknown type " + type + " in spilled data");
+    }
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    writeSize(bytes.length);
+    out.write(bytes);
+  }
+
+  private byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readSize(in)];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Seven bits per byte, high bit set on all but the last.
+   */
+  private void writeSize(int size) throws IOException {
+    while ((size & ~0x7F) != 0) {
+      out.write((size & 0x7F) | 0x80);
+      size >>>= 7;
+    }
+    out.write(size);
+  }
+
+  private static int readSize(DataInputStream in) throws IOException {
+    int size = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      size |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return size;
+      }
+    }
+    throw new IOException("corrupt size in spilled data");
+  }
+}
@@ -0,0 +1,493 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openadaptor.core.Message;
+import org.openadaptor.core.Response;
+import org.openadaptor.core.Response.DiscardBatch;
+import org.openadaptor.core.Response.ExceptionBatch;
+import org.openadaptor.core.exception.MessageException;
+import org.openadaptor.core.lifecycle.State;
+import org.openadaptor.util.SegmentedJournal;
+
+/**
+ * Decouples the rest of an adaptor from a slow or unavailable {@link WriteNode}.
+ * Used in place of the WriteNode it wraps, it appends each record to a
+ * {@link SegmentedJournal} on disk and returns as soon as the records of the
+ * message are journaled (and, if <code>syncOnWrite</code> is set, forced to disk),
+ * so the upstream transaction commits without waiting for the write. A separate
+ * thread reads the journal and delivers the records to the WriteNode.
+ * 
+ * <br/><br/>Records that the WriteNode fails to write are retried every
+ * <code>retryDelayMs</code> until they succeed or, if <code>maxRetries</code>
+ * is not negative, until they have been retried that many times, after which
+ * they are logged and dropped. Records still in the journal when the node stops
+ * (or the JVM dies) are delivered when it is next started with the same
+ * <code>journalDirectory</code> and id, so delivery is at least once. Records
+ * are delivered in the order they were journaled, except that when part of a
+ * batch fails the rest of it is not held back while the failures are retried;
+ * a <code>drainBatchSize</code> of one keeps strict order.
+ * 
+ * <br/><br/>Records must be {@link java.io.Serializable}. Message metadata is not
+ * journaled, and records are delivered to the WriteNode outside of any transaction.
+ * Failures are matched to records by identity, so a WriteNode with a processor
+ * that replaces records should have a <code>drainBatchSize</code> of one.
+ * 
+ * <br/><br/>The WriteNode is not part of the adaptor's routing, its lifecycle is
+ * managed by this node.
+ * 
+ * @see WriteNode
+ * @see SegmentedJournal
+ */
+public class DurableBufferNode extends Node {
+
+  private static final Log log = LogFactory.getLog(DurableBufferNode.class);
+
+  private WriteNode writeNode;
+
+  private String journalDirectory;
+
+  private int segmentSize = 16 * 1024 * 1024;
+
+  private boolean syncOnWrite = true;
+
+  private int drainBatchSize = 100;
+
+  private long retryDelayMs = 1000;
+
+  private int maxRetries = -1;
+
+  private long stopTimeoutMs = 5000;
+
+  private SegmentedJournal journal;
+
+  private Thread drainer;
+
+  private volatile boolean draining = false;
+
+  private volatile long deliveredCount = 0;
+
+  private volatile long droppedCount = 0;
+
+  /** buffer for serialising records, for each thread */
+  private final ThreadLocal buffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ByteArrayOutputStream(1024);
+    }
+  };
+
+  /**
+   * Constructor.
+   */
+  public DurableBufferNode() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   */
+  public DurableBufferNode(String id) {
+    super(id);
+  }
+
+  /**
+   * Constructor.
+   */
+  public DurableBufferNode(String id, WriteNode writeNode) {
+    this(id);
+    this.writeNode = writeNode;
+  }
+
+  /**
+   * The WriteNode that journaled records are delivered to. Mandatory.
+   */
+  public void setWriteNode(WriteNode writeNode) {
+    this.writeNode = writeNode;
+  }
+
+  public WriteNode getWriteNode() {
+    return writeNode;
+  }
+
+  /**
+   * Directory holding the journal segment files, whose names start with the id of
+   * this node. Mandatory.
+   */
+  public void setJournalDirectory(String journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  public String getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * Size in bytes of each journal segment file, defaults to 16MB.
+   */
+  public void setSegmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * If true (the default) records are forced to disk before the message is
+   * acknowledged. Otherwise they can be lost if the machine (rather than the
+   * process) fails.
+   */
+  public void setSyncOnWrite(boolean syncOnWrite) {
+    this.syncOnWrite = syncOnWrite;
+  }
+
+  public boolean isSyncOnWrite() {
+    return syncOnWrite;
+  }
+
+  /**
+   * Maximum number of journaled records delivered to the WriteNode in one
+   * message, defaults to 100.
+   */
+  public void setDrainBatchSize(int drainBatchSize) {
+    this.drainBatchSize = drainBatchSize;
+  }
+
+  public int getDrainBatchSize() {
+    return drainBatchSize;
+  }
+
+  /**
+   * Time to wait before retrying records that failed, defaults to one second.
+   */
+  public void setRetryDelayMs(long retryDelayMs) {
+    this.retryDelayMs = retryDelayMs;
+  }
+
+  public long getRetryDelayMs() {
+    return retryDelayMs;
+  }
+
+  /**
+   * Number of times a failed record is retried before it is dropped. Negative
+   * (the default) means it is retried until it succeeds.
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * How long stopping waits for the journal to be emptied before leaving the
+   * remaining records for the next start, defaults to five seconds.
+   */
+  public void setStopTimeoutMs(long stopTimeoutMs) {
+    this.stopTimeoutMs = stopTimeoutMs;
+  }
+
+  public long getStopTimeoutMs() {
+    return stopTimeoutMs;
+  }
+
+  /**
+   * @return number of journaled records not yet delivered
+   */
+  public long getPendingCount() {
+    SegmentedJournal current = journal;
+    return current == null ? 0 : current.getPendingCount();
+  }
+
+  /**
+   * @return number of records delivered to the WriteNode
+   */
+  public long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * @return number of records dropped after failing <code>maxRetries</code> times
+   */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  public void validate(List exceptions) {
+    super.validate(exceptions);
+    if (writeNode == null) {
+      exceptions.add(new RuntimeException(toString() + " does not have a writeNode"));
+    } else {
+      writeNode.validate(exceptions);
+    }
+    if (journalDirectory == null) {
+      exceptions.add(new RuntimeException(toString() + " does not have a journalDirectory"));
+    }
+    if (segmentSize < 1024) {
+      exceptions.add(new RuntimeException(toString() + " segmentSize must be at least 1024"));
+    }
+    if (drainBatchSize < 1) {
+      exceptions.add(new RuntimeException(toString() + " drainBatchSize must be at least 1"));
+    }
+    if (retryDelayMs < 0) {
+      exceptions.add(new RuntimeException(toString() + " retryDelayMs may not be negative"));
+    }
+  }
+
+  /**
+   * Opens (and recovers) the journal, starts the WriteNode and then starts delivering
+   * journaled records to it.
+   */
+  public void start() {
+    SegmentedJournal opened = new SegmentedJournal(new File(journalDirectory), getId(), segmentSize);
+    try {
+      opened.open();
+    } catch (IOException e) {
+      throw new RuntimeException(toString() + " failed to open journal in " + journalDirectory + ", " + e.getMessage(), e);
+    }
+    journal = opened;
+    writeNode.start();
+    draining = true;
+    drainer = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, getId() + "-drainer");
+    drainer.start();
+    super.start();
+  }
+
+  /**
+   * Waits up to <code>stopTimeoutMs</code> for the journal to be emptied, then stops
+   * delivering, stops the WriteNode and closes the journal.
+   */
+  public void stop() {
+    setState(State.STOPPING);
+    if (journal != null) {
+      long deadline = System.currentTimeMillis() + stopTimeoutMs;
+      try {
+        while (journal.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      long pending = journal.getPendingCount();
+      if (pending > 0) {
+        log.warn(getId() + " stopping with " + pending + " record(s) still journaled");
+      }
+      draining = false;
+      if (drainer != null) {
+        drainer.interrupt();
+        try {
+          drainer.join(stopTimeoutMs + retryDelayMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        drainer = null;
+      }
+      writeNode.stop();
+      journal.close();
+      journal = null;
+    }
+    super.stop();
+  }
+
+  /**
+   * Journals the output of the processor (if any). Records that can't be journaled
+   * are returned as exceptions, as are the records of the message that can't be
+   * forced to disk and are removed from the journal again. Records the drainer has
+   * already picked up by then are left to be delivered rather than reported.
+   */
+  public Response process(Message msg) {
+    Response processorResponse = super.process(msg);
+    Response response = new Response();
+    List batches = processorResponse.getBatches();
+    for (Iterator iter = batches.iterator(); iter.hasNext();) {
+      List batch = (List) iter.next();
+      if (batch instanceof DiscardBatch) {
+        response.addDiscardedInputs(batch);
+      } else if (batch instanceof ExceptionBatch) {
+        response.addExceptions(batch);
+      }
+    }
+
+    SegmentedJournal current = journal;
+    Object[] inputs = processorResponse.getCollatedOutput();
+    List journaled = new ArrayList(inputs.length);
+    List records = new ArrayList(inputs.length);
+    long[] positions = new long[inputs.length];
+    long position = -1;
+    for (int i = 0; i < inputs.length; i++) {
+      try {
+        if (current == null) {
+          throw new IOException("journal is not open");
+        }
+        byte[] record = serialise(inputs[i]);
+        position = current.append(record);
+        positions[journaled.size()] = position;
+        journaled.add(inputs[i]);
+        records.add(record);
+      } catch (IOException e) {
+        log.info(getId() + " caught " + e.getClass().getName() + ":" + e.getMessage());
+        response.addException(new MessageException(inputs[i], msg.getMetadata(), e, getId(), fetchThreadName()));
+      }
+    }
+    if (syncOnWrite && position >= 0) {
+      try {
+        current.sync(position);
+      } catch (IOException e) {
+        log.error(getId() + " failed to sync journal, " + e.getMessage());
+        for (int i = 0; i < journaled.size(); i++) {
+          if (current.cancel(positions[i], (byte[]) records.get(i))) {
+            response.addException(new MessageException(journaled.get(i), msg.getMetadata(), e, getId(), fetchThreadName()));
+          } else {
+            log.warn(getId() + " record already being delivered, not reporting it as failed");
+          }
+        }
+      }
+    }
+    return response;
+  }
+
+  private byte[] serialise(Object record) throws IOException {
+    ByteArrayOutputStream buffer = (ByteArrayOutputStream) buffers.get();
+    buffer.reset();
+    ObjectOutputStream out = new ObjectOutputStream(buffer);
+    out.writeObject(record);
+    out.close();
+    return buffer.toByteArray();
+  }
+
+  private Object deserialise(byte[] data) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Body of the drainer thread, reads batches of records from the journal and
+   * delivers them until the node is stopped. Anything unexpected is logged and the
+   * batch retried after <code>retryDelayMs</code>, so the thread only ends when 
+   * the node stops.
+   */
+  private void drain() {
+    SegmentedJournal current = journal;
+    List entries = new ArrayList(drainBatchSize);
+    List records = new ArrayList(drainBatchSize);
+    try {
+      while (draining) {
+        try {
+          SegmentedJournal.Entry entry = entries.size() < drainBatchSize ? current.next(500) : null;
+          while (entry != null) {
+            try {
+              records.add(deserialise(entry.getData()));
+              entries.add(entry);
+            } catch (Exception e) {
+              log.error(getId() + " dropping journaled record that can't be read, " + e);
+              current.acknowledge(entry);
+              droppedCount++;
+            }
+            entry = entries.size() < drainBatchSize ? current.next(0) : null;
+          }
+          if (!entries.isEmpty()) {
+            deliver(current, entries, records);
+            entries.clear();
+            records.clear();
+          }
+        } catch (RuntimeException e) {
+          // records not acknowledged yet stay in the batch to be delivered again
+          log.error(getId() + " failed delivering journaled records, retrying in " + retryDelayMs + "ms, " + e.getMessage(), e);
+          Thread.sleep(retryDelayMs);
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopping
+    }
+  }
+
+  /**
+   * Delivers records to the WriteNode, acknowledging them in the journal as they
+   * succeed and retrying the ones that fail.
+   */
+  private void deliver(SegmentedJournal current, List entries, List records) throws InterruptedException {
+    for (int attempt = 0; !records.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        Thread.sleep(retryDelayMs);
+      }
+      Map failed = new IdentityHashMap();
+      try {
+        Response response = writeNode.process(new Message(records.toArray(), this, null, null));
+        Object[] exceptions = response.getCollatedExceptions();
+        for (int i = 0; i < exceptions.length; i++) {
+          MessageException me = (MessageException) exceptions[i];
+          failed.put(records.size() == 1 ? records.get(0) : me.getData(), me.getException());
+        }
+      } catch (RuntimeException e) {
+        for (Iterator iter = records.iterator(); iter.hasNext();) {
+          failed.put(iter.next(), e);
+        }
+      }
+      boolean retry = maxRetries < 0 || attempt < maxRetries;
+      for (int i = records.size() - 1; i >= 0; i--) {
+        Object record = records.get(i);
+        if (!failed.containsKey(record)) {
+          deliveredCount++;
+        } else if (retry) {
+          continue;
+        } else {
+          log.error(getId() + " dropping record after " + (attempt + 1) + " attempt(s): " + record + ", " + failed.get(record));
+          droppedCount++;
+        }
+        current.acknowledge((SegmentedJournal.Entry) entries.remove(i));
+        records.remove(i);
+      }
+      if (!records.isEmpty()) {
+        log.warn(getId() + " " + records.size() + " record(s) failed, retrying in " + retryDelayMs + "ms");
+      }
+    }
+  }
+}
@@ -27,11 +27,14 @@
 
 package org.openadaptor.core.node;
 
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.core.IBatchEnrichmentReadConnector;
 import org.openadaptor.core.IComponent;
 import org.openadaptor.core.IEnrichmentProcessor;
 import org.openadaptor.core.IEnrichmentReadConnector;
@@ -54,6 +57,10 @@ import org.openadaptor.core.lifecycle.ILifecycleComponent;
  * If the <code>enrichmentProcessor</code> and/or <code>readConnector</code> are 
  * {@link IMetadataAware} this class injects the metadata.
  * 
+ * If the <code>readConnector</code> is an {@link IBatchEnrichmentReadConnector} and 
+ * <code>lookupBatchSize</code> is greater than one, enrichment data for the records 
+ * of a message is looked up in batches before the records are processed.
+ * 
  * @author Kris Lachor
  * @since Post 3.3
  * @see Node
@@ -69,6 +76,11 @@ public final class EnrichmentProcessorNode extends Node implements IMessageProce
   
   private long readerTimeoutMs = ReadNode.DEFAULT_TIMEOUT_MS;
   
+  private int lookupBatchSize = 1;
+  
+  /** Enrichment data looked up in batches for the message being processed by the current thread */
+  private final ThreadLocal prefetchedLookups = new ThreadLocal();
+  
   /**
    * Constructor.
    *
@@ -142,6 +154,10 @@ public final class EnrichmentProcessorNode extends Node implements IMessageProce
    * @see Node#processSingleRecord(Object)
    */
   public Object [] processSingleRecord(Object record){
+    Map lookups = (Map) prefetchedLookups.get();
+    if(lookups != null && lookups.containsKey(record)){
+      return enrichmentProcessor.enrich(record, (Object[]) lookups.get(record));
+    }
     IOrderedMap parameters = null;
     if(! (record instanceof IOrderedMap)){
       log.warn("enrichment processor parameters not an IOrderedMap");
@@ -180,9 +196,61 @@ public final class EnrichmentProcessorNode extends Node implements IMessageProce
     if(readConnector instanceof IMetadataAware){
       ((IMetadataAware) readConnector).setMetadata(msg.getMetadata());
     }
+    if(lookupBatchSize > 1 && readConnector instanceof IBatchEnrichmentReadConnector && msg.getData().length > 1){
+      prefetchedLookups.set(prefetchLookups(msg.getData()));
+      try {
+        return super.process(msg);
+      } finally {
+        prefetchedLookups.set(null);
+      }
+    }
     return super.process(msg);
   }
   
+  /**
+   * Looks up enrichment data for the records in batches of <code>lookupBatchSize</code>.
+   * Records in a batch that fails are left out, they will be looked up individually
+   * by {@link #processSingleRecord(Object)}. 
+   * 
+   * @return enrichment data by record (identity)
+   */
+  private Map prefetchLookups(Object[] records) {
+    Map lookups = new IdentityHashMap();
+    IBatchEnrichmentReadConnector batchReader = (IBatchEnrichmentReadConnector) readConnector;
+    for(int start=0; start<records.length; start+=lookupBatchSize){
+      int end = Math.min(records.length, start + lookupBatchSize);
+      IOrderedMap [] parameters = new IOrderedMap[end - start];
+      for(int i=start; i<end; i++){
+        if(records[i] instanceof IOrderedMap){
+          parameters[i - start] = enrichmentProcessor.prepareParameters(records[i]);
+        }
+      }
+      try {
+        Object [][] enrichmentData = batchReader.next(parameters, readerTimeoutMs);
+        for(int i=start; i<end; i++){
+          if(records[i] instanceof IOrderedMap){
+            lookups.put(records[i], enrichmentData[i - start]);
+          }
+        }
+      } catch (RuntimeException e) {
+        log.warn("Batch lookup failed, records will be looked up individually: " + e.getMessage());
+      }
+    }
+    return lookups;
+  }
+  
+  /**
+   * Optional, defaults to 1 (no batching).
+   * Sets the maximum number of records of a message whose enrichment data is looked up
+   * in one call to the read connector. Only takes effect if the read connector is an
+   * {@link IBatchEnrichmentReadConnector}.
+   * 
+   * @param lookupBatchSize number of records per lookup
+   */
+  public void setLookupBatchSize(int lookupBatchSize) {
+    this.lookupBatchSize = lookupBatchSize;
+  }
+  
   /**
    * In addition to calling superclass {@link Node#validate(List)}, runs the 
    * validation of the enrichment processor.
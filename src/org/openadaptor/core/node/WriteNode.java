@@ -29,6 +29,7 @@ package org.openadaptor.core.node;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,6 +66,21 @@ import org.openadaptor.core.transaction.ITransactional;
  * {@link IWriteConnector}. This by-passes any exception / discard management
  * that can be configured in delegates such as {@link Router}.
  * 
+ * <br/><br/>If a message carries more than one record they are delivered to the
+ * connector together. Records are never held over from one message to the next,
+ * as the message is acknowledged upstream once this returns; to write bigger
+ * batches have the read connector deliver bigger messages (e.g. the
+ * <code>batchSize</code> of the JMS and JDBC read connectors).
+ * <br/>For a connector enlisted in the message's transaction, a failure is routed
+ * as a single {@link MessageException} holding all of the records and the 
+ * connector's work is rolled back (unless <code>unbatch</code> is set, when each
+ * record is delivered and reported on its own).
+ * <br/>For a connector that is not, the records are delivered in chunks of at most
+ * <code>batchSize</code> records when that is greater than one, and a chunk whose
+ * delivery fails is bisected and redelivered until the failing records are 
+ * isolated, so that each one is routed as its own {@link MessageException} while
+ * the rest are written.
+ * 
  * @see Adaptor
  * @see IWriteConnector
  * 
@@ -78,6 +94,8 @@ public class WriteNode extends Node {
 	private boolean unbatch = false;
     
     private boolean suppressDisconnectionErrors = true;
+
+    private int batchSize = 0;
 	
     /** Metrics associated with this node. */
     private IComponentMetrics metrics = ComponentMetricsFactory.newStandardMetrics(this);
@@ -109,6 +127,19 @@ public class WriteNode extends Node {
 	public void setUnbatch(boolean unbatch) {
 		this.unbatch = unbatch;
 	}
+
+  /**
+   * Maximum number of records of a message delivered to a non-transactional 
+   * connector in a single call. Values less than two (the default) deliver all of
+   * a message's records in one call.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
 	
 	public void validate(List exceptions) {
 		super.validate(exceptions);
@@ -183,6 +214,7 @@ public class WriteNode extends Node {
     // the output from the processor forms the input to the connector
     // so call the connector and update the response with the results
     Object[] inputs = processorResponse.getCollatedOutput();
+    int failures = 0;
     if (unbatch || inputs.length == 1) {
     	for (int i = 0; i < inputs.length; i++) {
           try {
@@ -193,36 +225,32 @@ public class WriteNode extends Node {
           }catch(Exception ex) {
             log.info(getId() + " caught " + ex.getClass().getName() + ":" + ex.getMessage());
             response.addException(new MessageException(inputs[i], msg.getMetadata(), ex, getId(), fetchThreadName()));
-            msg.getTransaction().delistForRollback(resource);
+            failures++;
           }
     	}
     } 
-    else {
-      //This was not catching Exceptions (as of 3.4.1).
-      //This will just catch an exception and throw out the whole input array.
-      //Fix is insufficient - need to revisit batch writes, hence disabled.
-//      try {
-//        Object output= connector.deliver(inputs);
-//        if (output != null) {
-//          response.addOutput(output);
-//        }
-//      }
-//      catch (Exception e) {
-//        log.info(getId() + " caught "+ e.getClass().getName() + " [in batch]:" +e.getMessage());
-//        response.addException(new MessageException(inputs,e,getId(),fetchThreadName()));
-//      }
-      Object output = null;
+    else if (resource != null) {
+      // the connector's work is rolled back as a whole, so fail the whole message
       try {
-        output = connector.deliver(inputs);
+        Object output = connector.deliver(inputs);
+        if (output != null) {
+          response.addOutput(output);
+        }
       } catch (Exception e) {
         log.info(getId() + " caught "+ e.getClass().getName() + " [in batch]:" +e.getMessage());
-        response.addException(new MessageException(inputs,null,e,getId(),fetchThreadName()));
-        msg.getTransaction().delistForRollback(resource);
+        response.addException(new MessageException(inputs, msg.getMetadata(), e, getId(), fetchThreadName()));
+        failures = inputs.length;
       }
-      if (output != null) {
-      	response.addOutput(output);      	
+    }
+    else if (inputs.length > 1) {
+      int chunk = batchSize > 1 ? batchSize : inputs.length;
+      for (int from = 0; from < inputs.length; from += chunk) {
+        int to = Math.min(from + chunk, inputs.length);
+        failures += deliverIsolatingFailures(inputs, msg.getMetadata(), from, to, response);
       }
-      
+    }
+    if ((failures > 0) && (resource != null) && (msg.getTransaction() != null)) {
+      msg.getTransaction().delistForRollback(resource);
     }
     if ((resource != null) && (msg.getTransaction() != null)) {
       msg.getTransaction().delistForCommit(resource);
@@ -231,7 +259,40 @@ public class WriteNode extends Node {
   	return response;
   }
 
-  
+  /**
+   * Delivers records[from..to) in one call. If that fails and there is more than 
+   * one record, each half is redelivered separately, recursively, until the failing
+   * records are isolated. Each of those is added to the response as its own 
+   * MessageException, everything else is delivered.
+   * <br/>A connector that has written part of a batch before failing is given 
+   * those records again when the batch is bisected, so they may be written twice;
+   * connectors that can't tolerate that should either write all or none of a 
+   * batch, or be used with <code>unbatch</code> set.
+   * 
+   * @return the number of records that could not be delivered
+   */
+  private int deliverIsolatingFailures(Object[] records, Map metadata, int from, int to, Response response) {
+    Object[] batch = new Object[to - from];
+    System.arraycopy(records, from, batch, 0, batch.length);
+    try {
+      Object output = connector.deliver(batch);
+      if (output != null) {
+        response.addOutput(output);
+      }
+      return 0;
+    } catch (Exception ex) {
+      if (batch.length == 1) {
+        log.info(getId() + " caught " + ex.getClass().getName() + ":" + ex.getMessage());
+        response.addException(new MessageException(records[from], metadata, ex, getId(), fetchThreadName()));
+        return 1;
+      }
+      log.debug(getId() + " batch of " + batch.length + " failed, bisecting: " + ex.getMessage());
+      int mid = (from + to) >>> 1;
+      return deliverIsolatingFailures(records, metadata, from, mid, response)
+        + deliverIsolatingFailures(records, metadata, mid, to, response);
+    }
+  }
+
   private void disconnectNoThrow() {
     try {
       connector.disconnect();
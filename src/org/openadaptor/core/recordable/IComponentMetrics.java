@@ -181,6 +181,19 @@ public interface IComponentMetrics extends ISimpleComponentMetrics, ILifecycleLi
    * @return time in milliseconds of last message processing.
    */
   long getProcessTimeLast();
+  
+  /**
+   * @param percentile a percentage between 0 and 100, e.g. 99.9 
+   * @return time in microseconds within which the given percentage of 
+   *         messages was processed, or -1 if none was processed yet.
+   */
+  long getProcessTimePercentileMicros(double percentile);
+  
+  /**
+   * @return the median, 99th and 99.9th percentile of message processing
+   *         times in human readable format.
+   */
+  String getProcessTimePercentiles();
     
   /**
    * @return maximum in milliseconds of 'idle' time, i.e. the time between
@@ -27,7 +27,6 @@
 
 package org.openadaptor.core.router;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -38,9 +37,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openadaptor.auxil.metrics.ComponentMetricsFactory;
 import org.openadaptor.core.Component;
+import org.openadaptor.core.CopyOnWriteMetadata;
 import org.openadaptor.core.IComponent;
 import org.openadaptor.core.IMessageProcessor;
 import org.openadaptor.core.Message;
+import org.openadaptor.core.MessageHistory;
 import org.openadaptor.core.Response;
 import org.openadaptor.core.Response.DataBatch;
 import org.openadaptor.core.Response.DiscardBatch;
@@ -53,7 +54,6 @@ import org.openadaptor.core.lifecycle.ILifecycleComponentManager;
 import org.openadaptor.core.recordable.IComponentMetrics;
 import org.openadaptor.core.recordable.IRecordableComponent;
 import org.openadaptor.core.transaction.ITransaction;
-import org.openadaptor.util.ObjectCloner;
 
 /**
  * Shared implementation of a {@link Router} and {@link Pipeline}.
@@ -88,13 +88,6 @@ public class AbstractRouter extends Component implements ILifecycleComponentCont
   /** See description at the setter method. */
   private boolean cloneMetadataOnFanout = false;
   
-  /** 
-   * Cloner for optional cloning of message metadata 
-   * 
-   * @see #setCloneMetadataOnFanout(boolean)
-   */
-  private ObjectCloner cloner=new ObjectCloner();
-  
   /**
    * Constructor.
    */
@@ -179,8 +172,9 @@ public class AbstractRouter extends Component implements ILifecycleComponentCont
   /**
    * Pass the message to a list of IMessageProcessors, in turn. If dealing with a fan-out
    * (splitting of processing pipeline into branches) it optionally, i.e. depending
-   * of the value of <code>cloneMetadataOnFanout</code> flag, clone the metadata to 
-   * prevent sharing it between components in different branches. 
+   * of the value of <code>cloneMetadataOnFanout</code> flag, gives each branch its own 
+   * copy-on-write view of the metadata to prevent sharing it between components in 
+   * different branches. 
    * 
    * @param msg
    * @param destinations
@@ -191,26 +185,18 @@ public class AbstractRouter extends Component implements ILifecycleComponentCont
       logRoutingDebug((IMessageProcessor)msg.getSender(), destinations);
     }
    
-    Map [] metadataClones = null;
     boolean fanout = destinations!=null && destinations.size()>1;
     
     /* 
-     * If fan-out and cloneMetadataOnFanout is ON create copies of meta data 
-     * for every branch. 
+     * If fan-out and cloneMetadataOnFanout is ON every branch gets its own view of 
+     * the metadata, which is only copied if the branch modifies it. 
      */
-    if(fanout && cloneMetadataOnFanout){
-      metadataClones = new Map[destinations.size()];
-      for(int i=0; i< destinations.size(); i++){
-        metadataClones[i] = (Map) cloner.clone(msg.getMetadata());
-      }
-    }
-    int destinationNo = 0;
+    Map metadata = msg.getMetadata();
     for (Iterator iter = destinations.iterator(); iter.hasNext();) {
       IMessageProcessor processor = (IMessageProcessor) iter.next();
       
-      /* Overwrite metadata with a clone if necessary*/
       if(fanout && cloneMetadataOnFanout){
-        msg.setMetadata(metadataClones[destinationNo++]);
+        msg.setMetadata(CopyOnWriteMetadata.share(metadata));
       }
       
       /* Record message history */
@@ -288,28 +274,13 @@ public class AbstractRouter extends Component implements ILifecycleComponentCont
 	if(!historyEnabled || msg==null || msg.getMetadata()==null){
       return;
 	}
-	Object history = msg.getMetadata().get(Message.MESSAGE_HISTORY_KEY);
-	List historyList = null;
-    if(history==null){
-	  historyList = new ArrayList();
-	  msg.getMetadata().put(Message.MESSAGE_HISTORY_KEY, historyList);
-    }
-    else{
-      historyList = (List) history;
-    }
-    
+    Map metadata = msg.getMetadata();
+    MessageHistory history = MessageHistory.valueOf(metadata.get(Message.MESSAGE_HISTORY_KEY));
+    String id = null;
     if(processor instanceof IComponent){
-      String id = ((IComponent) processor).getId();
-      if(id!=null){
-	    historyList.add(((IComponent) processor).getId());
-      }
-      else{
-        historyList.add(Message.UNNAMED_MESSAGE_PROCESSOR);
-      }
-    }
-    else{
-      historyList.add(Message.UNNAMED_MESSAGE_PROCESSOR);
+      id = ((IComponent) processor).getId();
     }
+    metadata.put(Message.MESSAGE_HISTORY_KEY, history.append(id!=null ? id : Message.UNNAMED_MESSAGE_PROCESSOR));
   }
 
   private void logRoutingDebug(IMessageProcessor sender, List destinations) {
@@ -365,7 +336,8 @@ public class AbstractRouter extends Component implements ILifecycleComponentCont
   }
 
   /**
-   * If set to true, metadata will be cloned on every entry to a new branch in the pipeline (fanout).
+   * If set to true, every new branch in the pipeline (fanout) gets its own copy of the metadata.
+   * Branches share a {@link CopyOnWriteMetadata} view until they modify it.
    * For efficiency reasons (many adaptors may use fan-outs but not use the metadata 
    * feature) the default value is false.
    */
@@ -0,0 +1,485 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openadaptor.core.IMetadataAware;
+import org.openadaptor.core.IMessageProcessor;
+import org.openadaptor.core.Message;
+import org.openadaptor.core.Response;
+import org.openadaptor.core.Response.DiscardBatch;
+import org.openadaptor.core.Response.ExceptionBatch;
+import org.openadaptor.core.lifecycle.ILifecycleComponentManager;
+import org.openadaptor.core.lifecycle.LifecycleComponent;
+import org.openadaptor.core.lifecycle.State;
+import org.openadaptor.core.node.Node;
+import org.openadaptor.core.node.WriteNode;
+
+/**
+ * A {@link Router} that runs the processing of each incoming message on a bounded pool of
+ * worker threads, rather than on the thread of the read node that produced it.
+ * <br/>
+ * The records of an incoming batch are split into one sub-message per worker and each
+ * sub-message is routed through the normal (synchronous) routing on its worker. The
+ * calling read node waits until every sub-message has been processed, so the
+ * transaction associated with the message is still committed or rolled back once
+ * for the whole batch. Read connectors should therefore be configured with a batch
+ * size larger than one for this router to have any effect; messages holding a single
+ * record are routed on the calling thread.
+ * <br/>
+ * If <code>orderingKey</code> is set, records which are Maps are assigned to workers by
+ * the hash of the value held under that key (other records by their own hash), so
+ * records with the same key always go to the same worker and are processed in the
+ * order in which they were read. Otherwise records are split into contiguous chunks.
+ * <br/>
+ * Processors downstream of the read nodes will be called concurrently and must be
+ * thread safe. {@link WriteNode}s are not called concurrently unless
+ * <code>serialiseWriteNodes</code> is switched off, as most write connectors hold a
+ * single connection. Nodes whose processor or connector is {@link IMetadataAware}
+ * are never called concurrently either, as the metadata is set on the shared
+ * processor or connector before each call.
+ * <br/>
+ * As with {@link Router}, failures are reported by exception routing. The responses
+ * of the sub-messages are collated into the response returned to the read node.
+ * <br/>
+ * The worker threads are registered with the adaptor as a lifecycle component and are
+ * started and stopped with it. When the workers are not running messages are routed
+ * on the calling thread.
+ * 
+ * @see Router
+ */
+public class ParallelRouter extends Router {
+
+  private static final Log log = LogFactory.getLog(ParallelRouter.class);
+
+  public static final int DEFAULT_QUEUE_LIMIT = 10000;
+
+  /** Number of worker threads, defaults to the number of available processors. */
+  private int workerCount = Runtime.getRuntime().availableProcessors();
+
+  /** Maximum number of sub-messages queued per worker before submitters wait. */
+  private int queueLimit = DEFAULT_QUEUE_LIMIT;
+
+  /** Optional record attribute used to assign records to workers. */
+  private String orderingKey;
+
+  private boolean serialiseWriteNodes = true;
+
+  private WorkerPool workerPool = new WorkerPool();
+
+  /**
+   * Constructor.
+   */
+  public ParallelRouter() {
+    super();
+  }
+
+  /**
+   * Constructor.
+   */
+  public ParallelRouter(String id) {
+    super(id);
+  }
+
+  /**
+   * Constructor.
+   */
+  public ParallelRouter(RoutingMap routingMap) {
+    super(routingMap);
+  }
+
+  /**
+   * Registers the worker pool as well as the routed components, so that the workers
+   * are started and stopped along with the adaptor.
+   */
+  public void setComponentManager(ILifecycleComponentManager manager) {
+    super.setComponentManager(manager);
+    manager.register(workerPool);
+  }
+
+  /**
+   * Splits the data of the message into one sub-message per worker and waits until all
+   * of them have been routed. Falls back to routing on the calling thread if the message
+   * holds a single record or the workers are not running.
+   * 
+   * @param msg Incoming Message
+   * @return Response collating the responses of the sub-messages, usually empty.
+   */
+  public Response process(Message msg) {
+    Object[] data = msg.getData();
+    int workers = workerPool.size();
+    if (data.length < 2 || workers < 2 || !workerPool.isState(State.STARTED)) {
+      return super.process(msg);
+    }
+
+    List[] partitions = partition(data, workers);
+    int count = 0;
+    for (int i = 0; i < partitions.length; i++) {
+      if (partitions[i] != null) {
+        count++;
+      }
+    }
+
+    Completion completion = new Completion(count);
+    for (int i = 0; i < partitions.length; i++) {
+      if (partitions[i] != null) {
+        /* each sub-message gets its own copy of the metadata, as branches may modify it */
+        Map metadata = msg.getMetadata() != null ? new HashMap(msg.getMetadata()) : null;
+        Message subMessage = new Message(partitions[i], msg.getSender(), msg.getTransaction(), metadata);
+        workerPool.submit(i, new Task(subMessage, completion));
+      }
+    }
+    return completion.await();
+  }
+
+  /**
+   * Serialises calls to nodes that set metadata on a shared processor or connector
+   * and, optionally, to {@link WriteNode}s, see {@link #setSerialiseWriteNodes(boolean)}.
+   */
+  protected void process(Message msg, IMessageProcessor processor) {
+    if ((serialiseWriteNodes && processor instanceof WriteNode) || isMetadataAware(processor)) {
+      synchronized (processor) {
+        super.process(msg, processor);
+      }
+    } else {
+      super.process(msg, processor);
+    }
+  }
+
+  private static boolean isMetadataAware(IMessageProcessor processor) {
+    if (processor instanceof WriteNode && ((WriteNode) processor).getConnector() instanceof IMetadataAware) {
+      return true;
+    }
+    return processor instanceof Node && ((Node) processor).getProcessor() instanceof IMetadataAware;
+  }
+
+  /**
+   * Assigns the records of a batch to workers.
+   * 
+   * @return array indexed by worker, holding a list of records or null if a worker has
+   *         no records in this batch.
+   */
+  private List[] partition(Object[] data, int workers) {
+    List[] partitions = new List[workers];
+    for (int i = 0; i < data.length; i++) {
+      int worker;
+      if (orderingKey != null) {
+        worker = indexFor(keyOf(data[i]), workers);
+      } else {
+        worker = (int) ((long) i * workers / data.length);
+      }
+      if (partitions[worker] == null) {
+        partitions[worker] = new ArrayList();
+      }
+      partitions[worker].add(data[i]);
+    }
+    return partitions;
+  }
+
+  private Object keyOf(Object record) {
+    if (record instanceof Map) {
+      return ((Map) record).get(orderingKey);
+    }
+    return record;
+  }
+
+  private static int indexFor(Object key, int workers) {
+    if (key == null) {
+      return 0;
+    }
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return (h & Integer.MAX_VALUE) % workers;
+  }
+
+  /**
+   * Routes a sub-message. Called on a worker thread.
+   */
+  private Response routeOnWorker(Message msg) {
+    return super.process(msg);
+  }
+
+  /**
+   * Sets the number of worker threads. Defaults to the number of available
+   * processors. A value lower than 2 disables parallel processing. May not be
+   * changed while the workers are running.
+   */
+  public void setWorkerCount(int workerCount) {
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("workerCount must be at least 1");
+    }
+    if (!workerPool.isState(State.STOPPED)) {
+      throw new IllegalStateException("workerCount may not be changed while the workers are running");
+    }
+    this.workerCount = workerCount;
+  }
+
+  public int getWorkerCount() {
+    return workerCount;
+  }
+
+  /**
+   * Sets the number of sub-messages that can be queued for a single worker. When a
+   * worker's queue is full submitters wait for it to drain. Defaults to
+   * {@link #DEFAULT_QUEUE_LIMIT}.
+   */
+  public void setQueueLimit(int queueLimit) {
+    if (queueLimit < 1) {
+      throw new IllegalArgumentException("queueLimit must be at least 1");
+    }
+    this.queueLimit = queueLimit;
+  }
+
+  /**
+   * If set, records which are Maps are assigned to workers by the value held under this
+   * key, so that records with the same key are always processed by the same worker and
+   * in the order in which they were read.
+   */
+  public void setOrderingKey(String orderingKey) {
+    this.orderingKey = orderingKey;
+  }
+
+  /**
+   * If true (the default) write nodes are never called by two workers at the same time.
+   * Only switch this off if all write connectors are thread safe.
+   */
+  public void setSerialiseWriteNodes(boolean serialiseWriteNodes) {
+    this.serialiseWriteNodes = serialiseWriteNodes;
+  }
+
+  /**
+   * Tracks the sub-messages of one incoming message, their responses and the first
+   * failure, if any.
+   */
+  private static final class Completion {
+
+    private final CountDownLatch latch;
+
+    private final AtomicReference failure = new AtomicReference();
+
+    private final ConcurrentLinkedQueue responses = new ConcurrentLinkedQueue();
+
+    Completion(int count) {
+      latch = new CountDownLatch(count);
+    }
+
+    void done(Response response, Throwable t) {
+      if (response != null) {
+        responses.offer(response);
+      }
+      if (t != null) {
+        failure.compareAndSet(null, t);
+      }
+      latch.countDown();
+    }
+
+    /**
+     * Waits for all of the sub-messages, rethrowing the first failure.
+     * 
+     * @return the collated responses of the sub-messages
+     */
+    Response await() {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException("interrupted whilst waiting for workers to complete", e);
+      }
+      Throwable t = (Throwable) failure.get();
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      } else if (t != null) {
+        throw new RuntimeException(t);
+      }
+      Response collated = new Response();
+      for (Iterator iter = responses.iterator(); iter.hasNext();) {
+        List batches = ((Response) iter.next()).getBatches();
+        for (Iterator batchIter = batches.iterator(); batchIter.hasNext();) {
+          List batch = (List) batchIter.next();
+          if (batch instanceof DiscardBatch) {
+            collated.addDiscardedInputs(batch);
+          } else if (batch instanceof ExceptionBatch) {
+            collated.addExceptions(batch);
+          } else {
+            collated.addOutputs(batch);
+          }
+        }
+      }
+      return collated;
+    }
+  }
+
+  private final class Task {
+
+    private final Message msg;
+
+    private final Completion completion;
+
+    Task(Message msg, Completion completion) {
+      this.msg = msg;
+      this.completion = completion;
+    }
+
+    void run() {
+      Response response = null;
+      Throwable failure = null;
+      try {
+        response = routeOnWorker(msg);
+      } catch (Throwable t) {
+        failure = t;
+      } finally {
+        completion.done(response, failure);
+      }
+    }
+  }
+
+  /**
+   * A single worker thread fed by a lock-free queue. The worker parks when its queue is
+   * empty and is unparked by the submitter.
+   */
+  private final class Worker implements Runnable {
+
+    private final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    private volatile boolean idle = false;
+
+    private Thread thread;
+
+    void submit(Task task) {
+      while (size.get() >= queueLimit) {
+        if (!running) {
+          throw new RuntimeException("worker stopped whilst waiting to submit");
+        }
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+      }
+      size.incrementAndGet();
+      queue.offer(task);
+      if (idle) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    public void run() {
+      while (running || !queue.isEmpty()) {
+        Task task = (Task) queue.poll();
+        if (task != null) {
+          size.decrementAndGet();
+          task.run();
+        } else {
+          idle = true;
+          if (queue.isEmpty() && running) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+          }
+          idle = false;
+        }
+      }
+    }
+
+    void start(String name) {
+      running = true;
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void stop() {
+      running = false;
+      LockSupport.unpark(thread);
+    }
+
+    void join() {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        log.warn("interrupted whilst waiting for " + thread.getName() + " to stop");
+      }
+    }
+  }
+
+  /**
+   * The workers, managed as a lifecycle component of the adaptor.
+   */
+  private final class WorkerPool extends LifecycleComponent {
+
+    private volatile Worker[] workers = new Worker[0];
+
+    public String getId() {
+      String routerId = ParallelRouter.this.getId();
+      return (routerId != null ? routerId : "ParallelRouter") + "-Workers";
+    }
+
+    int size() {
+      return workers.length;
+    }
+
+    void submit(int index, Task task) {
+      workers[index].submit(task);
+    }
+
+    public void start() {
+      workers = new Worker[workerCount];
+      for (int i = 0; i < workers.length; i++) {
+        workers[i] = new Worker();
+        workers[i].start(getId() + "-" + i);
+      }
+      log.info(getId() + " started " + workers.length + " worker(s)");
+      super.start();
+    }
+
+    public void stop() {
+      setState(State.STOPPING);
+      for (int i = 0; i < workers.length; i++) {
+        workers[i].stop();
+      }
+      for (int i = 0; i < workers.length; i++) {
+        workers[i].join();
+      }
+      super.stop();
+    }
+  }
+
+}
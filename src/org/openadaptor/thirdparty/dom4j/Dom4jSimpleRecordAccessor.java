@@ -166,7 +166,7 @@ public class Dom4jSimpleRecordAccessor implements ISimpleRecordAccessor, ISimple
   public Object get(Object key) throws RecordException {
     Object value = null;
     if (document != null) {
-      Node node = document.selectSingleNode(key.toString());
+      Node node = XPathCache.selectSingleNode(document, key.toString());
       if (node instanceof Element) {
         Element element = (Element) node;
         //If the element is a leaf, use element.getText(), otherwise use element.getName()
@@ -217,7 +217,7 @@ public class Dom4jSimpleRecordAccessor implements ISimpleRecordAccessor, ISimple
    */
   public Object remove(Object key) throws RecordException {
     Object value = null;
-    Node node = document.selectSingleNode(key.toString());
+    Node node = XPathCache.selectSingleNode(document, key.toString());
     if (node instanceof Element) {
       Element element = (Element) node;
       value = Dom4jUtils.getTypedValue(element, valueTypeAttributeName, !element.elements().isEmpty());
@@ -240,7 +240,7 @@ public class Dom4jSimpleRecordAccessor implements ISimpleRecordAccessor, ISimple
    * @return <tt>true</tt> if the <code>Document</code> contains the named element.
    */
   public boolean containsKey(Object key) {
-    Node node = document.selectSingleNode(key.toString());
+    Node node = XPathCache.selectSingleNode(document, key.toString());
     return (node != null);
   }
 
@@ -310,7 +310,7 @@ public class Dom4jSimpleRecordAccessor implements ISimpleRecordAccessor, ISimple
     if (document == null)
       throw new RecordException("Null document passed. Cannot find node");
 
-    Node node = document.selectSingleNode(xPath);
+    Node node = XPathCache.selectSingleNode(document, xPath);
 
     if (node == null) { //It doesn't exist. Have to walk down from root.
 
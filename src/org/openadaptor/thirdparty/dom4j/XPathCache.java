@@ -0,0 +1,241 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.thirdparty.dom4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.dom4j.Branch;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.XPath;
+import org.openadaptor.util.LRUCache;
+
+/**
+ * Evaluates XPath expressions against Dom4j nodes without compiling them on every call.
+ * <p>
+ * Compiled <code>XPath</code>s are kept in a bounded cache keyed by expression and
+ * namespace map. The cache is held per thread, because a Dom4j XPath that has no namespace
+ * map rebinds its namespace context to the node it is evaluated against and so cannot be
+ * shared between threads.
+ * <p>
+ * Simple child paths such as <code>a/b/c</code> or <code>/a/b</code> (unprefixed element
+ * names only, no predicates, axes or wildcards) are not compiled at all: they are resolved
+ * by walking child elements directly, with the same result XPath would give. As in XPath,
+ * an unprefixed name only matches elements that are in no namespace.
+ */
+public class XPathCache {
+
+  /**
+   * Maximum number of expressions cached by each thread.
+   */
+  public static final int MAX_SIZE = 256;
+
+  private static final Pattern SIMPLE_PATH = Pattern.compile("/?[A-Za-z_][\\w.\\-]*(/[A-Za-z_][\\w.\\-]*)*");
+
+  private static final ThreadLocal cache = new ThreadLocal() {
+    protected Object initialValue() {
+      return new LRUCache(MAX_SIZE);
+    }
+  };
+
+  private XPathCache() {
+  } // No instantiation allowed.
+
+  /**
+   * Equivalent to <code>context.selectNodes(path)</code>.
+   */
+  public static List selectNodes(Node context, String path) {
+    return selectNodes(context, path, null);
+  }
+
+  /**
+   * Select the nodes identified by path, resolving any prefixes in it using the supplied
+   * map of prefix to namespace URI (which may be null).
+   */
+  public static List selectNodes(Node context, String path, Map namespaceURIs) {
+    Object compiled = compile(path, namespaceURIs);
+    if (compiled instanceof SimplePath) {
+      return ((SimplePath) compiled).selectNodes(context);
+    }
+    return ((XPath) compiled).selectNodes(context);
+  }
+
+  /**
+   * Equivalent to <code>context.selectSingleNode(path)</code>.
+   */
+  public static Node selectSingleNode(Node context, String path) {
+    return selectSingleNode(context, path, null);
+  }
+
+  /**
+   * Select the first node, in document order, identified by path.
+   */
+  public static Node selectSingleNode(Node context, String path, Map namespaceURIs) {
+    Object compiled = compile(path, namespaceURIs);
+    if (compiled instanceof SimplePath) {
+      return ((SimplePath) compiled).selectSingleNode(context);
+    }
+    return ((XPath) compiled).selectSingleNode(context);
+  }
+
+  /**
+   * Returns true if the path can be resolved without XPath.
+   */
+  public static boolean isSimplePath(String path) {
+    return SIMPLE_PATH.matcher(path).matches();
+  }
+
+  private static Object compile(String path, Map namespaceURIs) {
+    if (namespaceURIs != null && namespaceURIs.isEmpty()) {
+      namespaceURIs = null;
+    }
+    LRUCache compiledPaths = (LRUCache) cache.get();
+    Object key = namespaceURIs == null ? (Object) path : new Key(path, namespaceURIs);
+    Object compiled = compiledPaths.get(key);
+    if (compiled == null) {
+      if (isSimplePath(path)) {
+        compiled = new SimplePath(path);
+      } else {
+        XPath xpath = DocumentHelper.createXPath(path);
+        if (namespaceURIs != null) {
+          namespaceURIs = new HashMap(namespaceURIs);
+          xpath.setNamespaceURIs(namespaceURIs);
+          key = new Key(path, namespaceURIs);
+        }
+        compiled = xpath;
+      }
+      compiledPaths.put(key, compiled);
+    }
+    return compiled;
+  }
+
+  /**
+   * A path made up only of child element steps.
+   */
+  private static final class SimplePath {
+    private final boolean absolute;
+    private final String[] steps;
+
+    SimplePath(String path) {
+      absolute = path.startsWith("/");
+      steps = (absolute ? path.substring(1) : path).split("/");
+    }
+
+    List selectNodes(Node context) {
+      Branch start = start(context);
+      if (start == null) {
+        return new ArrayList();
+      }
+      List current = Collections.singletonList(start);
+      for (int i = 0; i < steps.length && !current.isEmpty(); i++) {
+        List next = new ArrayList();
+        for (Iterator it = current.iterator(); it.hasNext();) {
+          addChildren((Branch) it.next(), steps[i], next);
+        }
+        current = next;
+      }
+      return current instanceof ArrayList ? current : new ArrayList(current);
+    }
+
+    Node selectSingleNode(Node context) {
+      Branch start = start(context);
+      return start == null ? null : first(start, 0);
+    }
+
+    /**
+     * depth first search, which finds the first match in document order
+     */
+    private Element first(Branch branch, int step) {
+      for (Iterator it = branch.nodeIterator(); it.hasNext();) {
+        Object child = it.next();
+        if (child instanceof Element && matches((Element) child, steps[step])) {
+          if (step == steps.length - 1) {
+            return (Element) child;
+          }
+          Element found = first((Element) child, step + 1);
+          if (found != null) {
+            return found;
+          }
+        }
+      }
+      return null;
+    }
+
+    private Branch start(Node context) {
+      if (absolute || !(context instanceof Branch)) {
+        return context.getDocument();
+      }
+      return (Branch) context;
+    }
+
+    private static void addChildren(Branch branch, String name, List result) {
+      for (Iterator it = branch.nodeIterator(); it.hasNext();) {
+        Object child = it.next();
+        if (child instanceof Element && matches((Element) child, name)) {
+          result.add(child);
+        }
+      }
+    }
+
+    private static boolean matches(Element element, String name) {
+      return name.equals(element.getName()) && element.getNamespaceURI().length() == 0;
+    }
+  }
+
+  /**
+   * Cache key for an expression compiled with a namespace map.
+   */
+  private static final class Key {
+    private final String path;
+    private final Map namespaceURIs;
+
+    Key(String path, Map namespaceURIs) {
+      this.path = path;
+      this.namespaceURIs = namespaceURIs;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return path.equals(other.path) && namespaceURIs.equals(other.namespaceURIs);
+    }
+
+    public int hashCode() {
+      return path.hashCode() * 31 + namespaceURIs.hashCode();
+    }
+  }
+}
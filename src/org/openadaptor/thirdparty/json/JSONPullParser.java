@@ -0,0 +1,275 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.thirdparty.json;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for JSON text. Each call to {@link #nextToken()} reads the
+ * next token from the underlying Reader and the text of string, field name and
+ * number tokens is available from {@link #getText()}.
+ * <br>
+ * The parser only checks that tokens are well formed, callers are expected to
+ * check that they arrive in a sensible order.
+ * <br>
+ * Instances are not thread safe but may be reused by calling {@link #reset(Reader)}.
+ */
+public class JSONPullParser {
+
+  public static final int END_DOCUMENT = 0;
+  public static final int START_OBJECT = 1;
+  public static final int END_OBJECT = 2;
+  public static final int START_ARRAY = 3;
+  public static final int END_ARRAY = 4;
+  public static final int FIELD_NAME = 5;
+  public static final int STRING = 6;
+  public static final int NUMBER = 7;
+  public static final int TRUE = 8;
+  public static final int FALSE = 9;
+  public static final int NULL = 10;
+
+  private Reader reader;
+
+  private final char[] buffer = new char[8192];
+
+  private int position;
+
+  private int limit;
+
+  private long offset;
+
+  private final StringBuffer text = new StringBuffer();
+
+  public JSONPullParser(Reader reader) {
+    reset(reader);
+  }
+
+  /**
+   * Discards any unread input and starts reading from the given Reader.
+   */
+  public void reset(Reader reader) {
+    this.reader = reader;
+    position = 0;
+    limit = 0;
+    offset = 0;
+    text.setLength(0);
+  }
+
+  /**
+   * @return the text of the last STRING, FIELD_NAME or NUMBER token.
+   */
+  public String getText() {
+    return text.toString();
+  }
+
+  /**
+   * Reads the next token. Commas and the colons following field names are skipped.
+   * 
+   * @return one of the token constants
+   * @throws IOException if the Reader fails or the input is not valid JSON
+   */
+  public int nextToken() throws IOException {
+    int c = nextNonWhitespace();
+    if (c == ',') {
+      c = nextNonWhitespace();
+    }
+    switch (c) {
+    case -1:
+      return END_DOCUMENT;
+    case '{':
+      return START_OBJECT;
+    case '}':
+      return END_OBJECT;
+    case '[':
+      return START_ARRAY;
+    case ']':
+      return END_ARRAY;
+    case '"':
+      readString();
+      c = nextNonWhitespace();
+      if (c == ':') {
+        return FIELD_NAME;
+      }
+      if (c != -1) {
+        position--;
+      }
+      return STRING;
+    case 't':
+      expect("rue");
+      return TRUE;
+    case 'f':
+      expect("alse");
+      return FALSE;
+    case 'n':
+      expect("ull");
+      return NULL;
+    default:
+      if (c == '-' || (c >= '0' && c <= '9')) {
+        readNumber((char) c);
+        return NUMBER;
+      }
+      throw syntaxError("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  /**
+   * Skips the value which starts with the given token, including any nested values.
+   */
+  public void skipValue(int token) throws IOException {
+    int depth = 0;
+    do {
+      if (token == START_OBJECT || token == START_ARRAY) {
+        depth++;
+      } else if (token == END_OBJECT || token == END_ARRAY) {
+        depth--;
+      } else if (token == END_DOCUMENT) {
+        throw syntaxError("Unexpected end of input");
+      }
+      if (depth > 0) {
+        token = nextToken();
+      }
+    } while (depth > 0);
+  }
+
+  public IOException syntaxError(String message) {
+    return new IOException(message + " at character " + (offset + position));
+  }
+
+  private int read() throws IOException {
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    return buffer[position++];
+  }
+
+  private boolean fill() throws IOException {
+    offset += limit;
+    position = 0;
+    limit = 0;
+    int n = reader.read(buffer, 0, buffer.length);
+    if (n <= 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    while (true) {
+      int c = read();
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+  }
+
+  private void expect(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++) {
+      if (read() != rest.charAt(i)) {
+        throw syntaxError("Invalid literal");
+      }
+    }
+  }
+
+  private void readString() throws IOException {
+    text.setLength(0);
+    while (true) {
+      // copy runs of plain characters straight from the buffer
+      int start = position;
+      while (position < limit) {
+        char c = buffer[position];
+        if (c == '"' || c == '\\') {
+          break;
+        }
+        position++;
+      }
+      text.append(buffer, start, position - start);
+      int c = read();
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        text.append(readEscape());
+      } else if (c == -1) {
+        throw syntaxError("Unterminated string");
+      } else {
+        // end of buffer, the next read refilled it
+        position--;
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    int c = read();
+    switch (c) {
+    case 'b':
+      return '\b';
+    case 't':
+      return '\t';
+    case 'n':
+      return '\n';
+    case 'f':
+      return '\f';
+    case 'r':
+      return '\r';
+    case 'u':
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        int digit = Character.digit((char) read(), 16);
+        if (digit < 0) {
+          throw syntaxError("Invalid unicode escape");
+        }
+        value = (value << 4) | digit;
+      }
+      return (char) value;
+    case '"':
+    case '\\':
+    case '/':
+      return (char) c;
+    default:
+      throw syntaxError("Invalid escape");
+    }
+  }
+
+  private void readNumber(char first) throws IOException {
+    text.setLength(0);
+    text.append(first);
+    while (true) {
+      int c = read();
+      if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+        text.append((char) c);
+      } else {
+        if (c != -1) {
+          position--;
+        }
+        return;
+      }
+    }
+  }
+}
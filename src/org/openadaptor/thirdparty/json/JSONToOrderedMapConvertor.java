@@ -36,6 +36,11 @@ import org.openadaptor.auxil.orderedmap.OrderedHashMap;
 import org.openadaptor.core.exception.ProcessingException;
 import org.openadaptor.core.exception.RecordException;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Iterator;
 /*
  * File: $Header: $
@@ -44,71 +49,151 @@ import java.util.Iterator;
  */
 
 /**
- * Convert from a JSONObject, JSONArray or string representing JSON to an OrderedMap. Conversion is a bit cheap
+ * Convert from a JSONObject, JSONArray or JSON text to an OrderedMap. Conversion is a bit cheap
  * and cheerful but should work given correct JSON. JSON arrays are converted to OrderedMaps with auto-generated keys.
+ * <br>
+ * JSON text may be supplied as a String, a Reader or a byte[] (in the configured encoding, UTF-8 by default). It is
+ * converted in a single pass with a {@link JSONPullParser}, without building JSONObjects first. Scalar values are
+ * stored as their (trimmed) text.
  *
  * @author Kevin Scully
  */
 public class JSONToOrderedMapConvertor extends AbstractConvertor {
 
+  private String encoding = "UTF-8";
+
+  /** parser for each thread, reused between records */
+  private final ThreadLocal parsers = new ThreadLocal();
+
+  /**
+   * @return the encoding used to read byte[] records.
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Sets the encoding used to read byte[] records. Defaults to UTF-8.
+   */
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
   /**
    * Performs the the actual conversion. Returns the successfully converted record or throws a ProcessingException.
    *
    * @param record
-   *          the JSON string, JSONObject or JSONArray.
+   *          the JSON text (String, Reader or byte[]), JSONObject or JSONArray.
    *
    * @return an IOrderedMap.
    *
    * @throws org.openadaptor.core.exception.ProcessingException
-   *           if the record is null, not a valid JSON String, or not a JSONObject or JSONArray.
+   *           if the record is null, not valid JSON text, or not a JSONObject or JSONArray.
    */
   protected Object convert(Object record) throws RecordException {
     if (record == null)
       throw new ProcessingException("Null values not permitted", this);
 
-    if (!((record instanceof JSONObject) || (record instanceof JSONArray) || (record instanceof String)) )
-      throw new ProcessingException("Record is not a JSONOBJECT, JSONArray or String: " + record.getClass().toString(), this);
+    if (record instanceof String)
+      return mapFromReader(new StringReader((String) record));
 
-    Object jsonRecord = record;
-    // If we have a String attempt to generate a JSONObject or JSONArray from it.
-    if (jsonRecord instanceof String) {
-      jsonRecord = jsonFromString((String)jsonRecord);
+    if (record instanceof Reader)
+      return mapFromReader((Reader) record);
+
+    if (record instanceof byte[]) {
+      try {
+        return mapFromReader(new InputStreamReader(new ByteArrayInputStream((byte[]) record), encoding));
+      } catch (IOException e) {
+        throw new ProcessingException("Unable to read JSON as " + encoding, e, this);
+      }
     }
+
     // At this point we have either a JSONObject or a JSONArray to convert to an OrderedMap
-    IOrderedMap map ;
-    if(jsonRecord instanceof JSONObject) {
-      map = mapFromJSONObject((JSONObject)jsonRecord);
+    if (record instanceof JSONObject)
+      return mapFromJSONObject((JSONObject) record);
+
+    if (record instanceof JSONArray)
+      return mapFromJSONArray((JSONArray) record);
+
+    throw new ProcessingException("Record is not a JSONOBJECT, JSONArray, String, Reader or byte[]: " + record.getClass().toString(), this);
+  }
+
+  /**
+   * Parses JSON text into an IOrderedMap in one pass.
+   *
+   * @param reader
+   *          the JSON text, which must be a JSON object or array
+   * @return equivalent IOrderedMap
+   * @throws ProcessingException if the text is not valid JSON
+   */
+  private IOrderedMap mapFromReader(Reader reader) {
+    JSONPullParser parser = (JSONPullParser) parsers.get();
+    if (parser == null) {
+      parser = new JSONPullParser(reader);
+      parsers.set(parser);
+    } else {
+      parser.reset(reader);
     }
-    else {
-      map = mapFromJSONArray((JSONArray)jsonRecord);
+    try {
+      int token = parser.nextToken();
+      if (token != JSONPullParser.START_OBJECT && token != JSONPullParser.START_ARRAY) {
+        throw new ProcessingException("Not a valid JSON String, expected an object or array", this);
+      }
+      IOrderedMap map = readMap(parser, token == JSONPullParser.START_OBJECT);
+      if (parser.nextToken() != JSONPullParser.END_DOCUMENT) {
+        throw parser.syntaxError("Unexpected text after JSON value");
+      }
+      return map;
+    } catch (IOException e) {
+      throw new ProcessingException("Error parsing JSON: [" + e.getMessage() + "]", e, this);
+    } finally {
+      // don't hold on to the record
+      parser.reset(null);
     }
-    return map;
   }
 
   /**
-   * Parse a JSONObject or JSONArray from a String.
-   * @param jsonString
-   * @return JSONObject or JSONArray
+   * Reads the members of an object, or the elements of an array, whose start token has been read.
    */
-  private Object jsonFromString(String jsonString) {
-    Object jsonRecord;
-    String trimmed = jsonString.trim();
-    if (trimmed.startsWith("{")) {
-      try {
-        jsonRecord = new JSONObject(trimmed);
-      } catch (JSONException e) {
-        throw new ProcessingException("Error parsing JSON format String as Object: [" + e.getMessage() + "]", e, this);
+  private IOrderedMap readMap(JSONPullParser parser, boolean object) throws IOException {
+    IOrderedMap map = new OrderedHashMap();
+    int end = object ? JSONPullParser.END_OBJECT : JSONPullParser.END_ARRAY;
+    while (true) {
+      int token = parser.nextToken();
+      if (token == end) {
+        return map;
       }
-    } else if (!trimmed.startsWith("[")) {
-      try {
-        jsonRecord = new JSONArray(trimmed);
-      } catch (JSONException e) {
-        throw new ProcessingException("Error parsing JSON format String as Array", e, this);
+      if (object) {
+        if (token != JSONPullParser.FIELD_NAME) {
+          throw parser.syntaxError("Expected a field name");
+        }
+        String key = parser.getText();
+        map.put(key, readValue(parser, parser.nextToken()));
+      } else {
+        map.add(readValue(parser, token));
       }
-    } else {
-      throw new ProcessingException("Not a valid JSON String. Received: " + jsonString, this);
     }
-    return jsonRecord;
+  }
+
+  private Object readValue(JSONPullParser parser, int token) throws IOException {
+    switch (token) {
+    case JSONPullParser.START_OBJECT:
+      return readMap(parser, true);
+    case JSONPullParser.START_ARRAY:
+      return readMap(parser, false);
+    case JSONPullParser.STRING:
+      return parser.getText().trim();
+    case JSONPullParser.NUMBER:
+      return parser.getText();
+    case JSONPullParser.TRUE:
+      return "true";
+    case JSONPullParser.FALSE:
+      return "false";
+    case JSONPullParser.NULL:
+      return "null";
+    default:
+      throw parser.syntaxError("Expected a value");
+    }
   }
 
   /**
@@ -130,17 +215,7 @@ public class JSONToOrderedMapConvertor extends AbstractConvertor {
     while (keys.hasNext()) {
       String nextKey = (String) keys.next();
       try {
-        String nextValue = jsonObject.getString(nextKey).trim();
-
-        if (nextValue.startsWith("{"))
-          map.put(nextKey, mapFromJSONObject(jsonObject.getJSONObject(nextKey)));
-
-        else if (nextValue.startsWith("["))
-          map.put(nextKey, mapFromJSONArray(jsonObject.getJSONArray(nextKey)));
-
-        else
-          map.put(nextKey, nextValue);
-
+        map.put(nextKey, fromJSONValue(jsonObject.get(nextKey)));
       } catch (JSONException e) {
         throw new ProcessingException("Error getting key [" + nextKey + "] from parsed JSON Object", e, this);
       }
@@ -166,17 +241,7 @@ public class JSONToOrderedMapConvertor extends AbstractConvertor {
 
     for (int i = 0; i < jsonArray.length(); i++) {
       try {
-        String nextElement = jsonArray.getString(i).trim();
-
-        if (nextElement.startsWith("{"))
-          map.add(mapFromJSONObject(jsonArray.getJSONObject(i)));
-
-        else if (nextElement.startsWith("["))
-          map.add(mapFromJSONArray(jsonArray.getJSONArray(i)));
-
-        else
-          map.add(nextElement);
-
+        map.add(fromJSONValue(jsonArray.get(i)));
       } catch (JSONException e) {
         throw new ProcessingException("Error getting next element from parsed JSON Array", e, this);
       }
@@ -184,4 +249,17 @@ public class JSONToOrderedMapConvertor extends AbstractConvertor {
 
     return map;
   }
+
+  /**
+   * Nested objects and arrays become maps, anything else its trimmed text.
+   */
+  private Object fromJSONValue(Object value) {
+    if (value instanceof JSONObject)
+      return mapFromJSONObject((JSONObject) value);
+
+    if (value instanceof JSONArray)
+      return mapFromJSONArray((JSONArray) value);
+
+    return String.valueOf(value).trim();
+  }
 }
@@ -49,6 +49,9 @@ import java.util.Map;
  * Represent an OrderedMap as a JSON Object. Always converts an OrderedMap to a JSON Object. Makes no attempt to
  * work out if a JSON Array would be more appropriate. Can be optionally configured to produce a JSON String rather than a
  * JSONObject.
+ * <br>
+ * JSON text is written directly from the OrderedMap into a buffer reused by each thread, without building
+ * JSONObjects first. Keys are written in the order of the OrderedMap.
  *
  * @author Kevin Scully
  */
@@ -60,6 +63,12 @@ public class OrderedMapToJSONConvertor extends AbstractConvertor {
   /** Defaults to 0 and is size of tab to use when pretty printing text. Default (0) means don't pretty print. */
   protected int tabSize = 0;
 
+  /** buffers larger than this are not kept for reuse */
+  private static final int MAX_REUSED_BUFFER = 1024 * 1024;
+
+  /** text buffer for each thread, reused between records */
+  private final ThreadLocal buffers = new ThreadLocal();
+
   /**
    * @return the tab size when using pretty print. Default (0) means don't pretty print.
    */
@@ -107,13 +116,180 @@ public class OrderedMapToJSONConvertor extends AbstractConvertor {
    */
   protected Object convert(Object record) throws RecordException {
     IOrderedMap map = OrderedMapUtils.extractOrderedMap(record);
+    if (isAsText()) {
+      return jsonTextFromOM(map);
+    }
     // Always start with an IOrderedMap which means we can start with a conversion to JSON Object.
-    JSONObject jsonObject = jsonObjectFromOM(map);
-    if (!isAsText()) {
-      return jsonObject;
+    return jsonObjectFromOM(map);
+  }
+
+  /**
+   * Writes an OrderedMap as JSON text, formatted as JSONObject.toString() would (or JSONObject.toString(tabSize) if
+   * pretty printing) but keeping the order of the keys.
+   *
+   * @param map the OrderedMap to convert
+   * @return the JSON text
+   */
+  protected String jsonTextFromOM(IOrderedMap map) {
+    StringBuffer buffer = (StringBuffer) buffers.get();
+    if (buffer == null) {
+      buffer = new StringBuffer(1024);
+    }
+    buffers.set(null);
+    try {
+      appendObject(buffer, map, 0);
+      return buffer.toString();
+    } catch (JSONException e) {
+      throw new ProcessingException("Unable to render JSON Object as text", e, this);
+    } finally {
+      if (buffer.capacity() <= MAX_REUSED_BUFFER) {
+        buffer.setLength(0);
+        buffers.set(buffer);
+      }
+    }
+  }
+
+  private void appendObject(StringBuffer sb, IOrderedMap map, int indent) throws JSONException {
+    // JSONObject ignores null values, and writes a single member on one line
+    int members = 0;
+    for (Iterator it = map.values().iterator(); it.hasNext();) {
+      if (it.next() != null) {
+        members++;
+      }
+    }
+    boolean pretty = tabSize > 0 && members > 1;
+    int newIndent = indent + tabSize;
+    int count = 0;
+    sb.append('{');
+    for (Iterator keys = map.keys().iterator(); keys.hasNext();) {
+      Object key = keys.next();
+      Object value = map.get(key);
+      if (value == null) {
+        continue;
+      }
+      if (count++ > 0) {
+        sb.append(',');
+      }
+      if (pretty) {
+        sb.append('\n');
+        indent(sb, newIndent);
+      }
+      appendString(sb, String.valueOf(key));
+      sb.append(':');
+      if (tabSize > 0) {
+        sb.append(' ');
+      }
+      appendValue(sb, value, pretty ? newIndent : indent);
+    }
+    if (pretty) {
+      sb.append('\n');
+      indent(sb, indent);
+    }
+    sb.append('}');
+  }
+
+  private void appendArray(StringBuffer sb, Object[] array, int indent) throws JSONException {
+    int newIndent = indent + tabSize;
+    sb.append('[');
+    if (array.length == 1) {
+      appendValue(sb, array[0], indent);
     } else {
-      return jsonObjectAsText(jsonObject);
+      for (int i = 0; i < array.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        if (tabSize > 0) {
+          sb.append('\n');
+          indent(sb, newIndent);
+        }
+        appendValue(sb, array[i], newIndent);
+      }
+      if (tabSize > 0 && array.length > 1) {
+        sb.append('\n');
+        indent(sb, indent);
+      }
+    }
+    sb.append(']');
+  }
+
+  private void appendValue(StringBuffer sb, Object value, int indent) throws JSONException {
+    if (value == null) {
+      sb.append("null");
+    } else if (value instanceof String) {
+      appendString(sb, (String) value);
+    } else if (value instanceof IOrderedMap) {
+      appendObject(sb, (IOrderedMap) value, indent);
+    } else if (value instanceof Object[]) {
+      appendArray(sb, (Object[]) value, indent);
+    } else if (value instanceof Number || value instanceof Boolean) {
+      sb.append(JSONObject.valueToString(value));
+    } else {
+      Object wrapped = JSONObject.wrap(value);
+      if (wrapped instanceof JSONObject) {
+        sb.append(tabSize > 0 ? ((JSONObject) wrapped).toString(tabSize) : wrapped.toString());
+      } else if (wrapped instanceof JSONArray) {
+        sb.append(tabSize > 0 ? ((JSONArray) wrapped).toString(tabSize) : wrapped.toString());
+      } else {
+        sb.append(JSONObject.valueToString(wrapped));
+      }
+    }
+  }
+
+  private static void indent(StringBuffer sb, int indent) {
+    for (int i = 0; i < indent; i++) {
+      sb.append(' ');
+    }
+  }
+
+  /**
+   * Appends a quoted JSON string, escaped as JSONObject.quote() does.
+   */
+  private static void appendString(StringBuffer sb, String s) {
+    sb.append('"');
+    char previous = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '\\':
+      case '"':
+        sb.append('\\').append(c);
+        break;
+      case '/':
+        if (previous == '<') {
+          sb.append('\\');
+        }
+        sb.append(c);
+        break;
+      case '\b':
+        sb.append("\\b");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\f':
+        sb.append("\\f");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      default:
+        if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+          String hex = Integer.toHexString(c);
+          sb.append("\\u");
+          for (int j = hex.length(); j < 4; j++) {
+            sb.append('0');
+          }
+          sb.append(hex);
+        } else {
+          sb.append(c);
+        }
+      }
+      previous = c;
     }
+    sb.append('"');
   }
 
   protected String jsonObjectAsText(JSONObject jsonObject) {String jsonText;
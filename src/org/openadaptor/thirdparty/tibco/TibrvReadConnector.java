@@ -174,6 +174,7 @@ public class TibrvReadConnector extends QueuingReadConnector implements TibrvMsg
       log.debug("Asking dispatcher to shutdown");
       dispatcher.shutdown();
     }
+    super.disconnect();
   }
 
   /**
@@ -0,0 +1,178 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe cache that evicts the least recently used entry
+ * when full. Entries can optionally expire a fixed time after they were put.
+ * 
+ * Null values are not supported, a <code>null</code> return from {@link #get(Object)}
+ * always means a miss. Subclasses that hold resources can release them by overriding
+ * {@link #onEviction(Object, Object)}.
+ */
+public class LRUCache {
+
+  private final int maxSize;
+
+  private final long timeToLiveMs;
+
+  private final Map entries;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  /**
+   * Constructor. Entries never expire.
+   * 
+   * @param maxSize maximum number of entries
+   */
+  public LRUCache(int maxSize) {
+    this(maxSize, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maxSize maximum number of entries
+   * @param timeToLiveMs time after which entries expire, zero or less for never
+   */
+  public LRUCache(int maxSize, long timeToLiveMs) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1");
+    }
+    this.maxSize = maxSize;
+    this.timeToLiveMs = timeToLiveMs;
+    this.entries = new LinkedHashMap(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        if (size() > LRUCache.this.maxSize) {
+          onEviction(eldest.getKey(), ((LRUCache.Entry) eldest.getValue()).value);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the cached value or null if there is none or it has expired.
+   */
+  public synchronized Object get(Object key) {
+    Entry entry = (Entry) entries.get(key);
+    if (entry != null && timeToLiveMs > 0 && System.currentTimeMillis() > entry.expiry) {
+      entries.remove(key);
+      onEviction(key, entry.value);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.value;
+  }
+
+  /**
+   * Caches the value, evicting the least recently used entry if the cache is full.
+   */
+  public synchronized void put(Object key, Object value) {
+    long expiry = timeToLiveMs > 0 ? System.currentTimeMillis() + timeToLiveMs : Long.MAX_VALUE;
+    entries.put(key, new Entry(value, expiry));
+  }
+
+  /**
+   * @return the removed value or null if there was none.
+   */
+  public synchronized Object remove(Object key) {
+    Entry entry = (Entry) entries.remove(key);
+    return entry == null ? null : entry.value;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @return a snapshot of the cached values, least recently used first.
+   */
+  public synchronized List values() {
+    List values = new ArrayList(entries.size());
+    for (Iterator iter = entries.values().iterator(); iter.hasNext();) {
+      values.add(((Entry) iter.next()).value);
+    }
+    return values;
+  }
+
+  /**
+   * Called, with the cache locked, when an entry is dropped because the cache is
+   * full or the entry has expired. It is not called for {@link #remove(Object)} or
+   * {@link #clear()}. Does nothing by default.
+   */
+  protected void onEviction(Object key, Object value) {
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of successful lookups since the cache was created.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return number of failed lookups (including expired entries) since the cache was created.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  private static final class Entry {
+    final Object value;
+    final long expiry;
+
+    Entry(Object value, long expiry) {
+      this.value = value;
+      this.expiry = expiry;
+    }
+  }
+}
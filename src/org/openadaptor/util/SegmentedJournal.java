@@ -0,0 +1,598 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append only journal of byte[] records, kept in a directory as a sequence of
+ * memory-mapped segment files, with a single reader that acknowledges records
+ * once it has dealt with them.
+ * <br>
+ * Records are not durable when {@link #append(byte[])} returns, callers that need
+ * them to be pass the returned position to {@link #sync(long)}. Concurrent callers
+ * share the same force of the segment to disk (group commit). Acknowledged records
+ * are marked in their segment, and segments are deleted once they are full and all
+ * of their records have been acknowledged.
+ * <br>
+ * {@link #open()} recovers any segments left by a previous run. Records that were
+ * not acknowledged are read again, records that fail their checksum (for instance
+ * because they were only partly written before a crash) end the segment they are in.
+ * Marks of acknowledgement are only forced to disk as segments are completed or on
+ * {@link #close()}, so after a crash some acknowledged records may be read again.
+ * <br>
+ * Segment files are unmapped as soon as they are deleted or closed, rather than 
+ * when their buffers are garbage collected, so that disk space is freed (and, on
+ * Windows, the files can be deleted at all).
+ */
+public class SegmentedJournal {
+
+  private static final Log log = LogFactory.getLog(SegmentedJournal.class);
+
+  private static final int MAGIC = 0x4F414A31;
+
+  /** length, checksum and state of each record */
+  private static final int RECORD_HEADER = 9;
+
+  private static final byte PENDING = 1;
+
+  private static final byte ACKNOWLEDGED = 2;
+
+  private static final String SUFFIX = ".journal";
+
+  private final File directory;
+
+  private final String name;
+
+  private final int segmentSize;
+
+  /** open segments, oldest first, guarded by itself */
+  private final LinkedList segments = new LinkedList();
+
+  private Segment writeSegment;
+
+  private final Object syncLock = new Object();
+
+  private volatile long durablePosition = -1;
+
+  private Segment readSegment;
+
+  private int readOffset;
+
+  private boolean readerWaiting = false;
+
+  private long pendingCount = 0;
+
+  private final CRC32 writeCrc = new CRC32();
+
+  private final CRC32 readCrc = new CRC32();
+
+  private boolean open = false;
+
+  /**
+   * Constructor.
+   * 
+   * @param directory directory for the segment files, created if it doesn't exist
+   * @param name prefix of the segment file names
+   * @param segmentSize size of each segment file in bytes, larger records get a segment of their own
+   */
+  public SegmentedJournal(File directory, String name, int segmentSize) {
+    if (segmentSize < 4 + RECORD_HEADER + 1) {
+      throw new IllegalArgumentException("segmentSize too small");
+    }
+    this.directory = directory;
+    this.name = name;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Opens the journal, recovering segments left by a previous run.
+   */
+  public void open() throws IOException {
+    synchronized (segments) {
+      if (open) {
+        return;
+      }
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("unable to create journal directory " + directory);
+      }
+      long[] indexes = listSegments();
+      long nextIndex = 0;
+      for (int i = 0; i < indexes.length; i++) {
+        Segment segment = recover(indexes[i]);
+        if (segment != null) {
+          segments.add(segment);
+        }
+        nextIndex = indexes[i] + 1;
+      }
+      writeSegment = createSegment(nextIndex, segmentSize);
+      segments.add(writeSegment);
+      readSegment = (Segment) segments.getFirst();
+      readOffset = 4;
+      open = true;
+      if (pendingCount > 0) {
+        log.info(name + " recovered " + pendingCount + " record(s) from " + (segments.size() - 1) + " segment(s)");
+      }
+    }
+  }
+
+  /**
+   * Closes the journal, forcing any outstanding writes and acknowledgements to disk.
+   * Records that were not acknowledged are read again when it is next opened.
+   */
+  public void close() {
+    synchronized (segments) {
+      if (!open) {
+        return;
+      }
+      open = false;
+      for (Iterator iter = segments.iterator(); iter.hasNext();) {
+        Segment segment = (Segment) iter.next();
+        segment.force();
+        segment.close();
+      }
+      segments.clear();
+      writeSegment = null;
+      readSegment = null;
+      segments.notifyAll();
+    }
+  }
+
+  /**
+   * Appends a record.
+   * 
+   * @return position to pass to {@link #sync(long)} to make the record durable
+   */
+  public long append(byte[] record) throws IOException {
+    int size = RECORD_HEADER + record.length;
+    synchronized (segments) {
+      checkOpen();
+      if (writeSegment.limit + size > writeSegment.capacity) {
+        writeSegment.seal();
+        writeSegment = createSegment(writeSegment.index + 1, Math.max(segmentSize, 4 + size));
+        segments.add(writeSegment);
+      }
+      int offset = writeSegment.limit;
+      ByteBuffer buffer = writeSegment.writeBuffer;
+      writeCrc.reset();
+      writeCrc.update(record, 0, record.length);
+      buffer.position(offset + RECORD_HEADER);
+      buffer.put(record);
+      buffer.putInt(offset + 4, (int) writeCrc.getValue());
+      buffer.put(offset + 8, PENDING);
+      buffer.putInt(offset, record.length);
+      writeSegment.limit = offset + size;
+      pendingCount++;
+      if (readerWaiting) {
+        segments.notifyAll();
+      }
+      return position(writeSegment.index, writeSegment.limit);
+    }
+  }
+
+  /**
+   * Forces the journal to disk up to (at least) the given position. Only one force
+   * is done at a time, callers waiting for it are satisfied by the one in progress
+   * if it covered their position.
+   */
+  public void sync(long position) throws IOException {
+    if (position <= durablePosition) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (position <= durablePosition) {
+        return;
+      }
+      Segment segment;
+      long target;
+      synchronized (segments) {
+        checkOpen();
+        segment = writeSegment;
+        target = position(segment.index, segment.limit);
+      }
+      // earlier segments were forced when they were sealed
+      segment.force();
+      durablePosition = target;
+    }
+  }
+
+  /**
+   * Removes a record that the reader has not reached yet, as if it had been read
+   * and acknowledged.
+   * 
+   * @param position the position {@link #append(byte[])} returned for the record
+   * @param record the record that was appended
+   * @return true if the record was removed, false if it has already been read 
+   * (or the journal is closed)
+   */
+  public boolean cancel(long position, byte[] record) {
+    long index = position >>> 32;
+    int offset = (int) position - RECORD_HEADER - record.length;
+    synchronized (segments) {
+      if (!open || index < readSegment.index || (index == readSegment.index && offset < readOffset)) {
+        return false;
+      }
+      for (Iterator iter = segments.iterator(); iter.hasNext();) {
+        Segment segment = (Segment) iter.next();
+        if (segment.index == index) {
+          if (segment.readBuffer.getInt(offset) != record.length || segment.readBuffer.get(offset + 8) != PENDING) {
+            throw new IllegalArgumentException("no pending record of " + record.length + " bytes at " + position);
+          }
+          segment.buffer.put(offset + 8, ACKNOWLEDGED);
+          pendingCount--;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Returns the next record that has not been read, waiting for one to be appended
+   * if necessary. There must only be one reader.
+   * 
+   * @param timeoutMs how long to wait, zero for not at all
+   * @return the record, or null if there is none (or the journal was closed)
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Entry next(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (segments) {
+      while (open) {
+        if (readOffset < readSegment.limit) {
+          Entry entry = read(readSegment, readOffset);
+          readOffset = entry.end;
+          if (entry.data != null) {
+            readSegment.unacknowledged++;
+            return entry;
+          }
+        } else if (readSegment.sealed) {
+          Segment finished = readSegment;
+          readSegment = (Segment) segments.get(segments.indexOf(finished) + 1);
+          readOffset = 4;
+          deleteIfDone(finished);
+        } else {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            return null;
+          }
+          readerWaiting = true;
+          try {
+            segments.wait(wait);
+          } finally {
+            readerWaiting = false;
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Marks a record returned by {@link #next(long)} as dealt with, it won't be read
+   * again after a restart.
+   */
+  public void acknowledge(Entry entry) {
+    synchronized (segments) {
+      Segment segment = entry.segment;
+      if (!open || segment.closed) {
+        return;
+      }
+      segment.buffer.put(entry.offset + 8, ACKNOWLEDGED);
+      segment.unacknowledged--;
+      pendingCount--;
+      if (segment != readSegment) {
+        deleteIfDone(segment);
+      }
+    }
+  }
+
+  /**
+   * @return number of records appended, or recovered, that have not been acknowledged
+   */
+  public long getPendingCount() {
+    synchronized (segments) {
+      return pendingCount;
+    }
+  }
+
+  /**
+   * @return number of segment files in use
+   */
+  public int getSegmentCount() {
+    synchronized (segments) {
+      return segments.size();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (!open) {
+      throw new IOException("journal " + name + " is not open");
+    }
+  }
+
+  private static long position(long index, int offset) {
+    return (index << 32) | offset;
+  }
+
+  /**
+   * Reads the record at offset, which is known to be complete. The entry has no
+   * data if the record was already acknowledged.
+   */
+  private Entry read(Segment segment, int offset) {
+    ByteBuffer buffer = segment.readBuffer;
+    int length = buffer.getInt(offset);
+    int end = offset + RECORD_HEADER + length;
+    if (buffer.get(offset + 8) != PENDING) {
+      return new Entry(segment, offset, end, null);
+    }
+    byte[] data = new byte[length];
+    buffer.position(offset + RECORD_HEADER);
+    buffer.get(data);
+    return new Entry(segment, offset, end, data);
+  }
+
+  private void deleteIfDone(Segment segment) {
+    if (segment.sealed && segment.unacknowledged == 0 && segment != readSegment) {
+      segments.remove(segment);
+      segment.close();
+      if (!segment.file.delete()) {
+        log.warn(name + " unable to delete " + segment.file + ", it will be removed when the journal is next opened");
+      }
+    }
+  }
+
+  private long[] listSegments() {
+    String[] files = directory.list();
+    long[] indexes = new long[files == null ? 0 : files.length];
+    int count = 0;
+    for (int i = 0; i < indexes.length; i++) {
+      if (files[i].startsWith(name + "-") && files[i].endsWith(SUFFIX)) {
+        try {
+          indexes[count] = Long.parseLong(files[i].substring(name.length() + 1, files[i].length() - SUFFIX.length()));
+          count++;
+        } catch (NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    long[] result = new long[count];
+    System.arraycopy(indexes, 0, result, 0, count);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private File segmentFile(long index) {
+    StringBuffer sb = new StringBuffer(name).append('-');
+    String digits = Long.toString(index);
+    for (int i = digits.length(); i < 12; i++) {
+      sb.append('0');
+    }
+    return new File(directory, sb.append(digits).append(SUFFIX).toString());
+  }
+
+  private Segment createSegment(long index, int capacity) throws IOException {
+    Segment segment = new Segment(index, segmentFile(index), capacity);
+    segment.buffer.putInt(0, MAGIC);
+    segment.limit = 4;
+    return segment;
+  }
+
+  /**
+   * Scans a segment from a previous run. Returns null (and deletes it) if it holds no
+   * pending records.
+   */
+  private Segment recover(long index) throws IOException {
+    File file = segmentFile(index);
+    int capacity = (int) file.length();
+    Segment segment = new Segment(index, file, capacity);
+    ByteBuffer buffer = segment.readBuffer;
+    if (capacity < 4 || buffer.getInt(0) != MAGIC) {
+      log.warn(name + " ignoring " + file + ", it is not a journal segment");
+      segment.close();
+      return null;
+    }
+    int pending = 0;
+    int offset = 4;
+    while (offset + RECORD_HEADER <= capacity) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || length > capacity - offset - RECORD_HEADER) {
+        break;
+      }
+      byte state = buffer.get(offset + 8);
+      if (state == PENDING) {
+        byte[] data = new byte[length];
+        buffer.position(offset + RECORD_HEADER);
+        buffer.get(data);
+        readCrc.reset();
+        readCrc.update(data, 0, length);
+        if ((int) readCrc.getValue() != buffer.getInt(offset + 4)) {
+          log.warn(name + " discarding incomplete record at " + offset + " in " + file);
+          break;
+        }
+        pending++;
+      } else if (state != ACKNOWLEDGED) {
+        break;
+      }
+      offset += RECORD_HEADER + length;
+    }
+    segment.limit = offset;
+    segment.sealed = true;
+    if (pending == 0) {
+      segment.close();
+      if (!file.delete()) {
+        log.warn(name + " unable to delete " + file);
+      }
+      return null;
+    }
+    pendingCount += pending;
+    return segment;
+  }
+
+  /**
+   * A record read from the journal.
+   */
+  public static final class Entry {
+
+    private final Segment segment;
+
+    private final int offset;
+
+    private final int end;
+
+    private final byte[] data;
+
+    private Entry(Segment segment, int offset, int end, byte[] data) {
+      this.segment = segment;
+      this.offset = offset;
+      this.end = end;
+      this.data = data;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  /**
+   * One mapped segment file.
+   */
+  private static final class Segment {
+
+    final long index;
+
+    final File file;
+
+    final int capacity;
+
+    final RandomAccessFile raf;
+
+    final MappedByteBuffer buffer;
+
+    final ByteBuffer writeBuffer;
+
+    final ByteBuffer readBuffer;
+
+    /** end of the records written so far */
+    volatile int limit;
+
+    /** no more records will be written */
+    boolean sealed = false;
+
+    /** records read but not acknowledged */
+    int unacknowledged = 0;
+
+    boolean closed = false;
+
+    Segment(long index, File file, int capacity) throws IOException {
+      this.index = index;
+      this.file = file;
+      this.capacity = capacity;
+      raf = new RandomAccessFile(file, "rw");
+      try {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } catch (IOException e) {
+        raf.close();
+        throw e;
+      }
+      writeBuffer = buffer.duplicate();
+      readBuffer = buffer.duplicate();
+    }
+
+    void seal() {
+      force();
+      sealed = true;
+    }
+
+    /** synchronised with close(), so a concurrent sync never forces an unmapped buffer */
+    synchronized void force() {
+      if (!closed) {
+        buffer.force();
+      }
+    }
+
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      unmap(buffer);
+      try {
+        raf.close();
+      } catch (IOException e) {
+        log.warn("failed to close " + file + ", " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Releases the mapping now rather than when the buffer is garbage collected. The
+   * buffer must not be used afterwards. Falls back to leaving it to the garbage 
+   * collector if the JVM offers no way of doing this.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later
+      Class unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", new Class[] { ByteBuffer.class });
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), new Object[] { buffer });
+      return;
+    } catch (NoSuchMethodException e) {
+      // earlier JVMs, see below
+    } catch (Exception e) {
+      log.debug("unable to unmap segment, " + e);
+      return;
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner", new Class[0]);
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer, new Object[0]);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean", new Class[0]).invoke(cleaner, new Object[0]);
+      }
+    } catch (Exception e) {
+      log.debug("unable to unmap segment, " + e);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package org.openadaptor.core.connector;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -113,6 +114,56 @@ public class QueuedReadConnectorTestCase extends TestCase {
     assertTrue(adaptor.getExitCode() == 0);
   }
   
+  public void testQueueLimitSpillToDisk() throws Exception {
+    Object[] testData = new Object[] {"foo", "bar", "foobar", "barfoo", "foofoo"};
+    File directory = File.createTempFile("spill", "");
+    directory.delete();
+    
+    // create readNode that spills beyond one queued item
+    MyTestReadConnector readNode = new MyTestReadConnector("in", testData);
+    readNode.setTransacted(false);
+    readNode.setQueueLimit(1);
+    readNode.setAsyncAcknowledge(true);
+    readNode.setSpillDirectory(directory.getPath());
+    
+    // create processor that introduces delay
+    MySlowProcessor processor = new MySlowProcessor(DEFAULT_PROCESS_DELAY_MS / 10);
+    
+    // create writeNode
+    TestWriteConnector writeNode = new TestWriteConnector("out");
+    ArrayList list = new ArrayList();
+    for (int i = 0; i < testData.length; i++) {
+      list.add(testData[i]);
+    }
+    writeNode.setExpectedOutput(list);
+    
+    // create router
+    RoutingMap routingMap = new RoutingMap();
+    Map processMap = new HashMap();
+    processMap.put(readNode, processor);
+    processMap.put(processor, writeNode);
+    routingMap.setProcessMap(processMap);
+    Router router = new Router(routingMap);
+    
+    // create adaptor
+    Adaptor adaptor =  new Adaptor();
+    adaptor.setMessageProcessor(router);
+    
+    // run adaptor
+    try {
+      adaptor.run();
+      assertTrue(adaptor.getExitCode() == 0);
+      assertTrue(readNode.getSpilledCount() > 0);
+    } finally {
+      readNode.closeSpill();
+      File[] files = directory.listFiles();
+      for (int i = 0; files != null && i < files.length; i++) {
+        files[i].delete();
+      }
+      directory.delete();
+    }
+  }
+  
   public void testTransactedNoProblems() {
     Object[] testData = new Object[] {"foo", "bar", "foobar"};
     
@@ -184,6 +235,72 @@ public class QueuedReadConnectorTestCase extends TestCase {
     assertTrue(adaptor.getExitCode() == 1);
   }
   
+  public void testRingBuffer() {
+    Object[] testData = new Object[] {"foo", "bar", "foobar", "barfoo", "foofoo"};
+    
+    // create readNode with a ring buffer smaller than the data
+    MyTestReadConnector readNode = new MyTestReadConnector("in", testData);
+    readNode.setTransacted(true);
+    readNode.setRingBufferSize(2);
+    readNode.setBatchSize(2);
+    readNode.setAsyncAcknowledge(true);
+    
+    // create writeNode
+    TestWriteConnector writeNode = new TestWriteConnector("out");
+    ArrayList list = new ArrayList();
+    for (int i = 0; i < testData.length; i++) {
+      list.add(testData[i]);
+    }
+    writeNode.setExpectedOutput(list);
+    
+    // create router
+    RoutingMap routingMap = new RoutingMap();
+    Map processMap = new HashMap();
+    processMap.put(readNode, writeNode);
+    routingMap.setProcessMap(processMap);
+    Router router = new Router(routingMap);
+    
+    // create adaptor
+    Adaptor adaptor =  new Adaptor();
+    adaptor.setMessageProcessor(router);
+    adaptor.setRunInCallingThread(true);
+    
+    // run adaptor
+    adaptor.run();
+    assertTrue(adaptor.getExitCode() == 0);
+  }
+  
+  public void testCompletionCallbacks() {
+    Object[] testData = new Object[] {"foo", "bar", "foobar"};
+    
+    // create readNode
+    MyCallbackReadConnector readNode = new MyCallbackReadConnector("i", testData);
+    readNode.setTransacted(true);
+    readNode.setRingBufferSize(16);
+    
+    // create processor that throws exception
+    TestProcessor processor = new TestProcessor("p");
+    processor.setExceptionFrequency(3);
+    
+    // create router
+    RoutingMap routingMap = new RoutingMap();
+    Map processMap = new HashMap();
+    processMap.put(readNode, processor);
+    routingMap.setProcessMap(processMap);
+    Router router = new Router(routingMap);
+    
+    // create adaptor
+    Adaptor adaptor =  new Adaptor();
+    adaptor.setMessageProcessor(router);
+    
+    // run adaptor
+    adaptor.run();
+    assertTrue(adaptor.getExitCode() == 1);
+    assertEquals(2, readNode.completed.size());
+    assertEquals(1, readNode.failed.size());
+    assertEquals("foobar", readNode.failed.get(0));
+  }
+  
   public class MyTestReadConnector extends QueuingReadConnector {
 
     private Object[] data;
@@ -215,6 +332,7 @@ public class QueuedReadConnectorTestCase extends TestCase {
         thread.join();
       } catch (InterruptedException e) {
       }
+      super.disconnect();
     }
 
     public void validate(List exceptions) {
@@ -222,6 +340,32 @@ public class QueuedReadConnectorTestCase extends TestCase {
     
   }
   
+  public class MyCallbackReadConnector extends MyTestReadConnector implements IQueueCompletionCallback {
+
+    private List completed = new ArrayList();
+    private List failed = new ArrayList();
+    
+    public MyCallbackReadConnector(final String id, final Object[] data) {
+      super(id, data);
+    }
+    
+    protected void enqueue(Object data) {
+      enqueue(data, this);
+    }
+
+    public synchronized void completed(Object data) {
+      completed.add(data);
+    }
+
+    public synchronized void failed(Object data, Throwable t) {
+      failed.add(data);
+    }
+
+    public boolean isDry() {
+      return super.isDry() && completed.size() + failed.size() == 3;
+    }
+  }
+  
   class MySlowProcessor implements IDataProcessor {
   	long processDelayMS=1000;
   	
@@ -0,0 +1,255 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.core.Component;
+import org.openadaptor.core.IDataProcessor;
+import org.openadaptor.core.IMetadataAware;
+import org.openadaptor.core.IReadConnector;
+import org.openadaptor.core.IWriteConnector;
+import org.openadaptor.core.adaptor.Adaptor;
+
+/**
+ * Integration tests for {@link ParallelRouter}.
+ */
+public class ParallelRouterTestCase extends TestCase {
+
+  private static final int BATCH_SIZE = 100;
+
+  private static final int BATCHES = 5;
+
+  private static final int KEYS = 7;
+
+  /**
+   * All records are delivered, using more than one worker thread, and records with
+   * the same key are delivered in the order they were read.
+   */
+  public void testKeyOrderedParallelProcessing() {
+    MapReadConnector reader = new MapReadConnector("Reader");
+    ThreadRecordingProcessor processor = new ThreadRecordingProcessor("Processor");
+    CollectingWriteConnector writer = new CollectingWriteConnector("Writer");
+
+    ParallelRouter router = new ParallelRouter();
+    router.setWorkerCount(4);
+    router.setOrderingKey("key");
+    Adaptor adaptor = createAdaptor(router, new Object[] {reader, processor, writer});
+    adaptor.run();
+
+    assertEquals(0, adaptor.getExitCode());
+    assertEquals(BATCH_SIZE * BATCHES, writer.records.size());
+    assertTrue("expected more than one worker", processor.threads.size() > 1);
+
+    Map lastSeqByKey = new HashMap();
+    for (Iterator it = writer.records.iterator(); it.hasNext();) {
+      Map record = (Map) it.next();
+      Integer last = (Integer) lastSeqByKey.get(record.get("key"));
+      Integer seq = (Integer) record.get("seq");
+      assertTrue("records for a key out of order", last == null || last.intValue() < seq.intValue());
+      lastSeqByKey.put(record.get("key"), seq);
+    }
+  }
+
+  /**
+   * Unhandled exceptions on a worker stop the adaptor, as they would with a Router.
+   */
+  public void testUnhandledExceptionOnWorker() {
+    MapReadConnector reader = new MapReadConnector("Reader");
+    ThreadRecordingProcessor processor = new ThreadRecordingProcessor("Processor");
+    processor.failOnSeq = 42;
+    CollectingWriteConnector writer = new CollectingWriteConnector("Writer");
+
+    ParallelRouter router = new ParallelRouter();
+    router.setWorkerCount(3);
+    Adaptor adaptor = createAdaptor(router, new Object[] {reader, processor, writer});
+    adaptor.run();
+
+    assertTrue(adaptor.getExitCode() != 0);
+    assertTrue(writer.records.size() < BATCH_SIZE * BATCHES);
+  }
+
+  /**
+   * A single worker routes on the calling thread.
+   */
+  public void testSingleWorker() {
+    MapReadConnector reader = new MapReadConnector("Reader");
+    ThreadRecordingProcessor processor = new ThreadRecordingProcessor("Processor");
+    CollectingWriteConnector writer = new CollectingWriteConnector("Writer");
+
+    ParallelRouter router = new ParallelRouter();
+    router.setWorkerCount(1);
+    Adaptor adaptor = createAdaptor(router, new Object[] {reader, processor, writer});
+    adaptor.run();
+
+    assertEquals(0, adaptor.getExitCode());
+    assertEquals(BATCH_SIZE * BATCHES, writer.records.size());
+    assertEquals(1, processor.threads.size());
+  }
+
+  /**
+   * Processors that have metadata set on them before each call are not called
+   * concurrently, and the worker count can't be changed while running.
+   */
+  public void testMetadataAwareProcessorSerialised() {
+    MapReadConnector reader = new MapReadConnector("Reader");
+    ParallelRouter router = new ParallelRouter();
+    MetadataAwareProcessor processor = new MetadataAwareProcessor("Processor", router);
+    CollectingWriteConnector writer = new CollectingWriteConnector("Writer");
+
+    router.setWorkerCount(4);
+    Adaptor adaptor = createAdaptor(router, new Object[] {reader, processor, writer});
+    adaptor.run();
+
+    assertEquals(0, adaptor.getExitCode());
+    assertEquals(BATCH_SIZE * BATCHES, writer.records.size());
+    assertFalse("processor ran with another call's metadata", processor.mixed);
+    assertTrue(processor.workerCountRejected);
+    assertEquals(4, router.getWorkerCount());
+  }
+
+  private static Adaptor createAdaptor(ParallelRouter router, Object[] pipeline) {
+    router.setProcessors(Arrays.asList(pipeline));
+    Adaptor adaptor = new Adaptor();
+    adaptor.setMessageProcessor(router);
+    adaptor.setRunInCallingThread(true);
+    return adaptor;
+  }
+
+  /**
+   * Reads BATCHES batches of Map records, each holding a key and a sequence number.
+   */
+  static final class MapReadConnector extends Component implements IReadConnector {
+    private int seq = 0;
+
+    MapReadConnector(String id) {
+      super(id);
+    }
+
+    public Object[] next(long timeoutMs) {
+      Object[] batch = new Object[BATCH_SIZE];
+      for (int i = 0; i < batch.length; i++, seq++) {
+        Map record = new HashMap();
+        record.put("key", new Integer(seq % KEYS));
+        record.put("seq", new Integer(seq));
+        batch[i] = record;
+      }
+      return batch;
+    }
+
+    public boolean isDry() {
+      return seq >= BATCH_SIZE * BATCHES;
+    }
+
+    public void connect() {}
+    public void disconnect() {}
+    public Object getReaderContext() { return null; }
+    public void setReaderContext(Object context) {}
+    public void validate(List exceptions) {}
+  }
+
+  static final class ThreadRecordingProcessor extends Component implements IDataProcessor {
+    final Set threads = new HashSet();
+    int failOnSeq = -1;
+
+    ThreadRecordingProcessor(String id) {
+      super(id);
+    }
+
+    public Object[] process(Object data) {
+      synchronized (threads) {
+        threads.add(Thread.currentThread().getName());
+      }
+      if (((Integer) ((Map) data).get("seq")).intValue() == failOnSeq) {
+        throw new RuntimeException("test");
+      }
+      return new Object[] {data};
+    }
+
+    public void reset(Object context) {}
+    public void validate(List exceptions) {}
+  }
+
+  static final class MetadataAwareProcessor extends Component implements IDataProcessor, IMetadataAware {
+    private final ParallelRouter router;
+    private volatile Thread metadataThread;
+    volatile boolean mixed = false;
+    boolean workerCountRejected = false;
+
+    MetadataAwareProcessor(String id, ParallelRouter router) {
+      super(id);
+      this.router = router;
+    }
+
+    public void setMetadata(Map metadata) {
+      metadataThread = Thread.currentThread();
+    }
+
+    public Object[] process(Object data) {
+      try {
+        router.setWorkerCount(2);
+      } catch (IllegalStateException e) {
+        workerCountRejected = true;
+      }
+      Thread.yield();
+      if (metadataThread != Thread.currentThread()) {
+        mixed = true;
+      }
+      return new Object[] {data};
+    }
+
+    public void reset(Object context) {}
+    public void validate(List exceptions) {}
+  }
+
+  static final class CollectingWriteConnector extends Component implements IWriteConnector {
+    final List records = new ArrayList();
+
+    CollectingWriteConnector(String id) {
+      super(id);
+    }
+
+    public Object deliver(Object[] data) {
+      records.addAll(Arrays.asList(data));
+      return null;
+    }
+
+    public void connect() {}
+    public void disconnect() {}
+    public void validate(List exceptions) {}
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.convertor.delimited;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Times {@link DelimitedStringParser} against the per character splitting it replaced
+ * in {@link AbstractDelimitedStringConvertor}, kept here as a reference, on 20 field
+ * lines with and without quoted values, and logs the results. Kept out of the unit 
+ * tests as it is slow and only of interest when working on the parser.
+ */
+public class DelimitedStringParserBenchmarkTestCase extends TestCase {
+
+  private static final Log log = LogFactory.getLog(DelimitedStringParserBenchmarkTestCase.class);
+
+  private static final int LINES = 1000;
+
+  private static final int RUNS = 200;
+
+  private static final String DELIMITER = ",";
+
+  public void testSplit() {
+    String[] lines = generateLines(false);
+    for (int i = 0; i < lines.length; i++) {
+      assertEquals(Arrays.asList(previousSplit(lines[i], DELIMITER)), 
+          Arrays.asList(DelimitedStringParser.split(lines[i], DELIMITER)));
+    }
+
+    long start = System.currentTimeMillis();
+    for (int r = 0; r < RUNS; r++) {
+      for (int i = 0; i < lines.length; i++) {
+        DelimitedStringParser.split(lines[i], DELIMITER);
+      }
+    }
+    long parser = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    for (int r = 0; r < RUNS; r++) {
+      for (int i = 0; i < lines.length; i++) {
+        previousSplit(lines[i], DELIMITER);
+      }
+    }
+    long previous = System.currentTimeMillis() - start;
+    log.info("split " + LINES * RUNS + " lines: DelimitedStringParser " + parser + "ms, previous " + previous + "ms");
+  }
+
+  public void testSplitQuoted() {
+    String[] lines = generateLines(true);
+    for (int i = 0; i < lines.length; i++) {
+      assertEquals(Arrays.asList(previousSplitQuoted(lines[i], DELIMITER, '"')), 
+          Arrays.asList(DelimitedStringParser.splitQuoted(lines[i], DELIMITER, '"', false, '\\', false, false)));
+    }
+
+    long start = System.currentTimeMillis();
+    for (int r = 0; r < RUNS; r++) {
+      for (int i = 0; i < lines.length; i++) {
+        DelimitedStringParser.splitQuoted(lines[i], DELIMITER, '"', false, '\\', false, false);
+      }
+    }
+    long parser = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    for (int r = 0; r < RUNS; r++) {
+      for (int i = 0; i < lines.length; i++) {
+        previousSplitQuoted(lines[i], DELIMITER, '"');
+      }
+    }
+    long previous = System.currentTimeMillis() - start;
+    log.info("splitQuoted " + LINES * RUNS + " lines: DelimitedStringParser " + parser + "ms, previous " 
+      + previous + "ms");
+  }
+
+  /**
+   * Lines of 20 fields, every fourth one quoted and holding a delimiter if <code>quoted</code>.
+   */
+  private static String[] generateLines(boolean quoted) {
+    String[] lines = new String[LINES];
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < LINES; i++) {
+      sb.setLength(0);
+      for (int f = 0; f < 20; f++) {
+        if (f > 0) {
+          sb.append(DELIMITER);
+        }
+        if (quoted && f % 4 == 0) {
+          sb.append("\"Smith, J").append(i).append("\"");
+        } else {
+          sb.append("field").append(f).append('-').append(i * 31 + f);
+        }
+      }
+      lines[i] = sb.toString();
+    }
+    return lines;
+  }
+
+  /**
+   * The literal delimiter split AbstractDelimitedStringConvertor used before DelimitedStringParser.
+   */
+  private static String[] previousSplit(String delimitedString, String delimiter) {
+    char[] chars = delimitedString.toCharArray();
+    List strings = new ArrayList();
+    StringBuffer buffer = new StringBuffer();
+    for (int i = 0; i < chars.length; i++) {
+      buffer.append(chars[i]);
+      if (buffer.toString().endsWith(delimiter)) {
+        strings.add(buffer.substring(0, buffer.length() - delimiter.length()));
+        buffer.setLength(0);
+      }
+    }
+    strings.add(buffer.toString());
+    return (String[]) strings.toArray(new String[strings.size()]);
+  }
+
+  /**
+   * The quoted split AbstractDelimitedStringConvertor used before DelimitedStringParser, 
+   * without quote escaping.
+   */
+  private static String[] previousSplitQuoted(String str, String delimiter, char quoteChar) {
+    char[] chars = str.toCharArray();
+    List strings = new ArrayList();
+    boolean inQuotes = false;
+    String parsed = "";
+    for (int i = 0; i < chars.length; i++) {
+      parsed += chars[i];
+      if (inQuotes) {
+        inQuotes = chars[i] != quoteChar;
+      } else if (chars[i] == quoteChar) {
+        inQuotes = str.indexOf(quoteChar, i + 1) != -1;
+      } else if (parsed.endsWith(delimiter)) {
+        strings.add(parsed.substring(0, parsed.length() - delimiter.length()));
+        parsed = "";
+      }
+    }
+    strings.add(parsed);
+    return (String[]) strings.toArray(new String[strings.size()]);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.processor.xml;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.DocumentHelper;
+
+/**
+ * Compares streamed String and byte[] transforms of a ~1MB trade document against
+ * transforms of a pre-parsed dom4j document (which is what String records used to
+ * go through), and logs the timings. Kept out of the unit tests as it is slow and
+ * only of interest when working on {@link XsltProcessor}.
+ */
+public class XsltProcessorBenchmarkTestCase extends TestCase {
+
+  private static final Log log = LogFactory.getLog(XsltProcessorBenchmarkTestCase.class);
+
+  private static final int TRADES = 1400;
+
+  private static final int ITERATIONS = 5;
+
+  private static final String TRADE_IDS_XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+      + "<xsl:output method=\"text\" encoding=\"UTF-8\"/>"
+      + "<xsl:template match=\"/\"><xsl:for-each select=\"trades/trade\">"
+      + "<xsl:value-of select=\"tradeHeader/partyTradeIdentifier/tradeId\"/>,</xsl:for-each></xsl:template>"
+      + "</xsl:stylesheet>";
+
+  private XsltProcessor processor = new XsltProcessor();
+
+  public void testLargeDocument() throws Exception {
+    validateTransform(TRADE_IDS_XSL);
+    String xml = trades(TRADES);
+    assertTrue(xml.length() > 1024 * 1024);
+    String expected = expectedIds(TRADES);
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertEquals(expected, processor.process(DocumentHelper.parseText(xml))[0]);
+    }
+    long dom = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertEquals(expected, processor.process(xml)[0]);
+    }
+    long stream = System.currentTimeMillis() - start;
+
+    processor.setOutputBytes(true);
+    start = System.currentTimeMillis();
+    byte[] bytes = xml.getBytes("UTF-8");
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertEquals(expected, new String((byte[]) processor.process(bytes)[0], "UTF-8"));
+    }
+    long streamBytes = System.currentTimeMillis() - start;
+
+    log.info("XsltProcessor " + xml.length() + " chars x " + ITERATIONS + ": dom4j=" + dom + "ms, string="
+        + stream + "ms, bytes=" + streamBytes + "ms");
+  }
+
+  /**
+   * Builds an FpML like document containing the given number of trades
+   */
+  private static String trades(int count) {
+    StringBuffer sb = new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?><trades>");
+    for (int i = 0; i < count; i++) {
+      sb.append("<trade><tradeHeader><partyTradeIdentifier><partyReference href=\"party1\"/><tradeId tradeIdScheme=\"http://www.partyA.com/swaps/trade-id\">T")
+        .append(i).append("</tradeId></partyTradeIdentifier><tradeDate>2006-01-04</tradeDate></tradeHeader>");
+      sb.append("<swap><swapStream><payerPartyReference href=\"party1\"/><receiverPartyReference href=\"party2\"/>");
+      sb.append("<calculationPeriodDates id=\"floatingCalcPeriodDates\"><effectiveDate><unadjustedDate>2006-01-06</unadjustedDate>");
+      sb.append("<dateAdjustments><businessDayConvention>NONE</businessDayConvention></dateAdjustments></effectiveDate>");
+      sb.append("<terminationDate><unadjustedDate>2011-01-06</unadjustedDate></terminationDate></calculationPeriodDates>");
+      sb.append("<notionalStepSchedule><initialValue>").append(1000000 + i).append("</initialValue><currency>EUR</currency>");
+      sb.append("</notionalStepSchedule></swapStream></swap></trade>");
+    }
+    return sb.append("</trades>").toString();
+  }
+
+  private static String expectedIds(int count) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < count; i++) {
+      sb.append('T').append(i).append(',');
+    }
+    return sb.toString();
+  }
+
+  private void validateTransform(String xsl) throws Exception {
+    File file = File.createTempFile("transform", ".xsl");
+    file.deleteOnExit();
+    FileWriter writer = new FileWriter(file);
+    writer.write(xsl);
+    writer.close();
+    processor.setXsltFile(file.getAbsolutePath());
+    List exceptions = new ArrayList();
+    processor.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.thirdparty.json;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONObject;
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+
+/**
+ * Times the streaming JSON convertors against going through a JSONObject, on a
+ * position document of about 500KB, and logs the results. Kept out of the unit
+ * tests as it is slow and only of interest when working on the convertors.
+ */
+public class JSONConvertorBenchmarkTestCase extends TestCase {
+
+  private static final Log log = LogFactory.getLog(JSONConvertorBenchmarkTestCase.class);
+
+  private static final int SIZE = 500 * 1024;
+
+  private static final int RUNS = 20;
+
+  public void testReadLargeDocument() throws Exception {
+    JSONToOrderedMapConvertor reader = new JSONToOrderedMapConvertor();
+    reader.validate(new ArrayList());
+    byte[] bytes = generatePositions(SIZE).getBytes("UTF-8");
+    IOrderedMap positions = (IOrderedMap) ((IOrderedMap) reader.process(bytes)[0]).get("positions");
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < RUNS; i++) {
+      reader.process(bytes);
+    }
+    long streaming = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    for (int i = 0; i < RUNS; i++) {
+      reader.process(new JSONObject(new String(bytes, "UTF-8")));
+    }
+    long viaJSONObject = System.currentTimeMillis() - start;
+    log.info("JSONToOrderedMapConvertor " + positions.size() + " positions (" + bytes.length / 1024
+      + "KB) x " + RUNS + ": streaming " + streaming + "ms, via JSONObject " + viaJSONObject + "ms");
+  }
+
+  public void testWriteLargeDocument() throws Exception {
+    JSONToOrderedMapConvertor reader = new JSONToOrderedMapConvertor();
+    reader.validate(new ArrayList());
+    IOrderedMap map = (IOrderedMap) reader.process(generatePositions(SIZE))[0];
+    OrderedMapToJSONConvertor writer = new OrderedMapToJSONConvertor();
+    writer.setAsText(true);
+    writer.validate(new ArrayList());
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < RUNS; i++) {
+      writer.process(map);
+    }
+    long direct = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    for (int i = 0; i < RUNS; i++) {
+      writer.jsonObjectFromOM(map).toString();
+    }
+    long viaJSONObject = System.currentTimeMillis() - start;
+    log.info("OrderedMapToJSONConvertor " + SIZE / 1024 + "KB x " + RUNS + ": direct " + direct 
+      + "ms, via JSONObject " + viaJSONObject + "ms");
+  }
+
+  private static String generatePositions(int size) {
+    StringBuffer sb = new StringBuffer(size + 1024);
+    sb.append("{\"asOf\": \"2010-06-30\", \"positions\": [");
+    for (int i = 0; sb.length() < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append("{\"id\": \"P").append(i).append("\", \"book\": \"BOOK-").append(i % 17);
+      sb.append("\", \"instrument\": {\"isin\": \"GB00").append(1000000 + i).append("\", \"type\": \"BOND\"}");
+      sb.append(", \"quantity\": ").append(i * 250).append(", \"price\": ").append(99.5 + i % 100 / 100.0);
+      sb.append(", \"active\": ").append(i % 3 != 0).append(", \"tags\": [\"eod\", \"gbp\"]}");
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+}
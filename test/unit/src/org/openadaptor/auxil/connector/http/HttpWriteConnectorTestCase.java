@@ -0,0 +1,203 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.connector.http;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.core.exception.ConnectionException;
+
+/**
+ * Tests the pooled mode of {@link HttpWriteConnector} against an embedded Jetty server.
+ */
+public class HttpWriteConnectorTestCase extends TestCase {
+
+  private ServletContainer container;
+
+  private RecordingServlet servlet = new RecordingServlet();
+
+  private HttpWriteConnector connector = new HttpWriteConnector("writer");
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    ServerSocket probe = new ServerSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    container = new ServletContainer();
+    container.setPort(port);
+    container.addServlet(servlet, "/post");
+    container.start();
+    connector.setUrl("http://localhost:" + port + "/post");
+  }
+
+  protected void tearDown() throws Exception {
+    connector.disconnect();
+    container.stop();
+    super.tearDown();
+  }
+
+  public void testConcurrentRequests() {
+    connector.setMaxInFlightRequests(4);
+    connector.connect();
+    Object[] data = records(8);
+    connector.deliver(data);
+
+    assertEquals(8, servlet.requests.get());
+    assertEquals(new HashSet(Arrays.asList(data)), new HashSet(servlet.values));
+    assertTrue("max concurrent requests " + servlet.maxConcurrent, servlet.maxConcurrent.get() > 1);
+    assertTrue(servlet.maxConcurrent.get() <= 4);
+    assertEquals(8, connector.getRequestCount());
+    assertEquals(0, connector.getFailedRequestCount());
+    assertTrue(connector.getRequestLatencyMicros(50) >= servlet.delayMs * 1000);
+  }
+
+  public void testRecordsPerRequest() {
+    connector.setMaxInFlightRequests(2);
+    connector.setRecordsPerRequest(3);
+    connector.connect();
+    connector.deliver(records(7));
+    assertEquals(3, servlet.requests.get());
+    assertEquals(7, servlet.values.size());
+
+    // also applies when posting one request at a time
+    HttpWriteConnector sequential = new HttpWriteConnector("sequential");
+    sequential.setUrl(connector.url);
+    sequential.setRecordsPerRequest(3);
+    sequential.connect();
+    sequential.deliver(records(4));
+    assertEquals(5, servlet.requests.get());
+    assertEquals(11, servlet.values.size());
+  }
+
+  public void testFailedRequests() {
+    connector.setMaxInFlightRequests(2);
+    connector.connect();
+    servlet.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    try {
+      connector.deliver(records(3));
+      fail("expected ConnectionException");
+    } catch (ConnectionException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("3 of 3") >= 0);
+    }
+    assertEquals(3, connector.getFailedRequestCount());
+  }
+
+  /**
+   * Only the records of the requests that failed are reported.
+   */
+  public void testPartlyFailedRequests() {
+    connector.setMaxInFlightRequests(2);
+    connector.setRecordsPerRequest(2);
+    connector.connect();
+    servlet.failing = "record2";
+    try {
+      connector.deliver(records(5));
+      fail("expected HttpPostException");
+    } catch (HttpPostException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("1 of 3") >= 0);
+      assertEquals(Arrays.asList(new Object[] {"record2", "record3"}), Arrays.asList(e.getFailedRecords()));
+    }
+    assertEquals(1, connector.getFailedRequestCount());
+  }
+
+  public void testRequestTimeout() {
+    connector.setMaxInFlightRequests(2);
+    connector.setRequestTimeoutMs(100);
+    servlet.delayMs = 1000;
+    connector.connect();
+    long start = System.currentTimeMillis();
+    try {
+      connector.deliver(records(2));
+      fail("expected ConnectionException");
+    } catch (ConnectionException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 900);
+  }
+
+  public void testRequestTimeoutPostingOneAtATime() {
+    connector.setRequestTimeoutMs(100);
+    connector.connect();
+    assertEquals(100, connector.client.getHttpConnectionManager().getParams().getConnectionTimeout());
+  }
+
+  private static Object[] records(int count) {
+    Object[] records = new Object[count];
+    for (int i = 0; i < count; i++) {
+      records[i] = "record" + i;
+    }
+    return records;
+  }
+
+  private static final class RecordingServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final List values = Collections.synchronizedList(new ArrayList());
+    private volatile int status = HttpServletResponse.SC_OK;
+    private volatile long delayMs = 50;
+    private volatile String failing;
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      int now = concurrent.incrementAndGet();
+      synchronized (maxConcurrent) {
+        if (now > maxConcurrent.get()) {
+          maxConcurrent.set(now);
+        }
+      }
+      try {
+        Thread.sleep(delayMs);
+      } catch (InterruptedException e) {
+      }
+      String[] data = request.getParameterValues(HttpWriteConnector.RESPONSE_KEY);
+      for (int i = 0; data != null && i < data.length; i++) {
+        values.add(data[i]);
+      }
+      requests.incrementAndGet();
+      concurrent.decrementAndGet();
+      if (failing != null && data != null && Arrays.asList(data).contains(failing)) {
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+      response.setStatus(status);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.openadaptor.auxil.connector.iostream.reader;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.core.transaction.ITransactionalResource;
+import org.openadaptor.util.ResourceUtil;
+
+public class MappedFileReadConnectorTestCase extends TestCase {
+
+  private File dataFile;
+  private File checkpointFile;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    dataFile = File.createTempFile("mapped", ".txt");
+    checkpointFile = new File(dataFile.getPath() + ".checkpoint");
+    FileWriter writer = new FileWriter(dataFile);
+    for (int i = 0; i < 1000; i++) {
+      writer.write("line" + i + (i % 2 == 0 ? "\n" : "\r\n"));
+    }
+    writer.write("last"); //No trailing line separator
+    writer.close();
+  }
+
+  protected void tearDown() throws Exception {
+    dataFile.delete();
+    checkpointFile.delete();
+    super.tearDown();
+  }
+
+  private MappedFileReadConnector createConnector(String filename) {
+    MappedFileReadConnector connector = new MappedFileReadConnector("reader");
+    connector.setFilename(filename);
+    connector.setChunkSize(64);
+    connector.setThreadCount(3);
+    connector.setBatchSize(7);
+    List exceptions = new ArrayList();
+    connector.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+    return connector;
+  }
+
+  private List readAll(MappedFileReadConnector connector, int maxBatches) {
+    List lines = new ArrayList();
+    for (int batches = 0; batches < maxBatches && !connector.isDry(); ) {
+      Object[] data = connector.next(1000);
+      if (data != null && data.length > 0) {
+        for (int i = 0; i < data.length; i++) {
+          lines.add(data[i]);
+        }
+        batches++;
+      }
+    }
+    return lines;
+  }
+
+  public void testLineReader() throws IOException {
+    MappedFileReadConnector connector = createConnector(ResourceUtil.getResourcePath(this, "test/unit/src/", "test.txt"));
+    connector.setChunkSize(5);
+    connector.connect();
+    StringBuffer buffer = new StringBuffer();
+    List lines = readAll(connector, Integer.MAX_VALUE);
+    for (int i = 0; i < lines.size(); i++) {
+      buffer.append(lines.get(i) + "\n");
+    }
+    connector.disconnect();
+    String fileContents = ResourceUtil.readFileContents(this, "test.txt");
+    fileContents = ResourceUtil.removeCarriageReturns(fileContents);
+    assertEquals(fileContents, buffer.toString());
+  }
+
+  public void testExcludeRegex() throws IOException {
+    MappedFileReadConnector connector = createConnector(ResourceUtil.getResourcePath(this, "test/unit/src/", "test2.txt"));
+    connector.setExcludeRegex("^#.*");
+    connector.connect();
+    StringBuffer buffer = new StringBuffer();
+    List lines = readAll(connector, Integer.MAX_VALUE);
+    for (int i = 0; i < lines.size(); i++) {
+      buffer.append(lines.get(i) + "\n");
+    }
+    connector.disconnect();
+    String fileContents = ResourceUtil.readFileContents(this, "test.txt");
+    fileContents = ResourceUtil.removeCarriageReturns(fileContents);
+    assertEquals(fileContents, buffer.toString());
+  }
+
+  public void testOrdered() {
+    MappedFileReadConnector connector = createConnector(dataFile.getPath());
+    connector.setIncludeRegex("line.*");
+    connector.connect();
+    List lines = readAll(connector, Integer.MAX_VALUE);
+    connector.disconnect();
+    assertEquals(1000, lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      assertEquals("line" + i, lines.get(i));
+    }
+  }
+
+  public void testUnordered() {
+    MappedFileReadConnector connector = createConnector(dataFile.getPath());
+    connector.setOrdered(false);
+    connector.connect();
+    Set lines = new HashSet(readAll(connector, Integer.MAX_VALUE));
+    connector.disconnect();
+    assertEquals(1001, lines.size());
+    assertTrue(lines.contains("line0"));
+    assertTrue(lines.contains("line999"));
+    assertTrue(lines.contains("last"));
+  }
+
+  public void testResumeFromCheckpoint() {
+    MappedFileReadConnector connector = createConnector(dataFile.getPath());
+    connector.setChunkSize(4096); //Keep batches whole
+    connector.setCheckpointFilename(checkpointFile.getPath());
+    connector.connect();
+    List first = readAll(connector, 10);
+    connector.disconnect();
+    assertEquals(70, first.size());
+    assertTrue(checkpointFile.exists());
+
+    connector = createConnector(dataFile.getPath());
+    connector.setChunkSize(4096);
+    connector.setCheckpointFilename(checkpointFile.getPath());
+    connector.connect();
+    List rest = readAll(connector, Integer.MAX_VALUE);
+    connector.disconnect();
+    assertEquals("line70", rest.get(0));
+    assertEquals(1001, first.size() + rest.size());
+    assertFalse("checkpoint should be removed once the file is read", checkpointFile.exists());
+  }
+
+  public void testRollbackStopsCheckpointing() {
+    MappedFileReadConnector connector = createConnector(dataFile.getPath());
+    connector.setChunkSize(4096); //Keep batches whole
+    connector.setCheckpointFilename(checkpointFile.getPath());
+    ITransactionalResource resource = (ITransactionalResource) connector.getResource();
+    connector.connect();
+    connector.next(1000);
+    resource.commit();
+    long committed = connector.getCommittedOffset();
+    assertTrue(committed > 0);
+    connector.next(1000);
+    resource.rollback(null);
+    connector.next(1000);
+    resource.commit();
+    connector.disconnect();
+    assertEquals(committed, connector.getCommittedOffset());
+
+    connector = createConnector(dataFile.getPath());
+    connector.setChunkSize(4096);
+    connector.setCheckpointFilename(checkpointFile.getPath());
+    connector.connect();
+    Object[] data = connector.next(1000);
+    connector.disconnect();
+    assertEquals("line7", data[0]);
+  }
+
+  public void testValidation() {
+    MappedFileReadConnector connector = new MappedFileReadConnector("reader");
+    List exceptions = new ArrayList();
+    connector.validate(exceptions);
+    assertEquals(1, exceptions.size());
+
+    exceptions.clear();
+    connector.setFilename(dataFile.getPath());
+    connector.setChunkSize(0);
+    connector.setEncoding("UTF-16");
+    connector.validate(exceptions);
+    assertEquals(2, exceptions.size());
+  }
+}
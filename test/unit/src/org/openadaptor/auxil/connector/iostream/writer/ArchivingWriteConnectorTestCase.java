@@ -126,6 +126,97 @@ public class ArchivingWriteConnectorTestCase extends TestCase {
 		assertTrue("File04.txt should still be left in directory",(new File(testPath + "/" + "File04.txt")).exists());
 	}
 
+	/**
+	 * The directory is indexed at connection, and checked after each delivery.<br>
+	 * A file added to the directory later is picked up, and the next oldest file deleted.
+	 */
+	public void testCheckAfterDelivery() {
+		prepareTest5();
+		String testPath = DIR + "/" + TEST_DIR_5;
+		ArchivingFileWriterConnector ac = createConnector(testPath);
+		ac.connect();
+		ac.deliver(new Object[] {"larry"});
+		assertTrue("File01.txt should not be left in directory",!(new File(testPath + "/" + "File01.txt")).exists());
+		assertTrue("File02.txt should still be left in directory",(new File(testPath + "/" + "File02.txt")).exists());
+		assertEquals(sizeOf(testPath), ac.getDirSize());
+		assertEquals(3, ac.getSortedFilesMap().size());
+
+		preCopyFile(TEST_DIR_5, "File01.txt", 0);
+		new File(testPath + "/" + "File01.txt").renameTo(new File(testPath + "/" + "File06.txt"));
+		ac.deliver(new Object[] {"curly"});
+		ac.disconnect();
+		assertTrue("File02.txt should not be left in directory",!(new File(testPath + "/" + "File02.txt")).exists());
+		assertTrue("File06.txt should still be left in directory",(new File(testPath + "/" + "File06.txt")).exists());
+		assertTrue("File05.txt should still be left in directory",(new File(testPath + "/" + "File05.txt")).exists());
+	}
+
+	/**
+	 * Checks after delivery may be made on a background thread.
+	 */
+	public void testBackgroundEviction() throws InterruptedException {
+		prepareTest5();
+		String testPath = DIR + "/" + TEST_DIR_5;
+		ArchivingFileWriterConnector ac = createConnector(testPath);
+		ac.setBackgroundEviction(true);
+		ac.connect();
+		ac.deliver(new Object[] {"larry"});
+		File oldest = new File(testPath + "/" + "File01.txt");
+		for (int i = 0; i < 100 && oldest.exists(); i++) {
+			Thread.sleep(50);
+		}
+		ac.disconnect();
+		assertTrue("File01.txt should not be left in directory",!oldest.exists());
+		assertTrue("File02.txt should still be left in directory",(new File(testPath + "/" + "File02.txt")).exists());
+	}
+
+	/**
+	 * Rollovers done by the delegate are applied to the index, they don't make the
+	 * connector index the whole directory again.
+	 */
+	public void testRolloverDoesNotRescan() throws InterruptedException {
+		String testPath = DIR + "/rollover";
+		new File(testPath).mkdirs();
+		FileWriteConnector writer = new FileWriteConnector("writer");
+		writer.setFilename(testPath + "/" + "out.txt");
+		writer.setRolloverSize("1b");
+		ArchivingFileWriterConnector ac = new ArchivingFileWriterConnector("archiver");
+		ac.setDelegate(writer);
+		ac.setMaxDirSize(1);
+		ac.setCheckAfterDelivery(true);
+		ac.connect();
+		ac.deliver(new Object[] {"larry"});
+		int indexCount = ac.getIndexCount();
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(5);
+			ac.deliver(new Object[] {"curly" + i});
+		}
+		ac.disconnect();
+		assertEquals(6, new File(testPath).listFiles().length);
+		assertEquals(indexCount, ac.getIndexCount());
+		assertEquals(sizeOf(testPath), ac.getDirSize());
+		// the current file is never evicted
+		assertEquals(5, ac.getSortedFilesMap().size());
+	}
+
+	private ArchivingFileWriterConnector createConnector(String testPath) {
+		FileWriteConnector writer = new FileWriteConnector("writer");
+		writer.setFilename(testPath + "/" + "File05.txt");
+		ArchivingFileWriterConnector ac = new ArchivingFileWriterConnector("archiver");
+		ac.setDelegate(writer);
+		ac.setMaxDirSize(2);
+		ac.setCheckAfterDelivery(true);
+		return ac;
+	}
+
+	private long sizeOf(String path) {
+		long size = 0;
+		File[] files = new File(path).listFiles();
+		for (int i = 0; i < files.length; i++) {
+			size += files[i].length();
+		}
+		return size;
+	}
+
 	private void prepareTest1() {
 		String copyFile;
 		String testDir = TEST_DIR_1;
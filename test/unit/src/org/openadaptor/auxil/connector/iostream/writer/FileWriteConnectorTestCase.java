@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.openadaptor.core.IWriteConnector;
+import org.openadaptor.core.exception.ConnectionException;
 import org.openadaptor.util.ResourceUtil;
 
 import junit.framework.TestCase;
@@ -78,6 +79,103 @@ public class FileWriteConnectorTestCase extends TestCase {
     tempFile.delete();
   }
   
+  /**
+   * Tests that buffered output is only written on flush or disconnect.
+   */
+  public void testBufferedWrite() throws IOException {
+    FileWriteConnector connector = new FileWriteConnector("writer");
+    File tempFile = File.createTempFile("xyz", ".txt", dir);
+    connector.setFilename(tempFile.getAbsolutePath());
+    connector.setBufferSize(8192);
+    connector.setFlushIntervalMs(0);
+    connector.connect();
+    connector.deliver(new Object[] {"larry"});
+    assertEquals(0, tempFile.length());
+    connector.flush();
+    verifyFileContent(tempFile.getAbsolutePath(), "larry\n");
+
+    connector.deliver(new Object[] {"curly", "mo"});
+    assertEquals(6, tempFile.length());
+    connector.flush();
+    verifyFileContent(tempFile.getAbsolutePath(), TEST_FILE_CONTENT);
+
+    connector.deliver(new Object[] {"shemp"});
+    connector.disconnect();
+    verifyFileContent(tempFile.getAbsolutePath(), TEST_FILE_CONTENT + "shemp\n");
+    tempFile.delete();
+  }
+
+  /**
+   * Tests buffered output through a FileChannel, with sync on flush.
+   */
+  public void testBufferedWriteWithFileChannel() throws IOException {
+    FileWriteConnector connector = new FileWriteConnector("writer");
+    File tempFile = File.createTempFile("xyz", ".txt", dir);
+    connector.setFilename(tempFile.getAbsolutePath());
+    connector.setBufferSize(4); //Smaller than the data, to force partial writes
+    connector.setUseFileChannel(true);
+    connector.setSyncOnFlush(true);
+    runWriter(connector);
+    runWriter(connector);
+    verifyFileContent(tempFile.getAbsolutePath(), TEST_FILE_CONTENT + TEST_FILE_CONTENT);
+    tempFile.delete();
+  }
+
+  /**
+   * Tests that buffered mode rolls over using the bytes it has written.
+   */
+  public void testBufferedRolloverSize() throws IOException {
+    FileWriteConnector connector = new FileWriteConnector("writer");
+    File tempFile = File.createTempFile("xyz", ".txt", dir);
+    connector.setFilename(tempFile.getAbsolutePath());
+    connector.setBufferSize(8192);
+    connector.setRolloverSize("10b");
+    connector.setFlushIntervalMs(0);
+    connector.connect();
+    connector.deliver(new Object[] {"larry", "curly"}); 
+    connector.flush(); //12 bytes written
+    connector.deliver(new Object[] {"mo"});
+    String lastFileMovedTo = connector.getLastFileMovedTo();
+    connector.disconnect();
+    assertNotNull(lastFileMovedTo);
+    verifyFileContent(lastFileMovedTo, "larry\ncurly\n");
+    verifyFileContent(tempFile.getAbsolutePath(), "mo\n");
+    new File(lastFileMovedTo).delete();
+    tempFile.delete();
+  }
+
+  /**
+   * Tests that a failure of the flush timer is reported by the next delivery.
+   */
+  public void testTimedFlushFailureReported() throws Exception {
+    final boolean[] failFlush = new boolean[] {true};
+    FileWriteConnector connector = new FileWriteConnector("writer") {
+      protected void flushData() throws IOException {
+        if (failFlush[0]) {
+          throw new IOException("Dummy flush failure");
+        }
+        super.flushData();
+      }
+    };
+    File tempFile = File.createTempFile("xyz", ".txt", dir);
+    connector.setFilename(tempFile.getAbsolutePath());
+    connector.setBufferSize(8192);
+    connector.setFlushIntervalMs(20);
+    connector.connect();
+    connector.deliver(new Object[] {"larry"});
+    Thread.sleep(200);
+    try {
+      connector.deliver(new Object[] {"curly"});
+      fail("Expected the timed flush failure to be reported");
+    } catch (ConnectionException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("Dummy flush failure") >= 0);
+    }
+    failFlush[0] = false;
+    connector.disconnect();
+    verifyFileContent(tempFile.getAbsolutePath(), "larry\n");
+    tempFile.delete();
+  }
+
 //  /**
 //   * Tests if the existing file is rolled over when it reaches 
 //   * certain size.
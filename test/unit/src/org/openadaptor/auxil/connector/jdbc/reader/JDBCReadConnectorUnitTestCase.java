@@ -26,6 +26,7 @@
  */
 package org.openadaptor.auxil.connector.jdbc.reader;
 
+import java.math.BigDecimal;
 import java.sql.CallableStatement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -543,6 +544,169 @@ public class JDBCReadConnectorUnitTestCase extends AbstractJDBCConnectorTest{
     assertEquals(jdbcReadConnector.postSubstitutionSql, null);
   }
   
+  /**
+   * Test for {@link JDBCReadConnector#next(IOrderedMap, long)} with usePreparedStatement set.
+   * The statement is prepared once and the parameters are bound rather than substituted.
+   */
+  public void testNextWithPreparedStatement(){
+    String sql = "SELECT a FROM TABLE1 WHERE a=?";
+    jdbcReadConnector.setSql(sql);
+    jdbcReadConnector.setUsePreparedStatement(true);
+    Mock mockPreparedStatement = new Mock(PreparedStatement.class);
+    mockSqlConnection.expects(once()).method("createStatement").will(returnValue(mockStatement.proxy()));
+    mockSqlConnection.expects(once()).method("prepareStatement").with(eq(sql)).will(returnValue(mockPreparedStatement.proxy()));
+    mockPreparedStatement.expects(exactly(2)).method("clearParameters");
+    mockPreparedStatement.expects(once()).method("setObject").with(eq(1), eq("1"));
+    mockPreparedStatement.expects(once()).method("setObject").with(eq(1), eq("2"));
+    mockPreparedStatement.expects(exactly(2)).method("executeQuery").will(returnValue(mockResultSet.proxy()));
+    stubOneColumnRows(new Object[]{TEST_STRING, TEST_STRING});
+    mockResultSet.expects(exactly(2)).method("close");
+    jdbcReadConnector.connect();
+    
+    Object [] arr = jdbcReadConnector.next(singleParameter("1"), 10);
+    assertEquals("Unexpected result count", 1, arr.length);
+    assertEquals(TEST_STRING, ((Map) arr[0]).get(COL1));
+    arr = jdbcReadConnector.next(singleParameter("2"), 10);
+    assertEquals("Unexpected result count", 1, arr.length);
+    assertNull(jdbcReadConnector.postSubstitutionSql);
+  }
+  
+  /**
+   * Test for {@link JDBCReadConnector#next(IOrderedMap, long)} with caching enabled.
+   * The second lookup with the same parameters does not query the database.
+   */
+  public void testNextWithCache(){
+    jdbcReadConnector.setCacheSize(10);
+    setMocksToReturnNumberOfRows(1);
+    mockResultSet.expects(atLeastOnce()).method("next").will(returnValue(true));
+    jdbcReadConnector.connect();
+    
+    Object [] arr = jdbcReadConnector.next(singleParameter("1"), 10);
+    assertEquals("Unexpected result count", 1, arr.length);
+    Object [] cached = jdbcReadConnector.next(singleParameter("1"), 10);
+    assertEquals("Unexpected result count", 1, cached.length);
+    assertEquals(arr[0], cached[0]);
+    assertNotSame("Cached results must be copied", arr[0], cached[0]);
+  }
+  
+  /**
+   * Test for {@link JDBCReadConnector#next(IOrderedMap[], long)}.
+   * Three records are resolved with one query, rows are matched by the key column.
+   */
+  public void testBatchNext(){
+    String sql = "SELECT a FROM TABLE1 WHERE a IN (?)";
+    jdbcReadConnector.setSql(sql);
+    jdbcReadConnector.setBatchKeyColumn(COL1);
+    Mock mockPreparedStatement = new Mock(PreparedStatement.class);
+    mockSqlConnection.expects(once()).method("createStatement").will(returnValue(mockStatement.proxy()));
+    mockSqlConnection.expects(once()).method("prepareStatement").with(eq("SELECT a FROM TABLE1 WHERE a IN (?,?)"))
+        .will(returnValue(mockPreparedStatement.proxy()));
+    mockPreparedStatement.expects(once()).method("setObject").with(eq(1), eq("A"));
+    mockPreparedStatement.expects(once()).method("setObject").with(eq(2), eq("B"));
+    mockPreparedStatement.expects(once()).method("executeQuery").will(returnValue(mockResultSet.proxy()));
+    mockPreparedStatement.expects(once()).method("close");
+    stubOneColumnRows(new Object[]{"A"});
+    mockResultSet.expects(once()).method("close");
+    jdbcReadConnector.connect();
+    
+    Object [][] results = jdbcReadConnector.next(
+        new IOrderedMap[]{singleParameter("A"), singleParameter("B"), singleParameter("A")}, 10);
+    assertEquals(3, results.length);
+    assertEquals(1, results[0].length);
+    assertEquals("A", ((Map) results[0][0]).get(COL1));
+    assertEquals(0, results[1].length);
+    assertEquals(1, results[2].length);
+    assertNotSame(results[0][0], results[2][0]);
+  }
+  
+  /**
+   * Batch keys are matched on normalised values, pre and post read SQL run around the
+   * batch query and a null key is still looked up with its own query.
+   */
+  public void testBatchNextNormalisedKeys(){
+    String sql = "SELECT a FROM TABLE1 WHERE a IN (?)";
+    jdbcReadConnector.setSql(sql);
+    jdbcReadConnector.setBatchKeyColumn(COL1);
+    jdbcReadConnector.setUsePreparedStatement(true);
+    jdbcReadConnector.setPreReadSql("UPDATE PRE");
+    jdbcReadConnector.setPostReadSql("UPDATE POST");
+    Mock mockBatchStatement = new Mock(PreparedStatement.class);
+    Mock mockSingleStatement = new Mock(PreparedStatement.class);
+    Mock mockPreStatement = new Mock(PreparedStatement.class);
+    Mock mockPostStatement = new Mock(PreparedStatement.class);
+    Mock mockEmptyResultSet = new Mock(ResultSet.class);
+    mockSqlConnection.expects(once()).method("createStatement").will(returnValue(mockStatement.proxy()));
+    mockSqlConnection.expects(exactly(2)).method("prepareStatement").with(eq("UPDATE PRE"))
+        .will(returnValue(mockPreStatement.proxy()));
+    mockSqlConnection.expects(exactly(2)).method("prepareStatement").with(eq("UPDATE POST"))
+        .will(returnValue(mockPostStatement.proxy()));
+    mockPreStatement.expects(exactly(2)).method("execute").will(returnValue(false));
+    mockPreStatement.expects(exactly(2)).method("close");
+    mockPostStatement.expects(exactly(2)).method("execute").will(returnValue(false));
+    mockPostStatement.expects(exactly(2)).method("close");
+
+    /* the null key is looked up on its own */
+    mockSqlConnection.expects(once()).method("prepareStatement").with(eq(sql))
+        .will(returnValue(mockSingleStatement.proxy()));
+    mockSingleStatement.expects(once()).method("clearParameters");
+    mockSingleStatement.expects(once()).method("setObject").with(eq(1), NULL);
+    mockSingleStatement.expects(once()).method("executeQuery").will(returnValue(mockEmptyResultSet.proxy()));
+    mockEmptyResultSet.stubs().method("getMetaData").will(returnValue(mockResultSetMetaData.proxy()));
+    mockEmptyResultSet.stubs().method("next").will(returnValue(false));
+    mockEmptyResultSet.expects(once()).method("close");
+
+    mockSqlConnection.expects(once()).method("prepareStatement").with(eq("SELECT a FROM TABLE1 WHERE a IN (?,?)"))
+        .will(returnValue(mockBatchStatement.proxy()));
+    mockBatchStatement.expects(once()).method("setObject").with(eq(1), eq(new BigDecimal("1.0")));
+    mockBatchStatement.expects(once()).method("setObject").with(eq(2), eq("B"));
+    mockBatchStatement.expects(once()).method("executeQuery").will(returnValue(mockResultSet.proxy()));
+    mockBatchStatement.expects(once()).method("close");
+    stubOneColumnRows(new Object[]{new BigDecimal("1.00"), "B  "});
+    mockResultSet.expects(once()).method("close");
+    jdbcReadConnector.connect();
+
+    Object [][] results = jdbcReadConnector.next(
+        new IOrderedMap[]{singleParameter(new BigDecimal("1.0")), singleParameter("B"), singleParameter(null)}, 10);
+    assertEquals(1, results[0].length);
+    assertEquals(new BigDecimal("1.00"), ((Map) results[0][0]).get(COL1));
+    assertEquals(1, results[1].length);
+    assertEquals("B  ", ((Map) results[1][0]).get(COL1));
+    assertEquals(0, results[2].length);
+  }
+
+  public void testBatchKey(){
+    assertEquals(JDBCReadConnector.batchKey(new Integer(10)), JDBCReadConnector.batchKey(new BigDecimal("10.00")));
+    assertEquals(JDBCReadConnector.batchKey("10"), JDBCReadConnector.batchKey(new Long(10)));
+    assertEquals(JDBCReadConnector.batchKey(new BigDecimal("0.000")), JDBCReadConnector.batchKey(new Integer(0)));
+    assertEquals("AB", JDBCReadConnector.batchKey("AB   "));
+    assertFalse(JDBCReadConnector.batchKey("01").equals(JDBCReadConnector.batchKey("1")));
+  }
+
+  private IOrderedMap singleParameter(Object value){
+    IOrderedMap params = new OrderedHashMap();
+    params.put("param1", value);
+    return params;
+  }
+  
+  /**
+   * Stubs the result set to return one row with value in COL1 for each of the values, 
+   * then no more rows. 
+   */
+  private void stubOneColumnRows(Object [] values){
+    mockResultSet.stubs().method("getMetaData").will(returnValue(mockResultSetMetaData.proxy()));
+    mockResultSetMetaData.stubs().method("getColumnCount").will(returnValue(1));
+    mockResultSetMetaData.stubs().method("getColumnName").will(returnValue(COL1));
+    org.jmock.core.Stub [] next = new org.jmock.core.Stub[values.length + 1];
+    org.jmock.core.Stub [] objects = new org.jmock.core.Stub[values.length];
+    for(int i=0; i<values.length; i++){
+      next[i] = returnValue(true);
+      objects[i] = returnValue(values[i]);
+    }
+    next[values.length] = returnValue(false);
+    mockResultSet.stubs().method("next").will(onConsecutiveCalls(next));
+    mockResultSet.stubs().method("getObject").with(eq(1)).will(onConsecutiveCalls(objects));
+  }
+  
   private void connectDBEventDrivenConnector(Mock mockStatement, IReadConnector readConnector){
     /* Callable statement for the pollingReadConnector */
     mockSqlConnection.expects(once()).method("prepareCall").will(returnValue(mockStatement.proxy()));
@@ -152,6 +152,24 @@ abstract public class AbstractSQLWriterTests extends MockObjectTestCase {
     return new Object[0];
   }
 
+  /**
+   * Rows added for write-behind stay pending if they can't be written.
+   */
+  public void testFailedFlushKeepsRows() {
+    setupInitialiseExpectations(false);
+    testWriter.initialise((Connection) connectionMock.proxy());
+    IWriteBehindSQLWriter writer = (IWriteBehindSQLWriter) testWriter;
+    writer.addToBatch(new Object[] {null});
+    try {
+      writer.flushBatch();
+      fail("Expected an SQLException for null data");
+    } catch (SQLException e) {
+    }
+    assertEquals(1, writer.getPendingCount());
+    assertEquals(1, writer.discardBatch().length);
+    assertEquals(0, writer.getPendingCount());
+  }
+
   /**
    * Test writing an empty batch. Should just be ignored.
    */
@@ -29,6 +29,7 @@ package org.openadaptor.auxil.connector.jdbc.writer;
 import org.jmock.Mock;
 import org.jmock.MockObjectTestCase;
 import org.openadaptor.auxil.connector.jdbc.JDBCConnection;
+import org.openadaptor.core.IComponent;
 import org.openadaptor.core.IWriteConnector;
 import org.openadaptor.core.exception.ConnectionException;
 
@@ -37,6 +38,7 @@ import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 /*
  * File: $Header: $
@@ -280,6 +282,172 @@ public class JDBCWriteConnectorTestCase extends MockObjectTestCase {
     fail("Expected a ConnectionException");
   }
 
+  /**
+   * Write-behind mode should accumulate single record deliveries and write them
+   * as one batch once the batch size is reached, and on disconnect.
+   */
+  public void testWriteBehindAccumulatesAcrossDeliveries() {
+    JDBCWriteConnector connector = (JDBCWriteConnector) testWriteConnector;
+    StubWriteBehindWriter writer = new StubWriteBehindWriter();
+    connector.setWriter(writer);
+    connector.setWriteBehindBatchSize(3);
+    testValidate();
+    connector.connect();
+
+    connector.deliver(new Object[]{"a"});
+    connector.deliver(new Object[]{"b"});
+    assertEquals("Nothing should be written yet", 0, writer.flushes.size());
+    connector.deliver(new Object[]{"c"});
+    assertEquals(1, writer.flushes.size());
+    assertEquals(Arrays.asList(new Object[]{"a", "b", "c"}), writer.flushes.get(0));
+
+    connector.deliver(new Object[]{"d"});
+    sqlConnectionMock.expects(once()).method("close");
+    connector.disconnect();
+    assertEquals(2, writer.flushes.size());
+    assertEquals(Arrays.asList(new Object[]{"d"}), writer.flushes.get(1));
+
+    assertEquals(2, connector.getWriteBehindFlushCount());
+    assertEquals(4, connector.getWriteBehindRowCount());
+    assertEquals(4.0 / 6.0, connector.getWriteBehindFillRatio(), 0.0001);
+    assertTrue(connector.getWriteBehindFlushLatencyMicros(50) >= 0);
+  }
+
+  /**
+   * An expired partial batch is written by the next delivery, on the delivering thread.
+   */
+  public void testWriteBehindIntervalFlushedByDelivery() throws InterruptedException {
+    JDBCWriteConnector connector = (JDBCWriteConnector) testWriteConnector;
+    StubWriteBehindWriter writer = new StubWriteBehindWriter();
+    connector.setWriter(writer);
+    connector.setWriteBehindBatchSize(100);
+    connector.setWriteBehindFlushIntervalMs(20);
+    testValidate();
+    connector.connect();
+
+    connector.deliver(new Object[]{"a"});
+    Thread.sleep(40);
+    assertEquals("Nothing should be written in the background", 0, writer.flushes.size());
+    connector.deliver(new Object[]{"b"});
+    assertEquals(1, writer.flushes.size());
+    assertEquals(Arrays.asList(new Object[]{"a", "b"}), writer.flushes.get(0));
+  }
+
+  /**
+   * A failure writing the pending batch on disconnect must not be swallowed.
+   */
+  public void testWriteBehindFlushFailureOnDisconnect() {
+    JDBCWriteConnector connector = (JDBCWriteConnector) testWriteConnector;
+    StubWriteBehindWriter writer = new StubWriteBehindWriter();
+    connector.setWriter(writer);
+    connector.setWriteBehindBatchSize(3);
+    testValidate();
+    connector.connect();
+
+    connector.deliver(new Object[]{"a"});
+    writer.failFlush = true;
+    sqlConnectionMock.expects(once()).method("close");
+    try {
+      connector.disconnect();
+    } catch (WriteBehindFlushException e) {
+      assertFalse(connector.isConnected());
+      assertEquals(Arrays.asList(new Object[]{"a"}), Arrays.asList(e.getRecords()));
+      return;
+    }
+    fail("Expected a WriteBehindFlushException");
+  }
+
+  /**
+   * A failed flush reports the rows of earlier deliveries too, and drops them.
+   */
+  public void testWriteBehindFlushFailureReportsAllRows() {
+    JDBCWriteConnector connector = (JDBCWriteConnector) testWriteConnector;
+    StubWriteBehindWriter writer = new StubWriteBehindWriter();
+    connector.setWriter(writer);
+    connector.setWriteBehindBatchSize(3);
+    testValidate();
+    connector.connect();
+
+    connector.deliver(new Object[]{"a"});
+    connector.deliver(new Object[]{"b"});
+    writer.failFlush = true;
+    try {
+      connector.deliver(new Object[]{"c"});
+      fail("Expected a WriteBehindFlushException");
+    } catch (WriteBehindFlushException e) {
+      assertEquals(Arrays.asList(new Object[]{"a", "b", "c"}), Arrays.asList(e.getRecords()));
+    }
+    assertEquals(0, writer.getPendingCount());
+
+    writer.failFlush = false;
+    connector.deliver(new Object[]{"d"});
+    sqlConnectionMock.expects(once()).method("close");
+    connector.disconnect();
+    assertEquals(1, writer.flushes.size());
+    assertEquals(Arrays.asList(new Object[]{"d"}), writer.flushes.get(0));
+  }
+
+  /**
+   * Write-behind requires a writer which can accumulate records.
+   */
+  public void testWriteBehindValidation() {
+    JDBCWriteConnector connector = (JDBCWriteConnector) testWriteConnector;
+    sqlWriterMock.stubs().method("validate");
+    connector.setWriter((ISQLWriter) sqlWriterMock.proxy());
+    connector.setWriteBehindBatchSize(10);
+    List exceptions = new ArrayList();
+    connector.validate(exceptions);
+    assertEquals(1, exceptions.size());
+  }
+
+  /**
+   * Records each flushed batch.
+   */
+  static class StubWriteBehindWriter implements IWriteBehindSQLWriter {
+    List pending = new ArrayList();
+    List flushes = new ArrayList();
+    boolean failFlush;
+
+    public void addToBatch(Object[] data) {
+      pending.addAll(Arrays.asList(data));
+    }
+
+    public int getPendingCount() {
+      return pending.size();
+    }
+
+    public int[] flushBatch() throws SQLException {
+      if (failFlush) {
+        throw new SQLException("Dummy flush failure");
+      }
+      flushes.add(new ArrayList(pending));
+      int[] counts = new int[pending.size()];
+      Arrays.fill(counts, 1);
+      pending.clear();
+      return counts;
+    }
+
+    public Object[] discardBatch() {
+      Object[] discarded = pending.toArray();
+      pending.clear();
+      return discarded;
+    }
+
+    public void initialise(Connection connection) {
+    }
+
+    public boolean hasBatchSupport() {
+      return true;
+    }
+
+    public void writeBatch(Object[] dataBatch) throws SQLException {
+      throw new SQLException("Not expected in write-behind mode");
+    }
+
+    public void validate(List exceptions, IComponent comp) {
+    }
+  }
+
   /**
    * Inner mock of {@link JDBCConnection}. We can't mock JDBCConnection
    * directly as it is a class not an interface. We get around this by
@@ -224,6 +224,26 @@ public class JMSReadConnectorTestCase extends MockObjectTestCase {
     }
   }
 
+  /**
+   * A failed connect must not be counted, or a later disconnect would not close.
+   */
+  public void testFailedConnectNotCounted() {
+    testReadConnector.setConsumers(2);
+    mockJMSConnection.setThrowConnectionExceptionOnConnect(true);
+    try {
+      testReadConnector.connect();
+      fail("Expected a ConnectionException to be thrown.");
+    }
+    catch (ConnectionException ce) { /* This is expected */ }
+    mockJMSConnection.setThrowConnectionExceptionOnConnect(false);
+    setupConnectExpectations();
+    testReadConnector.connect();
+    sessionMock.expects(once()).method("close");
+    messageConsumerMock.expects(once()).method("close");
+    testReadConnector.disconnect();
+    assertFalse("Should be disconnected. ", testReadConnector.isConnected());
+  }
+
   public void testDisconnect() {
     setupConnectExpectations();
     sessionMock.expects(once()).method("close");
@@ -348,6 +368,29 @@ public class JMSReadConnectorTestCase extends MockObjectTestCase {
     assertTrue(metadata.get(key3).equals(value3));
   }  
 
+  /**
+   * A thread which never had metadata set still reads messages.
+   */
+  public void testNextMetadataNotSet() throws Exception {
+    setupConnectExpectations();
+    testReadConnector.connect();
+    testReadConnector.setPopulateMetadataFromProperties(true);
+    testReadConnector.setLogMessageId(false);
+
+    Mock mockTextMessage = new Mock(TextMessage.class);
+    messageConsumerMock.expects(once()).method("receive").will(returnValue(mockTextMessage.proxy()));
+    mockTextMessage.expects(once()).method("getText").will(returnValue("hello"));
+    final Object[][] result = new Object[1][];
+    Thread reader = new Thread() {
+      public void run() {
+        result[0] = testReadConnector.next(10);
+      }
+    };
+    reader.start();
+    reader.join();
+    assertTrue(Arrays.equals(new Object[] {"hello"}, result[0]));
+  }
+
   public void testNextDisconnected() {
     try {
       testReadConnector.next(10);
@@ -379,6 +422,101 @@ public class JMSReadConnectorTestCase extends MockObjectTestCase {
   }
 
 
+  public void testNextBatch() {
+    setupConnectExpectations();
+    testReadConnector.setBatchSize(3);
+    testReadConnector.setLogMessageId(false);
+    testReadConnector.connect();
+
+    Mock first = new Mock(TextMessage.class);
+    Mock second = new Mock(TextMessage.class);
+    first.expects(once()).method("getText").will(returnValue("one"));
+    second.expects(exactly(2)).method("getText").will(returnValue("two"));
+    messageConsumerMock.expects(once()).method("receive").with(eq(10L)).will(returnValue(first.proxy()));
+    messageConsumerMock.expects(exactly(2)).method("receiveNoWait").will(returnValue(second.proxy()));
+
+    Object[] batch = testReadConnector.next(10);
+    assertTrue("Expected a full batch", Arrays.equals(new Object[] {"one", "two", "two"}, batch));
+  }
+
+  public void testNextPartialBatch() {
+    setupConnectExpectations();
+    testReadConnector.setBatchSize(10);
+    testReadConnector.setLogMessageId(false);
+    testReadConnector.connect();
+
+    Mock first = new Mock(TextMessage.class);
+    first.expects(once()).method("getText").will(returnValue("one"));
+    messageConsumerMock.expects(once()).method("receive").will(returnValue(first.proxy()));
+    messageConsumerMock.expects(once()).method("receiveNoWait").will(returnValue(null));
+    assertTrue("Expected a batch of one", Arrays.equals(new Object[] {"one"}, testReadConnector.next(10)));
+
+    messageConsumerMock.expects(once()).method("receive").will(returnValue(null));
+    assertNull("Expected no batch", testReadConnector.next(10));
+  }
+
+  public void testConsumerPerThread() throws Exception {
+    Mock secondSessionMock = new Mock(Session.class);
+    Mock secondConsumerMock = new Mock(MessageConsumer.class);
+    setupConnectExpectations();
+    testReadConnector.setConsumers(2);
+    testReadConnector.setLogMessageId(false);
+    testReadConnector.connect();
+
+    messageConsumerMock.expects(once()).method("receive").will(returnValue(null));
+    assertNull(testReadConnector.next(10));
+
+    // A second thread gets a session of its own
+    mockJMSConnection.setMockSession((Session) secondSessionMock.proxy());
+    secondSessionMock.expects(once()).method("createConsumer").will(returnValue(secondConsumerMock.proxy()));
+    Mock message = new Mock(TextMessage.class);
+    message.expects(once()).method("getText").will(returnValue("second"));
+    secondConsumerMock.expects(once()).method("receive").will(returnValue(message.proxy()));
+    final Object[][] result = new Object[1][];
+    Thread second = new Thread() {
+      public void run() {
+        result[0] = testReadConnector.next(10);
+      }
+    };
+    second.start();
+    second.join();
+    assertTrue(Arrays.equals(new Object[] {"second"}, result[0]));
+
+    // There is no session for a third thread
+    final Exception[] failure = new Exception[1];
+    Thread third = new Thread() {
+      public void run() {
+        try {
+          testReadConnector.next(10);
+        } catch (ConnectionException e) {
+          failure[0] = e;
+        }
+      }
+    };
+    third.start();
+    third.join();
+    assertNotNull("Expected a ConnectionException", failure[0]);
+
+    // Both sessions are closed once every reader has disconnected
+    testReadConnector.connect();
+    testReadConnector.disconnect();
+    assertTrue(testReadConnector.isConnected());
+    messageConsumerMock.expects(once()).method("close");
+    sessionMock.expects(once()).method("close");
+    secondConsumerMock.expects(once()).method("close");
+    secondSessionMock.expects(once()).method("close");
+    testReadConnector.disconnect();
+    assertFalse(testReadConnector.isConnected());
+  }
+
+  public void testValidateDurableConsumers() {
+    List validateExceptions = new ArrayList();
+    testReadConnector.setDurable(true);
+    testReadConnector.setConsumers(2);
+    testReadConnector.validate(validateExceptions);
+    assertEquals(1, validateExceptions.size());
+  }
+
   // Support methods
 
   protected void setupConnectExpectations() {
@@ -374,6 +374,51 @@ public class JMSWriteConnectorTestCase extends MockObjectTestCase {
     assertEquals("Expected returned messageID to match expected one", testMessageID, returnedMessagedID[0]);
   }  
   
+  public void testDeliverWithCachedProducers() {
+    Mock otherDestinationMock = new Mock(Topic.class);
+    Mock otherProducerMock = new Mock(MessageProducer.class);
+    Map testMetadata = new HashMap();
+    mockJMSConnection.setMockSession((Session)sessionMock.proxy());
+    testWriteConnector.setMetadata(testMetadata);
+    testWriteConnector.setDestinationFromMetadata("Destination");
+    testWriteConnector.setDestinationName(null);
+    testWriteConnector.setProducerCacheSize(1);
+    testWriteConnector.setLogMessageId(false);
+    testWriteConnector.connect();
+
+    // The producer for a destination is created once and reused
+    dirContextMock.expects(once()).method("lookup").with(eq(DESTINATION_NAME)).will(returnValue(destinationMock.proxy()));
+    sessionMock.expects(once()).method("createProducer").with(eq(destinationMock.proxy())).will(returnValue(messageProducerMock.proxy()));
+    Mock textMessageMock = new Mock(TextMessage.class);
+    sessionMock.expects(atLeastOnce()).method("createTextMessage").will(returnValue(textMessageMock.proxy()));
+    textMessageMock.expects(atLeastOnce()).method("setText");
+    textMessageMock.expects(atLeastOnce()).method("getJMSMessageID").will(returnValue("ID"));
+    messageProducerMock.expects(exactly(2)).method("send");
+    testMetadata.put("Destination", DESTINATION_NAME);
+    testWriteConnector.deliver(new Object[] { "one", "two" });
+    dirContextMock.verify();
+    messageProducerMock.verify();
+    assertEquals(1, testWriteConnector.getProducerCacheHitCount());
+    assertEquals(1, testWriteConnector.getProducerCacheMissCount());
+
+    // A new destination evicts, and closes, the least recently used producer
+    dirContextMock.expects(once()).method("lookup").with(eq("other")).will(returnValue(otherDestinationMock.proxy()));
+    sessionMock.expects(once()).method("createProducer").with(eq(otherDestinationMock.proxy())).will(returnValue(otherProducerMock.proxy()));
+    otherProducerMock.expects(once()).method("send");
+    messageProducerMock.expects(once()).method("close");
+    testMetadata.put("Destination", "other");
+    testWriteConnector.deliver(new Object[] { "three" });
+    messageProducerMock.verify();
+    otherProducerMock.verify();
+    assertEquals(1.0 / 3, testWriteConnector.getProducerCacheHitRate(), 0.001);
+
+    // Cached producers are closed on disconnect
+    otherProducerMock.expects(once()).method("close");
+    sessionMock.expects(once()).method("close");
+    testWriteConnector.disconnect();
+    otherProducerMock.verify();
+  }
+
   public void testDeliverDisconnected() {
     try {
       Object testMessage = new Object();
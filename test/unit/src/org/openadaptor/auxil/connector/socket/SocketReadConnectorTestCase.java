@@ -0,0 +1,227 @@
+package org.openadaptor.auxil.connector.socket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class SocketReadConnectorTestCase extends TestCase {
+
+  private int port;
+  private SocketReadConnector connector;
+  private List clients = new ArrayList();
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    ServerSocket probe = new ServerSocket(0);
+    port = probe.getLocalPort();
+    probe.close();
+  }
+
+  protected void tearDown() throws Exception {
+    for (int i = 0; i < clients.size(); i++) {
+      ((Socket) clients.get(i)).close();
+    }
+    if (connector != null) {
+      connector.disconnect();
+    }
+    super.tearDown();
+  }
+
+  private SocketReadConnector createConnector(ISocketHandshake handshake) {
+    SocketReadConnector reader = new SocketReadConnector("reader");
+    reader.setPort(port);
+    reader.setMultiplexed(true);
+    reader.setWorkerThreads(2);
+    reader.setBatchSize(10);
+    if (handshake != null) {
+      reader.setSocketHandshake(handshake);
+      if (!(handshake instanceof SimpleSocketHandshake)) {
+        reader.sethandshakeTimeoutMs(10000);
+      }
+    }
+    List exceptions = new ArrayList();
+    reader.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+    return reader;
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket("localhost", port);
+    clients.add(socket);
+    return socket;
+  }
+
+  private static void write(Socket socket, String s) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(s.getBytes("US-ASCII"));
+    out.flush();
+  }
+
+  private Set read(int expected) {
+    Set lines = new HashSet();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (lines.size() < expected && System.currentTimeMillis() < deadline) {
+      Object[] data = connector.next(100);
+      for (int i = 0; data != null && i < data.length; i++) {
+        assertTrue("duplicate " + data[i], lines.add(data[i]));
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Clients that stay connected must not stop others from being read.
+   */
+  public void testConcurrentConnections() throws Exception {
+    connector = createConnector(null);
+    connector.connect();
+
+    Socket[] sockets = new Socket[5];
+    for (int i = 0; i < sockets.length; i++) {
+      sockets[i] = connect();
+    }
+    for (int i = sockets.length - 1; i >= 0; i--) {
+      StringBuffer sb = new StringBuffer();
+      for (int j = 0; j < 20; j++) {
+        sb.append("client" + i + "-" + j).append(j % 2 == 0 ? "\n" : "\r\n");
+      }
+      write(sockets[i], sb.toString());
+    }
+    write(sockets[0], "split-");
+    Thread.sleep(50);
+    write(sockets[0], "line\r\n");
+
+    Set lines = read(101);
+    assertEquals(101, lines.size());
+    assertTrue(lines.contains("client3-17"));
+    assertTrue(lines.contains("split-line"));
+    assertEquals(5, connector.getConnectionCount());
+
+    sockets[4].close();
+    for (int i = 0; i < 50 && connector.getConnectionCount() > 4; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(4, connector.getConnectionCount());
+  }
+
+  public void testHandshake() throws Exception {
+    SimpleSocketHandshake handshake = new SimpleSocketHandshake();
+    handshake.setHandshakeGreet("HELLO");
+    handshake.setHandshakeReply("WELCOME");
+    handshake.setHandshakeGreetCheck("Y");
+    connector = createConnector(handshake);
+    connector.connect();
+
+    Socket rude = connect();
+    write(rude, "HI\n");
+    assertNull(new BufferedReader(new InputStreamReader(rude.getInputStream())).readLine());
+
+    Socket polite = connect();
+    write(polite, "HELLO\nfirst\n");
+    assertEquals("WELCOME", new BufferedReader(new InputStreamReader(polite.getInputStream())).readLine());
+    write(polite, "second\n");
+
+    Set lines = read(2);
+    assertTrue(lines.contains("first"));
+    assertTrue(lines.contains("second"));
+  }
+
+  /**
+   * Records sent in the same packet as a custom handshake must not be lost.
+   */
+  public void testCustomHandshakeKeepsFollowingRecords() throws Exception {
+    connector = createConnector(new LineHandshake());
+    connector.connect();
+
+    Socket client = connect();
+    write(client, "HELLO\nfirst\nsecond\n");
+    assertEquals("OK", new BufferedReader(new InputStreamReader(client.getInputStream())).readLine());
+
+    Set lines = read(2);
+    assertTrue(lines.contains("first"));
+    assertTrue(lines.contains("second"));
+  }
+
+  /**
+   * Clients that never finish a custom handshake must not hold up the workers.
+   */
+  public void testSilentHandshakesDoNotBlockDelivery() throws Exception {
+    connector = createConnector(new LineHandshake());
+    connector.connect();
+    for (int i = 0; i < 3; i++) {
+      connect();
+    }
+    Socket client = connect();
+    write(client, "HELLO\nfirst\n");
+    client.setSoTimeout(5000);
+    assertEquals("OK", new BufferedReader(new InputStreamReader(client.getInputStream())).readLine());
+    assertEquals(1, read(1).size());
+  }
+
+  public void testCustomHandshakeNeedsTimeout() {
+    SocketReadConnector reader = new SocketReadConnector("reader");
+    reader.setPort(port);
+    reader.setMultiplexed(true);
+    reader.setSocketHandshake(new LineHandshake());
+    List exceptions = new ArrayList();
+    reader.validate(exceptions);
+    assertEquals(1, exceptions.size());
+  }
+
+  /**
+   * Disconnecting must close connections that are still open.
+   */
+  public void testDisconnectClosesConnections() throws Exception {
+    connector = createConnector(null);
+    connector.connect();
+    Socket client = connect();
+    write(client, "first\n");
+    assertEquals(1, read(1).size());
+
+    connector.disconnect();
+    connector = null;
+    client.setSoTimeout(5000);
+    assertEquals(-1, client.getInputStream().read());
+  }
+
+  public void testPseudoTransactionNotMultiplexed() {
+    SocketReadConnector reader = new SocketReadConnector("reader");
+    reader.setPort(port);
+    reader.setMultiplexed(true);
+    reader.setPseudoTransaction(true);
+    List exceptions = new ArrayList();
+    reader.validate(exceptions);
+    assertEquals(1, exceptions.size());
+  }
+
+  /**
+   * Reads a single greeting line and replies OK.
+   */
+  static class LineHandshake implements ISocketHandshake {
+    public void validate() {
+    }
+
+    public void offerHandshake(OutputStream writer, BufferedReader reader) {
+    }
+
+    public void acceptHandshake(OutputStream writer, BufferedReader reader) throws IOException {
+      if (!"HELLO".equals(reader.readLine())) {
+        throw new IOException("unexpected greeting");
+      }
+      writer.write("OK\n".getBytes("US-ASCII"));
+      writer.flush();
+    }
+
+    public void sayGoodbye(OutputStream writer, BufferedReader reader, boolean isPseudoTransaction) {
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.openadaptor.auxil.convertor.delimited;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import org.openadaptor.auxil.orderedmap.ArrayOrderedMap;
 import org.openadaptor.auxil.orderedmap.IOrderedMap;
 import org.openadaptor.auxil.orderedmap.OrderedHashMap;
 import org.openadaptor.core.IDataProcessor;
@@ -36,6 +37,20 @@ public class DelimitedStringToOrderedMapConvertorTestCase extends TestAbstractDe
     }
   }
   
+  public void testDelimitedStringToOrderedMapWithSharedSchema() {
+    convertor.setFieldNames(TEST_NAMES);
+    convertor.setUseSharedSchema(true);
+    convertor.validate(new ArrayList());
+    Object[] maps = convertor.process(ds);
+    assertEquals(1, maps.length);
+    assertTrue(maps[0] instanceof ArrayOrderedMap);
+    assertEquals(om, maps[0]);
+    assertEquals(om.keys(), ((IOrderedMap) maps[0]).keys());
+    //Records with extra fields fall back to OrderedHashMap
+    maps = convertor.process(ds + DELIMITER + "extra");
+    assertTrue(maps[0] instanceof OrderedHashMap);
+  }
+
   public void testDelimitedStringToOrderedMapWithHeadersInFirstRow() {
     convertor.validate(new ArrayList());
     try {
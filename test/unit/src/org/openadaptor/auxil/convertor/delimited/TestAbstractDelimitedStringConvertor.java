@@ -283,6 +283,29 @@ public abstract class TestAbstractDelimitedStringConvertor extends AbstractTestI
   }
   
   
+  /**
+   * Test AbstractDelimitedStringConvertor#extractValues
+   * Quoted blocks with doubled quote characters (RFC 4180), single and multi char delimiter.
+   */
+  public void testQuotedFields_DoubledQuotes(){
+    adsc.setDelimiter(",");
+    adsc.setQuoteChar('\"');
+    adsc.setProtectQuotedFields(true);
+    adsc.setDelimiterAlwaysLiteralString(true);
+    adsc.setDelimiterAlwaysRegExp(false);
+    adsc.setStripEnclosingQuotes(true);
+    adsc.setUnescapeDoubledQuoteCharacters(true);
+    check(adsc.extractValues("\"a,1\",\"b\"\"1\",\"c,2\""),  //"a,1","b""1","c,2"
+        new String[] {"a,1", "b\"1", "c,2"});
+    check(adsc.extractValues("\"\"\"a\"\",1\",,\"\""),  //"""a"",1",,""
+        new String[] {"\"a\",1", "", ""});
+    check(adsc.extractValues("a,b\"\"c,d"),  //a,b""c,d - outside quoted block
+        new String[] {"a", "b\"\"c", "d"});
+    adsc.setDelimiter("::");
+    check(adsc.extractValues("\"a::\"\"1\"::b"),  //"a::""1"::b
+        new String[] {"a::\"1", "b"});
+  }
+
   /**
    * Test AbstractDelimitedStringConvertor#extractValues.
    * Quoted and unquoted fields, quoted and unquoted multi char delimiter.
@@ -0,0 +1,136 @@
+package org.openadaptor.auxil.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.auxil.orderedmap.OrderedHashMap;
+import org.openadaptor.core.exception.RecordException;
+
+import junit.framework.TestCase;
+
+public class ExpressionTestCase extends TestCase {
+
+  private IOrderedMap record;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    record = new OrderedHashMap();
+    record.put("alpha", new Long(4));
+    record.put("beta", new Double(6.0));
+    record.put("name", "fred");
+    record.put("market", "liffe");
+    record.put("id_liffe", "LI_04539");
+  }
+
+  private Object evaluate(String expression) throws RecordException {
+    return Expression.createExpressionFromString(expression).evaluate(record);
+  }
+
+  public void testArithmetic() throws RecordException {
+    assertEquals(new Long(30), evaluate("(5+5)*5-20"));
+    assertEquals(new Long(2), evaluate("{alpha}/2"));
+    assertEquals(new Double(10.0), evaluate("{alpha}+{beta}"));
+    assertEquals(new Long(-4), evaluate("-{alpha}"));
+    assertEquals("fred is here", evaluate("{name}+' is here'"));
+  }
+
+  public void testComparisons() throws RecordException {
+    assertEquals(Boolean.TRUE, evaluate("{alpha} < {beta}"));
+    assertEquals(Boolean.TRUE, evaluate("{alpha} = 4"));
+    assertEquals(Boolean.FALSE, evaluate("{alpha} ne 4"));
+    assertEquals(Boolean.TRUE, evaluate("{beta} ge 6"));
+    assertEquals(Boolean.TRUE, evaluate("{name} eq 'fred'"));
+    assertEquals(Boolean.TRUE, evaluate("{missing} eq null"));
+    assertEquals(Boolean.FALSE, evaluate("not ({alpha} = 4)"));
+  }
+
+  public void testNestedReference() throws RecordException {
+    assertEquals("LI_04539", evaluate("{id_{market}}"));
+  }
+
+  public void testFunctions() throws RecordException {
+    assertEquals("FRED", evaluate("upper({name})"));
+    assertEquals(new Long(4), evaluate("length({name})"));
+  }
+
+  public void testShortCircuit() throws RecordException {
+    Expression expression = new Expression();
+    expression.setThrowExceptionOnMissingAttribute(true);
+    expression.setExpression("({alpha} = 4) or ({missing} = 1)");
+    assertEquals(Boolean.TRUE, expression.evaluate(record));
+    expression.setExpression("({alpha} = 5) and ({missing} = 1)");
+    assertEquals(Boolean.FALSE, expression.evaluate(record));
+
+    expression.setShortCircuitEvaluation(false);
+    try {
+      expression.evaluate(record);
+      fail("Second operand should have been evaluated");
+    } catch (RecordException e) {
+    }
+  }
+
+  public void testConstantFolding() throws RecordException {
+    Expression expression = new Expression();
+    expression.setExpression("2*3+1");
+    assertEquals(new Long(7), expression.evaluate(null)); // no record needed, as it folds to a constant
+    expression.setExpression("(1=1) or ({alpha} = 4)");
+    assertEquals(Boolean.TRUE, expression.evaluate(null));
+  }
+
+  public void testConstantDivisionByZeroFailsOnEvaluation() throws RecordException {
+    Expression expression = new Expression();
+    expression.setExpression("1/0");
+    try {
+      expression.evaluate(record);
+      fail("Expected ExpressionException");
+    } catch (ExpressionException e) {
+    }
+  }
+
+  public void testMalformedExpressionFailsOnEvaluation() throws RecordException {
+    Expression expression = new Expression();
+    expression.setExpression("3 +");
+    try {
+      expression.evaluate(record);
+      fail("Expected ExpressionException");
+    } catch (ExpressionException e) {
+    }
+  }
+
+  /**
+   * One expression shared by several threads, each with its own record.
+   */
+  public void testConcurrentEvaluation() throws Exception {
+    final Expression expression = new Expression();
+    expression.setExpression("({value} > 50) and ({value} < 1000)");
+    final List failures = Collections.synchronizedList(new ArrayList());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        public void run() {
+          IOrderedMap map = new OrderedHashMap();
+          for (int i = 0; i < 20000; i++) {
+            long value = (i + offset) % 1200;
+            map.put("value", new Long(value));
+            try {
+              Object result = expression.evaluate(map);
+              if (!Boolean.valueOf(value > 50 && value < 1000).equals(result)) {
+                failures.add(value + " -> " + result);
+              }
+            } catch (Exception e) {
+              failures.add(e);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertTrue("Failures: " + failures, failures.isEmpty());
+  }
+}
@@ -27,6 +27,8 @@
 
 package org.openadaptor.auxil.metrics;
 
+import java.util.Map;
+
 import org.openadaptor.core.Message;
 import org.openadaptor.core.Response;
 
@@ -71,30 +73,29 @@ public class AggregateMetricsUnitTestCase extends TestCase {
   public void testRecordMessageStart() {
     /* 1st message consists of a single String */
     aggMetrics.recordMessageStart(testMsg1);
-    assertNotNull(aggMetrics.processStartTime);
     assertNotNull(aggMetrics.inputMsgCounter);
     assertEquals(aggMetrics.inputMsgCounter.size(),1);
     assertTrue(aggMetrics.inputMsgCounter.keySet().contains("java.lang.String"));
-    assertEquals(aggMetrics.inputMsgCounter.get("java.lang.String"), new Long(1));
+    assertEquals(count(aggMetrics.inputMsgCounter, "java.lang.String"), 1);
     
     /* 2nd is an array of Strings */
     aggMetrics.recordMessageStart(testMsg2);
     assertEquals(aggMetrics.inputMsgCounter.size(),2);
     assertTrue(aggMetrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + "java.lang.String"));
-    assertEquals(aggMetrics.inputMsgCounter.get("java.lang.String"), new Long(1));
-    assertEquals(aggMetrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + "java.lang.String"), new Long(1));
+    assertEquals(count(aggMetrics.inputMsgCounter, "java.lang.String"), 1);
+    assertEquals(count(aggMetrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + "java.lang.String"), 1);
     
     /* 3rd is an array with data of different types */
     aggMetrics.recordMessageStart(testMsg3);
     assertEquals(aggMetrics.inputMsgCounter.size(),3);
     assertTrue(aggMetrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES));
-    assertEquals(aggMetrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), new Long(1));
+    assertEquals(count(aggMetrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), 1);
 
     /* pass one more msg with heterogeneous types, check counters */
     aggMetrics.recordMessageStart(testMsg3);
     assertEquals(aggMetrics.inputMsgCounter.size(),3);
     assertTrue(aggMetrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES));
-    assertEquals(aggMetrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), new Long(2));
+    assertEquals(count(aggMetrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), 2);
   }
   
 //  /**
@@ -131,4 +132,8 @@ public class AggregateMetricsUnitTestCase extends TestCase {
 //    assertEquals(metrics.outputMsgCounter.get("java.lang.String"), new Long(1));
 //    assertEquals(metrics.outputMsgCounter.get(ComponentMetrics.ARRAY_OF + "java.lang.String"), new Long(1));
 //  }
+
+  private long count(Map msgCounter, String msgType){
+    return ((StripedCounter) msgCounter.get(msgType)).sum();
+  }
 }
@@ -26,6 +26,8 @@
  */
 package org.openadaptor.auxil.metrics;
 
+import java.util.Map;
+
 import org.openadaptor.core.Message;
 import org.openadaptor.core.Response;
 
@@ -61,30 +63,29 @@ public class ComponentMetricsUnitTestCase extends TestCase {
   public void testRecordMessageStart() {
     /* 1st message consists of a single String */
     metrics.recordMessageStart(testMsg1);
-    assertNotNull(metrics.processStartTime);
     assertNotNull(metrics.inputMsgCounter);
     assertEquals(metrics.inputMsgCounter.size(),1);
     assertTrue(metrics.inputMsgCounter.keySet().contains("java.lang.String"));
-    assertEquals(metrics.inputMsgCounter.get("java.lang.String"), new Long(1));
+    assertEquals(count(metrics.inputMsgCounter, "java.lang.String"), 1);
     
     /* 2nd is an array of Strings */
     metrics.recordMessageStart(testMsg2);
     assertEquals(metrics.inputMsgCounter.size(),2);
     assertTrue(metrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + "java.lang.String"));
-    assertEquals(metrics.inputMsgCounter.get("java.lang.String"), new Long(1));
-    assertEquals(metrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + "java.lang.String"), new Long(1));
+    assertEquals(count(metrics.inputMsgCounter, "java.lang.String"), 1);
+    assertEquals(count(metrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + "java.lang.String"), 1);
     
     /* 3rd is an array with data of different types */
     metrics.recordMessageStart(testMsg3);
     assertEquals(metrics.inputMsgCounter.size(),3);
     assertTrue(metrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES));
-    assertEquals(metrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), new Long(1));
+    assertEquals(count(metrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), 1);
 
     /* pass one more msg with heterogeneous types, check counters */
     metrics.recordMessageStart(testMsg3);
     assertEquals(metrics.inputMsgCounter.size(),3);
     assertTrue(metrics.inputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES));
-    assertEquals(metrics.inputMsgCounter.get(ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), new Long(2));
+    assertEquals(count(metrics.inputMsgCounter, ComponentMetrics.ARRAY_OF + ComponentMetrics.HETEROGENEOUS_TYPES), 2);
   }
 
   /**
@@ -104,12 +105,12 @@ public class ComponentMetricsUnitTestCase extends TestCase {
 //    }
     metrics.recordMessageStart(testMsg1);
     metrics.recordMessageEnd(testMsg1, response);
-    assertNotNull(metrics.processEndTime); 
+    assertTrue(metrics.getProcessTimeMax() != ComponentMetrics.UNKNOWN_LONG);
     assertNotNull(metrics.outputMsgCounter);
     assertEquals(metrics.outputMsgCounter.size(),1);
     
     assertTrue(metrics.outputMsgCounter.keySet().contains("java.lang.String"));
-    assertEquals(metrics.outputMsgCounter.get("java.lang.String"), new Long(1));
+    assertEquals(count(metrics.outputMsgCounter, "java.lang.String"), 1);
     
     /* 2nd response is an array of Strings */
     metrics.recordMessageStart(testMsg2);
@@ -118,8 +119,8 @@ public class ComponentMetricsUnitTestCase extends TestCase {
     metrics.recordMessageEnd(testMsg2, response);
     assertEquals(metrics.outputMsgCounter.size(),2);
     assertTrue(metrics.outputMsgCounter.keySet().contains(ComponentMetrics.ARRAY_OF + "java.lang.String"));
-    assertEquals(metrics.outputMsgCounter.get("java.lang.String"), new Long(1));
-    assertEquals(metrics.outputMsgCounter.get(ComponentMetrics.ARRAY_OF + "java.lang.String"), new Long(1));
+    assertEquals(count(metrics.outputMsgCounter, "java.lang.String"), 1);
+    assertEquals(count(metrics.outputMsgCounter, ComponentMetrics.ARRAY_OF + "java.lang.String"), 1);
   }
   
   /**
@@ -133,12 +134,12 @@ public class ComponentMetricsUnitTestCase extends TestCase {
     metrics.recordMessageStart(testMsg1);
     metrics.recordMessageEnd(testMsg1, response);
     metrics.recordMessageEnd(testMsg1, response);
-    assertNotNull(metrics.processEndTime); 
+    assertTrue(metrics.getProcessTimeMax() != ComponentMetrics.UNKNOWN_LONG);
     assertEquals(metrics.inputMsgCounter.size(),1);
     assertNotNull(metrics.outputMsgCounter);
     assertEquals(metrics.outputMsgCounter.size(),1);
     assertTrue(metrics.outputMsgCounter.keySet().contains("java.lang.String"));
-    assertEquals(metrics.outputMsgCounter.get("java.lang.String"), new Long(2));
+    assertEquals(count(metrics.outputMsgCounter, "java.lang.String"), 2);
   }
   
    
@@ -230,4 +231,54 @@ public class ComponentMetricsUnitTestCase extends TestCase {
     assertEquals( metrics.getOutputMsgCounts()[0] + metrics.getOutputMsgCounts()[1], 3);
   }
   
+  /**
+   * Records messages from several threads at once, checks no counts are lost.
+   */
+  public void testConcurrentRecording() throws Exception {
+    final int threads = 4;
+    final int msgsPerThread = 10000;
+    final Response response = new Response(); 
+    response.addOutput(testData1);
+    Thread [] recorders = new Thread[threads];
+    for(int i=0; i<threads; i++){
+      recorders[i] = new Thread(){
+        public void run(){
+          for(int j=0; j<msgsPerThread; j++){
+            metrics.recordMessageStart(testMsg1);
+            metrics.recordMessageEnd(testMsg1, response);
+          }
+          metrics.recordDiscardedMsgEnd(testMsg1);
+        }
+      };
+      recorders[i].start();
+    }
+    for(int i=0; i<threads; i++){
+      recorders[i].join();
+    }
+    assertEquals(count(metrics.inputMsgCounter, "java.lang.String"), threads * msgsPerThread);
+    assertEquals(count(metrics.outputMsgCounter, "java.lang.String"), threads * msgsPerThread);
+    assertEquals(metrics.getDiscardedMsgCount(), threads);
+    assertTrue(metrics.getProcessTimeMin() <= metrics.getProcessTimeAvg());
+    assertTrue(metrics.getProcessTimeAvg() <= metrics.getProcessTimeMax());
+  }
+  
+  /**
+   * Test for {@link ComponentMetrics#getProcessTimePercentileMicros(double)}.
+   */
+  public void testProcessTimePercentiles() {
+    assertEquals(metrics.getProcessTimePercentileMicros(50), ComponentMetrics.UNKNOWN_LONG);
+    assertEquals(metrics.getProcessTimePercentiles(), ComponentMetrics.UNKNOWN);
+    for(int i=1; i<=1000; i++){
+      metrics.processTimes.record(i * 1000L);
+    }
+    long p50 = metrics.getProcessTimePercentileMicros(50);
+    long p99 = metrics.getProcessTimePercentileMicros(99);
+    assertTrue(p50 >= 500 && p50 <= 500 * 17 / 16);
+    assertTrue(p99 >= 990 && p99 <= 990 * 17 / 16);
+    assertTrue(p99 <= metrics.getProcessTimePercentileMicros(99.9));
+  }
+  
+  private long count(Map msgCounter, String msgType){
+    return ((StripedCounter) msgCounter.get(msgType)).sum();
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.orderedmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Runs the common IOrderedMap tests against {@link ArrayOrderedMap}, plus tests of
+ * its removal and compaction behaviour.
+ */
+public class ArrayOrderedMapTestCase extends AbstractIOrderedMapTests {
+
+  protected IOrderedMap createInstance() {
+    return new ArrayOrderedMap(3);
+  }
+
+  public void testRemoveKeepsOrder() {
+    testMap.put("four", "4");
+    assertEquals(RECORD_TWO, testMap.remove(KEY_TWO));
+    assertNull(testMap.remove(KEY_TWO));
+    assertEquals(3, testMap.size());
+    assertFalse(testMap.containsKey(KEY_TWO));
+    assertEquals(Arrays.asList(new Object[] {KEY_ONE, KEY_THREE, "four"}), testMap.keys());
+    assertEquals(RECORD_THREE, testMap.get(1));
+    assertEquals(Arrays.asList(new Object[] {RECORD_ONE, RECORD_THREE, "4"}), Arrays.asList(testMap.values().toArray()));
+  }
+
+  public void testPutAfterRemoveAppends() {
+    testMap.remove(KEY_ONE);
+    testMap.put(KEY_ONE, "again");
+    assertEquals(Arrays.asList(new Object[] {KEY_TWO, KEY_THREE, KEY_ONE}), testMap.keys());
+    assertEquals("again", testMap.get(2));
+  }
+
+  public void testRemoveByIndex() {
+    assertEquals(RECORD_TWO, testMap.remove(1));
+    assertEquals(Arrays.asList(new Object[] {KEY_ONE, KEY_THREE}), testMap.keys());
+  }
+
+  public void testIteratorRemove() {
+    for (Iterator it = testMap.keySet().iterator(); it.hasNext();) {
+      if (KEY_TWO.equals(it.next())) {
+        it.remove();
+      }
+    }
+    assertEquals(Arrays.asList(new Object[] {KEY_ONE, KEY_THREE}), testMap.keys());
+  }
+
+  public void testManyRemovesAndPuts() {
+    IOrderedMap map = createInstance();
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, new Integer(i));
+      if (i % 3 == 0) {
+        map.remove("k" + (i / 2));
+      }
+    }
+    OrderedHashMap expected = new OrderedHashMap();
+    for (int i = 0; i < 1000; i++) {
+      expected.put("k" + i, new Integer(i));
+      if (i % 3 == 0) {
+        expected.remove("k" + (i / 2));
+      }
+    }
+    assertEquals(expected, map);
+    assertEquals(expected.keys(), map.keys());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), map.get(i));
+    }
+  }
+
+  public void testAddExistingKeyMovesIt() {
+    testMap.add(0, KEY_THREE, "moved");
+    assertEquals(Arrays.asList(new Object[] {KEY_THREE, KEY_ONE, KEY_TWO}), testMap.keys());
+    assertEquals(3, testMap.size());
+  }
+
+  public void testEqualsOrderedHashMap() {
+    OrderedHashMap other = new OrderedHashMap();
+    populateTestMap(other);
+    assertEquals(other, testMap);
+    assertEquals(testMap, other);
+    assertEquals(other.hashCode(), testMap.hashCode());
+    assertEquals(other.toString(), testMap.toString());
+  }
+
+  public void testSerialization() throws Exception {
+    testMap.remove(KEY_TWO);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(testMap);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    IOrderedMap copy = (IOrderedMap) in.readObject();
+    assertEquals(testMap, copy);
+    assertEquals(testMap.keys(), copy.keys());
+  }
+
+  public void testNullKeyRejected() {
+    try {
+      testMap.put(null, "value");
+      fail("Expected NullPointerException");
+    } catch (NullPointerException e) {
+    }
+  }
+}
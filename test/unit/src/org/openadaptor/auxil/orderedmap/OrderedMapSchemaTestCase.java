@@ -0,0 +1,109 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.auxil.orderedmap;
+
+import java.util.Arrays;
+
+/**
+ * Runs the common IOrderedMap tests against maps created from an {@link OrderedMapSchema},
+ * plus tests of how such maps share and diverge from their schema.
+ */
+public class OrderedMapSchemaTestCase extends AbstractIOrderedMapTests {
+
+  private static final OrderedMapSchema SCHEMA = new OrderedMapSchema(KEYS);
+
+  protected IOrderedMap createInstance() {
+    return SCHEMA.newMap();
+  }
+
+  public void testNewMapWithValues() {
+    IOrderedMap map = SCHEMA.newMap(new String[] {RECORD_ONE, RECORD_TWO, RECORD_THREE});
+    assertEquals(testMap, map);
+    assertEquals(Arrays.asList(KEYS), map.keys());
+    assertEquals(RECORD_TWO, map.get(1));
+    map.put("extra", "value"); // must not be stored in the caller's String[]
+    assertEquals("value", map.get(3));
+  }
+
+  public void testWrongNumberOfValues() {
+    try {
+      SCHEMA.newMap(new Object[] {RECORD_ONE});
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  public void testDuplicateKeys() {
+    try {
+      new OrderedMapSchema(new Object[] {"a", "b", "a"});
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  public void testPartialFill() {
+    IOrderedMap map = SCHEMA.newMap();
+    map.put(KEY_ONE, RECORD_ONE);
+    map.put(KEY_THREE, RECORD_THREE);
+    assertEquals(2, map.size());
+    assertFalse(map.containsKey(KEY_TWO));
+    assertEquals(Arrays.asList(new Object[] {KEY_ONE, KEY_THREE}), map.keys());
+    map.put(KEY_TWO, RECORD_TWO); // Out of schema order, so goes at the end
+    assertEquals(Arrays.asList(new Object[] {KEY_ONE, KEY_THREE, KEY_TWO}), map.keys());
+  }
+
+  public void testDivergingMapDoesNotAffectOthers() {
+    IOrderedMap first = SCHEMA.newMap(new Object[] {"1", "2", "3"});
+    IOrderedMap second = SCHEMA.newMap(new Object[] {"a", "b", "c"});
+    first.remove(KEY_ONE);
+    first.add(0, "new", "0");
+    first.put("last", "4");
+    assertEquals(Arrays.asList(new Object[] {"new", KEY_TWO, KEY_THREE, "last"}), first.keys());
+    assertEquals(Arrays.asList(KEYS), second.keys());
+    assertEquals(Arrays.asList(KEYS), SCHEMA.keys());
+    assertEquals("a", second.get(KEY_ONE));
+    IOrderedMap third = SCHEMA.newMap();
+    populateTestMap(third);
+    assertEquals(testMap, third);
+  }
+
+  public void testCloneIsIndependent() {
+    IOrderedMap clone = (IOrderedMap) testMap.clone();
+    clone.put(KEY_ONE, "changed");
+    clone.remove(KEY_TWO);
+    assertEquals(RECORD_ONE, testMap.get(KEY_ONE));
+    assertEquals(RECORD_TWO, testMap.get(KEY_TWO));
+  }
+
+  public void testClearKeepsSchema() {
+    testMap.clear();
+    assertTrue(testMap.isEmpty());
+    populateTestMap(testMap);
+    assertEquals(Arrays.asList(KEYS), testMap.keys());
+  }
+}
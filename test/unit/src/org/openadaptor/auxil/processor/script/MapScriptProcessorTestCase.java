@@ -45,6 +45,19 @@ public class MapScriptProcessorTestCase extends AbstractTestIDataProcessor {
     log.debug("--- END testValidMap ---");
   }
 
+  /**
+   * Passing metadata per call must still go through the Map check.
+   */
+  public void testValidMapWithMetadata() {
+    MapScriptProcessor processor=(MapScriptProcessor)testProcessor;
+    processor.setScript(binding+";");
+    try {
+      processor.process("Not a map", new HashMap());
+      fail("Non Map data should have caused a RecordFormatException");
+    }
+    catch (RecordFormatException rfe) {} //Expected   
+  }
+
   public void testProcessRecord() {
     log.debug("--- BEGIN testProcessRecord ---");
     ArrayList exceptions=new ArrayList();
@@ -1,7 +1,10 @@
 package org.openadaptor.auxil.processor.script;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -74,6 +77,84 @@ public class ScriptProcessorTestCase extends AbstractTestIDataProcessor {
     assertFalse(exceptions.isEmpty());
 
   }
+  public void testPooledProcessRecord() {
+    ScriptProcessor processor=(ScriptProcessor)testProcessor;
+    processor.setPoolSize(3);
+    processor.setScript(binding+" = "+binding+" + "+ScriptProcessor.DEFAULT_METADATA_BINDING+".get('suffix');");
+    List exceptions=new ArrayList();
+    processor.validate(exceptions);
+    assertTrue(exceptions.isEmpty());
+    Map metadata=new HashMap();
+    metadata.put("suffix", "!");
+    checkResult("foobar!",processor.process(FOOBAR, metadata));
+    processor.setMetadata(metadata);
+    checkResult("foobar!",processor.process(FOOBAR));
+    assertEquals(2, processor.getExecutionCount());
+    assertEquals(0, processor.getExecutionFailureCount());
+  }
+
+  public void testPooledConcurrentProcessing() throws Exception {
+    final ScriptProcessor processor=(ScriptProcessor)testProcessor;
+    processor.setPoolSize(4);
+    processor.setScript(binding+" = "+binding+" + '!';");
+    processor.validate(new ArrayList());
+    final List failures=Collections.synchronizedList(new ArrayList());
+    Thread[] threads=new Thread[4];
+    for (int t=0;t<threads.length;t++) {
+      final String prefix="t"+t+"_";
+      threads[t]=new Thread() {
+        public void run() {
+          for (int i=0;i<500;i++) {
+            String input=prefix+i;
+            Object[] result=processor.process(input, null);
+            if (result.length!=1 || !(input+"!").equals(result[0])) {
+              failures.add(input);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t=0;t<threads.length;t++) {
+      threads[t].join();
+    }
+    assertTrue("Failures: "+failures, failures.isEmpty());
+    assertEquals(2000, processor.getExecutionCount());
+  }
+
+  /**
+   * Each thread must see the metadata it set itself, not another thread's.
+   */
+  public void testPooledPerThreadMetadata() throws Exception {
+    final ScriptProcessor processor=(ScriptProcessor)testProcessor;
+    processor.setPoolSize(4);
+    processor.setScript(binding+" = "+binding+" + "+ScriptProcessor.DEFAULT_METADATA_BINDING+".get('suffix');");
+    processor.validate(new ArrayList());
+    final List failures=Collections.synchronizedList(new ArrayList());
+    Thread[] threads=new Thread[4];
+    for (int t=0;t<threads.length;t++) {
+      final String suffix="_t"+t;
+      threads[t]=new Thread() {
+        public void run() {
+          for (int i=0;i<200;i++) {
+            Map metadata=new HashMap();
+            metadata.put("suffix", suffix);
+            processor.setMetadata(metadata);
+            Object[] result=processor.process("r"+i);
+            if (result.length!=1 || !("r"+i+suffix).equals(result[0])) {
+              failures.add(result.length==1 ? result[0] : null);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t=0;t<threads.length;t++) {
+      threads[t].join();
+    }
+    assertTrue("Failures: "+failures, failures.isEmpty());
+  }
+
 //Utility (and convenience) methods for validation of script output.
   private void checkResult(Object expected,Object[] returned) {
     checkResult(new Object[] {expected},returned);
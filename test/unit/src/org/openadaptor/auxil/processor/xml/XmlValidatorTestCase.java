@@ -1,11 +1,17 @@
 package org.openadaptor.auxil.processor.xml;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import junit.framework.TestCase;
 
 import org.openadaptor.auxil.processor.xml.XmlValidator;
+import org.openadaptor.core.exception.ProcessingException;
+import org.openadaptor.core.exception.XMLValidationException;
+import org.openadaptor.util.FileUtils;
 import org.openadaptor.util.ResourceUtil;
 
 public class XmlValidatorTestCase extends TestCase {
@@ -48,6 +54,119 @@ public class XmlValidatorTestCase extends TestCase {
     }
   }
 
+  public void testPrecompiledSchema() throws Exception {
+    validatePrecompiledSchema();
+    String valid = team(2);
+    assertSame(valid, validator.process(valid)[0]);
+    byte[] bytes = valid.getBytes("UTF-8");
+    assertSame(bytes, validator.process(bytes)[0]);
+
+    try {
+      validator.process("<team><person id=\"x\"><name>a</name><type>b</type></person></team>");
+      fail("failed to throw exception for invalid xml");
+    } catch (ProcessingException e) {
+      assertFalse(e instanceof XMLValidationException);
+    }
+
+    validator.setEnableXMLValidationException(true);
+    try {
+      validator.process("<team><person id=\"1\"><name>a</name></person></team>".getBytes("UTF-8"));
+      fail("failed to throw exception for invalid xml");
+    } catch (XMLValidationException e) {
+    }
+
+    // validator is still usable after a failure
+    validator.process(valid);
+  }
+
+  public void testPrecompiledSchemaConcurrent() throws Exception {
+    validatePrecompiledSchema();
+    validator.setEnableXMLValidationException(true);
+    final List errors = Collections.synchronizedList(new ArrayList());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 200; j++) {
+            try {
+              if (j % 2 == n % 2) {
+                validator.process(team(j));
+              } else {
+                validator.process("<team><person/></team>");
+                errors.add("invalid xml passed");
+              }
+            } catch (XMLValidationException e) {
+            } catch (Exception e) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+  }
+
+  /**
+   * A schema changed at the same location is used once the processor is validated again.
+   */
+  public void testPrecompiledSchemaChanged() throws Exception {
+    File schema = FileUtils.createTempFile("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"a\" type=\"xs:string\"/></xs:schema>");
+    schema.deleteOnExit();
+    validator.setSchemaURL(schema.getAbsolutePath());
+    validator.setPrecompiledSchema(true);
+    List exceptions = new ArrayList();
+    validator.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+    validator.process("<a>1</a>");
+
+    FileWriter writer = new FileWriter(schema);
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"a\" type=\"xs:integer\"/></xs:schema>");
+    writer.close();
+    XmlValidator restarted = new XmlValidator();
+    restarted.setSchemaURL(schema.getAbsolutePath());
+    restarted.setPrecompiledSchema(true);
+    restarted.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+    restarted.process("<a>1</a>");
+    try {
+      restarted.process("<a>x</a>");
+      fail("failed to throw exception for xml invalid against the changed schema");
+    } catch (ProcessingException e) {
+    }
+  }
+
+  private void validatePrecompiledSchema() throws Exception {
+    File schema = FileUtils.createTempFile("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" elementFormDefault=\"qualified\">"
+        + "<xs:element name=\"team\"><xs:complexType><xs:sequence><xs:element maxOccurs=\"unbounded\" ref=\"person\"/>"
+        + "</xs:sequence></xs:complexType></xs:element>"
+        + "<xs:element name=\"person\"><xs:complexType><xs:sequence><xs:element ref=\"name\"/><xs:element ref=\"type\"/>"
+        + "</xs:sequence><xs:attribute name=\"id\" use=\"required\" type=\"xs:integer\"/></xs:complexType></xs:element>"
+        + "<xs:element name=\"name\" type=\"xs:NCName\"/><xs:element name=\"type\" type=\"xs:NCName\"/>"
+        + "</xs:schema>");
+    schema.deleteOnExit();
+    validator.setSchemaURL(schema.getAbsolutePath());
+    validator.setPrecompiledSchema(true);
+    List exceptions = new ArrayList();
+    validator.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+  }
+
+  private static String team(int size) {
+    StringBuffer sb = new StringBuffer("<team>");
+    for (int i = 0; i <= size; i++) {
+      sb.append("<person id=\"").append(i).append("\"><name>n").append(i).append("</name><type>t</type></person>");
+    }
+    return sb.append("</team>").toString();
+  }
+
   private void validateSchemaFile() {
     String s = ResourceUtil.getResourcePath(this, RESOURCE_LOCATION, "schema.xsd");
     validator.setSchemaURL(s);
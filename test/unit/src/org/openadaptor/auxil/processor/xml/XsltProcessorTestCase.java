@@ -32,14 +32,18 @@
  */
 package org.openadaptor.auxil.processor.xml;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import junit.framework.TestCase;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
+import org.openadaptor.core.exception.ProcessingException;
 import org.dom4j.io.SAXReader;
 import org.openadaptor.auxil.processor.xml.XsltProcessor;
 import org.openadaptor.util.ResourceUtil;
@@ -100,6 +104,103 @@ public class XsltProcessorTestCase extends TestCase {
     checkOutput((String) results[0]);
   }
 
+  /**
+   * byte[] records are transformed without building a dom4j document and can be written as byte[]
+   */
+  public void testByteTransform() throws Exception {
+    validateTransform(TRADE_IDS_XSL);
+    processor.setOutputBytes(true);
+    Object[] results = processor.process(trades(3).getBytes("UTF-8"));
+    assertEquals(1, results.length);
+    assertTrue(results[0] instanceof byte[]);
+    assertEquals("T0,T1,T2,", new String((byte[]) results[0], "UTF-8"));
+
+    results = processor.process(trades(1).getBytes("UTF-8"));
+    assertEquals("T0,", new String((byte[]) results[0], "UTF-8"));
+  }
+
+  public void testInvalidXml() throws Exception {
+    validateTransform(TRADE_IDS_XSL);
+    try {
+      processor.process("<trades>");
+      fail("expected ProcessingException");
+    } catch (ProcessingException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("Failed to parse XML") >= 0);
+    }
+  }
+
+  /**
+   * one processor shared by several threads
+   */
+  public void testConcurrentTransforms() throws Exception {
+    validateTransform(TRADE_IDS_XSL);
+    final List errors = Collections.synchronizedList(new ArrayList());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i + 1;
+      threads[i] = new Thread() {
+        public void run() {
+          String expected = expectedIds(n);
+          for (int j = 0; j < 200; j++) {
+            Object result = processor.process(trades(n))[0];
+            if (!expected.equals(result)) {
+              errors.add(result);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+  }
+
+  private static final String TRADE_IDS_XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+      + "<xsl:output method=\"text\" encoding=\"UTF-8\"/>"
+      + "<xsl:template match=\"/\"><xsl:for-each select=\"trades/trade\">"
+      + "<xsl:value-of select=\"tradeHeader/partyTradeIdentifier/tradeId\"/>,</xsl:for-each></xsl:template>"
+      + "</xsl:stylesheet>";
+
+  /**
+   * Builds an FpML like document containing the given number of trades
+   */
+  private static String trades(int count) {
+    StringBuffer sb = new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?><trades>");
+    for (int i = 0; i < count; i++) {
+      sb.append("<trade><tradeHeader><partyTradeIdentifier><partyReference href=\"party1\"/><tradeId tradeIdScheme=\"http://www.partyA.com/swaps/trade-id\">T")
+        .append(i).append("</tradeId></partyTradeIdentifier><tradeDate>2006-01-04</tradeDate></tradeHeader>");
+      sb.append("<swap><swapStream><payerPartyReference href=\"party1\"/><receiverPartyReference href=\"party2\"/>");
+      sb.append("<calculationPeriodDates id=\"floatingCalcPeriodDates\"><effectiveDate><unadjustedDate>2006-01-06</unadjustedDate>");
+      sb.append("<dateAdjustments><businessDayConvention>NONE</businessDayConvention></dateAdjustments></effectiveDate>");
+      sb.append("<terminationDate><unadjustedDate>2011-01-06</unadjustedDate></terminationDate></calculationPeriodDates>");
+      sb.append("<notionalStepSchedule><initialValue>").append(1000000 + i).append("</initialValue><currency>EUR</currency>");
+      sb.append("</notionalStepSchedule></swapStream></swap></trade>");
+    }
+    return sb.append("</trades>").toString();
+  }
+
+  private static String expectedIds(int count) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < count; i++) {
+      sb.append('T').append(i).append(',');
+    }
+    return sb.toString();
+  }
+
+  private void validateTransform(String xsl) throws Exception {
+    File file = File.createTempFile("transform", ".xsl");
+    file.deleteOnExit();
+    FileWriter writer = new FileWriter(file);
+    writer.write(xsl);
+    writer.close();
+    processor.setXsltFile(file.getAbsolutePath());
+    List exceptions = new ArrayList();
+    processor.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+  }
+
   private void validateTransformFile() {
     String s = ResourceUtil.getResourcePath(this, RESOURCE_LOCATION, "transform.xsl");
     processor.setXsltFile(s);
@@ -0,0 +1,109 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class CopyOnWriteMetadataTestCase extends TestCase {
+
+  public void testBranchesDoNotSeeEachOthersWrites() {
+    Map original = new HashMap();
+    original.put("a", "1");
+
+    Map branch1 = CopyOnWriteMetadata.share(original);
+    Map branch2 = CopyOnWriteMetadata.share(original);
+    assertEquals(original, branch1);
+    assertEquals(branch1, branch2);
+
+    branch1.put("b", "2");
+    branch2.remove("a");
+    assertEquals(1, original.size());
+    assertEquals("1", original.get("a"));
+    assertEquals(2, branch1.size());
+    assertTrue(branch2.isEmpty());
+  }
+
+  public void testShareCopyOnWriteMetadata() {
+    CopyOnWriteMetadata metadata = new CopyOnWriteMetadata();
+    metadata.put("a", "1");
+    CopyOnWriteMetadata branch = CopyOnWriteMetadata.share(metadata);
+
+    metadata.put("a", "x");
+    assertEquals("1", branch.get("a"));
+    branch.clear();
+    assertEquals("x", metadata.get("a"));
+
+    CopyOnWriteMetadata branch2 = metadata.share();
+    try {
+      branch2.keySet().remove("a");
+      fail("shared view should be read only");
+    } catch (UnsupportedOperationException e) {
+    }
+    branch2.put("b", "2");
+    branch2.keySet().remove("a");
+    assertEquals(Arrays.asList(new Object[] {"b"}), new ArrayList(branch2.keySet()));
+    assertEquals(1, metadata.size());
+    assertNull(CopyOnWriteMetadata.share(null));
+  }
+
+  public void testMessageHistory() {
+    MessageHistory root = MessageHistory.valueOf(null);
+    MessageHistory trunk = root;
+    for (int i = 0; i < 10; i++) {
+      trunk = trunk.append("n" + i);
+    }
+    assertEquals(0, root.size());
+    assertEquals(10, trunk.size());
+    assertEquals("n9", trunk.get(9));
+
+    // fan-out from the trunk
+    MessageHistory branch1 = trunk.append("b1").append("w1");
+    MessageHistory branch2 = trunk.append("b2");
+    assertEquals(12, branch1.size());
+    assertEquals("b1", branch1.get(10));
+    assertEquals("b2", branch2.get(10));
+    assertEquals(10, trunk.size());
+
+    List expected = new ArrayList(trunk);
+    expected.add("b2");
+    assertEquals(expected, branch2);
+    assertEquals(branch2, expected);
+
+    List list = new ArrayList();
+    list.add("x");
+    MessageHistory copy = MessageHistory.valueOf(list).append("y");
+    assertEquals(Arrays.asList(new Object[] {"x", "y"}), copy);
+    assertEquals(1, list.size());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.connector;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.auxil.orderedmap.OrderedHashMap;
+
+/**
+ * Tests for spilling data beyond the queue limit of a {@link QueuingReadConnector} to disk.
+ */
+public class QueuingReadConnectorSpillTestCase extends TestCase {
+
+  private File directory;
+
+  private TestConnector connector;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("spill", "");
+    directory.delete();
+    directory.mkdirs();
+    connector = new TestConnector();
+    connector.setTransacted(false);
+    connector.setQueueLimit(3);
+    connector.setAsyncAcknowledge(true);
+    connector.setSpillDirectory(directory.getPath());
+    connector.setSpillSegmentSize(1024);
+  }
+
+  protected void tearDown() throws Exception {
+    connector.disconnect();
+    File[] files = directory.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      files[i].delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  private List drain() {
+    List data = new ArrayList();
+    for (Object[] batch = connector.next(1); batch != null; batch = connector.next(1)) {
+      data.addAll(Arrays.asList(batch));
+    }
+    return data;
+  }
+
+  public void testSpilledInOrder() {
+    List expected = new ArrayList();
+    for (int i = 0; i < 100; i++) {
+      expected.add("item" + i);
+      connector.enqueue("item" + i);
+    }
+    assertEquals(3, connector.getQueueSize());
+    assertEquals(97, connector.getSpilledQueueSize());
+    assertEquals(97, connector.getSpilledCount());
+    assertTrue(connector.getSpilledBytes() > 97 * 5);
+    assertTrue(connector.getSpillLatencyMicros(99) >= 0);
+
+    // some out, more in, they must stay behind the spilled ones
+    List data = new ArrayList();
+    data.addAll(Arrays.asList(connector.next(1)));
+    connector.enqueue("late");
+    expected.add("late");
+    data.addAll(drain());
+    assertEquals(expected, data);
+    assertEquals(0, connector.getSpilledQueueSize());
+  }
+
+  public void testEncodings() {
+    IOrderedMap nested = new OrderedHashMap();
+    nested.put("z", new byte[] { 1, 2, 3 });
+    nested.put("a", new Object[] { "x", null, new Integer(7) });
+    IOrderedMap map = new OrderedHashMap();
+    map.put("name", "café");
+    map.put("nested", nested);
+    map.put(new Integer(3), null);
+    for (int i = 0; i < 3; i++) {
+      connector.enqueue("fill" + i);
+    }
+    connector.enqueue(map);
+    connector.enqueue(new byte[300]);
+    connector.enqueue(new Long(42));
+    assertEquals(3, connector.getSpilledQueueSize());
+
+    List data = drain();
+    assertEquals(6, data.size());
+    IOrderedMap read = (IOrderedMap) data.get(3);
+    assertEquals(Arrays.asList(new Object[] { "name", "nested", new Integer(3) }), read.keys());
+    assertEquals("café", read.get("name"));
+    IOrderedMap readNested = (IOrderedMap) read.get("nested");
+    assertEquals(Arrays.asList(new Object[] { "z", "a" }), readNested.keys());
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) readNested.get("z")));
+    assertTrue(Arrays.equals(new Object[] { "x", null, new Integer(7) }, (Object[]) readNested.get("a")));
+    assertTrue(Arrays.equals(new byte[300], (byte[]) data.get(4)));
+    assertEquals(new Long(42), data.get(5));
+  }
+
+  /**
+   * Producers waiting for spilled data are told if it is never processed.
+   */
+  public void testFailedOnClose() throws Exception {
+    connector.setAsyncAcknowledge(false);
+    final List errors = new ArrayList();
+    Thread[] producers = new Thread[5];
+    for (int i = 0; i < producers.length; i++) {
+      final String data = "p" + i;
+      producers[i] = new Thread() {
+        public void run() {
+          try {
+            connector.enqueue(data);
+          } catch (RuntimeException e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      producers[i].start();
+    }
+    for (int i = 0; i < 100 && connector.getSpilledQueueSize() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, connector.getSpilledQueueSize());
+    connector.disconnect();
+    assertEquals(0, connector.getSpilledQueueSize());
+    // the three queued items are still processed
+    assertEquals(3, drain().size());
+    for (int i = 0; i < producers.length; i++) {
+      producers[i].join(5000);
+    }
+    assertEquals(2, errors.size());
+  }
+
+  private static class TestConnector extends QueuingReadConnector {
+
+    public void connect() {
+    }
+
+    public void validate(List exceptions) {
+    }
+  }
+}
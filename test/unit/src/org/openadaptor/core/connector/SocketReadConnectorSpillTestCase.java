@@ -0,0 +1,114 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.connector;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.auxil.connector.socket.SocketReadConnector;
+
+/**
+ * Tests that a multiplexed {@link SocketReadConnector} closes its spill when it
+ * disconnects.
+ */
+public class SocketReadConnectorSpillTestCase extends TestCase {
+
+  private File directory;
+
+  private SocketReadConnector connector;
+
+  private int port;
+
+  private List clients = new ArrayList();
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("spill", "");
+    directory.delete();
+    directory.mkdirs();
+    ServerSocket probe = new ServerSocket(0);
+    port = probe.getLocalPort();
+    probe.close();
+    connector = new SocketReadConnector("reader");
+    connector.setPort(port);
+    connector.setMultiplexed(true);
+    connector.setWorkerThreads(4);
+    connector.setTransacted(false);
+    connector.setQueueLimit(1);
+    connector.setSpillDirectory(directory.getPath());
+    connector.setSpillSegmentSize(1024);
+  }
+
+  protected void tearDown() throws Exception {
+    for (int i = 0; i < clients.size(); i++) {
+      ((Socket) clients.get(i)).close();
+    }
+    if (connector != null) {
+      connector.disconnect();
+    }
+    File[] files = directory.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      files[i].delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  private void send(String line) throws Exception {
+    Socket socket = new Socket("localhost", port);
+    clients.add(socket);
+    OutputStream out = socket.getOutputStream();
+    out.write((line + "\n").getBytes("US-ASCII"));
+    out.flush();
+  }
+
+  /**
+   * Items still spilled when the connector disconnects are failed, not left waiting.
+   */
+  public void testSpillClosedOnDisconnect() throws Exception {
+    connector.connect();
+    for (int i = 0; i < 3; i++) {
+      send("line" + i);
+    }
+    for (int i = 0; i < 500 && connector.getSpilledQueueSize() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, connector.getSpilledQueueSize());
+
+    SocketReadConnector disconnected = connector;
+    connector = null;
+    disconnected.disconnect();
+    assertEquals(0, disconnected.getSpilledQueueSize());
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.core.IWriteConnector;
+import org.openadaptor.core.Message;
+import org.openadaptor.core.Response;
+import org.openadaptor.util.SegmentedJournal;
+
+/**
+ * Tests for {@link DurableBufferNode} and the {@link SegmentedJournal} it uses.
+ */
+public class DurableBufferNodeTestCase extends TestCase {
+
+  private File directory;
+
+  private List nodes = new ArrayList();
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("journal", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  protected void tearDown() throws Exception {
+    for (int i = 0; i < nodes.size(); i++) {
+      ((DurableBufferNode) nodes.get(i)).stop();
+    }
+    File[] files = directory.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      files[i].delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  private DurableBufferNode createNode(IWriteConnector connector) {
+    DurableBufferNode node = new DurableBufferNode("buffer", new WriteNode("writer", connector));
+    node.setJournalDirectory(directory.getPath());
+    node.setRetryDelayMs(10);
+    node.setStopTimeoutMs(100);
+    List exceptions = new ArrayList();
+    node.validate(exceptions);
+    assertTrue(exceptions.toString(), exceptions.isEmpty());
+    nodes.add(node);
+    return node;
+  }
+
+  private static List records(String prefix, int count) {
+    List records = new ArrayList();
+    for (int i = 0; i < count; i++) {
+      records.add(prefix + i);
+    }
+    return records;
+  }
+
+  private static void send(DurableBufferNode node, List records) {
+    Response response = node.process(new Message(records, null, null, null));
+    assertFalse(response.toString(), response.containsExceptions());
+  }
+
+  private static void waitForDelivery(DurableBufferNode node, long expected) throws InterruptedException {
+    for (int i = 0; i < 500 && node.getDeliveredCount() + node.getDroppedCount() < expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, node.getDeliveredCount() + node.getDroppedCount());
+    assertEquals(0, node.getPendingCount());
+  }
+
+  public void testRecordsDeliveredInOrder() throws Exception {
+    RecordingConnector connector = new RecordingConnector();
+    DurableBufferNode node = createNode(connector);
+    node.start();
+    List expected = new ArrayList();
+    for (int i = 0; i < 5; i++) {
+      List records = records("m" + i + "-", 50);
+      send(node, records);
+      expected.addAll(records);
+    }
+    waitForDelivery(node, expected.size());
+    assertEquals(expected, connector.getWritten());
+  }
+
+  public void testRetriedUntilConnectorRecovers() throws Exception {
+    RecordingConnector connector = new RecordingConnector();
+    connector.failures = 5;
+    DurableBufferNode node = createNode(connector);
+    node.start();
+    List records = records("r", 20);
+    send(node, records);
+    waitForDelivery(node, records.size());
+    // records that succeed when a batch is bisected are not held back for the failed ones
+    List written = connector.getWritten();
+    Collections.sort(written);
+    Collections.sort(records);
+    assertEquals(records, written);
+    assertEquals(0, node.getDroppedCount());
+  }
+
+  public void testDroppedAfterMaxRetries() throws Exception {
+    RecordingConnector connector = new RecordingConnector();
+    DurableBufferNode node = createNode(connector);
+    node.setMaxRetries(2);
+    node.start();
+    send(node, Arrays.asList(new Object[] { "a", "BAD", "b" }));
+    waitForDelivery(node, 3);
+    assertEquals(1, node.getDroppedCount());
+    assertEquals(Arrays.asList(new Object[] { "a", "b" }), connector.getWritten());
+  }
+
+  /**
+   * A failure outside of the WriteNode doesn't stop the drainer, the batch is retried.
+   */
+  public void testDrainerSurvivesFailure() throws Exception {
+    RecordingConnector connector = new RecordingConnector();
+    connector.failures = 1;
+    DurableBufferNode node = createNode(connector);
+    node.setMaxRetries(0);
+    node.start();
+    // the drainer fails logging the record it drops
+    Unprintable.failures = 1;
+    send(node, Arrays.asList(new Object[] { new Unprintable() }));
+    waitForDelivery(node, 1);
+    assertEquals(1, node.getDeliveredCount());
+    send(node, Arrays.asList(new Object[] { "a" }));
+    waitForDelivery(node, 2);
+    assertEquals("a", connector.getWritten().get(1));
+  }
+
+  /**
+   * Records journaled while the connector is down are delivered after a restart.
+   */
+  public void testReplayedOnRestart() throws Exception {
+    RecordingConnector down = new RecordingConnector();
+    down.failures = Integer.MAX_VALUE;
+    DurableBufferNode node = createNode(down);
+    node.start();
+    List records = records("p", 10);
+    send(node, records);
+    node.stop();
+    assertEquals(0, down.getWritten().size());
+    assertTrue(directory.list().length > 0);
+
+    RecordingConnector up = new RecordingConnector();
+    node = createNode(up);
+    node.start();
+    waitForDelivery(node, records.size());
+    assertEquals(records, up.getWritten());
+  }
+
+  /**
+   * Segments are deleted once everything in them is delivered.
+   */
+  public void testSegmentsCompacted() throws Exception {
+    RecordingConnector connector = new RecordingConnector();
+    DurableBufferNode node = createNode(connector);
+    node.setSegmentSize(1024);
+    node.setSyncOnWrite(false);
+    node.start();
+    List records = records("a fairly long record to fill the segments quickly ", 200);
+    send(node, records);
+    waitForDelivery(node, records.size());
+    assertEquals(records, connector.getWritten());
+    assertEquals(1, directory.list().length);
+  }
+
+  /**
+   * A record only partly written before a crash is not read back.
+   */
+  public void testIncompleteRecordDiscarded() throws Exception {
+    SegmentedJournal journal = new SegmentedJournal(directory, "test", 4096);
+    journal.open();
+    journal.sync(journal.append("one".getBytes()));
+    journal.append("two".getBytes());
+    journal.sync(journal.append("three".getBytes()));
+    assertEquals("one", new String(journal.next(0).getData()));
+    journal.close();
+
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+    try {
+      // last byte of "three"
+      raf.seek(4 + 9 + 3 + 9 + 3 + 9 + 4);
+      raf.write('X');
+    } finally {
+      raf.close();
+    }
+
+    journal = new SegmentedJournal(directory, "test", 4096);
+    journal.open();
+    try {
+      assertEquals(2, journal.getPendingCount());
+      SegmentedJournal.Entry entry = journal.next(0);
+      assertEquals("one", new String(entry.getData()));
+      journal.acknowledge(entry);
+      entry = journal.next(0);
+      assertEquals("two", new String(entry.getData()));
+      journal.acknowledge(entry);
+      assertNull(journal.next(0));
+      assertEquals(0, journal.getPendingCount());
+    } finally {
+      journal.close();
+    }
+  }
+
+  /**
+   * A record can be taken back out of the journal until the reader gets to it.
+   */
+  public void testCancel() throws Exception {
+    SegmentedJournal journal = new SegmentedJournal(directory, "test", 4096);
+    journal.open();
+    try {
+      byte[] one = "one".getBytes();
+      byte[] two = "two".getBytes();
+      long first = journal.append(one);
+      long second = journal.append(two);
+      assertEquals("one", new String(journal.next(0).getData()));
+      assertFalse(journal.cancel(first, one));
+      assertTrue(journal.cancel(second, two));
+      assertEquals(1, journal.getPendingCount());
+      assertNull(journal.next(0));
+    } finally {
+      journal.close();
+    }
+  }
+
+  /**
+   * Delivered segments are deleted straight away, while the journal is still open.
+   */
+  public void testSegmentFilesDeleted() throws Exception {
+    SegmentedJournal journal = new SegmentedJournal(directory, "test", 256);
+    journal.open();
+    try {
+      byte[] record = new byte[100];
+      for (int i = 0; i < 20; i++) {
+        journal.append(record);
+        journal.acknowledge(journal.next(0));
+      }
+      assertTrue(directory.list().length <= 2);
+      assertEquals(0, journal.getPendingCount());
+      journal.append(record);
+      assertEquals(100, journal.next(0).getData().length);
+    } finally {
+      journal.close();
+    }
+  }
+
+  /**
+   * Throws from toString() while <code>failures</code> is positive.
+   */
+  private static class Unprintable implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static volatile int failures;
+
+    public String toString() {
+      if (failures > 0) {
+        failures--;
+        throw new IllegalStateException("unprintable");
+      }
+      return "unprintable";
+    }
+  }
+
+  /**
+   * Throws while <code>failures</code> is positive, or for records starting with "BAD".
+   */
+  private static class RecordingConnector implements IWriteConnector {
+    private List written = new ArrayList();
+
+    volatile int failures;
+
+    public synchronized Object deliver(Object[] data) {
+      if (failures > 0) {
+        failures--;
+        throw new RuntimeException("unavailable");
+      }
+      for (int i = 0; i < data.length; i++) {
+        if (String.valueOf(data[i]).startsWith("BAD")) {
+          throw new RuntimeException("bad record " + data[i]);
+        }
+      }
+      written.addAll(Arrays.asList(data));
+      return null;
+    }
+
+    synchronized List getWritten() {
+      return new ArrayList(written);
+    }
+
+    public void connect() {
+    }
+
+    public void disconnect() {
+    }
+
+    public boolean isConnected() {
+      return true;
+    }
+
+    public void validate(List exceptions) {
+    }
+  }
+}
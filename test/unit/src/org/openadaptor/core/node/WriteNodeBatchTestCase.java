@@ -0,0 +1,187 @@
+/*
+ Copyright (C) 2001 - 2010 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+*/
+
+package org.openadaptor.core.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openadaptor.core.IWriteConnector;
+import org.openadaptor.core.Message;
+import org.openadaptor.core.Response;
+import org.openadaptor.core.exception.MessageException;
+import org.openadaptor.core.transaction.ITransaction;
+import org.openadaptor.core.transaction.ITransactional;
+import org.openadaptor.core.transaction.ITransactionalResource;
+import org.openadaptor.core.transaction.TransactionManager;
+
+/**
+ * Tests for the batching and failure isolation behaviour of {@link WriteNode}.
+ */
+public class WriteNodeBatchTestCase extends TestCase {
+
+  private RecordingConnector connector;
+
+  private WriteNode node;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    connector = new RecordingConnector();
+    node = new WriteNode("WriteNode", connector);
+  }
+
+  public void testInMessageBatchIsolatesBadRecords() {
+    Response response = node.process(message(new Object[] {"a", "BAD1", "b", "c", "BAD2", "d", "e"}));
+    assertEquals(Arrays.asList(new Object[] {"a", "b", "c", "d", "e"}), connector.written);
+    Object[] exceptions = response.getCollatedExceptions();
+    assertEquals(2, exceptions.length);
+    assertEquals("BAD1", ((MessageException) exceptions[0]).getData());
+    assertEquals("BAD2", ((MessageException) exceptions[1]).getData());
+  }
+
+  public void testInMessageBatchDeliveredInOneCall() {
+    node.process(message(new Object[] {"a", "b", "c"}));
+    assertEquals(1, connector.deliveries);
+    assertEquals(3, connector.written.size());
+  }
+
+  public void testInMessageBatchDeliveredInChunks() {
+    node.setBatchSize(2);
+    Response response = node.process(message(new Object[] {"a", "b", "BAD", "c", "d"}));
+    assertEquals(Arrays.asList(new Object[] {"a", "b", "c", "d"}), connector.written);
+    assertEquals(1, response.getCollatedExceptions().length);
+    assertEquals("BAD", ((MessageException) response.getCollatedExceptions()[0]).getData());
+  }
+
+  public void testNothingHeldOverBetweenMessages() {
+    node.setBatchSize(10);
+    node.process(message(new Object[] {"a", "b"}));
+    assertEquals(1, connector.deliveries);
+    assertEquals(Arrays.asList(new Object[] {"a", "b"}), connector.written);
+  }
+
+  public void testTransactionalFailureFailsWholeMessage() {
+    TransactionalConnector transactional = new TransactionalConnector();
+    node = new WriteNode("WriteNode", transactional);
+    node.setBatchSize(2);
+    ITransaction transaction = new TransactionManager().getTransaction();
+    Object[] data = new Object[] {"a", "b", "BAD", "c"};
+    Response response = node.process(new Message(data, null, transaction, null));
+    transaction.commit();
+    // not chunked or bisected, the connector's work is rolled back as a whole
+    assertEquals(1, transactional.deliveries);
+    Object[] exceptions = response.getCollatedExceptions();
+    assertEquals(1, exceptions.length);
+    assertTrue(Arrays.equals(data, (Object[]) ((MessageException) exceptions[0]).getData()));
+    assertTrue(transactional.rolledBack);
+    assertFalse(transactional.committed);
+  }
+
+  public void testTransactionalUnbatchReportsEachRecord() {
+    TransactionalConnector transactional = new TransactionalConnector();
+    node = new WriteNode("WriteNode", transactional);
+    node.setUnbatch(true);
+    ITransaction transaction = new TransactionManager().getTransaction();
+    Response response = node.process(new Message(new Object[] {"a", "BAD", "b"}, null, transaction, null));
+    transaction.commit();
+    assertEquals(3, transactional.deliveries);
+    Object[] exceptions = response.getCollatedExceptions();
+    assertEquals(1, exceptions.length);
+    assertEquals("BAD", ((MessageException) exceptions[0]).getData());
+    assertTrue(transactional.rolledBack);
+  }
+
+  public void testTransactionalSuccessCommits() {
+    TransactionalConnector transactional = new TransactionalConnector();
+    node = new WriteNode("WriteNode", transactional);
+    ITransaction transaction = new TransactionManager().getTransaction();
+    Response response = node.process(new Message(new Object[] {"a", "b", "c"}, null, transaction, null));
+    transaction.commit();
+    assertEquals(1, transactional.deliveries);
+    assertEquals(0, response.getCollatedExceptions().length);
+    assertTrue(transactional.committed);
+  }
+
+  private static Message message(Object[] data) {
+    return new Message(data, null, null, null);
+  }
+
+  /**
+   * Fails any delivery that contains a record starting with "BAD".
+   */
+  private static class RecordingConnector implements IWriteConnector {
+    List written = new ArrayList();
+    int deliveries;
+
+    public synchronized Object deliver(Object[] data) {
+      deliveries++;
+      for (int i = 0; i < data.length; i++) {
+        if (String.valueOf(data[i]).startsWith("BAD")) {
+          throw new RuntimeException("bad record " + data[i]);
+        }
+      }
+      written.addAll(Arrays.asList(data));
+      return null;
+    }
+
+    public void connect() {
+    }
+
+    public void disconnect() {
+    }
+
+    public boolean isConnected() {
+      return true;
+    }
+
+    public void validate(List exceptions) {
+    }
+  }
+
+  private static class TransactionalConnector extends RecordingConnector implements ITransactional {
+    boolean committed;
+    boolean rolledBack;
+
+    public Object getResource() {
+      return new ITransactionalResource() {
+        public void begin() {
+        }
+
+        public void commit() {
+          committed = true;
+        }
+
+        public void rollback(Throwable e) {
+          rolledBack = true;
+        }
+      };
+    }
+  }
+}
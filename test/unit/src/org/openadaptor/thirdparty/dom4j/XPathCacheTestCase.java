@@ -0,0 +1,113 @@
+/*
+ Copyright (C) 2001 - 2007 The Software Conservancy as Trustee. All rights reserved.
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal in the
+ Software without restriction, including without limitation the rights to use, copy,
+ modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ and to permit persons to whom the Software is furnished to do so, subject to the
+ following conditions:
+
+ The above copyright notice and this permission notice shall be included in all 
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+ Nothing in this notice shall be deemed to grant any rights to trademarks, copyrights,
+ patents, trade secrets or any other intellectual property of the licensor or any
+ contributor except as expressly stated herein. No patent license is granted separate
+ from the Software, for code that you delete from the Software, or for combinations
+ of the Software with other software or hardware.
+ */
+
+package org.openadaptor.thirdparty.dom4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * Unit tests for XPathCache.
+ */
+public class XPathCacheTestCase extends TestCase {
+
+  private static final String XML =
+    "<root xmlns:x='urn:x'>" +
+    "<a><b>1</b><b>2</b><c><b>3</b></c></a>" +
+    "<a><b>4</b></a>" +
+    "<x:a><b>5</b></x:a>" +
+    "<d id='7'>text</d>" +
+    "</root>";
+
+  private Document document;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    document = DocumentHelper.parseText(XML);
+  }
+
+  public void testIsSimplePath() {
+    assertTrue(XPathCache.isSimplePath("a"));
+    assertTrue(XPathCache.isSimplePath("/root/a/b"));
+    assertTrue(XPathCache.isSimplePath("root/a-1/b_2"));
+    assertFalse(XPathCache.isSimplePath("//b"));
+    assertFalse(XPathCache.isSimplePath("root/a[1]"));
+    assertFalse(XPathCache.isSimplePath("root/d/@id"));
+    assertFalse(XPathCache.isSimplePath("root/x:a"));
+    assertFalse(XPathCache.isSimplePath("root/*"));
+    assertFalse(XPathCache.isSimplePath("root/a/text()"));
+  }
+
+  /**
+   * The fast path, and the cached XPaths, must select exactly what Dom4j does.
+   */
+  public void testMatchesDom4j() {
+    String[] paths = { "root", "/root", "root/a/b", "/root/a/b", "root/a/c/b", "root/missing", "a",
+        "root/a[2]/b", "//b", "root/d/@id", "root/x:a/b" };
+    Element secondA = (Element) document.getRootElement().elements("a").get(1);
+    Node[] contexts = { document, document.getRootElement(), secondA };
+    for (int i = 0; i < paths.length; i++) {
+      for (int j = 0; j < contexts.length; j++) {
+        for (int repeat = 0; repeat < 2; repeat++) {
+          assertEquals(paths[i], contexts[j].selectNodes(paths[i]), XPathCache.selectNodes(contexts[j], paths[i]));
+          assertEquals(paths[i], contexts[j].selectSingleNode(paths[i]), XPathCache.selectSingleNode(contexts[j], paths[i]));
+        }
+      }
+    }
+    assertEquals(3, XPathCache.selectNodes(document, "root/a/b").size());
+    assertEquals("1", XPathCache.selectSingleNode(document, "root/a/b").getText());
+    assertEquals("3", XPathCache.selectSingleNode(document, "root/a/c/b").getText());
+  }
+
+  public void testDefaultNamespace() throws Exception {
+    Document namespaced = DocumentHelper.parseText("<root xmlns='urn:d'><a>1</a></root>");
+    assertTrue(XPathCache.selectNodes(namespaced, "root/a").isEmpty());
+    assertNull(XPathCache.selectSingleNode(namespaced, "root/a"));
+
+    Map namespaces = new HashMap();
+    namespaces.put("d", "urn:d");
+    List nodes = XPathCache.selectNodes(namespaced, "d:root/d:a", namespaces);
+    assertEquals(1, nodes.size());
+    namespaces.put("d", "urn:other");
+    assertTrue(XPathCache.selectNodes(namespaced, "d:root/d:a", namespaces).isEmpty());
+  }
+
+  public void testDetachedElement() {
+    Element detached = DocumentHelper.createElement("a");
+    detached.addElement("b");
+    assertEquals(1, XPathCache.selectNodes(detached, "b").size());
+    assertEquals(detached.selectNodes("/a"), XPathCache.selectNodes(detached, "/a"));
+  }
+}
@@ -1,8 +1,12 @@
 package org.openadaptor.thirdparty.json;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 
+import org.json.JSONObject;
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
 import org.openadaptor.core.IDataProcessor;
+import org.openadaptor.core.exception.ProcessingException;
 import org.openadaptor.core.exception.RecordException;
 
 /**
@@ -30,4 +34,92 @@ public class JSONToOrderedMapConvertorTestCase extends TestAbstractJSONConvertor
     }
   }
 
-}
\ No newline at end of file
+  private static final String NESTED = "{\"book\": \"LDN-1\", \"position\": {\"qty\": -1.5e3, \"ccy\": \" GBP \"},"
+    + " \"flags\": [true, false, null], \"note\": \"a\\\"b\\u00e9\"}";
+
+  private IOrderedMap convert(Object record) throws RecordException {
+    testProcessor.validate(new ArrayList());
+    Object[] maps = testProcessor.process(record);
+    assertEquals(1, maps.length);
+    return (IOrderedMap) maps[0];
+  }
+
+  private static void assertNested(IOrderedMap map) {
+    assertEquals("[book, position, flags, note]", map.keys().toString());
+    assertEquals("LDN-1", map.get("book"));
+    IOrderedMap position = (IOrderedMap) map.get("position");
+    assertEquals("-1.5e3", position.get("qty"));
+    assertEquals("GBP", position.get("ccy"));
+    IOrderedMap flags = (IOrderedMap) map.get("flags");
+    assertEquals(3, flags.size());
+    assertEquals("true", flags.get(0));
+    assertEquals("null", flags.get(2));
+    assertEquals("a\"b\u00e9", map.get("note"));
+  }
+
+  /**
+   * Nested objects and arrays from text, in each of the accepted forms.
+   */
+  public void testNestedText() throws Exception {
+    assertNested(convert(NESTED));
+    assertNested(convert(new StringReader(NESTED)));
+    assertNested(convert(NESTED.getBytes("UTF-8")));
+  }
+
+  /**
+   * The same record parsed by JSONObject first must give the same map.
+   */
+  public void testNestedJSONObject() throws Exception {
+    IOrderedMap map = convert(new JSONObject(NESTED));
+    IOrderedMap position = (IOrderedMap) map.get("position");
+    assertEquals("GBP", position.get("ccy"));
+    assertEquals("false", ((IOrderedMap) map.get("flags")).get(1));
+  }
+
+  public void testTopLevelArray() throws Exception {
+    IOrderedMap map = convert("[{\"a\":\"1\"}, \"x\", []]");
+    assertEquals(3, map.size());
+    assertEquals("1", ((IOrderedMap) map.get(0)).get("a"));
+    assertEquals("x", map.get(1));
+    assertEquals(0, ((IOrderedMap) map.get(2)).size());
+  }
+
+  public void testInvalidText() {
+    String[] invalid = { "", "\"text\"", "{\"a\":}", "{\"a\":\"1\"", "[1, 2", "{\"a\" \"b\"}", "{} {}" };
+    testProcessor.validate(new ArrayList());
+    for (int i = 0; i < invalid.length; i++) {
+      try {
+        testProcessor.process(invalid[i]);
+        fail("Expected ProcessingException for " + invalid[i]);
+      } catch (ProcessingException e) {
+        // expected
+      }
+    }
+    // the parser is still usable afterwards
+    assertNested(convert(NESTED));
+  }
+
+  /**
+   * The streaming conversion gives the same map as parsing into a JSONObject first.
+   */
+  public void testMatchesJSONObject() throws Exception {
+    String text = generatePositions(100 * 1024);
+    assertEquals(convert(new JSONObject(text)), convert(text.getBytes("UTF-8")));
+  }
+
+  static String generatePositions(int size) {
+    StringBuffer sb = new StringBuffer(size + 1024);
+    sb.append("{\"asOf\": \"2010-06-30\", \"positions\": [");
+    for (int i = 0; sb.length() < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append("{\"id\": \"P").append(i).append("\", \"book\": \"BOOK-").append(i % 17);
+      sb.append("\", \"instrument\": {\"isin\": \"GB00").append(1000000 + i).append("\", \"type\": \"BOND\"}");
+      sb.append(", \"quantity\": ").append(i * 250).append(", \"price\": ").append(99.5 + i % 100 / 100.0);
+      sb.append(", \"active\": ").append(i % 3 != 0).append(", \"tags\": [\"eod\", \"gbp\"]}");
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+}
@@ -2,6 +2,9 @@ package org.openadaptor.thirdparty.json;
 
 import java.util.ArrayList;
 
+import org.json.JSONObject;
+import org.openadaptor.auxil.orderedmap.IOrderedMap;
+import org.openadaptor.auxil.orderedmap.OrderedHashMap;
 import org.openadaptor.core.IDataProcessor;
 import org.openadaptor.core.exception.RecordException;
 
@@ -30,4 +33,62 @@ public class OrderedMapToJSONConvertorTestCase extends TestAbstractJSONConvertor
     }
   }
 
-}
\ No newline at end of file
+  private OrderedMapToJSONConvertor textConvertor(int tabSize) {
+    OrderedMapToJSONConvertor convertor = new OrderedMapToJSONConvertor();
+    convertor.setAsText(true);
+    convertor.setTabSize(tabSize);
+    convertor.validate(new ArrayList());
+    return convertor;
+  }
+
+  private static IOrderedMap generateNestedOrderedMap() {
+    IOrderedMap position = new OrderedHashMap();
+    position.put("qty", new Integer(-1500));
+    position.put("price", new Double(99.75));
+    position.put("ccy", "GBP");
+    IOrderedMap map = new OrderedHashMap();
+    map.put("zbook", "LDN </script>");
+    map.put("position", position);
+    map.put("tags", new Object[] { "eod", Boolean.TRUE, new Object[] { "x" } });
+    map.put("ignored", null);
+    map.put("note", "tab\there \"quoted\" \\ \u0001");
+    return map;
+  }
+
+  /**
+   * Text is written directly, keeping the key order, and means the same as JSONObject's text.
+   */
+  public void testText() throws Exception {
+    IOrderedMap map = generateNestedOrderedMap();
+    String text = (String) textConvertor(0).process(map)[0];
+    assertTrue(text, text.startsWith("{\"zbook\":\"LDN <\\/script>\",\"position\":{\"qty\":-1500,"));
+    assertTrue(text, new JSONObject(text).similar(textConvertor(0).jsonObjectFromOM(map)));
+    assertEquals(textConvertor(0).jsonObjectFromOM(map).getString("note"), new JSONObject(text).getString("note"));
+
+    String pretty = (String) textConvertor(2).process(map)[0];
+    assertTrue(pretty, pretty.startsWith("{\n  \"zbook\": \"LDN <\\/script>\",\n  \"position\": {\n    \"qty\": -1500,"));
+    assertTrue(pretty, new JSONObject(pretty).similar(new JSONObject(text)));
+
+    // single members, so JSONObject's key order doesn't matter
+    IOrderedMap inner = new OrderedHashMap();
+    inner.put("qty", new Integer(1));
+    IOrderedMap single = new OrderedHashMap();
+    single.put("only", new Object[] { "a", new Object[] { inner, "b" }, inner });
+    assertEquals(textConvertor(2).jsonObjectFromOM(single).toString(2), textConvertor(2).process(single)[0]);
+  }
+
+  /**
+   * Map to text and back again.
+   */
+  public void testRoundTrip() throws Exception {
+    JSONToOrderedMapConvertor reader = new JSONToOrderedMapConvertor();
+    reader.validate(new ArrayList());
+    String text = JSONToOrderedMapConvertorTestCase.generatePositions(100 * 1024);
+    IOrderedMap map = (IOrderedMap) reader.process(text)[0];
+    OrderedMapToJSONConvertor writer = textConvertor(0);
+    String written = (String) writer.process(map)[0];
+    assertEquals(map, reader.process(written)[0]);
+    // buffer is reused for the next record
+    assertEquals(written, writer.process(map)[0]);
+  }
+}